@@ -0,0 +1,83 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Class: AccountStoreBenchmark
+Description: Compares the heap and off-heap account stores. Looking up an account and depositing into it should cost
+             about the same in both, while loading a million accounts should allocate far less of the heap off it,
+             which the GC profiler's allocation figures show. The sharded store shows what finding the owning shard
+             adds to each lookup.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountStoreBenchmark {
+    // Number of account IDs cycled through by each benchmark. Must be a power of two
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int ACCOUNTS = 1000000;
+
+    @Param({AccountStore.HEAP, AccountStore.OFF_HEAP, AccountStore.SHARDED})
+    public String store;
+
+    private long[] allAccountIDs;
+    private long[] balances;
+    private long[] accountIDs;
+    private int next;
+    private long epochSecond = 1600000000L;
+
+    @Setup
+    public void setUp() {
+        allAccountIDs = BenchmarkAccounts.load(ACCOUNTS, BenchmarkAccounts.LARGE_BALANCE, store);
+        balances = new long[ACCOUNTS];
+        accountIDs = BenchmarkAccounts.sample(allAccountIDs, SAMPLE_SIZE);
+    }
+
+    // Finds an account and reads its balance
+    @Benchmark
+    public long findBalance() {
+        return Machine.customers.find(accountIDs[next++ & (SAMPLE_SIZE - 1)]).getAccountBalance();
+    }
+
+    // Finds an account and deposits into it under its lock, recording the history
+    @Benchmark
+    public long deposit() {
+        long accountID = accountIDs[next++ & (SAMPLE_SIZE - 1)];
+        ReentrantLock lock = Machine.accountLocks.forAccount(accountID);
+        lock.lock();
+        try {
+            return Machine.applyDeposit(Machine.customers.find(accountID), 2000, epochSecond++);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Loads a million accounts into an empty store
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public AccountStore load() {
+        AccountStore accounts = Machine.newAccountStore(store, ACCOUNTS);
+        accounts.putAll(allAccountIDs, balances, ACCOUNTS);
+        return accounts;
+    }
+}
@@ -0,0 +1,63 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: AuthorizeBenchmark
+Description: Measures Machine.authorize() as the number of accounts grows. A hash-indexed directory should keep the cost
+             flat from the four sample accounts up to millions of accounts.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizeBenchmark {
+    // Number of account IDs cycled through by each benchmark. Must be a power of two
+    private static final int SAMPLE_SIZE = 4096;
+
+    @Param({"4", "10000", "1000000"})
+    public int accounts;
+
+    private long[] accountIDs;
+    private Terminal terminal;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        accountIDs = BenchmarkAccounts.sample(BenchmarkAccounts.load(accounts, 0), SAMPLE_SIZE);
+        terminal = BenchmarkAccounts.terminal(1);
+    }
+
+    // A correct account ID and PIN, which also starts a session and schedules its expiry
+    @Benchmark
+    public String authorize() {
+        return Machine.authorize(terminal, accountIDs[next++ & (SAMPLE_SIZE - 1)], BenchmarkAccounts.PIN);
+    }
+
+    // A correct account ID with the wrong PIN
+    @Benchmark
+    public String authorizeWrongPin() {
+        return Machine.authorize(terminal, accountIDs[next++ & (SAMPLE_SIZE - 1)], "0000");
+    }
+
+    // An account ID that is not in the directory
+    @Benchmark
+    public String authorizeUnknownAccount() {
+        return Machine.authorize(terminal, accountIDs[next++ & (SAMPLE_SIZE - 1)] + 1, BenchmarkAccounts.PIN);
+    }
+}
@@ -0,0 +1,121 @@
+package TakeoffATMPKG;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/*
+Class: BalanceStressCheck
+Description: Hammers a few joint accounts with deposits and withdrawals from many threads at once, without taking the
+             account locks, and checks that no update was lost. Each thread keeps its own tally of what every change it
+             made should have done to each balance, using what credit() and debit() returned, so at the end each
+             balance must equal its starting balance plus the sum of the tallies. Withdrawals often overdraw the
+             accounts, so the overdrawn check and the overdraft fee are exercised too.
+
+             The "unsafe" mode makes the same changes with a plain read followed by setAccountBalance(), which shows
+             the check catching lost updates.
+
+             Run it with
+                 java -cp benchmarks/target/benchmarks.jar TakeoffATMPKG.BalanceStressCheck [threads]
+                      [changes per thread] [accounts] [heap | offheap | unsafe]
+             which defaults to 64 200000 4 heap. It exits with status 1 if any balance is wrong.
+*/
+
+public class BalanceStressCheck {
+    private static final long STARTING_BALANCE = Money.ofDollars(100);
+    private static final int MAX_DEPOSIT = 6000;
+    private static final int MAX_BILLS = 3;
+
+    public static void main(String[] args) throws InterruptedException {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        final int changes = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        String mode = args.length > 3 ? args[3] : AccountStore.HEAP;
+        final boolean unsafe = mode.equals("unsafe");
+
+        BenchmarkAccounts.load(count, STARTING_BALANCE, unsafe ? AccountStore.HEAP : mode);
+        final Account[] accounts = Machine.customers.toArray();
+        final long[][] tallies = new long[threads][accounts.length];
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final long[] tally = tallies[t];
+            final Random random = new Random(t);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < changes; i++) {
+                            int a = random.nextInt(accounts.length);
+                            if (random.nextBoolean()) {
+                                tally[a] += deposit(accounts[a], 1 + random.nextInt(MAX_DEPOSIT), unsafe);
+                            } else {
+                                tally[a] += withdraw(accounts[a],
+                                        (1 + random.nextInt(MAX_BILLS)) * Machine.TWENTY_DOLLAR_BILL, unsafe);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "balance-stress-" + (t + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        finished.await();
+        long elapsed = System.nanoTime() - began;
+
+        int wrong = 0;
+        for (int a = 0; a < accounts.length; a++) {
+            long expected = STARTING_BALANCE;
+            for (long[] tally : tallies) {
+                expected += tally[a];
+            }
+            long actual = accounts[a].getAccountBalance();
+            System.out.println("Account " + accounts[a].getAccountID() + ": expected " + Money.formatUsd(expected) +
+                    ", found " + Money.formatUsd(actual));
+            if (actual != expected) {
+                wrong++;
+            }
+        }
+        System.out.println(String.format("%d threads made %d changes to %d accounts (%s) in %.2f seconds, %d per second",
+                threads, (long) threads * changes, accounts.length, mode, elapsed / 1e9,
+                (long) ((double) threads * changes * 1e9 / elapsed)));
+        System.out.println(wrong == 0 ? "No updates were lost" : wrong + " balances lost updates");
+        System.exit(wrong == 0 ? 0 : 1);
+    }
+
+    // Returns the change the deposit made to the balance
+    private static long deposit(Account account, long amount, boolean unsafe) {
+        if (unsafe) {
+            account.setAccountBalance(account.getAccountBalance() + amount);
+        } else {
+            account.credit(amount);
+        }
+        return amount;
+    }
+
+    // Returns the change the withdrawal made to the balance, including any overdraft fee
+    private static long withdraw(Account account, long amount, boolean unsafe) {
+        long withdrawn;
+        if (unsafe) {
+            long balance = account.getAccountBalance();
+            withdrawn = balance <= 0 ? Account.OVERDRAWN : balance - amount;
+            if (withdrawn != Account.OVERDRAWN) {
+                account.setAccountBalance(withdrawn < 0 ? withdrawn - Machine.OVERDRAFT_FEE : withdrawn);
+            }
+        } else {
+            withdrawn = account.debit(amount, Machine.OVERDRAFT_FEE);
+        }
+        if (withdrawn == Account.OVERDRAWN) {
+            return 0;
+        }
+        return withdrawn < 0 ? -amount - Machine.OVERDRAFT_FEE : -amount;
+    }
+}
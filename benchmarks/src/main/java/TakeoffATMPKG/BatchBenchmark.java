@@ -0,0 +1,93 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: BatchBenchmark
+Description: Applies the same settlement-style mix of withdrawals and deposits across many accounts, one command at a
+             time through withdraw() and deposit(), and as a TransactionBatch through BatchProcessor. Scores are per
+             command.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+    private static final int COMMANDS = 65536;
+    private static final int ACCOUNTS = 10000;
+
+    @Param({"1", "4"})
+    public int workers;
+
+    private Session[] sessions;
+    private TransactionBatch batch;
+    private BatchProcessor processor;
+    private Terminal terminal;
+
+    @Setup
+    public void setUp() {
+        long[] accountIDs = BenchmarkAccounts.load(ACCOUNTS, BenchmarkAccounts.LARGE_BALANCE);
+        terminal = BenchmarkAccounts.terminal(1);
+        // One session per account, each on its own terminal, so the one-at-a-time path does not pay for authorize()
+        sessions = new Session[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            sessions[i] = BenchmarkAccounts.login(BenchmarkAccounts.terminal(i + 2), accountIDs[i]);
+        }
+        Random random = new Random(42);
+        batch = new TransactionBatch(COMMANDS);
+        for (int i = 0; i < COMMANDS; i++) {
+            long accountID = accountIDs[random.nextInt(ACCOUNTS)];
+            if (random.nextBoolean()) {
+                batch.addWithdrawal(accountID, 1 + random.nextInt(5));
+            } else {
+                batch.addDeposit(accountID, random.nextInt(100000));
+            }
+        }
+        processor = new BatchProcessor(workers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        processor.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public int oneAtATime() {
+        int length = 0;
+        for (int i = 0; i < COMMANDS; i++) {
+            Session session = sessions[(int) ((batch.getAccountID(i) - BenchmarkAccounts.FIRST_ACCOUNT_ID) / 7)];
+            if (batch.getType(i) == TransactionBatch.DEPOSIT) {
+                length += Machine.deposit(session, batch.getAmount(i)).length();
+            } else {
+                length += Machine.withdraw(session, (int) (batch.getAmount(i) / Machine.TWENTY_DOLLAR_BILL)).length();
+            }
+        }
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public int batched() {
+        processor.process(batch, terminal);
+        return batch.getOutcome(COMMANDS - 1);
+    }
+}
@@ -0,0 +1,125 @@
+package TakeoffATMPKG;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/*
+Class: BenchmarkAccounts
+Description: Builds the account data and terminals shared by the benchmarks. Account IDs are ten digits, like the
+             sample data, and every account has the same PIN so that any of them can be authorized.
+*/
+
+final class BenchmarkAccounts {
+    static final String PIN = "1234";
+    // A single PBKDF2 iteration, so benchmarks of the machine are not dominated by hashing the PIN. CredentialBenchmark
+    // measures the PIN check itself
+    static final int PIN_ITERATIONS = 1;
+    static final long FIRST_ACCOUNT_ID = 1000000000L;
+    // Large enough that a benchmark can withdraw for as long as it runs without the account becoming overdrawn
+    static final long LARGE_BALANCE = Long.MAX_VALUE / 4;
+    // Output that throws away everything written to it, so printing does not measure the console
+    static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private BenchmarkAccounts() {
+    }
+
+    /*
+    Method: load()
+    Description: Replaces the machine's account directory and credential store with the requested number of accounts.
+                 Every account shares one salt and hash, which is derived once, and wrong PINs never lock one out
+    Input:
+        count - The number of accounts to create
+        balance - The starting balance of every account, in cents
+    Output: Machine.customers and Machine.credentials hold the new accounts
+    Returns: The account IDs, in the order they were created
+    */
+    static long[] load(int count, long balance) {
+        return load(count, balance, AccountStore.HEAP);
+    }
+
+    /*
+    Method: load()
+    Description: Replaces the machine's account store, of the requested kind, and credential store with the requested
+                 number of accounts
+    Input:
+        count - The number of accounts to create
+        balance - The starting balance of every account, in cents
+        store - AccountStore.HEAP, AccountStore.OFF_HEAP or AccountStore.SHARDED
+    Output: Machine.customers and Machine.credentials hold the new accounts
+    Returns: The account IDs, in the order they were created
+    */
+    static long[] load(int count, long balance, String store) {
+        AccountStore accounts = Machine.newAccountStore(store, count);
+        CredentialStore credentials = new CredentialStore(count, 0, 0, 0, 0);
+        byte[] salt = PinHash.newSalt();
+        byte[] hash = PinHash.derive(PIN, salt, PIN_ITERATIONS);
+        long[] accountIDs = new long[count];
+        long[] balances = new long[count];
+        for (int i = 0; i < count; i++) {
+            accountIDs[i] = FIRST_ACCOUNT_ID + i * 7L;
+            balances[i] = balance;
+            credentials.put(accountIDs[i], PIN_ITERATIONS, salt, hash);
+        }
+        accounts.putAll(accountIDs, balances, count);
+        Machine.customers = accounts;
+        Machine.credentials = credentials;
+        return accountIDs;
+    }
+
+    /*
+    Method: sample()
+    Description: Picks account IDs at random, so lookups do not walk the table in order
+    Input:
+        accountIDs - The IDs to pick from
+        size - The number of IDs to pick, which must be a power of two
+    Output: None
+    Returns: The picked IDs
+    */
+    static long[] sample(long[] accountIDs, int size) {
+        Random random = new Random(42);
+        long[] picked = new long[size];
+        for (int i = 0; i < size; i++) {
+            picked[i] = accountIDs[random.nextInt(accountIDs.length)];
+        }
+        return picked;
+    }
+
+    /*
+    Method: terminal()
+    Description: Creates a terminal holding so much cash that it never runs out during a benchmark
+    Input:
+        terminalID - The ID of the new terminal
+    Output: None
+    Returns: The Terminal object
+    */
+    static Terminal terminal(long terminalID) {
+        return new Terminal(terminalID, Long.MAX_VALUE / 4, DISCARD);
+    }
+
+    /*
+    Method: login()
+    Description: Authorizes an account on a terminal
+    Input:
+        terminal - The terminal to use
+        accountID - The account to authorize
+    Output: The terminal has a session
+    Returns: The Session object
+    */
+    static Session login(Terminal terminal, long accountID) {
+        Machine.authorize(terminal, accountID, PIN);
+        Session session = terminal.getSession();
+        if (session == null) {
+            throw new IllegalStateException("Unable to authorize benchmark account " + accountID);
+        }
+        return session;
+    }
+}
@@ -0,0 +1,76 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: CassetteBenchmark
+Description: Dispenses from one terminal's cassettes on four threads at once, as concurrent sessions on a terminal
+             would. With "twenties" the terminal holds only $20 bills, as in the specification; with "mixed" it holds
+             $100, $50, $20, and $10 notes, so every withdrawal looks up a mix of notes. Cassettes are refilled when a
+             withdrawal is refused, so the benchmark measures dispensing rather than an empty terminal.
+*/
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CassetteBenchmark {
+    // Withdrawal amounts, in $20 bills, cycled through by each thread
+    private static final int[] TWENTIES = {1, 3, 4, 7, 10, 13, 25};
+
+    @State(Scope.Benchmark)
+    public static class Cassettes {
+        @Param({"twenties", "mixed"})
+        public String notes;
+
+        CashCassettes cassettes;
+        // The notes each cassette is refilled to
+        long full;
+
+        @Setup
+        public void setUp() {
+            full = "mixed".equals(notes) ? 20000 : 1000000;
+            cassettes = "mixed".equals(notes)
+                    ? CashCassettes.parse("100x" + full + ",50x" + full + ",20x" + full + ",10x" + full)
+                    : CashCassettes.parse("20x" + full);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Amounts {
+        int next;
+    }
+
+    @Benchmark
+    public boolean dispense(Cassettes state, Amounts amounts) {
+        CashCassettes cassettes = state.cassettes;
+        long amount = TWENTIES[amounts.next++ % TWENTIES.length] * Machine.TWENTY_DOLLAR_BILL;
+        if (cassettes.dispense(amount)) {
+            return true;
+        }
+        synchronized (cassettes) {
+            for (int i = 0; i < cassettes.getCassetteCount(); i++) {
+                long missing = state.full - cassettes.getNotes(i);
+                if (missing > 0) {
+                    cassettes.refill(i, missing);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: ContentionBenchmark
+Description: Runs deposits and withdrawals from eight terminals at once. With "distinct" every terminal uses its own
+             account, which should scale with the number of threads; with "shared" every terminal uses the same joint
+             account, which shows the cost of contending for one account's lock.
+*/
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ContentionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Accounts {
+        @Param({"distinct", "shared"})
+        public String layout;
+
+        long[] accountIDs;
+
+        @Setup
+        public void setUp() {
+            accountIDs = BenchmarkAccounts.load(64, BenchmarkAccounts.LARGE_BALANCE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TerminalState {
+        Session session;
+
+        @Setup
+        public void setUp(Accounts accounts, ThreadParams thread) {
+            int index = "shared".equals(accounts.layout) ? 0 : thread.getThreadIndex();
+            session = BenchmarkAccounts.login(BenchmarkAccounts.terminal(thread.getThreadIndex() + 1),
+                    accounts.accountIDs[index]);
+        }
+    }
+
+    @Benchmark
+    public String withdraw(TerminalState terminal) {
+        return Machine.withdraw(terminal.session, 1);
+    }
+
+    @Benchmark
+    public String deposit(TerminalState terminal) {
+        return Machine.deposit(terminal.session, 2000);
+    }
+}
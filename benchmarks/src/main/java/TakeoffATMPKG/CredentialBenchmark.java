@@ -0,0 +1,69 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: CredentialBenchmark
+Description: Measures CredentialStore.verify() with PINs hashed at the default number of iterations. A login the cache
+             remembers should cost an HMAC, a few microseconds at most, where a login that must derive the hash costs
+             tens of milliseconds, and a locked out account is refused without hashing anything.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialBenchmark {
+    private static final long ACCOUNT_ID = BenchmarkAccounts.FIRST_ACCOUNT_ID;
+    private static final long LOCKED_ACCOUNT_ID = ACCOUNT_ID + 7;
+
+    private CredentialStore cached;
+    private CredentialStore uncached;
+
+    @Setup
+    public void setUp() {
+        byte[] salt = PinHash.newSalt();
+        byte[] hash = PinHash.derive(BenchmarkAccounts.PIN, salt, PinHash.DEFAULT_ITERATIONS);
+        cached = new CredentialStore(2, 3, TimeUnit.DAYS.toMillis(1), 4096, TimeUnit.DAYS.toMillis(1));
+        uncached = new CredentialStore(2, 0, 0, 0, 0);
+        for (CredentialStore store : new CredentialStore[] {cached, uncached}) {
+            store.put(ACCOUNT_ID, PinHash.DEFAULT_ITERATIONS, salt, hash);
+            store.put(LOCKED_ACCOUNT_ID, PinHash.DEFAULT_ITERATIONS, salt, hash);
+        }
+        cached.verify(ACCOUNT_ID, BenchmarkAccounts.PIN);
+        while (cached.verify(LOCKED_ACCOUNT_ID, "0000") != CredentialStore.LOCKED_OUT) {
+            // Fail until the account is locked out
+        }
+    }
+
+    // A correct PIN the cache verified earlier
+    @Benchmark
+    public int cachedLogin() {
+        return cached.verify(ACCOUNT_ID, BenchmarkAccounts.PIN);
+    }
+
+    // A correct PIN that is hashed every time
+    @Benchmark
+    public int derivedLogin() {
+        return uncached.verify(ACCOUNT_ID, BenchmarkAccounts.PIN);
+    }
+
+    // Any PIN for an account that has failed too many times
+    @Benchmark
+    public int lockedOut() {
+        return cached.verify(LOCKED_ACCOUNT_ID, BenchmarkAccounts.PIN);
+    }
+}
@@ -0,0 +1,83 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: DecoderBenchmark
+Description: Compares the login parsing main() used to do (trim, substring, Long.parseLong, and a regular expression to
+             strip the PIN, with exceptions for bad input) with CommandDecoder, for both good and bad lines.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+    private static final String LOGIN = "2859459814,7386";
+    private static final String BAD_LOGIN = "28594598x4,7386";
+
+    private final CommandDecoder decoder = new CommandDecoder();
+    private final ByteBuffer loginBytes = ByteBuffer.wrap(LOGIN.getBytes(StandardCharsets.US_ASCII));
+
+    @Benchmark
+    public long legacyLogin() {
+        return legacyParse(LOGIN);
+    }
+
+    @Benchmark
+    public long legacyBadLogin() {
+        return legacyParse(BAD_LOGIN);
+    }
+
+    @Benchmark
+    public int decodeLogin() {
+        return decoder.decodeLogin(LOGIN);
+    }
+
+    @Benchmark
+    public int decodeBadLogin() {
+        return decoder.decodeLogin(BAD_LOGIN);
+    }
+
+    @Benchmark
+    public int decodeLoginBytes() {
+        return decoder.decodeLogin(loginBytes);
+    }
+
+    @Benchmark
+    public int decodeMenuSelection() {
+        return decoder.decodeMenuSelection("3");
+    }
+
+    // The parsing main() did before CommandDecoder, minus the printing
+    private static long legacyParse(String input) {
+        try {
+            input = input.trim();
+            int commaIndex = input.indexOf(",");
+            if (commaIndex != 10) {
+                throw new Exception("This Account ID is not the correct length, it should be 10 digits");
+            }
+            long accountID = Long.parseLong(input.substring(0, commaIndex));
+            String pin = input.substring(commaIndex + 1).replaceAll("[^0-9]", "");
+            return accountID + pin.length();
+        } catch (NumberFormatException e) {
+            return -1;
+        } catch (Exception e) {
+            return -2;
+        }
+    }
+}
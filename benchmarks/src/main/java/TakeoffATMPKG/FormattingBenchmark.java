@@ -0,0 +1,101 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: FormattingBenchmark
+Description: Compares the timestamp and currency formatting that withdraw() and deposit() used to do on every
+             transaction (a new DateTimeFormatter, LocalDateTime.now(), DecimalFormat, and NumberFormat) with what they
+             do now, so a regression in either can be told apart from the rest of the transaction path. History
+             timestamps are compared the same way, DateTimeFormatter against TimestampFormat.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormattingBenchmark {
+    private final NumberFormat usd = NumberFormat.getCurrencyInstance(Locale.US);
+    private final DecimalFormat decimalFormat = new DecimalFormat("#0.00");
+    private final StringBuilder buffer = new StringBuilder(64);
+    private long cents = 8994055;
+    private final long timestamp = Machine.currentEpochSecond() - 60;
+
+    @Benchmark
+    public String legacyTimestamp() {
+        DateTimeFormatter timeColonFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        return timeColonFormatter.format(LocalDateTime.now());
+    }
+
+    @Benchmark
+    public String legacyHistoryTimestamp() {
+        buffer.setLength(0);
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochSecond(timestamp), Machine.ZONE);
+        TimestampFormat.PATTERN.formatTo(time, buffer);
+        return buffer.toString();
+    }
+
+    // Today's transactions, which copy the date from the clock thread's rendered second
+    @Benchmark
+    public int cachedTimestamp() {
+        buffer.setLength(0);
+        return Machine.timestamps.append(buffer, timestamp).length();
+    }
+
+    // Transactions from earlier days, whose date is worked out arithmetically
+    @Benchmark
+    public int cachedTimestampEarlierDay() {
+        buffer.setLength(0);
+        return Machine.timestamps.append(buffer, timestamp - 3 * 86400).length();
+    }
+
+    @Benchmark
+    public long epochSecond() {
+        return Machine.currentEpochSecond();
+    }
+
+    @Benchmark
+    public String legacyDecimalFormat() {
+        return decimalFormat.format(cents++ / 100.0);
+    }
+
+    @Benchmark
+    public String legacyCurrencyFormat() {
+        return usd.format(cents++ / 100.0);
+    }
+
+    @Benchmark
+    public String moneyFormatPlain() {
+        return Money.formatPlain(cents++);
+    }
+
+    @Benchmark
+    public String moneyFormatUsd() {
+        return Money.formatUsd(cents++);
+    }
+
+    // Appending into a reused buffer is what history rendering does
+    @Benchmark
+    public int moneyAppendUsd() {
+        buffer.setLength(0);
+        return Money.appendUsd(buffer, cents++).length();
+    }
+}
@@ -0,0 +1,88 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: HistoryArchiveBenchmark
+Description: Measures a history that has outgrown its retention limit, with the oldest transactions in a HistoryArchive:
+             recording a transaction with Machine.recordHistory(), which moves a block to the archive every
+             BLOCK_TRANSACTIONS transactions, and looking up the balance and ten seconds of history from the oldest
+             archived block. Lookups walk the block headers back from the newest, so they grow with the number of blocks
+             archived but only decode the blocks they return.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Datm.historyRetention=1024")
+public class HistoryArchiveBenchmark {
+    @Param({"4096", "65536"})
+    public int entries;
+
+    private Path directory;
+    private Account account;
+    private Session session;
+    private long firstEpochSecond = 1600000000L;
+    private long epochSecond = firstEpochSecond;
+    private HistoryQuery oldestTenSeconds;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("history-archive");
+        Machine.historyArchive = HistoryArchive.open(directory, HistoryArchive.DEFAULT_SHARDS);
+        long[] accountIDs = BenchmarkAccounts.load(1, 0);
+        session = BenchmarkAccounts.login(BenchmarkAccounts.terminal(1), accountIDs[0]);
+        account = session.getAccount();
+        for (int i = 0; i < entries; i++) {
+            Machine.recordHistory(account, epochSecond++, i % 2 == 0 ? 12345 : -2000, i * 10345L);
+        }
+        oldestTenSeconds = HistoryQuery.between(firstEpochSecond + 100, firstEpochSecond + 109);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Machine.historyArchive.close();
+        Machine.historyArchive = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public int recordHistory() {
+        Machine.recordHistory(account, epochSecond++, -2000, 8994055);
+        return account.getTransactionHistory().size();
+    }
+
+    @Benchmark
+    public long balanceAtArchived() {
+        return Machine.balanceAt(account, firstEpochSecond + 100);
+    }
+
+    @Benchmark
+    public long historyArchived() {
+        return Machine.history(session, oldestTenSeconds);
+    }
+}
@@ -0,0 +1,75 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: HistoryBenchmark
+Description: Measures recording a transaction with Account.updateTransactionHistory(), whose allocation rate should be
+             zero once the history has reached its retention limit, and rendering long histories with
+             Machine.history(). The queries for the last ten transactions and for ten seconds in the middle of the
+             history should cost the same however long the history is, since only the times around the range are
+             searched. The fork raises the retention limit so the longest history is kept in full.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Datm.historyRetention=16384")
+public class HistoryBenchmark {
+    @Param({"16", "1024", "16384"})
+    public int entries;
+
+    private Account account;
+    private Session session;
+    private long epochSecond = 1600000000L;
+    private HistoryQuery lastTen;
+    private HistoryQuery tenSeconds;
+
+    @Setup
+    public void setUp() {
+        long[] accountIDs = BenchmarkAccounts.load(1, 0);
+        session = BenchmarkAccounts.login(BenchmarkAccounts.terminal(1), accountIDs[0]);
+        account = session.getAccount();
+        for (int i = 0; i < entries; i++) {
+            account.updateTransactionHistory(epochSecond++, i % 2 == 0 ? 12345 : -2000, i * 10345L);
+        }
+        lastTen = HistoryQuery.last(10);
+        long middle = epochSecond - entries / 2;
+        tenSeconds = HistoryQuery.between(middle, middle + 9);
+    }
+
+    @Benchmark
+    public int updateTransactionHistory() {
+        account.updateTransactionHistory(epochSecond++, -2000, 8994055);
+        return account.getTransactionHistory().size();
+    }
+
+    @Benchmark
+    public void history() {
+        Machine.history(session);
+    }
+
+    @Benchmark
+    public long historyLastTen() {
+        return Machine.history(session, lastTen);
+    }
+
+    @Benchmark
+    public long historyBetween() {
+        return Machine.history(session, tenSeconds);
+    }
+}
@@ -0,0 +1,202 @@
+package TakeoffATMPKG;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Class: LoadGenerator
+Description: Drives a TerminalServer from many simulated terminals at once and reports throughput and latency
+             percentiles for each command, so both server modes can be measured on one machine. Each terminal logs in
+             to one of the sample accounts and repeats a fixed mix of balance checks, deposits, withdrawals, and the
+             occasional history, sending each command as soon as the previous reply arrives. A terminal reconnects,
+             as a freshly filled terminal, before it runs out of $20 bills.
+
+             Start the machine with, for example, -Datm.serverPort=7000, then run
+                 java -cp benchmarks/target/benchmarks.jar TakeoffATMPKG.LoadGenerator [host] [port] [terminals]
+                      [seconds] [warm-up seconds]
+             which defaults to 127.0.0.1 7000 100 30 5.
+*/
+
+public class LoadGenerator {
+    // The sample accounts the machine loads when no account snapshot is given, and their PINs
+    private static final String[] LOGINS = {
+            "2859459814,7386", "1434597300,4557", "7089382418,0075", "2001377812,5950"
+    };
+    // The commands each terminal repeats, in order
+    private static final String[] MIX = {
+            "BALANCE", "DEPOSIT 20.00", "WITHDRAW 1", "BALANCE", "DEPOSIT 20.00", "WITHDRAW 1", "BALANCE", "HISTORY"
+    };
+    // A terminal starts with 500 $20 bills and must keep more than it dispenses, so it reconnects well before then
+    private static final int WITHDRAWALS_PER_CONNECTION = 400;
+    private static final long CONNECTION_STACK_SIZE = 256 * 1024;
+
+    private final InetSocketAddress address;
+    // One histogram per command name, shared by the entries of the mix that send it
+    private final LatencyHistogram[] latencies = new LatencyHistogram[MIX.length];
+    private final LatencyHistogram all = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile long recordFrom;
+    private volatile long stopAt;
+
+    private LoadGenerator(InetSocketAddress address) {
+        this.address = address;
+        for (int i = 0; i < MIX.length; i++) {
+            for (int j = 0; j < i && latencies[i] == null; j++) {
+                if (name(j).equals(name(i))) {
+                    latencies[i] = latencies[j];
+                }
+            }
+            if (latencies[i] == null) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    private static String name(int command) {
+        return MIX[command].split(" ")[0];
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7000;
+        int terminals = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int warmUpSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port));
+        long start = System.nanoTime();
+        generator.recordFrom = start + warmUpSeconds * 1000000000L;
+        generator.stopAt = generator.recordFrom + seconds * 1000000000L;
+        generator.run(terminals);
+        generator.report(seconds, terminals);
+    }
+
+    private void run(int terminals) throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(terminals);
+        for (int i = 0; i < terminals; i++) {
+            final String login = LOGINS[i % LOGINS.length];
+            Thread terminal = new Thread(null, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drive(login);
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "load-terminal-" + (i + 1), CONNECTION_STACK_SIZE);
+            terminal.setDaemon(true);
+            terminal.start();
+        }
+        finished.await();
+    }
+
+    // One simulated terminal, reconnecting until the run is over
+    private void drive(String login) throws IOException {
+        byte[] authorize = ("AUTHORIZE " + login + "\n").getBytes(StandardCharsets.US_ASCII);
+        byte[][] commands = new byte[MIX.length][];
+        for (int i = 0; i < MIX.length; i++) {
+            commands[i] = (MIX[i] + "\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        byte[] quit = "QUIT\n".getBytes(StandardCharsets.US_ASCII);
+
+        int next = 0;
+        while (System.nanoTime() < stopAt) {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(address);
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                out.write(authorize);
+                readReply(in);
+
+                int withdrawals = 0;
+                while (withdrawals < WITHDRAWALS_PER_CONNECTION) {
+                    long sentAt = System.nanoTime();
+                    if (sentAt >= stopAt) {
+                        break;
+                    }
+                    int command = next;
+                    next = (next + 1) % MIX.length;
+                    out.write(commands[command]);
+                    readReply(in);
+                    if (sentAt >= recordFrom) {
+                        long latency = System.nanoTime() - sentAt;
+                        latencies[command].record(latency);
+                        all.record(latency);
+                    }
+                    if (MIX[command].startsWith("WITHDRAW")) {
+                        withdrawals++;
+                    }
+                }
+                out.write(quit);
+                readReply(in);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    // Reads up to and including the line holding a single period that ends every reply
+    private static void readReply(InputStream in) throws IOException {
+        int lineLength = 0;
+        int last = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("The server closed the connection");
+            }
+            if (b == '\r') {
+                continue;
+            }
+            if (b == '\n') {
+                if (lineLength == 1 && last == '.') {
+                    return;
+                }
+                lineLength = 0;
+            } else {
+                lineLength++;
+                last = b;
+            }
+        }
+    }
+
+    private void report(int seconds, int terminals) {
+        System.out.println(terminals + " terminals, " + seconds + " seconds measured, " + errors.get() +
+                " connection errors");
+        System.out.println(String.format("%-16s %12s %12s %10s %10s %10s %10s", "command", "count", "per second",
+                "p50 us", "p99 us", "p99.9 us", "max us"));
+        for (int i = 0; i < MIX.length; i++) {
+            if (!reported(i)) {
+                print(name(i), latencies[i], seconds);
+            }
+        }
+        print("all", all, seconds);
+    }
+
+    private boolean reported(int command) {
+        for (int j = 0; j < command; j++) {
+            if (latencies[j] == latencies[command]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void print(String name, LatencyHistogram histogram, int seconds) {
+        System.out.println(String.format("%-16s %12d %12d %10.1f %10.1f %10.1f %10.1f", name, histogram.getCount(),
+                histogram.getCount() / Math.max(1, seconds), histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getValueAtPercentile(100) / 1000.0));
+    }
+}
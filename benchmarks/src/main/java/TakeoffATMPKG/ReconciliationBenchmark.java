@@ -0,0 +1,77 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: ReconciliationBenchmark
+Description: Reconciles a million accounts, each with a few days of transactions, on pools of different sizes. On a
+             machine with that many cores the time should fall in proportion to the number of threads, since the
+             accounts are independent and each task only adds up its own.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReconciliationBenchmark {
+    private static final int ACCOUNTS = 1000000;
+    private static final int TRANSACTIONS_PER_ACCOUNT = 8;
+    private static final long FIRST_DAY = 1600000000L;
+    private static final long SECONDS_PER_DAY = 86400;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private ForkJoinPool pool;
+    private AccountStore accounts;
+
+    @Setup
+    public void setUp() {
+        pool = new ForkJoinPool(threads);
+        BenchmarkAccounts.load(ACCOUNTS, 10000);
+        Terminal terminal = BenchmarkAccounts.terminal(1);
+        Random random = new Random(42);
+        accounts = Machine.customers;
+        for (Account account : accounts.toArray()) {
+            long epochSecond = FIRST_DAY;
+            for (int i = 0; i < TRANSACTIONS_PER_ACCOUNT; i++) {
+                epochSecond += random.nextInt((int) SECONDS_PER_DAY);
+                if (random.nextBoolean()) {
+                    Machine.applyDeposit(account, 1 + random.nextInt(5000), epochSecond);
+                } else {
+                    Machine.applyWithdrawal(account, terminal, Machine.TWENTY_DOLLAR_BILL, epochSecond);
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    // Totals the second day of transactions without writing statements
+    @Benchmark
+    public Reconciliation reconcileDay() throws IOException {
+        return Reconciliation.run(pool, accounts, FIRST_DAY + SECONDS_PER_DAY, FIRST_DAY + 2 * SECONDS_PER_DAY - 1,
+                null);
+    }
+}
@@ -0,0 +1,113 @@
+package TakeoffATMPKG;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Class: ShardRebalanceCheck
+Description: Adds a shard to a loaded ShardedAccountStore while reader threads look up accounts at random, and checks
+             that no lookup missed and that the rebalance moved only what consistent hashing should: about 1/(N+1) of
+             the accounts, every one of them to the new shard. Each lookup must return the same Account object it did
+             before the rebalance began, so an account that was briefly missing or copied would be caught.
+
+             Run it with
+                 java -cp benchmarks/target/benchmarks.jar TakeoffATMPKG.ShardRebalanceCheck [accounts] [shards]
+                      [readers]
+             which defaults to 1000000 4 4. It exits with status 1 if any check fails.
+*/
+
+public class ShardRebalanceCheck {
+    // Pause between steps, so the readers see each intermediate placement
+    private static final long STEP_PAUSE_MILLISECONDS = 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int readers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        final ShardedAccountStore store = new ShardedAccountStore(shards, count);
+        final long[] accountIDs = new long[count];
+        long[] balances = new long[count];
+        for (int i = 0; i < count; i++) {
+            accountIDs[i] = BenchmarkAccounts.FIRST_ACCOUNT_ID + i * 7L;
+            balances[i] = Money.ofDollars(100);
+        }
+        store.putAll(accountIDs, balances, count);
+        final Account[] before = new Account[count];
+        for (int i = 0; i < count; i++) {
+            before[i] = store.find(accountIDs[i]);
+        }
+        ShardRing oldRing = store.getRing();
+
+        final AtomicLong lookups = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final CountDownLatch finished = new CountDownLatch(readers);
+        final AtomicBoolean stop = new AtomicBoolean();
+        for (int r = 0; r < readers; r++) {
+            final Random random = new Random(r);
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long done = 0;
+                    long missed = 0;
+                    while (!stop.get()) {
+                        int i = random.nextInt(accountIDs.length);
+                        if (store.find(accountIDs[i]) != before[i]) {
+                            missed++;
+                        }
+                        done++;
+                    }
+                    lookups.addAndGet(done);
+                    misses.addAndGet(missed);
+                    finished.countDown();
+                }
+            }, "rebalance-reader-" + (r + 1));
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        long began = System.nanoTime();
+        int added = store.addShard("shard-" + (shards + 1));
+        int steps = 0;
+        boolean more = true;
+        while (more) {
+            Thread.sleep(STEP_PAUSE_MILLISECONDS);
+            more = store.rebalanceStep();
+            steps++;
+        }
+        long elapsed = System.nanoTime() - began;
+        stop.set(true);
+        finished.await();
+
+        ShardRing newRing = store.getRing();
+        int moved = 0;
+        int strayed = 0;
+        int lost = 0;
+        for (int i = 0; i < count; i++) {
+            int from = oldRing.shardOf(accountIDs[i]);
+            int to = newRing.shardOf(accountIDs[i]);
+            if (from != to) {
+                moved++;
+                if (to != added) {
+                    strayed++;
+                }
+            }
+            if (store.find(accountIDs[i]) != before[i]) {
+                lost++;
+            }
+        }
+        for (int shard = 0; shard < store.shardCount(); shard++) {
+            System.out.println(newRing.getName(shard) + ": " + store.shardSize(shard) + " accounts");
+        }
+        System.out.println(String.format("Added %s in %d steps over %.2f seconds. %d of %d accounts moved (%.2f%%, " +
+                        "expected about %.2f%%)", newRing.getName(added), steps, elapsed / 1e9, moved, count,
+                100.0 * moved / count, 100.0 / (shards + 1)));
+        System.out.println(String.format("%d lookups during the rebalance, %d missed", lookups.get(), misses.get()));
+        System.out.println(strayed + " accounts moved between old shards, " + lost + " missing afterwards");
+        boolean passed = misses.get() == 0 && strayed == 0 && lost == 0 && store.size() == count;
+        System.out.println(passed ? "The rebalance was consistent" : "The rebalance was not consistent");
+        System.exit(passed ? 0 : 1);
+    }
+}
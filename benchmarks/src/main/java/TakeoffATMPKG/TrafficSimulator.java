@@ -0,0 +1,585 @@
+package TakeoffATMPKG;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Class: TrafficSimulator
+Description: Runs a scripted workload against the machine in-process, with one thread per terminal, and reports
+             throughput, latency percentiles, and whether the accounts and terminals ended up in a consistent state.
+             Nothing is read from the console, so it can run unattended.
+
+             The script is generated from a seed. Each terminal serves a series of customer visits: a login, which
+             sometimes starts with a wrong PIN, a few withdrawals, deposits, balance checks, and history requests, then
+             a logout or, now and then, a customer who walks away and whose session is left to expire. Starting
+             balances are small enough that many withdrawals overdraw the account. The same seed always produces the
+             same script, which can also be written to a file and replayed later, or edited by hand. Each line of a
+             script file is a terminal number followed by a TerminalProtocol command, or IDLE for a customer who walks
+             away, after a first line of ACCOUNTS <count> <seed> that describes the accounts to load.
+
+             Each command is sent through TerminalProtocol, so it takes the same path as a command from a networked
+             terminal. With a rate, commands are paced to start on a fixed schedule and latency is measured from the
+             time each one should have started, so a slow command also counts against the ones queued behind it.
+
+             The simulator keeps its own ledger of what every reply says happened and checks it against the machine
+             when the run ends: each balance must equal its starting balance plus the deposits accepted, less the
+             cash dispensed and the overdraft fees charged, the terminals must hold exactly the cash they started
+             with less what they dispensed, and no session may be left open. When accounts are partitioned, each
+             terminal serves its own customers, so the run is deterministic and the final state checksum repeats from
+             one run to the next.
+
+             Run it with, for example,
+                 java -cp benchmarks/target/benchmarks.jar TakeoffATMPKG.TrafficSimulator terminals=32 rate=20000
+             Every option is given as name=value:
+
+                 accounts        - Number of accounts to create (default 10000)
+                 terminals       - Number of terminals, each driven by its own thread (default 16)
+                 visits          - Customer visits per terminal (default 2000)
+                 seed            - Seed for the accounts and the script (default 1)
+                 rate            - Commands per second across all terminals, or 0 to send each as soon as the last one
+                                   is answered (default 0)
+                 invalidPins     - Fraction of logins that first try a wrong PIN (default 0.05)
+                 walkAways       - Fraction of visits that end by waiting for the session to expire (default 0.002)
+                 withdrawals     - Fraction of commands that are withdrawals (default 0.35)
+                 deposits        - Fraction of commands that are deposits (default 0.25)
+                 histories       - Fraction of commands that request the last ten transactions (default 0.05). The
+                                   rest are balance checks
+                 partition       - true to give each terminal its own accounts (default false)
+                 sessionSeconds  - Session length, so walk-aways time out quickly (default 1)
+                 pinIterations   - PBKDF2 iterations for each PIN (default 1000)
+                 store           - heap or offheap (default heap)
+                 record          - Write the generated script to this file
+                 replay          - Run the script in this file instead of generating one
+*/
+
+public class TrafficSimulator {
+    // Commands the simulator understands the outcome of. Anything else is sent, timed, and otherwise ignored
+    private static final int AUTHORIZE = 0;
+    private static final int WITHDRAW = 1;
+    private static final int DEPOSIT = 2;
+    private static final int BALANCE = 3;
+    private static final int HISTORY = 4;
+    private static final int LOGOUT = 5;
+    private static final int IDLE = 6;
+    private static final int OTHER = 7;
+    private static final String[] NAMES = {"AUTHORIZE", "WITHDRAW", "DEPOSIT", "BALANCE", "HISTORY", "LOGOUT", "IDLE",
+            "OTHER"};
+    // Each terminal holds enough $20 bills for any realistic run
+    private static final long TERMINAL_CASH = 100000000000L;
+    // The largest starting balance and deposit, in cents
+    private static final int MAX_BALANCE = 50000;
+    private static final int MAX_DEPOSIT = 25000;
+    private static final int MAX_BILLS = 10;
+    // How long past the session length to wait for an idle session to expire before giving up on it
+    private static final long EXPIRY_GRACE_MILLISECONDS = 5000;
+    private static final String EXPIRED = "Your session time has expired";
+
+    private final Map<String, String> options;
+    private int accountCount;
+    private long seed;
+    private long[] accountIDs;
+    private long[] startingBalances;
+    private String[] pins;
+    private Script[] scripts;
+    private Terminal[] terminals;
+
+    // The simulator's ledger: the change to each account's balance that the replies report
+    private AtomicLongArray ledger;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[NAMES.length];
+    private final LatencyHistogram all = new LatencyHistogram();
+    private final AtomicLong loginsFailed = new AtomicLong();
+    private final AtomicLong withdrawalsDispensed = new AtomicLong();
+    private final AtomicLong withdrawalsOverdrawn = new AtomicLong();
+    private final AtomicLong withdrawalsRefused = new AtomicLong();
+    private final AtomicLong overdraftFees = new AtomicLong();
+    private final AtomicLong depositsAccepted = new AtomicLong();
+    private final AtomicLong centsDispensed = new AtomicLong();
+    private final AtomicLong centsDeposited = new AtomicLong();
+    private final AtomicLong sessionsExpired = new AtomicLong();
+    // Replies the script did not lead the simulator to expect
+    private final AtomicLong unexpected = new AtomicLong();
+
+    // The commands one terminal sends, in order
+    private static final class Script {
+        final List<byte[]> lines = new ArrayList<byte[]>();
+        final List<String> text = new ArrayList<String>();
+        int[] kinds;
+        // The account index of a login, the bills or cents of a withdrawal or deposit
+        long[] values;
+
+        void add(String command) {
+            text.add(command);
+            lines.add(command.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    // Terminal output the simulator can read back and empty. The session expiry notice is written from another thread
+    private static final class Capture extends ByteArrayOutputStream {
+        synchronized String take() {
+            String text = new String(buf, 0, count, StandardCharsets.US_ASCII);
+            reset();
+            return text;
+        }
+
+        synchronized boolean contains(String text) {
+            return new String(buf, 0, count, StandardCharsets.US_ASCII).contains(text);
+        }
+    }
+
+    private TrafficSimulator(Map<String, String> options) {
+        this.options = options;
+        for (int i = 0; i < NAMES.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                System.out.println("Options are given as name=value: " + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        // Read when Machine is loaded, so it is set before anything touches Machine
+        if (System.getProperty("atm.sessionSeconds") == null) {
+            System.setProperty("atm.sessionSeconds", option(options, "sessionSeconds", "1"));
+        }
+
+        TrafficSimulator simulator = new TrafficSimulator(options);
+        String replay = options.get("replay");
+        if (replay != null) {
+            simulator.readScripts(replay);
+        } else {
+            simulator.accountCount = Integer.parseInt(option(options, "accounts", "10000"));
+            simulator.seed = Long.parseLong(option(options, "seed", "1"));
+            simulator.generateScripts();
+        }
+        String record = options.get("record");
+        if (record != null) {
+            simulator.writeScripts(record);
+        }
+        simulator.loadAccounts();
+
+        long start = System.nanoTime();
+        simulator.run();
+        long elapsed = System.nanoTime() - start;
+        boolean consistent = simulator.report(elapsed);
+        System.exit(consistent ? 0 : 1);
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private double fraction(String name, String defaultValue) {
+        return Double.parseDouble(option(options, name, defaultValue));
+    }
+
+    private static long accountID(int index) {
+        return BenchmarkAccounts.FIRST_ACCOUNT_ID + index * 7L;
+    }
+
+    // The index of an account ID created by loadAccounts(), or -1 if there is no such account
+    private int accountIndex(long accountID) {
+        long offset = accountID - BenchmarkAccounts.FIRST_ACCOUNT_ID;
+        if (offset < 0 || offset % 7 != 0 || offset / 7 >= accountCount) {
+            return -1;
+        }
+        return (int) (offset / 7);
+    }
+
+    // Derives the accounts, their PINs, and their starting balances from the seed
+    private void createAccounts() {
+        Random random = new Random(seed);
+        accountIDs = new long[accountCount];
+        startingBalances = new long[accountCount];
+        pins = new String[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accountIDs[i] = accountID(i);
+            startingBalances[i] = random.nextInt(MAX_BALANCE + 1);
+            pins[i] = String.format("%04d", random.nextInt(10000));
+        }
+    }
+
+    // Builds every terminal's script from the seed
+    private void generateScripts() {
+        createAccounts();
+        int terminalCount = Integer.parseInt(option(options, "terminals", "16"));
+        int visits = Integer.parseInt(option(options, "visits", "2000"));
+        double invalidPins = fraction("invalidPins", "0.05");
+        double walkAways = fraction("walkAways", "0.002");
+        double withdrawals = fraction("withdrawals", "0.35");
+        double deposits = fraction("deposits", "0.25");
+        double histories = fraction("histories", "0.05");
+        boolean partition = Boolean.parseBoolean(option(options, "partition", "false"));
+        if (partition && terminalCount > accountCount) {
+            throw new IllegalArgumentException("Partitioning needs at least one account per terminal");
+        }
+
+        scripts = new Script[terminalCount];
+        for (int t = 0; t < terminalCount; t++) {
+            Random random = new Random(seed * 1000003L + t);
+            Script script = new Script();
+            for (int v = 0; v < visits; v++) {
+                int account = partition
+                        ? t + terminalCount * random.nextInt((accountCount - 1 - t) / terminalCount + 1)
+                        : random.nextInt(accountCount);
+                if (random.nextDouble() < invalidPins) {
+                    int wrong = (Integer.parseInt(pins[account]) + 1 + random.nextInt(9999)) % 10000;
+                    script.add(String.format("AUTHORIZE %d,%04d", accountIDs[account], wrong));
+                }
+                script.add("AUTHORIZE " + accountIDs[account] + "," + pins[account]);
+                int commands = 1 + random.nextInt(4);
+                for (int c = 0; c < commands; c++) {
+                    double pick = random.nextDouble();
+                    if (pick < withdrawals) {
+                        script.add("WITHDRAW " + (1 + random.nextInt(MAX_BILLS)));
+                    } else if (pick < withdrawals + deposits) {
+                        int cents = 1 + random.nextInt(MAX_DEPOSIT);
+                        script.add(String.format("DEPOSIT %d.%02d", cents / 100, cents % 100));
+                    } else if (pick < withdrawals + deposits + histories) {
+                        script.add("HISTORY LAST 10");
+                    } else {
+                        script.add("BALANCE");
+                    }
+                }
+                script.add(random.nextDouble() < walkAways ? NAMES[IDLE] : NAMES[LOGOUT]);
+            }
+            scripts[t] = script;
+        }
+        decodeScripts();
+    }
+
+    private void writeScripts(String file) throws IOException {
+        BufferedWriter writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.US_ASCII);
+        try {
+            writer.write("ACCOUNTS " + accountCount + " " + seed);
+            writer.newLine();
+            for (int t = 0; t < scripts.length; t++) {
+                for (String command : scripts[t].text) {
+                    writer.write(t + " " + command);
+                    writer.newLine();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void readScripts(String file) throws IOException {
+        List<Script> read = new ArrayList<Script>();
+        BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.US_ASCII);
+        try {
+            String header = reader.readLine();
+            String[] words = header == null ? new String[0] : header.trim().split(" +");
+            if (words.length != 3 || !words[0].equals("ACCOUNTS")) {
+                throw new IOException("The script must start with ACCOUNTS <count> <seed>");
+            }
+            accountCount = Integer.parseInt(words[1]);
+            seed = Long.parseLong(words[2]);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                int terminal = Integer.parseInt(space < 0 ? line : line.substring(0, space));
+                while (read.size() <= terminal) {
+                    read.add(new Script());
+                }
+                read.get(terminal).add(space < 0 ? "" : line.substring(space + 1).trim());
+            }
+        } finally {
+            reader.close();
+        }
+        createAccounts();
+        scripts = read.toArray(new Script[read.size()]);
+        decodeScripts();
+    }
+
+    // Works out what each command is, with the same decoder the machine uses, so the ledger agrees with the machine
+    // about hand-written commands too
+    private void decodeScripts() {
+        CommandDecoder decoder = new CommandDecoder();
+        for (Script script : scripts) {
+            int size = script.text.size();
+            script.kinds = new int[size];
+            script.values = new long[size];
+            for (int i = 0; i < size; i++) {
+                String command = script.text.get(i);
+                int space = command.indexOf(' ');
+                String name = (space < 0 ? command : command.substring(0, space)).toUpperCase();
+                String argument = space < 0 ? "" : command.substring(space + 1);
+                int kind = OTHER;
+                long value = 0;
+                if (name.equals(NAMES[AUTHORIZE]) && decoder.decodeLogin(argument) == CommandDecoder.OK) {
+                    kind = AUTHORIZE;
+                    value = accountIndex(decoder.getAccountID());
+                } else if (name.equals(NAMES[WITHDRAW]) && decoder.decodeBillCount(argument) == CommandDecoder.OK) {
+                    kind = WITHDRAW;
+                    value = decoder.getValue();
+                } else if (name.equals(NAMES[DEPOSIT]) && decoder.decodeAmount(argument) == CommandDecoder.OK) {
+                    kind = DEPOSIT;
+                    value = decoder.getValue();
+                } else if (name.equals(NAMES[BALANCE])) {
+                    kind = BALANCE;
+                } else if (name.equals(NAMES[HISTORY])) {
+                    kind = HISTORY;
+                } else if (name.equals(NAMES[LOGOUT])) {
+                    kind = LOGOUT;
+                } else if (name.equals(NAMES[IDLE]) && space < 0) {
+                    kind = IDLE;
+                }
+                script.kinds[i] = kind;
+                script.values[i] = value;
+            }
+        }
+    }
+
+    // Replaces the machine's accounts and credentials with the simulated ones
+    private void loadAccounts() {
+        int iterations = Integer.parseInt(option(options, "pinIterations", "1000"));
+        AccountStore accounts = Machine.newAccountStore(option(options, "store", AccountStore.HEAP), accountCount);
+        CredentialStore credentials = new CredentialStore(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            byte[] salt = PinHash.newSalt();
+            credentials.put(accountIDs[i], iterations, salt, PinHash.derive(pins[i], salt, iterations));
+        }
+        accounts.putAll(accountIDs, startingBalances, accountCount);
+        Machine.customers = accounts;
+        Machine.credentials = credentials;
+        ledger = new AtomicLongArray(accountCount);
+    }
+
+    private void run() throws InterruptedException {
+        double rate = Double.parseDouble(option(options, "rate", "0"));
+        final long interval = rate > 0 ? (long) (scripts.length * 1000000000L / rate) : 0;
+        final CountDownLatch finished = new CountDownLatch(scripts.length);
+        terminals = new Terminal[scripts.length];
+        final long start = System.nanoTime();
+        for (int t = 0; t < scripts.length; t++) {
+            final Capture capture = new Capture();
+            final Terminal terminal = new Terminal(t + 1, TERMINAL_CASH, new PrintStream(capture, false));
+            final Script script = scripts[t];
+            terminals[t] = terminal;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drive(terminal, capture, script, start, interval);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "simulated-terminal-" + (t + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        finished.await();
+    }
+
+    // Sends one terminal's script, pacing it when there is an interval between commands
+    private void drive(Terminal terminal, Capture capture, Script script, long start, long interval) {
+        TerminalProtocol protocol = new TerminalProtocol(terminal);
+        ByteBuffer line = ByteBuffer.allocate(TerminalProtocol.MAX_LINE_LENGTH);
+        long due = start;
+        // The account index of the terminal's session, or -1 when nobody is logged in
+        int account = -1;
+        for (int i = 0; i < script.kinds.length; i++) {
+            int kind = script.kinds[i];
+            if (kind == IDLE) {
+                awaitExpiry(terminal, capture);
+                account = -1;
+                due = Math.max(due, System.nanoTime());
+                continue;
+            }
+            long sentAt = System.nanoTime();
+            if (interval > 0) {
+                while (sentAt < due) {
+                    LockSupport.parkNanos(due - sentAt);
+                    sentAt = System.nanoTime();
+                }
+                sentAt = due;
+                due += interval;
+            }
+            byte[] command = script.lines.get(i);
+            line.clear();
+            line.put(command, 0, Math.min(command.length, line.capacity())).flip();
+            protocol.handle(line);
+            long latency = System.nanoTime() - sentAt;
+            latencies[kind].record(latency);
+            all.record(latency);
+            account = account(kind, script.values[i], capture.take(), account);
+        }
+        if (terminal.getSession() != null) {
+            Machine.logout(terminal.getSession());
+        }
+    }
+
+    // Records what a reply says happened and returns the account now logged in
+    private int account(int kind, long value, String reply, int account) {
+        switch (kind) {
+            case AUTHORIZE:
+                if (reply.contains("successfully authorized")) {
+                    if (value < 0) {
+                        unexpected.incrementAndGet();
+                    }
+                    return (int) value;
+                }
+                loginsFailed.incrementAndGet();
+                return account;
+            case WITHDRAW:
+                if (reply.startsWith("Amount dispensed")) {
+                    long cents = value * Machine.TWENTY_DOLLAR_BILL;
+                    long fee = reply.contains("overdraft fee") ? Machine.OVERDRAFT_FEE : 0;
+                    withdrawalsDispensed.incrementAndGet();
+                    centsDispensed.addAndGet(cents);
+                    if (fee > 0) {
+                        overdraftFees.incrementAndGet();
+                    }
+                    if (account < 0) {
+                        unexpected.incrementAndGet();
+                    } else {
+                        ledger.addAndGet(account, -cents - fee);
+                    }
+                } else if (reply.contains("overdrawn")) {
+                    withdrawalsOverdrawn.incrementAndGet();
+                } else {
+                    withdrawalsRefused.incrementAndGet();
+                    if (reply.contains("Authorization required")) {
+                        unexpected.incrementAndGet();
+                    }
+                }
+                return account;
+            case DEPOSIT:
+                if (reply.startsWith("Current balance")) {
+                    depositsAccepted.incrementAndGet();
+                    centsDeposited.addAndGet(value);
+                    if (account < 0) {
+                        unexpected.incrementAndGet();
+                    } else {
+                        ledger.addAndGet(account, value);
+                    }
+                } else if (reply.contains("Authorization required")) {
+                    unexpected.incrementAndGet();
+                }
+                return account;
+            case LOGOUT:
+                return -1;
+            default:
+                return account;
+        }
+    }
+
+    // Leaves the terminal alone until its session expires and the notice arrives
+    private void awaitExpiry(Terminal terminal, Capture capture) {
+        if (terminal.getSession() == null) {
+            return;
+        }
+        long giveUpAt = System.currentTimeMillis() + Machine.SESSION_MILLISECONDS + EXPIRY_GRACE_MILLISECONDS;
+        while (!capture.contains(EXPIRED) && System.currentTimeMillis() < giveUpAt) {
+            LockSupport.parkNanos(10000000L);
+        }
+        if (capture.take().contains(EXPIRED)) {
+            sessionsExpired.incrementAndGet();
+        } else {
+            unexpected.incrementAndGet();
+            Session session = terminal.getSession();
+            if (session != null) {
+                Machine.logout(session);
+            }
+        }
+    }
+
+    // Prints the results and checks the final state, returning whether it is consistent
+    private boolean report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("%d terminals, %d accounts, %.2f seconds", scripts.length, accountCount,
+                seconds));
+        System.out.println(String.format("%-16s %12s %12s %10s %10s %10s %10s", "command", "count", "per second",
+                "p50 us", "p99 us", "p99.9 us", "max us"));
+        for (int i = 0; i < NAMES.length; i++) {
+            if (latencies[i].getCount() > 0) {
+                print(NAMES[i], latencies[i], seconds);
+            }
+        }
+        print("all", all, seconds);
+        System.out.println();
+        System.out.println("Failed logins:        " + loginsFailed.get());
+        System.out.println("Withdrawals:          " + withdrawalsDispensed.get() + " dispensed, " +
+                overdraftFees.get() + " with an overdraft fee, " + withdrawalsOverdrawn.get() +
+                " refused as overdrawn, " + withdrawalsRefused.get() + " otherwise refused");
+        System.out.println("Deposits accepted:    " + depositsAccepted.get());
+        System.out.println("Sessions expired:     " + sessionsExpired.get());
+        System.out.println();
+
+        boolean consistent = true;
+        int mismatched = 0;
+        long startingTotal = 0;
+        long finalTotal = 0;
+        long checksum = 1;
+        for (int i = 0; i < accountCount; i++) {
+            long balance = Machine.customers.find(accountIDs[i]).getAccountBalance();
+            startingTotal += startingBalances[i];
+            finalTotal += balance;
+            checksum = checksum * 31 + balance;
+            if (balance != startingBalances[i] + ledger.get(i)) {
+                mismatched++;
+            }
+        }
+        consistent &= check(mismatched == 0, "Every balance matches the replies (" + mismatched + " do not)");
+
+        long fees = overdraftFees.get() * Machine.OVERDRAFT_FEE;
+        consistent &= check(finalTotal + centsDispensed.get() + fees - centsDeposited.get() == startingTotal,
+                "Balances plus cash dispensed plus fees less deposits are conserved: " + Money.formatUsd(startingTotal) +
+                " before, " + Money.formatUsd(finalTotal + centsDispensed.get() + fees - centsDeposited.get()) + " after");
+
+        long cashRemoved = 0;
+        int open = 0;
+        for (Terminal terminal : terminals) {
+            cashRemoved += TERMINAL_CASH - terminal.getCash();
+            if (terminal.getSession() != null) {
+                open++;
+            }
+        }
+        consistent &= check(cashRemoved == centsDispensed.get(), "Terminals are short exactly the cash dispensed: " +
+                Money.formatUsd(cashRemoved) + " removed, " + Money.formatUsd(centsDispensed.get()) + " dispensed");
+        consistent &= check(open == 0, "No session is left open (" + open + " are)");
+        consistent &= check(unexpected.get() == 0, "Every reply was expected (" + unexpected.get() + " were not)");
+        System.out.println("Final state checksum: " + Long.toHexString(checksum));
+        return consistent;
+    }
+
+    private static boolean check(boolean passed, String description) {
+        System.out.println((passed ? "PASS " : "FAIL ") + description);
+        return passed;
+    }
+
+    private static void print(String name, LatencyHistogram histogram, double seconds) {
+        System.out.println(String.format("%-16s %12d %12d %10.1f %10.1f %10.1f %10.1f", name, histogram.getCount(),
+                (long) (histogram.getCount() / seconds), histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getValueAtPercentile(100) / 1000.0));
+    }
+}
@@ -0,0 +1,64 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: TransactionBenchmark
+Description: Measures the throughput of withdraw(), deposit(), and balance() on one session. Each call includes
+             everything the user waits for: the account lock, the timestamp, recording the history, formatting the
+             reply, and renewing the session expiry. The request ID variants add the account's RequestCache: a new
+             ID each time costs a lookup and an insert on top of the withdrawal, and a repeated ID only the lookup.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+    private Session session;
+    private long nextRequestID;
+
+    @Setup
+    public void setUp() {
+        long[] accountIDs = BenchmarkAccounts.load(1, BenchmarkAccounts.LARGE_BALANCE);
+        session = BenchmarkAccounts.login(BenchmarkAccounts.terminal(1), accountIDs[0]);
+    }
+
+    @Benchmark
+    public String withdraw() {
+        return Machine.withdraw(session, 1);
+    }
+
+    @Benchmark
+    public String withdrawWithRequestID() {
+        return Machine.withdraw(session, 1, nextRequestID++);
+    }
+
+    @Benchmark
+    public String repeatedWithdraw() {
+        return Machine.withdraw(session, 1, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public String deposit() {
+        return Machine.deposit(session, 1234);
+    }
+
+    @Benchmark
+    public String balance() {
+        return Machine.balance(session);
+    }
+}
@@ -0,0 +1,66 @@
+package TakeoffATMPKG;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: VelocityBenchmark
+Description: Measures the verdicts VelocityCheck adds to each authorization and withdrawal, with every rule on and
+             limits high enough that nothing is refused. Sampled, so the percentiles JMH reports show the tail of each
+             verdict, not just its average. The contended variant has four threads withdrawing from the same accounts.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VelocityBenchmark {
+    // Number of account IDs cycled through. Must be a power of two
+    private static final int SAMPLE_SIZE = 4096;
+
+    private final VelocityCheck check = new VelocityCheck(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2,
+            Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, VelocityCheck.SLOTS);
+    private long[] accountIDs;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        long[] all = new long[SAMPLE_SIZE * 16];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = BenchmarkAccounts.FIRST_ACCOUNT_ID + i * 7L;
+        }
+        accountIDs = BenchmarkAccounts.sample(all, SAMPLE_SIZE);
+    }
+
+    @Benchmark
+    public boolean allowWithdrawal() {
+        return check.allowWithdrawal(accountIDs[next++ & (SAMPLE_SIZE - 1)], 1, Machine.TWENTY_DOLLAR_BILL,
+                System.nanoTime());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean allowWithdrawalContended() {
+        return check.allowWithdrawal(accountIDs[(int) (System.nanoTime() & (SAMPLE_SIZE - 1))], 1,
+                Machine.TWENTY_DOLLAR_BILL, System.nanoTime());
+    }
+
+    @Benchmark
+    public boolean allowAuthorize() {
+        int sample = next++ & (SAMPLE_SIZE - 1);
+        return check.allowAuthorize(sample, accountIDs[sample], System.nanoTime());
+    }
+}
@@ -1,50 +1,79 @@
 package TakeoffATMPKG;
 
-import java.util.LinkedList;
-import java.util.Timer;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /*
 Class: Machine
-Description: Contains all information related to an individual customer's account, such as their account ID, PIN,
-             balance, transaction history, and the session timer object, which controls how long the user has access to
-             their account after authenticating themselves.
+Description: Contains all information related to an individual customer's account, such as their account ID, balance,
+             and transaction history. How long the user has access to their account after authenticating
+             themselves is controlled by their Session object, since several terminals may access the same account.
 */
 
 public class Account {
-    // Account balances contain dollars and cents, so the double value must be used.
-    private double accountBalance;
+    // Returned by debit() when the account is already overdrawn and nothing was taken out
+    public static final long OVERDRAWN = Long.MIN_VALUE;
+    // Updates the balance with compare-and-set, so two sessions on a joint account can never lose each other's change
+    private static final AtomicLongFieldUpdater<Account> BALANCE =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "accountBalance");
+
+    // Account balances contain dollars and cents. They are stored as a whole number of cents in a long, so that no
+    // rounding error builds up over many transactions (see Money). Volatile so a balance read without the account's
+    // lock is never torn or stale
+    private volatile long accountBalance;
     // Account ID is a number that exceeds the limit of an int data type, so a long must be used. None of the sample
     // data showed accounts with leading zeros, so this data type assumes that the accountID must start with a non-zero
     private long accountID;
-    // Personal Identification Numbers are numeric, but leading zeros should not be discarded, so a String must be used
-    private String pin;
-    // The timer object is declared in each account and initialized when the account is authorized. This object is used
-    // to delay the point at which users lose access.
-    public Timer sessionTimer;
 
     /*
     Data Structure: transactionHistory
-    Description: Stores all of the transaction history. When a user accesses their transaction history they want every
-                 transaction. A linked list will let the machine traverse through each node, so it may print the data
-                 stored within, until the end of the list has been reached.
+    Description: Stores the transaction history as columns of primitive values, newest first, up to a retention limit.
+                 Formatting is left to the machine when the user views their history, so recording a transaction does
+                 not create any String objects.
+    */
+    private TransactionHistory transactionHistory;
+
+    /*
+    Method: Account()
+    Description: A constructor that takes in all of the information from the array of customer accounts. The account's
+                 PIN is kept in the machine's CredentialStore, not with the account
+    Input:
+        newAccountID - A unique value that represents the a bank account number
+        startingBalance - The initial balance of the account, in cents
+    Output: Creates an object of type Account and creates an empty transaction history
+    Returns: No return type (N/A for a constructor)
     */
-    private LinkedList<String> transactionHistory;
+    public Account (long newAccountID, long startingBalance){
+        this(newAccountID, startingBalance, null);
+    }
 
     /*
     Method: Account()
-    Description: A constructor that takes in all of the information from the array of customer accounts
+    Description: A constructor for an account that already has a transaction history
     Input:
         newAccountID - A unique value that represents the a bank account number
-        newPIN - A confidential personal identification number
-        startingBalance - The initial balance of the account
-    Output: Creates an object of type Account and creates a linked list of the transaction history
+        startingBalance - The initial balance of the account, in cents
+        history - The account's history, or null to create an empty one
+    Output: Creates an object of type Account
     Returns: No return type (N/A for a constructor)
     */
-    public Account (long newAccountID, String newPIN, double startingBalance){
+    Account (long newAccountID, long startingBalance, TransactionHistory history){
         this.accountID = newAccountID;
-        this.pin = newPIN;
         this.accountBalance = startingBalance;
-        this.transactionHistory = new LinkedList<String>();
+        this.transactionHistory = history == null ? new TransactionHistory() : history;
+    }
+
+    /*
+    Method: Account()
+    Description: A constructor for an account whose balance and history are kept elsewhere, such as in an
+                 OffHeapAccountStore. No history is created, so the subclass must provide the balance and history
+                 methods
+    Input:
+        newAccountID - A unique value that represents the a bank account number
+    Output: Creates an object of type Account
+    Returns: No return type (N/A for a constructor)
+    */
+    Account (long newAccountID){
+        this.accountID = newAccountID;
     }
 
     /*
@@ -57,65 +86,109 @@ public class Account {
     public long getAccountID(){
         return accountID;
     }
-    /*
-    Method: getPin()
-    Description: Retrieves the private pin property
-    Input: None
-    Output: None
-    Returns: The account pin as a String
-    */
-    public String getPin() {
-        return pin;
-    }
-
     /*
     Method: getAccountBalance()
     Description: Retrieves the private accountBalance property
     Input: None
     Output: None
-    Returns: The account balance as a double
+    Returns: The account balance in cents as a long
     */
-    public double getAccountBalance() {
+    public long getAccountBalance() {
         return accountBalance;
     }
 
     /*
     Method: setAccountBalance()
     Description: Mutator method that changes the value of the account object's private accountBalance property
-    Input: A double value representing the new account balance
+    Input: A long value representing the new account balance in cents
     Output: The accountBalance property of that account object is changed
     Returns: Void
     */
-    public void setAccountBalance(double accountBalance) {
+    public void setAccountBalance(long accountBalance) {
         this.accountBalance = accountBalance;
     }
 
+    /*
+    Method: compareAndSetAccountBalance()
+    Description: Changes the balance only if it still holds the value the caller read, as one atomic step
+    Input:
+        expected - The balance the caller read, in cents
+        newBalance - The balance to set, in cents
+    Output: The accountBalance property may be changed
+    Returns: True if the balance was changed, false if another change came first
+    */
+    public boolean compareAndSetAccountBalance(long expected, long newBalance) {
+        return BALANCE.compareAndSet(this, expected, newBalance);
+    }
+
+    /*
+    Method: credit()
+    Description: Adds an amount to the balance atomically
+    Input:
+        amount - The amount to add, in cents
+    Output: The accountBalance property is changed
+    Returns: The balance after the change, in cents
+    Throws: ArithmeticException if the balance would overflow a long, in which case it is not changed
+    */
+    public long credit(long amount) {
+        while (true) {
+            long balance = getAccountBalance();
+            long credited = Math.addExact(balance, amount);
+            if (compareAndSetAccountBalance(balance, credited)) {
+                return credited;
+            }
+        }
+    }
+
+    /*
+    Method: debit()
+    Description: Takes a withdrawal out of the balance, as one atomic step with the checks around it: nothing is taken
+                 from an account that is already overdrawn, and a withdrawal that leaves the balance below zero also
+                 takes the overdraft fee
+    Input:
+        amount - The amount to withdraw, in cents
+        overdraftFee - The fee charged when the withdrawal leaves the balance below zero, in cents
+    Output: The accountBalance property may be changed
+    Returns: The balance after the withdrawal but before any fee, in cents, which shows whether the fee was charged, or
+             OVERDRAWN if the account was overdrawn and nothing was taken
+    */
+    public long debit(long amount, long overdraftFee) {
+        while (true) {
+            long balance = getAccountBalance();
+            if (balance <= 0) {
+                return OVERDRAWN;
+            }
+            long withdrawn = balance - amount;
+            if (compareAndSetAccountBalance(balance, withdrawn < 0 ? withdrawn - overdraftFee : withdrawn)) {
+                return withdrawn;
+            }
+        }
+    }
+
     /*
     Method: getTransactionHistory()
     Description: Retrieves the private transaction history data structure that is connected to each account
     Input: None
     Output: None
-    Returns: The transaction history as a linked list of String objects
+    Returns: The transaction history as a TransactionHistory object
     */
-    public LinkedList<String> getTransactionHistory() {
+    public TransactionHistory getTransactionHistory() {
         return transactionHistory;
     }
 
     /*
     Method: updateTransactionHistory()
-    Description: Mutator method that formats the provided information and stores it in a newly created node, which is
-                 inserted at the head of the linked list representing that account object's transaction history.
-    Input: transactionDateAndTime - A String represented the properly formatted date and time generated at the instant
-                                    of the transaction.
-           amount - A positive (deposit) or negative (withdrawal) amount as a double, since deposits can be checks that
+    Description: Mutator method that records a transaction as the newest entry of that account object's transaction
+                 history.
+    Input: transactionTime - The instant of the transaction, in seconds since 1970-01-01T00:00:00Z
+           amount - A positive (deposit) or negative (withdrawal) amount in cents, since deposits can be checks that
                     include fractions of dollars
-           newBalance - A newly calculated balance amount as a double, since the account balance value may include
+           newBalance - A newly calculated balance amount in cents, since the account balance value may include
            fractions of a dollar.
-    Output: The transactionHistory linked list is prepended with the new data
+    Output: The transactionHistory is updated with the new data
     Returns: Void
     */
-    public void updateTransactionHistory(String transactionDateAndTime, String amount, String newBalance) {
-        String newData = transactionDateAndTime + " " + amount + " " + newBalance;
-        this.transactionHistory.addFirst(newData);
+    public void updateTransactionHistory(long transactionTime, long amount, long newBalance) {
+        getTransactionHistory().add(transactionTime, amount, newBalance);
     }
 }
@@ -0,0 +1,374 @@
+package TakeoffATMPKG;
+
+import java.util.Arrays;
+
+/*
+Class: AccountDirectory
+Description: An index of every Account object known to the machine, keyed by the primitive account ID. The directory
+             uses open addressing with linear probing over two parallel arrays, one holding the account IDs and one
+             holding the Account objects, so a lookup never creates a Long object and takes constant time on average
+             no matter how many accounts are loaded. This is the "heap" AccountStore.
+*/
+
+public class AccountDirectory implements AccountStore {
+    // Smallest table that will be allocated. Must be a power of two so the slot can be found with a bit mask
+    private static final int MINIMUM_CAPACITY = 16;
+    // The table is doubled once it is more than half full, which keeps probe sequences short
+    private static final int MAX_LOAD_NUMERATOR = 1;
+    private static final int MAX_LOAD_DENOMINATOR = 2;
+
+    /*
+    Data Structure: accountIDs / accounts
+    Description: Parallel arrays representing the hash table. A slot is empty when its entry in the accounts array is
+                 null. The account ID is stored separately as a long so that probing only touches primitive memory
+                 until a match is found.
+    */
+    private long[] accountIDs;
+    private Account[] accounts;
+    // Number of accounts currently stored in the directory
+    private int size;
+    // Table length minus one, used in place of the modulus operator
+    private int mask;
+
+    /*
+    Method: AccountDirectory()
+    Description: A constructor that creates an empty directory
+    Input: None
+    Output: Creates an object of type AccountDirectory with the minimum capacity
+    Returns: No return type (N/A for a constructor)
+    */
+    public AccountDirectory() {
+        this(MINIMUM_CAPACITY);
+    }
+
+    /*
+    Method: AccountDirectory()
+    Description: A constructor that creates an empty directory large enough to hold the expected number of accounts
+                 without having to grow
+    Input:
+        expectedAccounts - The number of accounts that will be loaded into the directory
+    Output: Creates an object of type AccountDirectory
+    Returns: No return type (N/A for a constructor)
+    */
+    public AccountDirectory(int expectedAccounts) {
+        allocate(tableSizeFor(expectedAccounts));
+    }
+
+    /*
+    Method: find()
+    Description: Searches the directory for the account with the matching account ID
+    Input:
+        accountID - The account ID to search for
+    Output: None
+    Returns: The Account object, or null if no account with that ID has been loaded
+    */
+    @Override
+    public Account find(long accountID) {
+        int slot = mix(accountID) & mask;
+        Account account;
+        while ((account = accounts[slot]) != null) {
+            if (accountIDs[slot] == accountID) {
+                return account;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /*
+    Method: contains()
+    Description: Checks whether an account with the matching account ID has been loaded
+    Input:
+        accountID - The account ID to search for
+    Output: None
+    Returns: True if the account exists in the directory
+    */
+    @Override
+    public boolean contains(long accountID) {
+        return find(accountID) != null;
+    }
+
+    /*
+    Method: put()
+    Description: Inserts an account into the directory. If an account with the same account ID is already present it is
+                 replaced.
+    Input:
+        account - The account to insert
+    Output: The directory may grow if it becomes more than half full
+    Returns: The Account object that was replaced, or null if the account ID was not already present
+    */
+    @Override
+    public Account put(Account account) {
+        if (account == null) {
+            throw new IllegalArgumentException("An account is required");
+        }
+        if ((size + 1) * MAX_LOAD_DENOMINATOR > accounts.length * MAX_LOAD_NUMERATOR) {
+            resize(accounts.length << 1);
+        }
+        long accountID = account.getAccountID();
+        int slot = mix(accountID) & mask;
+        while (accounts[slot] != null) {
+            if (accountIDs[slot] == accountID) {
+                Account previous = accounts[slot];
+                accounts[slot] = account;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        accountIDs[slot] = accountID;
+        accounts[slot] = account;
+        size++;
+        return null;
+    }
+
+    /*
+    Method: putAll()
+    Description: Bulk loads an array of accounts. The table is sized once for the final number of accounts, so no
+                 intermediate resizing happens while the accounts are inserted.
+    Input:
+        newAccounts - The accounts to insert. Null elements are skipped
+    Output: The directory contains every account in the array
+    Returns: Void
+    */
+    @Override
+    public void putAll(Account[] newAccounts) {
+        int required = tableSizeFor(size + newAccounts.length);
+        if (required > accounts.length) {
+            resize(required);
+        }
+        for (Account account : newAccounts) {
+            if (account != null) {
+                put(account);
+            }
+        }
+    }
+
+    /*
+    Method: putAll()
+    Description: Bulk loads accounts with no history from their IDs and balances. The table is sized once for the final
+                 number of accounts
+    Input:
+        accountIDs - The account IDs
+        balances - The balance of each account, in cents
+        count - The number of accounts to take from the start of the arrays
+    Output: The directory contains an Account object for every listed account
+    Returns: Void
+    */
+    @Override
+    public void putAll(long[] accountIDs, long[] balances, int count) {
+        int required = tableSizeFor(size + count);
+        if (required > accounts.length) {
+            resize(required);
+        }
+        for (int i = 0; i < count; i++) {
+            put(new Account(accountIDs[i], balances[i]));
+        }
+    }
+
+    /*
+    Method: remove()
+    Description: Removes the account with the matching account ID. The entries that follow it in the same probe sequence
+                 are shifted back, so the table never needs tombstones and lookups stay as short as they were before the
+                 removal.
+    Input:
+        accountID - The account ID of the account to remove
+    Output: The account is no longer in the directory
+    Returns: The Account object that was removed, or null if there was no account with that ID
+    */
+    @Override
+    public Account remove(long accountID) {
+        int slot = mix(accountID) & mask;
+        while (accounts[slot] != null) {
+            if (accountIDs[slot] == accountID) {
+                Account removed = accounts[slot];
+                shiftBack(slot);
+                size--;
+                return removed;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /*
+    Method: size()
+    Description: Retrieves the number of accounts stored in the directory
+    Input: None
+    Output: None
+    Returns: The number of accounts as an int
+    */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /*
+    Method: toArray()
+    Description: Copies every account in the directory into a new array, in no particular order
+    Input: None
+    Output: None
+    Returns: The accounts as an array of Account objects
+    */
+    @Override
+    public Account[] toArray() {
+        Account[] copy = new Account[size];
+        int next = 0;
+        for (Account account : accounts) {
+            if (account != null) {
+                if (next == copy.length) {
+                    copy = Arrays.copyOf(copy, next * 2 + 1);
+                }
+                copy[next++] = account;
+            }
+        }
+        return next == copy.length ? copy : Arrays.copyOf(copy, next);
+    }
+
+    /*
+    Method: slots()
+    Description: Retrieves the length of the hash table, so that forEach() can split it into ranges of slots
+    Input: None
+    Output: None
+    Returns: The number of slots as an int
+    */
+    @Override
+    public int slots() {
+        return accounts.length;
+    }
+
+    /*
+    Method: forEach()
+    Description: Visits the accounts in a range of the hash table's slots, in table order. The table read at the start
+                 is the one visited, so an account added after it has grown, or shifted back by a removal, may be
+                 missed or visited twice
+    Input:
+        from - The first slot, inclusive
+        to - The last slot, exclusive. Slots past slots() are ignored
+        visitor - Receives each account along with its transaction history
+    Output: None
+    Returns: Void
+    */
+    @Override
+    public void forEach(int from, int to, Visitor visitor) {
+        Account[] table = accounts;
+        int end = Math.min(to, table.length);
+        for (int slot = Math.max(from, 0); slot < end; slot++) {
+            Account account = table[slot];
+            if (account != null) {
+                visitor.visit(account, account.getTransactionHistory());
+            }
+        }
+    }
+
+    /*
+    Method: clear()
+    Description: Removes every account from the directory without shrinking the table
+    Input: None
+    Output: The directory is empty
+    Returns: Void
+    */
+    @Override
+    public void clear() {
+        Arrays.fill(accounts, null);
+        size = 0;
+    }
+
+    /*
+    Method: shiftBack()
+    Description: Backward shift deletion for linear probing. Starting at the emptied slot, each following entry that
+                 would still be reachable from its home slot after moving is moved into the gap.
+    Input:
+        gap - The slot that has just been emptied
+    Output: The probe sequence is compacted
+    Returns: Void
+    */
+    private void shiftBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            Account account = accounts[slot];
+            if (account == null) {
+                break;
+            }
+            int home = mix(accountIDs[slot]) & mask;
+            // Only move the entry if its home slot is not between the gap and its current position (cyclically)
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                accountIDs[gap] = accountIDs[slot];
+                accounts[gap] = account;
+                gap = slot;
+            }
+        }
+        accounts[gap] = null;
+    }
+
+    /*
+    Method: resize()
+    Description: Allocates a new table and reinserts every account
+    Input:
+        newCapacity - The new table length, which must be a power of two
+    Output: The tables are replaced
+    Returns: Void
+    */
+    private void resize(int newCapacity) {
+        long[] oldIDs = accountIDs;
+        Account[] oldAccounts = accounts;
+        allocate(newCapacity);
+        for (int i = 0; i < oldAccounts.length; i++) {
+            Account account = oldAccounts[i];
+            if (account != null) {
+                int slot = mix(oldIDs[i]) & mask;
+                while (accounts[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                accountIDs[slot] = oldIDs[i];
+                accounts[slot] = account;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        accountIDs = new long[capacity];
+        accounts = new Account[capacity];
+        mask = capacity - 1;
+    }
+
+    /*
+    Method: tableSizeFor()
+    Description: Calculates the smallest power of two table that holds the requested number of accounts while staying at
+                 or below the maximum load factor
+    Input:
+        expectedAccounts - The number of accounts the table must hold
+    Output: None
+    Returns: The table length as an int
+    */
+    private static int tableSizeFor(int expectedAccounts) {
+        long needed = (long) Math.max(expectedAccounts, 1) * MAX_LOAD_DENOMINATOR / MAX_LOAD_NUMERATOR;
+        if (needed > (1 << 30)) {
+            throw new IllegalArgumentException("Too many accounts for one directory: " + expectedAccounts);
+        }
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /*
+    Method: mix()
+    Description: Spreads the bits of an account ID so that sequential account numbers do not cluster in the table. Uses
+                 the finalizer step of the MurmurHash3 64-bit hash.
+    Input:
+        accountID - The account ID to hash
+    Output: None
+    Returns: The hash as an int
+    */
+    static int mix(long accountID) {
+        long h = accountID;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,217 @@
+package TakeoffATMPKG;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+Class: AccountSnapshot
+Description: Reads and writes the binary account file the machine starts from. Every account is a fixed-width record,
+             so the file is memory mapped and split into equal ranges of records that are read into primitive arrays
+             on every core at once, and then bulk loaded into the AccountStore. Loading tens of millions of accounts
+             this way takes seconds, where parsing the same data from text takes minutes.
+
+             File layout, big endian:
+                 header (32 bytes): magic (4) version (4) record count (8) record size (4) reserved (12)
+                 record (72 bytes): account ID (8) balance in cents (8) PBKDF2 iterations (4) reserved (4) salt (16)
+                                    PIN hash (32)
+
+             Version 1 files, whose 48 byte records hold the account ID, balance, and a SHA-256 PIN hash (32), are still
+             read. Their hashes are kept as they are, since the PINs they came from are not known, and the file is
+             written back as version 2 at the END command.
+*/
+
+public final class AccountSnapshot {
+    private static final int MAGIC = 0x41544D53;
+    private static final int VERSION = 2;
+    private static final int LEGACY_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 8 + 8 + CredentialStore.RECORD_SIZE;
+    private static final int LEGACY_RECORD_SIZE = 8 + 8 + PinHash.LENGTH;
+    // A single mapping cannot exceed 2GB, so large files are mapped in windows of about 1GB of whole records
+    private static final int WINDOW_BYTES = 1 << 30;
+
+    private AccountSnapshot() {
+    }
+
+    /*
+    Method: load()
+    Description: Loads every account in a snapshot file into the account store, and every PIN hash into the credential
+                 store. The records are parsed in parallel, one range per available core, and then bulk loaded into the
+                 account store. The credentials are added afterwards in one pass, since the store is not built to be
+                 written by several threads.
+    Input:
+        path - The snapshot file
+        accounts - The store to load the accounts into
+        credentials - The store to load the PIN hashes into
+    Output: The account and credential stores contain every account from the file
+    Returns: The number of accounts loaded as an int
+    */
+    public static int load(Path path, AccountStore accounts, CredentialStore credentials) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the header is complete or the file ends
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                throw new IOException("Not an account snapshot: " + path);
+            }
+            int version = header.getInt(4);
+            int recordSize = header.getInt(16);
+            if (!(version == VERSION && recordSize == RECORD_SIZE) &&
+                    !(version == LEGACY_VERSION && recordSize == LEGACY_RECORD_SIZE)) {
+                throw new IOException("Unsupported account snapshot version: " + path);
+            }
+            long count = header.getLong(8);
+            if (count < 0 || count > Integer.MAX_VALUE || HEADER_SIZE + count * recordSize > channel.size()) {
+                throw new IOException("Account snapshot is truncated: " + path);
+            }
+
+            long[] accountIDs = new long[(int) count];
+            long[] balances = new long[(int) count];
+            parse(channel, accountIDs, balances, recordSize);
+            accounts.putAll(accountIDs, balances, accountIDs.length);
+            readCredentials(channel, accountIDs.length, version, credentials);
+            return accountIDs.length;
+        }
+    }
+
+    /*
+    Method: parse()
+    Description: Maps the records one window at a time and divides each window between worker threads. Each thread
+                 reads its records through its own view of the mapping and writes the account IDs and balances into its
+                 own range of the result arrays, so the threads share nothing while they work.
+    */
+    private static void parse(FileChannel channel, final long[] accountIDs, final long[] balances, final int recordSize)
+            throws IOException {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        int recordsPerWindow = WINDOW_BYTES / recordSize;
+        try {
+            for (int windowStart = 0; windowStart < accountIDs.length; windowStart += recordsPerWindow) {
+                final int windowCount = Math.min(recordsPerWindow, accountIDs.length - windowStart);
+                final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + (long) windowStart * recordSize, (long) windowCount * recordSize);
+                final int offset = windowStart;
+                int perThread = (windowCount + threads - 1) / threads;
+                List<Future<?>> ranges = new ArrayList<Future<?>>();
+                for (int first = 0; first < windowCount; first += perThread) {
+                    final int from = first;
+                    final int to = Math.min(first + perThread, windowCount);
+                    ranges.add(workers.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            ByteBuffer view = window.duplicate();
+                            for (int i = from; i < to; i++) {
+                                int position = i * recordSize;
+                                accountIDs[offset + i] = view.getLong(position);
+                                balances[offset + i] = view.getLong(position + 8);
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> range : ranges) {
+                    range.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading accounts", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to parse account snapshot", e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /*
+    Method: readCredentials()
+    Description: Adds the PIN hash of every record to the credential store, reading the file a window at a time.
+                 Version 1 hashes are added as legacy credentials, except a hash of zeros, which marks an account
+                 without a PIN
+    */
+    private static void readCredentials(FileChannel channel, int count, int version, CredentialStore credentials)
+            throws IOException {
+        int recordSize = version == VERSION ? RECORD_SIZE : LEGACY_RECORD_SIZE;
+        int recordsPerWindow = WINDOW_BYTES / recordSize;
+        byte[] legacyHash = new byte[PinHash.LENGTH];
+        for (int windowStart = 0; windowStart < count; windowStart += recordsPerWindow) {
+            int windowCount = Math.min(recordsPerWindow, count - windowStart);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE + (long) windowStart * recordSize, (long) windowCount * recordSize);
+            for (int i = 0; i < windowCount; i++) {
+                window.position(i * recordSize);
+                long accountID = window.getLong();
+                window.getLong();
+                if (version == VERSION) {
+                    credentials.read(accountID, window);
+                    continue;
+                }
+                window.get(legacyHash);
+                boolean blank = true;
+                for (byte b : legacyHash) {
+                    blank &= b == 0;
+                }
+                if (!blank) {
+                    credentials.put(accountID, CredentialStore.LEGACY, null, legacyHash);
+                }
+            }
+        }
+    }
+
+    /*
+    Method: write()
+    Description: Dumps the current balance and PIN hash of every account in the store to a snapshot file. The file
+                 is written under a temporary name and then renamed, so a crash while writing never leaves a partial
+                 snapshot in place of the previous one. Accounts without a PIN are written with an iteration count of
+                 zero, which no PIN matches.
+    Input:
+        path - The snapshot file to create or replace
+        accounts - The accounts to write
+        credentials - The PIN hashes to write with them
+    Output: The snapshot file holds every account
+    Returns: The number of accounts written as an int
+    */
+    public static int write(Path path, AccountStore accounts, CredentialStore credentials) throws IOException {
+        Account[] all = accounts.toArray();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(all.length).putInt(RECORD_SIZE);
+            buffer.position(HEADER_SIZE);
+            for (Account account : all) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    drain(channel, buffer);
+                }
+                buffer.putLong(account.getAccountID());
+                buffer.putLong(account.getAccountBalance());
+                credentials.write(account.getAccountID(), buffer);
+            }
+            drain(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return all.length;
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
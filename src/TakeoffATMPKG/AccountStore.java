@@ -0,0 +1,154 @@
+package TakeoffATMPKG;
+
+/*
+Interface: AccountStore
+Description: Every customer account known to the machine, keyed by account ID. Three stores are provided, chosen with
+             -Datm.accountStore:
+
+                 heap    - AccountDirectory, which indexes ordinary Account objects
+                 offheap - OffHeapAccountStore, which keeps each account's ID and balance in fixed-size records outside
+                           the Java heap and hands out Account objects that read and write those records
+                 sharded - ShardedAccountStore, which splits the accounts over -Datm.localShards AccountDirectory
+                           shards by consistent hashing, and can add a shard while terminals are served
+
+             Accounts are loaded before any terminal starts, after which the store is only read. The balance and
+             history of an account returned by find() are changed in place, under the account's lock.
+*/
+
+public interface AccountStore {
+    String HEAP = "heap";
+    String OFF_HEAP = "offheap";
+    String SHARDED = "sharded";
+
+    /*
+    Interface: Visitor
+    Description: Receives the accounts forEach() visits, one at a time, without the store being copied
+    */
+    interface Visitor {
+        /*
+        Method: visit()
+        Description: Receives one account
+        Input:
+            account - The account
+            history - The account's transaction history, or null if the account has never had a transaction, which
+                      a store that creates histories on first use can tell without creating one
+        Output: None
+        Returns: Void
+        */
+        void visit(Account account, TransactionHistory history);
+    }
+
+    /*
+    Method: find()
+    Description: Searches the store for the account with the matching account ID
+    Input:
+        accountID - The account ID to search for
+    Output: None
+    Returns: The Account object, or null if no account with that ID has been loaded
+    */
+    Account find(long accountID);
+
+    /*
+    Method: contains()
+    Description: Checks whether an account with the matching account ID has been loaded
+    Input:
+        accountID - The account ID to search for
+    Output: None
+    Returns: True if the account exists in the store
+    */
+    boolean contains(long accountID);
+
+    /*
+    Method: put()
+    Description: Inserts an account, with its balance and history. If an account with the same account ID is already
+                 present it is replaced.
+    Input:
+        account - The account to insert
+    Output: The store may grow
+    Returns: The Account object that was replaced, or null if the account ID was not already present
+    */
+    Account put(Account account);
+
+    /*
+    Method: putAll()
+    Description: Bulk loads an array of accounts, sizing the store once for the final number of accounts
+    Input:
+        newAccounts - The accounts to insert. Null elements are skipped
+    Output: The store contains every account in the array
+    Returns: Void
+    */
+    void putAll(Account[] newAccounts);
+
+    /*
+    Method: putAll()
+    Description: Bulk loads accounts with no history from their IDs and balances, sizing the store once for the final
+                 number of accounts
+    Input:
+        accountIDs - The account IDs
+        balances - The balance of each account, in cents
+        count - The number of accounts to take from the start of the arrays
+    Output: The store contains every listed account
+    Returns: Void
+    */
+    void putAll(long[] accountIDs, long[] balances, int count);
+
+    /*
+    Method: remove()
+    Description: Removes the account with the matching account ID
+    Input:
+        accountID - The account ID of the account to remove
+    Output: The account is no longer in the store
+    Returns: The Account object that was removed, or null if there was no account with that ID
+    */
+    Account remove(long accountID);
+
+    /*
+    Method: size()
+    Description: Retrieves the number of accounts in the store
+    Input: None
+    Output: None
+    Returns: The number of accounts as an int
+    */
+    int size();
+
+    /*
+    Method: toArray()
+    Description: Lists every account in the store, in no particular order
+    Input: None
+    Output: None
+    Returns: The accounts as an array of Account objects
+    */
+    Account[] toArray();
+
+    /*
+    Method: slots()
+    Description: Retrieves the number of slots the store keeps its accounts in, which is at least size(). Together with
+                 forEach() it lets the store be divided into ranges, for example between threads
+    Input: None
+    Output: None
+    Returns: The number of slots as an int
+    */
+    int slots();
+
+    /*
+    Method: forEach()
+    Description: Visits the accounts held in a range of slots, in no particular order. A store whose accounts are
+                 added, removed or moved while it is visited may visit some of them twice or not at all
+    Input:
+        from - The first slot, inclusive
+        to - The last slot, exclusive. Slots past slots() are ignored
+        visitor - Receives each account
+    Output: None
+    Returns: Void
+    */
+    void forEach(int from, int to, Visitor visitor);
+
+    /*
+    Method: clear()
+    Description: Removes every account from the store
+    Input: None
+    Output: The store is empty
+    Returns: Void
+    */
+    void clear();
+}
@@ -0,0 +1,228 @@
+package TakeoffATMPKG;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Class: BatchProcessor
+Description: Applies a TransactionBatch on a pool of worker threads. Commands are divided between the workers by
+             account ID, so all of one account's commands go to the same worker and are applied in the order they
+             appear in the batch, while different accounts are applied in parallel. Each command goes through the same
+             applyWithdrawal() and applyDeposit() as a customer at a terminal, under the same account locks, so batch
+             and terminal traffic can run together and produce the same outcomes.
+
+             Work that a terminal repeats for every command is done once per batch instead: the transaction time is
+             read once, a worker keeps its account lock across consecutive commands for the same account, and the
+             journal is waited on once, for the batch's last record, instead of once per command.
+*/
+
+public final class BatchProcessor {
+    private final int workerCount;
+    private final ExecutorService workers;
+
+    /*
+    Method: BatchProcessor()
+    Description: A constructor that starts the worker threads
+    Input:
+        workerCount - The number of worker threads, usually the number of available processors
+    Output: Creates an object of type BatchProcessor and starts workerCount "batch-worker" daemon threads
+    Returns: No return type (N/A for a constructor)
+    */
+    public BatchProcessor(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("At least one worker is required: " + workerCount);
+        }
+        this.workerCount = workerCount;
+        final AtomicInteger created = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "batch-worker-" + created.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+    Method: process()
+    Description: Applies every command in the batch and waits until the results will survive a restart
+    Input:
+        batch - The commands to apply
+        terminal - The terminal that dispenses the cash for withdrawals
+    Output: Account balances, transaction histories, the journal, and the terminal's cash are changed, and every
+            command in the batch has its outcome and resulting balance. If the journal has already failed nothing is
+            changed and every command is UNAVAILABLE, and if it fails during the batch the commands applied are
+            NOT_RECORDED
+    Returns: None
+    */
+    public void process(final TransactionBatch batch, final Terminal terminal) {
+        long start = System.nanoTime();
+        final long now = Machine.currentEpochSecond();
+        int size = batch.size();
+        if (!Machine.journalWritable()) {
+            for (int i = 0; i < size; i++) {
+                batch.complete(i, TransactionBatch.UNAVAILABLE, 0);
+            }
+            Metrics.BATCH_APPLIED.recordSince(start);
+            return;
+        }
+
+        // Count each worker's commands, then list them, keeping batch order within each worker
+        int[] counts = new int[workerCount];
+        int[] owners = new int[size];
+        for (int i = 0; i < size; i++) {
+            owners[i] = workerOf(batch.getAccountID(i));
+            counts[owners[i]]++;
+        }
+        int[][] assigned = new int[workerCount][];
+        for (int w = 0; w < workerCount; w++) {
+            assigned[w] = new int[counts[w]];
+            counts[w] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            int w = owners[i];
+            assigned[w][counts[w]++] = i;
+        }
+
+        List<Future<Long>> running = new ArrayList<Future<Long>>(workerCount);
+        for (int w = 0; w < workerCount; w++) {
+            if (assigned[w].length == 0) {
+                continue;
+            }
+            final int[] commands = assigned[w];
+            running.add(workers.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return apply(batch, commands, terminal, now);
+                }
+            }));
+        }
+
+        long lastSequence = 0;
+        boolean interrupted = false;
+        for (Future<Long> worker : running) {
+            while (true) {
+                try {
+                    lastSequence = Math.max(lastSequence, worker.get());
+                    break;
+                } catch (InterruptedException e) {
+                    // Every command must finish before the batch returns, so keep waiting and restore the flag after
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Batch worker failed", e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Journal records become durable in sequence order, so waiting for the last covers the whole batch
+        if (!Machine.awaitJournal(lastSequence)) {
+            for (int i = 0; i < size; i++) {
+                int outcome = batch.getOutcome(i);
+                if (outcome == TransactionBatch.DISPENSED || outcome == TransactionBatch.OVERDRAFT_FEE
+                        || outcome == TransactionBatch.DEPOSITED) {
+                    batch.complete(i, TransactionBatch.NOT_RECORDED, batch.getBalance(i));
+                }
+            }
+        }
+        Metrics.BATCH_APPLIED.recordSince(start);
+    }
+
+    /*
+    Method: apply()
+    Description: Applies one worker's commands in order. The account lock is kept while consecutive commands use the
+                 same lock, and released before taking another, so a worker never holds two locks at once
+    Input:
+        batch - The batch being processed
+        commands - The indexes of this worker's commands, in batch order
+        terminal - The terminal that dispenses the cash
+        epochSecond - The time recorded with every transaction in the batch
+    Output: Every listed command has its outcome and resulting balance
+    Returns: The highest journal sequence number written, or 0 if none was
+    */
+    private static long apply(TransactionBatch batch, int[] commands, Terminal terminal, long epochSecond) {
+        AccountStore customers = Machine.customers;
+        long lastSequence = 0;
+        ReentrantLock held = null;
+        try {
+            for (int index : commands) {
+                Account account = customers.find(batch.getAccountID(index));
+                if (account == null) {
+                    batch.complete(index, TransactionBatch.UNKNOWN_ACCOUNT, 0);
+                    continue;
+                }
+                ReentrantLock lock = Machine.accountLocks.forAccount(account.getAccountID());
+                if (lock != held) {
+                    if (held != null) {
+                        held.unlock();
+                        held = null;
+                    }
+                    lock.lock();
+                    held = lock;
+                }
+
+                long amount = batch.getAmount(index);
+                if (batch.getType(index) == TransactionBatch.DEPOSIT) {
+                    long sequence = Machine.applyDeposit(account, amount, epochSecond);
+                    lastSequence = Math.max(lastSequence, sequence);
+                    int outcome = TransactionBatch.DEPOSITED;
+                    if (sequence == Machine.NOT_RECORDED) {
+                        outcome = TransactionBatch.NOT_RECORDED;
+                    } else if (sequence == Machine.DEPOSIT_TOO_LARGE) {
+                        outcome = TransactionBatch.TOO_LARGE;
+                    }
+                    batch.complete(index, outcome, account.getAccountBalance());
+                    continue;
+                }
+
+                long result = Machine.applyWithdrawal(account, terminal, amount, epochSecond);
+                long balance = account.getAccountBalance();
+                if (result == Machine.NOT_RECORDED) {
+                    batch.complete(index, TransactionBatch.NOT_RECORDED, balance);
+                } else if (result >= 0) {
+                    lastSequence = Math.max(lastSequence, result);
+                    batch.complete(index, balance >= 0 ? TransactionBatch.DISPENSED : TransactionBatch.OVERDRAFT_FEE,
+                            balance);
+                } else if (result == Machine.WITHDRAWAL_OVERDRAWN) {
+                    batch.complete(index, TransactionBatch.OVERDRAWN, balance);
+                } else if (result == Machine.WITHDRAWAL_UNABLE_TO_DISPENSE) {
+                    batch.complete(index, TransactionBatch.UNABLE_TO_DISPENSE, balance);
+                } else {
+                    batch.complete(index, TransactionBatch.NO_CASH, balance);
+                }
+            }
+        } finally {
+            if (held != null) {
+                held.unlock();
+            }
+        }
+        return lastSequence;
+    }
+
+    // Accounts are assigned to workers with the same hash the account directory uses, so IDs spread evenly
+    private int workerOf(long accountID) {
+        return (AccountDirectory.mix(accountID) & Integer.MAX_VALUE) % workerCount;
+    }
+
+    /*
+    Method: shutdown()
+    Description: Stops the worker threads once any batch being processed has finished
+    Input: None
+    Output: The worker threads exit
+    Returns: None
+    */
+    public void shutdown() {
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,565 @@
+package TakeoffATMPKG;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Class: CashCassettes
+Description: The notes held by one terminal, in up to four cassettes of different denominations. The number of notes in
+             every cassette is packed into a single long, so a withdrawal takes its whole mix of notes with one
+             compare-and-set. Two withdrawals can never both take the last notes of a cassette, and no lock is needed.
+
+             Which notes to dispense is looked up rather than searched for. For every combination of cassettes and
+             every amount up to TABLE_UNITS notes of the smallest unit, the fewest-notes mix is worked out once when
+             the first terminal with those denominations is created, and shared by every such terminal. A withdrawal
+             tries the mix for all the cassettes that still hold notes, then for smaller combinations of them, and
+             finally takes as many of the larger notes as each cassette holds and looks up the rest.
+
+             Notes dispensed are also counted per minute, so forecastSecondsUntilEmpty() can estimate when the
+             terminal will run out at the current rate.
+*/
+
+public final class CashCassettes {
+    public static final int MAX_CASSETTES = 4;
+    // Amounts up to this many units (the greatest common divisor of the denominations) are in the dispense tables.
+    // Larger amounts are paid in the largest notes down to the table's range first
+    static final int TABLE_UNITS = 4096;
+    // Returned by the solver when no mix of notes can pay an amount
+    private static final long NONE = -1;
+    // Dispense counts are kept per minute for the last hour, and the forecast looks at the last FORECAST_MINUTES
+    private static final int RATE_BUCKETS = 60;
+    public static final int FORECAST_MINUTES = 15;
+    private static final long SECONDS_PER_MINUTE = 60;
+
+    // Fewest-notes mix tables, shared by every terminal with the same denominations
+    private static final ConcurrentHashMap<String, long[][]> sharedTables = new ConcurrentHashMap<String, long[][]>();
+    // For each set of cassettes that hold notes, the subsets of it to try, largest first
+    private static final int[][] SUBSETS = subsets();
+
+    // Denominations in cents, largest first. Cassette i is field i of the packed counts
+    private final long[] denominations;
+    private final int cassetteCount;
+    // Each cassette's count is a field of fieldBits bits. The top bit of each field is kept clear, as a guard that
+    // catches a borrow when a count would go below zero
+    private final int fieldBits;
+    private final long fieldMask;
+    private final long guards;
+    private final long unit;
+    private final long[] unitsPerNote;
+    private final long[][] table;
+    // For cassette i and a set of smaller cassettes, how many of note i can differ before the amount left for the
+    // smaller notes repeats its remainder modulo their greatest common divisor
+    private final long[][] periods;
+    private final long capacity;
+
+    private final AtomicLong notes;
+    private final long createdSecond;
+    private final AtomicLongArray rateMinutes = new AtomicLongArray(RATE_BUCKETS);
+    private final AtomicLongArray rateNotes;
+
+    /*
+    Method: CashCassettes()
+    Description: A constructor that creates a full set of cassettes
+    Input:
+        denominations - The value of each cassette's notes, in cents
+        counts - The number of notes loaded into each cassette
+    Output: Creates an object of type CashCassettes
+    Returns: No return type (N/A for a constructor)
+    */
+    public CashCassettes(long[] denominations, long[] counts) {
+        int n = denominations.length;
+        if (n < 1 || n > MAX_CASSETTES || counts.length != n) {
+            throw new IllegalArgumentException("Between 1 and " + MAX_CASSETTES + " cassettes, each with a count, " +
+                    "are required");
+        }
+        // Sort the cassettes largest denomination first, keeping each count with its denomination
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        final long[] given = denominations;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(given[b], given[a]);
+            }
+        });
+
+        this.cassetteCount = n;
+        this.fieldBits = 64 / n;
+        this.fieldMask = fieldBits == 64 ? -1L : (1L << fieldBits) - 1;
+        this.denominations = new long[n];
+        long packed = 0;
+        long guardBits = 0;
+        long total = 0;
+        long divisor = 0;
+        for (int i = 0; i < n; i++) {
+            long denomination = given[order[i]];
+            long count = counts[order[i]];
+            if (denomination <= 0 || (i > 0 && denomination == this.denominations[i - 1])) {
+                throw new IllegalArgumentException("Denominations must be positive and different: " +
+                        Arrays.toString(denominations));
+            }
+            if (count < 0 || count > fieldMask >>> 1) {
+                throw new IllegalArgumentException("A cassette of " + n + " can hold at most " + (fieldMask >>> 1) +
+                        " notes: " + count);
+            }
+            this.denominations[i] = denomination;
+            packed |= count << (i * fieldBits);
+            guardBits |= (fieldMask ^ (fieldMask >>> 1)) << (i * fieldBits);
+            total += count * denomination;
+            divisor = gcd(divisor, denomination);
+        }
+        this.guards = guardBits;
+        this.unit = divisor;
+        this.unitsPerNote = new long[n];
+        for (int i = 0; i < n; i++) {
+            unitsPerNote[i] = this.denominations[i] / unit;
+        }
+        this.periods = new long[n][1 << n];
+        for (int i = 0; i < n; i++) {
+            for (int rest = 1; rest < 1 << n; rest++) {
+                long restUnit = 0;
+                for (int j = 0; j < n; j++) {
+                    if ((rest & (1 << j)) != 0) {
+                        restUnit = gcd(restUnit, unitsPerNote[j]);
+                    }
+                }
+                periods[i][rest] = restUnit / gcd(unitsPerNote[i], restUnit);
+            }
+        }
+        this.capacity = total;
+        this.notes = new AtomicLong(packed);
+        this.table = tableFor(this.denominations, unit, fieldBits);
+        this.rateNotes = new AtomicLongArray(RATE_BUCKETS * n);
+        this.createdSecond = System.currentTimeMillis() / 1000;
+    }
+
+    /*
+    Method: ofNotes()
+    Description: Creates a single cassette of one denomination holding as many notes as fit in an amount of cash
+    Input:
+        denomination - The value of each note, in cents
+        cash - The cash to load, in cents. Any part smaller than one note is left out
+    Output: None
+    Returns: The CashCassettes object
+    */
+    public static CashCassettes ofNotes(long denomination, long cash) {
+        return new CashCassettes(new long[] {denomination}, new long[] {cash / denomination});
+    }
+
+    /*
+    Method: parse()
+    Description: Creates cassettes from a description such as "100x50,50x100,20x250", meaning fifty $100 notes, one
+                 hundred $50 notes, and two hundred and fifty $20 notes
+    Input:
+        description - Comma separated cassettes, each a whole dollar denomination, an x, and a number of notes
+    Output: None
+    Returns: The CashCassettes object
+    Throws: IllegalArgumentException if the description is not in this format
+    */
+    public static CashCassettes parse(String description) {
+        String[] cassettes = description.split(",");
+        long[] denominations = new long[cassettes.length];
+        long[] counts = new long[cassettes.length];
+        for (int i = 0; i < cassettes.length; i++) {
+            String cassette = cassettes[i].trim();
+            int x = cassette.indexOf('x');
+            if (x < 1 || x == cassette.length() - 1) {
+                throw new IllegalArgumentException("Expected <dollars>x<notes>: " + cassette);
+            }
+            try {
+                denominations[i] = Money.ofDollars(Long.parseLong(cassette.substring(0, x)));
+                counts[i] = Long.parseLong(cassette.substring(x + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected <dollars>x<notes>: " + cassette, e);
+            }
+        }
+        return new CashCassettes(denominations, counts);
+    }
+
+    /*
+    Method: dispense()
+    Description: Removes notes worth exactly the amount, if the cassettes hold more cash than the amount, per the
+                 specification, and some mix of the notes they hold adds up to it. The notes are chosen and removed
+                 with one compare-and-set, retried if another withdrawal got there first
+    Input:
+        amount - The amount to dispense, in cents
+    Output: The notes are removed from the cassettes
+    Returns: True if the notes were removed
+    */
+    public boolean dispense(long amount) {
+        long mix = take(amount);
+        if (mix == NONE) {
+            return false;
+        }
+        keep(mix);
+        return true;
+    }
+
+    /*
+    Method: take() / keep() / restore()
+    Description: dispense() in two steps, for a ShardRouter that holds a terminal's cash while the shard decides on the
+                 withdrawal. take() removes the notes as dispense() would, then keep() counts them as dispensed once
+                 the shard has approved the withdrawal, or restore() puts them back if it did not
+    Input:
+        amount - The amount to take, in cents
+        mix - The notes returned by take()
+    Output: The notes are removed from, or put back in, the cassettes
+    Returns: take() returns the notes taken, one field per cassette, or -1 if they could not be taken
+    */
+    long take(long amount) {
+        if (amount < 0 || amount % unit != 0) {
+            return NONE;
+        }
+        while (true) {
+            long current = notes.get();
+            if (cashIn(current) <= amount) {
+                return NONE;
+            }
+            long mix = amount == 0 ? 0 : solve(current, amount / unit);
+            if (mix == NONE || notes.compareAndSet(current, current - mix)) {
+                return mix;
+            }
+        }
+    }
+
+    void keep(long mix) {
+        recordDispense(mix);
+    }
+
+    void restore(long mix) {
+        notes.addAndGet(mix);
+    }
+
+    /*
+    Method: refill()
+    Description: Adds notes to a cassette, such as when a low-cash forecast has it replenished
+    Input:
+        cassette - The cassette's number
+        count - The number of notes to add
+    Output: The cassette holds count more notes
+    Returns: None
+    Throws: IllegalArgumentException if the count is negative or the cassette cannot hold that many notes
+    */
+    public void refill(int cassette, long count) {
+        long limit = fieldMask >>> 1;
+        if (count < 0 || count > limit) {
+            throw new IllegalArgumentException("Cannot add " + count + " notes to a cassette");
+        }
+        while (true) {
+            long current = notes.get();
+            if (field(current, cassette) > limit - count) {
+                throw new IllegalArgumentException("A cassette can hold at most " + limit + " notes");
+            }
+            if (notes.compareAndSet(current, current + (count << (cassette * fieldBits)))) {
+                return;
+            }
+        }
+    }
+
+    /*
+    Method: getCash()
+    Description: Retrieves the value of every note in the cassettes
+    Input: None
+    Output: None
+    Returns: The cash in cents as a long
+    */
+    public long getCash() {
+        return cashIn(notes.get());
+    }
+
+    /*
+    Method: getCapacity()
+    Description: Retrieves the value of the notes the cassettes were loaded with
+    Input: None
+    Output: None
+    Returns: The cash in cents as a long
+    */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /*
+    Method: getCassetteCount() / getDenomination() / getNotes()
+    Description: Retrieve the number of cassettes, and the denomination in cents and current number of notes of one
+                 cassette. Cassettes are numbered from the largest denomination down
+    Input:
+        cassette - The cassette's number
+    Output: None
+    Returns: The value as an int or long
+    */
+    public int getCassetteCount() {
+        return cassetteCount;
+    }
+
+    public long getDenomination(int cassette) {
+        return denominations[cassette];
+    }
+
+    public long getNotes(int cassette) {
+        return field(notes.get(), cassette);
+    }
+
+    /*
+    Method: forecastSecondsUntilEmpty()
+    Description: Estimates how long a cassette will last if notes keep being dispensed at the rate of the last
+                 FORECAST_MINUTES minutes
+    Input:
+        cassette - The cassette's number
+    Output: None
+    Returns: The estimate in seconds as a long, 0 if the cassette is empty, or Long.MAX_VALUE if nothing has been
+             dispensed from it recently
+    */
+    public long forecastSecondsUntilEmpty(int cassette) {
+        long remaining = getNotes(cassette);
+        if (remaining == 0) {
+            return 0;
+        }
+        long nowSecond = System.currentTimeMillis() / 1000;
+        long dispensed = dispensedSince(nowSecond, cassette);
+        if (dispensed == 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) (remaining * (double) window(nowSecond) / dispensed);
+    }
+
+    /*
+    Method: forecastSecondsUntilEmpty()
+    Description: Estimates how long the terminal's cash will last if it keeps being dispensed at the rate of the last
+                 FORECAST_MINUTES minutes
+    Input: None
+    Output: None
+    Returns: The estimate in seconds as a long, 0 if the cassettes are empty, or Long.MAX_VALUE if nothing has been
+             dispensed recently
+    */
+    public long forecastSecondsUntilEmpty() {
+        long cash = getCash();
+        if (cash == 0) {
+            return 0;
+        }
+        long nowSecond = System.currentTimeMillis() / 1000;
+        double dispensed = 0;
+        for (int i = 0; i < cassetteCount; i++) {
+            dispensed += (double) dispensedSince(nowSecond, i) * denominations[i];
+        }
+        if (dispensed == 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) (cash * (double) window(nowSecond) / dispensed);
+    }
+
+    /*
+    Method: isLow()
+    Description: Checks whether any cassette is forecast to run out within a period, so it can be refilled in time
+    Input:
+        horizonSeconds - The period to look ahead
+    Output: None
+    Returns: True if some cassette is forecast to be empty within horizonSeconds
+    */
+    public boolean isLow(long horizonSeconds) {
+        for (int i = 0; i < cassetteCount; i++) {
+            if (forecastSecondsUntilEmpty(i) <= horizonSeconds) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Finds notes, in units, that the cassettes in current can pay. The combinations of cassettes that hold notes are
+    // tried from the table, most cassettes first, before falling back to taking the largest notes available
+    private long solve(long current, long units) {
+        int available = 0;
+        for (int i = 0; i < cassetteCount; i++) {
+            if (field(current, i) != 0) {
+                available |= 1 << i;
+            }
+        }
+        for (int subset : SUBSETS[available]) {
+            long mix = lookup(subset, units);
+            if (mix != NONE && fits(current, mix)) {
+                return mix;
+            }
+        }
+        return available == 0 ? NONE : capped(current, units, available);
+    }
+
+    // The fewest-notes mix from the table. Beyond the table, enough of the subset's largest notes are added to bring
+    // the rest of the amount into its range. A note worth more than the whole table can step over it, and then there
+    // is no mix to look up, so capped() works the amount out instead
+    private long lookup(int subset, long units) {
+        if (units < TABLE_UNITS) {
+            return table[subset][(int) units];
+        }
+        int largest = Integer.numberOfTrailingZeros(subset);
+        long extra = (units - TABLE_UNITS) / unitsPerNote[largest] + 1;
+        long rest = units - extra * unitsPerNote[largest];
+        if (rest < 0) {
+            return NONE;
+        }
+        long mix = table[subset][(int) rest];
+        if (mix == NONE || extra > (fieldMask >>> 1) - field(mix, largest)) {
+            return NONE;
+        }
+        return mix + (extra << (largest * fieldBits));
+    }
+
+    // The last resort when every table mix needs more of some note than its cassette holds. The largest cassette in
+    // the subset pays what it can, and the rest is looked up, or worked out the same way, among the smaller cassettes.
+    // When that fails, one fewer of the large note is tried, but only until the rest has gone through every remainder
+    // the smaller notes can leave, such as an odd or even number of $50s with $20s, so the walk stays short
+    private long capped(long current, long units, int subset) {
+        int largest = Integer.numberOfTrailingZeros(subset);
+        int rest = subset & (subset - 1);
+        long most = Math.min(field(current, largest), units / unitsPerNote[largest]);
+        long least = rest == 0 ? most : Math.max(0, most - periods[largest][rest] + 1);
+        for (long take = most; take >= least; take--) {
+            long remaining = units - take * unitsPerNote[largest];
+            long mix = take << (largest * fieldBits);
+            if (remaining == 0) {
+                return mix;
+            }
+            if (rest == 0) {
+                break;
+            }
+            long restMix = lookup(rest, remaining);
+            if (restMix == NONE || !fits(current, restMix)) {
+                restMix = capped(current, remaining, rest);
+            }
+            if (restMix != NONE) {
+                return mix + restMix;
+            }
+        }
+        return NONE;
+    }
+
+    // Every cassette holds at least as many notes as the mix takes from it. Subtracting from the counts with every
+    // guard bit set leaves a guard bit clear exactly where a count would have gone below zero
+    private boolean fits(long current, long mix) {
+        return (((current | guards) - mix) & guards) == guards;
+    }
+
+    private long field(long packed, int cassette) {
+        return (packed >>> (cassette * fieldBits)) & fieldMask;
+    }
+
+    private long cashIn(long packed) {
+        long cash = 0;
+        for (int i = 0; i < cassetteCount; i++) {
+            cash += field(packed, i) * denominations[i];
+        }
+        return cash;
+    }
+
+    // Counts the notes in the current minute's bucket. A bucket left over from an hour ago is cleared by the first
+    // dispense to reach it. A dispense racing with that clearing may go uncounted, which only nudges the forecast
+    private void recordDispense(long mix) {
+        long minute = System.currentTimeMillis() / 1000 / SECONDS_PER_MINUTE;
+        int bucket = (int) (minute % RATE_BUCKETS);
+        long stamp = rateMinutes.get(bucket);
+        if (stamp != minute && rateMinutes.compareAndSet(bucket, stamp, minute)) {
+            for (int i = 0; i < cassetteCount; i++) {
+                rateNotes.set(bucket * cassetteCount + i, 0);
+            }
+        }
+        for (int i = 0; i < cassetteCount; i++) {
+            long taken = field(mix, i);
+            if (taken != 0) {
+                rateNotes.getAndAdd(bucket * cassetteCount + i, taken);
+            }
+        }
+    }
+
+    private long dispensedSince(long nowSecond, int cassette) {
+        long minute = nowSecond / SECONDS_PER_MINUTE;
+        long dispensed = 0;
+        for (int bucket = 0; bucket < RATE_BUCKETS; bucket++) {
+            long stamp = rateMinutes.get(bucket);
+            if (stamp > minute - FORECAST_MINUTES && stamp <= minute) {
+                dispensed += rateNotes.get(bucket * cassetteCount + cassette);
+            }
+        }
+        return dispensed;
+    }
+
+    // The seconds covered by the forecast, shorter while the terminal is newer than the forecast window
+    private long window(long nowSecond) {
+        long minute = nowSecond / SECONDS_PER_MINUTE;
+        long windowStart = Math.max((minute - FORECAST_MINUTES + 1) * SECONDS_PER_MINUTE, createdSecond);
+        return Math.max(1, nowSecond - windowStart + 1);
+    }
+
+    // Builds, or finds already built, the fewest-notes table for a set of denominations
+    private static long[][] tableFor(long[] denominations, long unit, int fieldBits) {
+        String key = Arrays.toString(denominations);
+        long[][] table = sharedTables.get(key);
+        if (table == null) {
+            table = buildTable(denominations, unit, fieldBits);
+            long[][] raced = sharedTables.putIfAbsent(key, table);
+            if (raced != null) {
+                table = raced;
+            }
+        }
+        return table;
+    }
+
+    // For every subset of cassettes, a dynamic program over amounts: the fewest notes for an amount is one note more
+    // than the fewest for the amount less that note. Ties go to the larger note. Mixes are stored packed, the same
+    // way as the cassette counts
+    private static long[][] buildTable(long[] denominations, long unit, int fieldBits) {
+        int n = denominations.length;
+        long[][] table = new long[1 << n][TABLE_UNITS];
+        int[] fewest = new int[TABLE_UNITS];
+        for (int subset = 1; subset < 1 << n; subset++) {
+            long[] mixes = table[subset];
+            Arrays.fill(mixes, NONE);
+            Arrays.fill(fewest, Integer.MAX_VALUE);
+            mixes[0] = 0;
+            fewest[0] = 0;
+            for (int units = 1; units < TABLE_UNITS; units++) {
+                for (int i = 0; i < n; i++) {
+                    long note = denominations[i] / unit;
+                    if ((subset & (1 << i)) == 0 || note > units) {
+                        continue;
+                    }
+                    int previous = (int) (units - note);
+                    if (fewest[previous] != Integer.MAX_VALUE && fewest[previous] + 1 < fewest[units]) {
+                        fewest[units] = fewest[previous] + 1;
+                        mixes[units] = mixes[previous] + (1L << (i * fieldBits));
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    // For each set of cassettes, as a bit mask, its non-empty subsets ordered by the number of cassettes, most first
+    private static int[][] subsets() {
+        int[][] subsets = new int[1 << MAX_CASSETTES][];
+        for (int set = 0; set < 1 << MAX_CASSETTES; set++) {
+            int[] found = new int[1 << Integer.bitCount(set)];
+            int size = 0;
+            for (int cassettes = MAX_CASSETTES; cassettes > 0; cassettes--) {
+                for (int subset = set; subset > 0; subset = (subset - 1) & set) {
+                    if (Integer.bitCount(subset) == cassettes) {
+                        found[size++] = subset;
+                    }
+                }
+            }
+            subsets[set] = Arrays.copyOf(found, size);
+        }
+        return subsets;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,382 @@
+package TakeoffATMPKG;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/*
+Class: CommandDecoder
+Description: Parses the lines a customer sends to a terminal: the account ID and PIN used to log in, the menu
+             selection, the number of $20 bills to withdraw, and the amount to deposit. Each method reads a
+             CharSequence, such as a line from the keyboard, or the bytes between a ByteBuffer's position and limit,
+             such as a line received from the network, and reports the outcome as a status code. No regular
+             expression, exception, or per-call object is involved, so replayed traffic can be decoded as fast as it
+             can be read. Parsed values are kept in the decoder until the next call, so each front end owns one
+             decoder and must not share it between threads.
+*/
+
+public final class CommandDecoder {
+    public static final int ACCOUNT_ID_LENGTH = 10;
+    public static final int PIN_LENGTH = 4;
+    // The menu options are numbered from one to six
+    public static final int FIRST_MENU_OPTION = 1;
+    public static final int LAST_MENU_OPTION = 6;
+
+    // Status codes returned by the decode methods
+    public static final int OK = 0;
+    // The login line was the END command
+    public static final int END = 1;
+    // Nothing was entered
+    public static final int EMPTY = 2;
+    // The login line has no comma, or nothing after it
+    public static final int MISSING_PIN = 3;
+    // The text before the comma is not ten characters long
+    public static final int WRONG_ACCOUNT_ID_LENGTH = 4;
+    // A value that must be a number is not one
+    public static final int NOT_A_NUMBER = 5;
+    // The PIN does not contain exactly four digits
+    public static final int WRONG_PIN_LENGTH = 6;
+    // The menu selection is a number, but not one of the options
+    public static final int OUT_OF_RANGE = 7;
+    // A withdrawal or deposit amount is negative
+    public static final int NEGATIVE = 8;
+
+    private long accountID;
+    private final char[] pinDigits = new char[PIN_LENGTH];
+    private final CharBuffer pin = CharBuffer.wrap(pinDigits);
+    // The menu selection, number of $20 bills, or deposit in cents from the last successful decode
+    private long value;
+    // Reused to read a ByteBuffer as characters
+    private final AsciiSequence bytes = new AsciiSequence();
+
+    /*
+    Method: decodeLogin()
+    Description: Parses a login line of the form 1234567890,1234, or the END command. Surrounding whitespace is ignored,
+                 the account ID must be the ten characters before the first comma, and every digit after the comma is
+                 taken as the PIN, ignoring anything else, so "1234567890, 12-34" is accepted.
+    Input:
+        line - The line entered by the user
+    Output: On OK, the account ID and PIN are available from getAccountID() and getPin()
+    Returns: OK, END, EMPTY, MISSING_PIN, WRONG_ACCOUNT_ID_LENGTH, NOT_A_NUMBER, or WRONG_PIN_LENGTH
+    */
+    public int decodeLogin(CharSequence line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return EMPTY;
+        }
+        if (end - start == 3 && (line.charAt(start) | 0x20) == 'e' && (line.charAt(start + 1) | 0x20) == 'n'
+                && (line.charAt(start + 2) | 0x20) == 'd') {
+            return END;
+        }
+
+        int comma = -1;
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) == ',') {
+                comma = i;
+                break;
+            }
+        }
+        if (comma == -1 || comma == end - 1) {
+            return MISSING_PIN;
+        }
+        if (comma - start != ACCOUNT_ID_LENGTH) {
+            return WRONG_ACCOUNT_ID_LENGTH;
+        }
+
+        long parsed = parseWhole(line, start, comma);
+        if (parsed == Long.MIN_VALUE) {
+            return NOT_A_NUMBER;
+        }
+
+        int digits = 0;
+        for (int i = comma + 1; i < end; i++) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits < PIN_LENGTH) {
+                    pinDigits[digits] = c;
+                }
+                digits++;
+            }
+        }
+        if (digits != PIN_LENGTH) {
+            return WRONG_PIN_LENGTH;
+        }
+        accountID = parsed;
+        pin.clear();
+        return OK;
+    }
+
+    /*
+    Method: decodeMenuSelection()
+    Description: Parses the digit the user entered to choose their next action
+    Input:
+        line - The line entered by the user
+    Output: On OK, the selection is available from getValue()
+    Returns: OK, EMPTY, NOT_A_NUMBER, or OUT_OF_RANGE
+    */
+    public int decodeMenuSelection(CharSequence line) {
+        if (line.length() == 0) {
+            return EMPTY;
+        }
+        long parsed = parseWhole(line, 0, line.length());
+        if (parsed == Long.MIN_VALUE || parsed < Integer.MIN_VALUE || parsed > Integer.MAX_VALUE) {
+            return NOT_A_NUMBER;
+        }
+        if (parsed < FIRST_MENU_OPTION || parsed > LAST_MENU_OPTION) {
+            return OUT_OF_RANGE;
+        }
+        value = parsed;
+        return OK;
+    }
+
+    /*
+    Method: decodeBillCount()
+    Description: Parses the number of $20 bills the user would like to withdraw
+    Input:
+        line - The line entered by the user
+    Output: On OK, the number of bills is available from getValue()
+    Returns: OK, NOT_A_NUMBER, or NEGATIVE
+    */
+    public int decodeBillCount(CharSequence line) {
+        long parsed = parseWhole(line, 0, line.length());
+        if (parsed == Long.MIN_VALUE || parsed < Integer.MIN_VALUE || parsed > Integer.MAX_VALUE) {
+            return NOT_A_NUMBER;
+        }
+        if (parsed < 0) {
+            return NEGATIVE;
+        }
+        value = parsed;
+        return OK;
+    }
+
+    /*
+    Method: decodeAmount()
+    Description: Parses the amount of money the user would like to deposit, rounded to the nearest cent
+    Input:
+        line - The line entered by the user
+    Output: On OK, the amount in cents is available from getValue()
+    Returns: OK, NOT_A_NUMBER (also for more than Money.MAX_PARSED_DOLLARS), or NEGATIVE
+    */
+    public int decodeAmount(CharSequence line) {
+        long cents = Money.parse(line, 0, line.length());
+        if (cents == Money.INVALID) {
+            return NOT_A_NUMBER;
+        }
+        if (cents < 0) {
+            return NEGATIVE;
+        }
+        value = cents;
+        return OK;
+    }
+
+    /*
+    Method: decodeLogin() / decodeMenuSelection() / decodeBillCount() / decodeAmount()
+    Description: The same as the CharSequence versions, reading one byte per character from the bytes between the
+                 buffer's position and limit. The buffer's position is not changed.
+    */
+    public int decodeLogin(ByteBuffer line) {
+        return decodeLogin(bytes.wrap(line));
+    }
+
+    public int decodeMenuSelection(ByteBuffer line) {
+        return decodeMenuSelection(bytes.wrap(line));
+    }
+
+    public int decodeBillCount(ByteBuffer line) {
+        return decodeBillCount(bytes.wrap(line));
+    }
+
+    public int decodeAmount(ByteBuffer line) {
+        return decodeAmount(bytes.wrap(line));
+    }
+
+    /*
+    Method: getAccountID()
+    Description: Retrieves the account ID from the last successful decodeLogin()
+    Input: None
+    Output: None
+    Returns: The account ID as a long
+    */
+    public long getAccountID() {
+        return accountID;
+    }
+
+    /*
+    Method: getPin()
+    Description: Retrieves the PIN from the last successful decodeLogin(). The characters are overwritten by the next
+                 decodeLogin(), so they must be used before then
+    Input: None
+    Output: None
+    Returns: The four PIN digits as a CharSequence
+    */
+    public CharSequence getPin() {
+        return pin;
+    }
+
+    /*
+    Method: getValue()
+    Description: Retrieves the value from the last successful decodeMenuSelection(), decodeBillCount(), or
+                 decodeAmount()
+    Input: None
+    Output: None
+    Returns: The value as a long
+    */
+    public long getValue() {
+        return value;
+    }
+
+    /*
+    Method: loginMessage()
+    Description: The message shown to the user when a login line is rejected, as the console has always printed it
+    Input:
+        status - The status returned by decodeLogin()
+        line - The line entered by the user
+    Output: None
+    Returns: The message as a String, ending with the request to authorize
+    */
+    public static String loginMessage(int status, CharSequence line) {
+        String trimmed = line.toString().trim();
+        switch (status) {
+            case EMPTY:
+                return "Input error: " + trimmed + "\nAuthorization required.\n\n";
+            case MISSING_PIN:
+                return "Incorrect input: " + trimmed + "\nAuthorization required.\n\n";
+            case WRONG_ACCOUNT_ID_LENGTH:
+                return "This Account ID is not the correct length, it should be 10 digits\n\n\n" +
+                        "Authorization required.\n\n";
+            case NOT_A_NUMBER:
+                return "Invalid input: " + trimmed + ".\nAuthorization required.\n\n";
+            case WRONG_PIN_LENGTH:
+                return "This PIN is not the correct length, it should be 4 digits\n\n\nAuthorization required.\n\n";
+            default:
+                return "Authorization required.\n\n";
+        }
+    }
+
+    /*
+    Method: menuMessage()
+    Description: The message shown to the user when a menu selection is rejected
+    Input:
+        status - The status returned by decodeMenuSelection()
+    Output: None
+    Returns: The message as a String
+    */
+    public static String menuMessage(int status) {
+        switch (status) {
+            case EMPTY:
+                return "Please enter one digit only. Example: 4\n\n";
+            case OUT_OF_RANGE:
+                return "Please select a value between one and six by entering just that digit\n\n";
+            default:
+                return "That doesn't appear to be a number. Please enter one digit only\n\n";
+        }
+    }
+
+    /*
+    Method: billCountMessage() / amountMessage()
+    Description: The messages shown to the user when a withdrawal or deposit amount is rejected
+    Input:
+        status - The status returned by decodeBillCount() or decodeAmount()
+    Output: None
+    Returns: The message as a String
+    */
+    public static String billCountMessage(int status) {
+        if (status == NEGATIVE) {
+            return "You cannot withdraw a negative amount. Consider depositing\n\n";
+        }
+        return "That doesn't appear to be a valid number\n\n";
+    }
+
+    public static String amountMessage(int status) {
+        if (status == NEGATIVE) {
+            return "You cannot deposit a negative amount. Consider withdrawing\n\n";
+        }
+        return "That doesn't appear to be a valid number\n\n";
+    }
+
+    /*
+    Method: parseWhole()
+    Description: Parses a whole number with an optional sign, accepting the same text as Long.parseLong, but returning
+                 Long.MIN_VALUE instead of throwing when the text is not a number or does not fit in a long
+    */
+    private static long parseWhole(CharSequence text, int start, int end) {
+        if (start >= end) {
+            return Long.MIN_VALUE;
+        }
+        boolean negative = false;
+        char first = text.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+            if (start == end) {
+                return Long.MIN_VALUE;
+            }
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return Long.MIN_VALUE;
+            }
+            // Accumulate as a negative number, which has room for one more digit than a positive one
+            if (result < (Long.MIN_VALUE + (c - '0')) / 10) {
+                return Long.MIN_VALUE;
+            }
+            result = result * 10 - (c - '0');
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                return Long.MIN_VALUE;
+            }
+            return -result;
+        }
+        return result;
+    }
+
+    /*
+    Class: AsciiSequence
+    Description: Presents the bytes of a ByteBuffer as characters, one byte per character, without copying them
+    */
+    private static final class AsciiSequence implements CharSequence {
+        private ByteBuffer buffer;
+        private int offset;
+        private int length;
+
+        AsciiSequence wrap(ByteBuffer line) {
+            buffer = line;
+            offset = line.position();
+            length = line.remaining();
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(offset + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            char[] characters = new char[length];
+            for (int i = 0; i < length; i++) {
+                characters[i] = charAt(i);
+            }
+            return new String(characters);
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package TakeoffATMPKG;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+Class: CredentialStore
+Description: Holds the salted PIN hash of every account and checks the PINs entered at a terminal against them. The
+             credentials are kept apart from the Account objects, in the same open addressing layout the
+             AccountDirectory uses: a table of primitive account IDs pointing into dense arrays of iteration counts and
+             of salt and hash words, six longs per account. Checking a PIN never creates more than the hash itself, and
+             millions of credentials cost a few arrays rather than millions of objects.
+
+             Every failed PIN is counted against its account without a lock. Once an account reaches the maximum number
+             of failed attempts it is locked out for a while, and its PIN is not checked again until the lockout ends.
+
+             Deriving a PIN hash is slow on purpose, so recently verified logins are remembered in a small cache of
+             fixed size whose entries expire. The cache holds a keyed HMAC of the account ID and PIN, never the PIN, and
+             its key is made up anew every time the program starts.
+
+             Credentials are loaded before any terminal starts, after which only the failure counters and the cache
+             change, and both of those are safe to update from any thread.
+*/
+
+public final class CredentialStore {
+    // Results of verify()
+    public static final int VERIFIED = 0;
+    public static final int FAILED = 1;
+    public static final int LOCKED_OUT = 2;
+
+    // Iteration count of a version 1 snapshot hash, which is a single unsalted SHA-256 (see PinHash.hash)
+    static final int LEGACY = -1;
+    // Bytes of one credential in an account snapshot: iterations (4) reserved (4) salt (16) hash (32). Iterations of 0
+    // means the account has no PIN
+    static final int RECORD_SIZE = 8 + PinHash.SALT_LENGTH + PinHash.LENGTH;
+
+    // Failed attempts allowed before an account is locked out. Set with -Datm.pinAttempts=<count>, where 0 never locks
+    static final int DEFAULT_MAX_ATTEMPTS = Integer.getInteger("atm.pinAttempts", 3);
+    // How long a lockout lasts. Set with -Datm.pinLockoutSeconds=<seconds>
+    static final long DEFAULT_LOCKOUT_MILLIS = Long.getLong("atm.pinLockoutSeconds", 900) * 1000;
+    // Verified logins remembered at once, and for how long. Set with -Datm.credentialCacheSize=<entries>, where 0 turns
+    // the cache off, and -Datm.credentialCacheSeconds=<seconds>
+    static final int DEFAULT_CACHE_SIZE = Integer.getInteger("atm.credentialCacheSize", 4096);
+    static final long DEFAULT_CACHE_MILLIS = Long.getLong("atm.credentialCacheSeconds", 300) * 1000;
+
+    private static final int MINIMUM_CAPACITY = 16;
+    // Longs per credential, the salt followed by the hash
+    private static final int SALT_WORDS = PinHash.SALT_LENGTH / 8;
+    private static final int WORDS = SALT_WORDS + PinHash.LENGTH / 8;
+    // An attempts counter holds the time its lockout ends, in milliseconds, above the number of failures in a row
+    private static final int FAILURE_BITS = 8;
+    private static final long FAILURE_MASK = (1L << FAILURE_BITS) - 1;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /*
+    Data Structure: accountIDs / entries
+    Description: The hash table, probed linearly. A slot holds an account ID and one more than the index of its
+                 credential in the arrays below, so a slot is empty when its entry is 0.
+    */
+    private long[] accountIDs;
+    private int[] entries;
+    private int mask;
+
+    /*
+    Data Structure: iterations / words / attempts
+    Description: The credentials, one index per account in the order they were added. words holds WORDS longs per
+                 credential, and attempts one packed failure counter and lockout time.
+    */
+    private int[] iterations;
+    private long[] words;
+    private AtomicLongArray attempts;
+    private int size;
+
+    private final int maxAttempts;
+    private final long lockoutMillis;
+    // Direct mapped by account ID, so the cache never holds more than its length and needs no eviction thread
+    private final AtomicReferenceArray<CachedLogin> cache;
+    private final long cacheMillis;
+    private final ThreadLocal<Mac> cacheTag;
+    // A PIN entered for an unknown account is checked against this salt, so the time taken does not reveal whether the
+    // account exists
+    private final byte[] unknownSalt = PinHash.newSalt();
+
+    /*
+    Method: CredentialStore()
+    Description: A constructor that creates an empty store large enough to hold the expected number of accounts without
+                 having to grow, with the lockout and cache settings given by the system properties
+    Input:
+        expectedAccounts - The number of accounts whose credentials will be added
+    Output: Creates an object of type CredentialStore
+    Returns: No return type (N/A for a constructor)
+    */
+    public CredentialStore(int expectedAccounts) {
+        this(expectedAccounts, DEFAULT_MAX_ATTEMPTS, DEFAULT_LOCKOUT_MILLIS, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_MILLIS);
+    }
+
+    /*
+    Method: CredentialStore()
+    Description: A constructor with its own lockout and cache settings
+    Input:
+        expectedAccounts - The number of accounts whose credentials will be added
+        maxAttempts - Failed attempts in a row that lock an account out, or 0 to never lock one
+        lockoutMillis - How long a lockout lasts
+        cacheSize - The number of verified logins remembered, rounded up to a power of two, or 0 for no cache
+        cacheMillis - How long a verified login is remembered
+    Output: Creates an object of type CredentialStore
+    Returns: No return type (N/A for a constructor)
+    */
+    CredentialStore(int expectedAccounts, int maxAttempts, long lockoutMillis, int cacheSize, long cacheMillis) {
+        if (maxAttempts < 0 || maxAttempts > FAILURE_MASK) {
+            throw new IllegalArgumentException("PIN attempts must be between 0 and " + FAILURE_MASK + ": " +
+                    maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.lockoutMillis = lockoutMillis;
+        this.cacheMillis = cacheMillis;
+        int tableSize = MINIMUM_CAPACITY;
+        while (tableSize < 2L * expectedAccounts) {
+            tableSize <<= 1;
+        }
+        allocate(tableSize);
+        iterations = new int[Math.max(expectedAccounts, MINIMUM_CAPACITY)];
+        words = new long[iterations.length * WORDS];
+        attempts = new AtomicLongArray(iterations.length);
+
+        int cacheLength = 0;
+        if (cacheSize > 0) {
+            cacheLength = Integer.highestOneBit(Math.min(cacheSize, 1 << 30));
+            if (cacheLength < cacheSize) {
+                cacheLength <<= 1;
+            }
+        }
+        cache = cacheLength == 0 ? null : new AtomicReferenceArray<CachedLogin>(cacheLength);
+        final byte[] key = new byte[32];
+        RANDOM.nextBytes(key);
+        cacheTag = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac mac = Mac.getInstance("HmacSHA256");
+                    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                    return mac;
+                } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                    throw new IllegalStateException("HmacSHA256 is required by every Java platform", e);
+                }
+            }
+        };
+    }
+
+    /*
+    Method: setPin()
+    Description: Gives an account a new PIN, hashed with a new salt and the default number of iterations
+    Input:
+        accountID - The account the PIN belongs to
+        pin - The new PIN
+    Output: The account's credential is replaced and any remembered login for it is forgotten
+    Returns: Void
+    */
+    public void setPin(long accountID, CharSequence pin) {
+        byte[] salt = PinHash.newSalt();
+        put(accountID, PinHash.DEFAULT_ITERATIONS, salt, PinHash.derive(pin, salt, PinHash.DEFAULT_ITERATIONS));
+    }
+
+    /*
+    Method: put()
+    Description: Adds or replaces an account's credential from its stored parts
+    Input:
+        accountID - The account the credential belongs to
+        iterationCount - The PBKDF2 iterations the hash was derived with, or LEGACY for a version 1 hash
+        salt - The salt, SALT_LENGTH bytes, or null for a LEGACY hash
+        hash - The hash, PinHash.LENGTH bytes
+    Output: The store may grow, and any remembered login for the account is forgotten
+    Returns: Void
+    */
+    public void put(long accountID, int iterationCount, byte[] salt, byte[] hash) {
+        if (iterationCount == 0 || iterationCount < LEGACY || hash == null || hash.length != PinHash.LENGTH ||
+                (iterationCount != LEGACY && (salt == null || salt.length != PinHash.SALT_LENGTH))) {
+            throw new IllegalArgumentException("Malformed credential for account " + accountID);
+        }
+        int index = indexOf(accountID);
+        if (index < 0) {
+            index = add(accountID);
+        }
+        iterations[index] = iterationCount;
+        int base = index * WORDS;
+        for (int i = 0; i < SALT_WORDS; i++) {
+            words[base + i] = salt == null ? 0 : getLong(salt, i * 8);
+        }
+        for (int i = 0; i < WORDS - SALT_WORDS; i++) {
+            words[base + SALT_WORDS + i] = getLong(hash, i * 8);
+        }
+        attempts.set(index, 0);
+        forget(accountID);
+    }
+
+    /*
+    Method: verify()
+    Description: Checks a PIN entered for an account. A locked out account is refused without checking the PIN. A login
+                 verified within the cache lifetime is accepted from the cache, and any other PIN is hashed and compared
+                 with the stored hash. Every word of the hash is compared, so the time taken does not reveal how much of
+                 it matched, and a PIN for an unknown account is hashed as well.
+    Input:
+        accountID - The account ID entered by the user
+        pin - The PIN entered by the user
+    Output: The account's failure count is updated, which may lock it out, and a verified login is remembered
+    Returns: VERIFIED, FAILED, or LOCKED_OUT
+    */
+    public int verify(long accountID, CharSequence pin) {
+        int index = indexOf(accountID);
+        if (index < 0) {
+            PinHash.derive(pin, unknownSalt, PinHash.DEFAULT_ITERATIONS);
+            return FAILED;
+        }
+        long now = System.currentTimeMillis();
+        if ((attempts.get(index) >>> FAILURE_BITS) > now) {
+            return LOCKED_OUT;
+        }
+
+        boolean verified;
+        byte[] tag = cache == null ? null : tag(accountID, pin);
+        if (tag != null && remembered(accountID, tag, now)) {
+            Metrics.CREDENTIAL_CACHE_HITS.increment();
+            verified = true;
+        } else {
+            if (tag != null) {
+                Metrics.CREDENTIAL_CACHE_MISSES.increment();
+            }
+            verified = matches(index, accountID, pin);
+            if (verified && tag != null) {
+                cache.set(cacheSlot(accountID), new CachedLogin(accountID, getLong(tag, 0), getLong(tag, 8),
+                        now + cacheMillis));
+            }
+        }
+
+        if (verified) {
+            long current = attempts.get(index);
+            if (current != 0) {
+                // A failure counted at the same moment may be lost, which only gives that account one more attempt
+                attempts.compareAndSet(index, current, 0);
+            }
+            return VERIFIED;
+        }
+        return fail(index, now);
+    }
+
+    /*
+    Method: contains()
+    Description: Checks whether an account has a credential
+    Input:
+        accountID - The account ID to search for
+    Output: None
+    Returns: True if the account has a PIN
+    */
+    public boolean contains(long accountID) {
+        return indexOf(accountID) >= 0;
+    }
+
+    /*
+    Method: size()
+    Description: Retrieves the number of credentials in the store
+    Input: None
+    Output: None
+    Returns: The number of credentials as an int
+    */
+    public int size() {
+        return size;
+    }
+
+    // Reads a snapshot credential of RECORD_SIZE bytes at the buffer's position, which is advanced past it
+    void read(long accountID, ByteBuffer record) {
+        int iterationCount = record.getInt();
+        record.getInt();
+        byte[] salt = new byte[PinHash.SALT_LENGTH];
+        byte[] hash = new byte[PinHash.LENGTH];
+        record.get(salt).get(hash);
+        if (iterationCount != 0) {
+            put(accountID, iterationCount, iterationCount == LEGACY ? null : salt, hash);
+        }
+    }
+
+    // Writes the account's credential as RECORD_SIZE bytes, or zeros if it has none
+    void write(long accountID, ByteBuffer record) {
+        int index = indexOf(accountID);
+        record.putInt(index < 0 ? 0 : iterations[index]).putInt(0);
+        for (int i = 0; i < WORDS; i++) {
+            record.putLong(index < 0 ? 0 : words[index * WORDS + i]);
+        }
+    }
+
+    // Counts a failed attempt, locking the account out once it has failed too many times in a row
+    private int fail(int index, long now) {
+        while (true) {
+            long current = attempts.get(index);
+            long lockedUntil = current >>> FAILURE_BITS;
+            if (lockedUntil > now) {
+                // Another terminal's failure locked the account out first
+                return LOCKED_OUT;
+            }
+            // The count starts again after a lockout has ended
+            long failures = lockedUntil == 0 ? (current & FAILURE_MASK) + 1 : 1;
+            long next;
+            if (maxAttempts > 0 && failures >= maxAttempts) {
+                next = (now + lockoutMillis) << FAILURE_BITS;
+            } else {
+                next = Math.min(failures, FAILURE_MASK);
+            }
+            if (attempts.compareAndSet(index, current, next)) {
+                return FAILED;
+            }
+        }
+    }
+
+    // Hashes the PIN the way the stored credential was hashed and compares every word of the result
+    private boolean matches(int index, long accountID, CharSequence pin) {
+        int iterationCount = iterations[index];
+        int base = index * WORDS;
+        byte[] hash;
+        if (iterationCount == LEGACY) {
+            hash = PinHash.hash(accountID, pin);
+        } else {
+            byte[] salt = new byte[PinHash.SALT_LENGTH];
+            for (int i = 0; i < SALT_WORDS; i++) {
+                putLong(salt, i * 8, words[base + i]);
+            }
+            hash = PinHash.derive(pin, salt, iterationCount);
+        }
+        long difference = 0;
+        for (int i = 0; i < WORDS - SALT_WORDS; i++) {
+            difference |= getLong(hash, i * 8) ^ words[base + SALT_WORDS + i];
+        }
+        return difference == 0;
+    }
+
+    // Whether the cache holds an unexpired login for the account with the same tag
+    private boolean remembered(long accountID, byte[] tag, long now) {
+        CachedLogin login = cache.get(cacheSlot(accountID));
+        if (login == null || login.accountID != accountID || login.expiresAt <= now) {
+            return false;
+        }
+        return ((login.tag0 ^ getLong(tag, 0)) | (login.tag1 ^ getLong(tag, 8))) == 0;
+    }
+
+    // Drops a remembered login for the account, after its PIN has changed
+    private void forget(long accountID) {
+        if (cache == null) {
+            return;
+        }
+        int slot = cacheSlot(accountID);
+        CachedLogin login = cache.get(slot);
+        if (login != null && login.accountID == accountID) {
+            cache.compareAndSet(slot, login, null);
+        }
+    }
+
+    private int cacheSlot(long accountID) {
+        return AccountDirectory.mix(accountID) & (cache.length() - 1);
+    }
+
+    // HMAC-SHA256 of the account ID and PIN under this run's cache key
+    private byte[] tag(long accountID, CharSequence pin) {
+        Mac mac = cacheTag.get();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (accountID >>> shift));
+        }
+        int length = pin.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = pin.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            for (int i = 0; i < length; i++) {
+                mac.update((byte) pin.charAt(i));
+            }
+        } else {
+            mac.update(pin.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return mac.doFinal();
+    }
+
+    private int indexOf(long accountID) {
+        int slot = AccountDirectory.mix(accountID) & mask;
+        int entry;
+        while ((entry = entries[slot]) != 0) {
+            if (accountIDs[slot] == accountID) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Gives a new account the next credential index, growing the table and arrays as needed
+    private int add(long accountID) {
+        if ((size + 1) * 2 > entries.length) {
+            long[] oldIDs = accountIDs;
+            int[] oldEntries = entries;
+            allocate(entries.length << 1);
+            for (int i = 0; i < oldEntries.length; i++) {
+                if (oldEntries[i] != 0) {
+                    insert(oldIDs[i], oldEntries[i]);
+                }
+            }
+        }
+        if (size == iterations.length) {
+            int capacity = iterations.length << 1;
+            iterations = Arrays.copyOf(iterations, capacity);
+            words = Arrays.copyOf(words, capacity * WORDS);
+            AtomicLongArray grown = new AtomicLongArray(capacity);
+            for (int i = 0; i < size; i++) {
+                grown.set(i, attempts.get(i));
+            }
+            attempts = grown;
+        }
+        insert(accountID, size + 1);
+        return size++;
+    }
+
+    private void insert(long accountID, int entry) {
+        int slot = AccountDirectory.mix(accountID) & mask;
+        while (entries[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        accountIDs[slot] = accountID;
+        entries[slot] = entry;
+    }
+
+    private void allocate(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Too many credentials for one store");
+        }
+        accountIDs = new long[capacity];
+        entries = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /*
+    Class: CachedLogin
+    Description: A login verified recently, replaced as a whole so readers never see a mix of two logins
+    */
+    private static final class CachedLogin {
+        final long accountID;
+        final long tag0;
+        final long tag1;
+        final long expiresAt;
+
+        CachedLogin(long accountID, long tag0, long tag1, long expiresAt) {
+            this.accountID = accountID;
+            this.tag0 = tag0;
+            this.tag1 = tag1;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,616 @@
+package TakeoffATMPKG;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+Class: HistoryArchive
+Description: The cold tier of transaction history. A TransactionHistory keeps only its most recent transactions in
+             memory; when it is full, Machine moves its oldest BLOCK_TRANSACTIONS here as one block instead of letting
+             them be overwritten, so the memory each account uses stays bounded however old it is, and history() can
+             still show every transaction the account has made since the archive was started.
+
+             Accounts are divided between shard files by account ID, the same way BatchProcessor divides a batch, and
+             each file is append-only with a lock of its own, so accounts in different shards archive without
+             contending. Each block holds one account's transactions, oldest first, with every value stored as the
+             difference from what came before: times as the seconds since the previous transaction, amounts as the
+             change from the previous amount, and balances as the difference from the previous balance plus the
+             amount, which is zero unless an overdraft fee was charged. Differences are written as variable-length
+             integers, so a typical transaction takes 4 to 6 bytes instead of the 24 it uses in memory.
+
+             A block's header records the account, the sequence numbers and times it covers, and where the account's
+             previous block starts. Those headers are the archive's sparse index: an account's history only remembers
+             where its newest block is, and a query walks back through the headers, skipping blocks outside the times or
+             sequence numbers it wants without decoding them. Files are read through memory mappings of fixed
+             WINDOW_BYTES windows, each mapped once when a read first reaches it, so a file can grow to any size
+             without being mapped again. The newest part of a file, which does not yet fill a window, is read from the
+             file directly.
+
+             The archive survives a restart. Opening it checks every block's checksum, cuts off a block torn by a crash
+             along with anything after it, and finds the newest block of every account, which attach() links to the
+             account's history before the journal rebuilds it. Sequence numbers are kept in the journal's checkpoints,
+             so a rebuilt history continues where its archive stops, and transactions the replay pushes out of memory
+             are only written if the archive does not hold them already. Blocks are not forced to disk as they are
+             written, so a power failure can lose the newest; an account whose archive then stops short of its history
+             starts a new chain of blocks, and its older blocks are no longer reached.
+
+             File layout, big endian:
+                 header (16 bytes): magic (4) version (4) shard count (4) reserved (4)
+                 block: accountID (8) previous block (8) first sequence of the account's archive (8) first sequence (8)
+                        first epochSecond (8) last epochSecond (8) count (4) payload length (4)
+                        CRC32 of the header's first 56 bytes and the payload (4) payload
+*/
+
+public final class HistoryArchive implements Closeable {
+    // Transactions moved to the archive at a time, unless -Datm.historyArchiveBlock=<n> is given
+    public static final int BLOCK_TRANSACTIONS = Integer.getInteger("atm.historyArchiveBlock", 64);
+    // Shard files, unless -Datm.historyArchiveShards=<n> is given. Must match an existing archive's
+    public static final int DEFAULT_SHARDS = Integer.getInteger("atm.historyArchiveShards", 16);
+    // The size of each memory mapped window of a shard file
+    static final int WINDOW_BYTES = 64 << 20;
+
+    private static final int MAGIC = 0x41544D48;
+    private static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 16;
+    static final int HEADER_SIZE = 60;
+    private static final int CHECKSUMMED_HEADER = HEADER_SIZE - 4;
+    // The most bytes three variable-length longs can take
+    private static final int MAX_ENTRY_BYTES = 30;
+    private static final String FILE_PREFIX = "history-";
+    private static final String FILE_SUFFIX = ".archive";
+
+    /*
+    Class: Shard
+    Description: One archive file, appended to under its own lock
+    */
+    private static final class Shard {
+        final FileChannel channel;
+        final CRC32 checksum = new CRC32();
+        // Where the next block will be written. Only changed under the shard's lock
+        volatile long end;
+        // The mapping of each full window read so far, or null. Replaced with a longer array as the file grows
+        volatile MappedByteBuffer[] windows = new MappedByteBuffer[0];
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + BLOCK_TRANSACTIONS * MAX_ENTRY_BYTES);
+
+        Shard(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /*
+    Class: Chains
+    Description: The newest block of each account found when the archive is opened, by account ID, in a table with
+                 open addressing over primitive arrays like AccountDirectory. Only used until attach() has run
+    */
+    private static final class Chains {
+        // The account ID in each slot plus one, so that zero marks an empty slot
+        long[] keys = new long[64];
+        long[] blocks = new long[64];
+        int size;
+
+        void put(long accountID, long block) {
+            if (size * 2 >= keys.length) {
+                long[] oldKeys = keys;
+                long[] oldBlocks = blocks;
+                keys = new long[oldKeys.length * 2];
+                blocks = new long[oldKeys.length * 2];
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != 0) {
+                        put(oldKeys[i] - 1, oldBlocks[i]);
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            int slot = AccountDirectory.mix(accountID) & mask;
+            while (keys[slot] != 0 && keys[slot] != accountID + 1) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == 0) {
+                keys[slot] = accountID + 1;
+                size++;
+            }
+            blocks[slot] = block;
+        }
+    }
+
+    private final Shard[] shards;
+    // Null once attach() has run
+    private Chains[] chains;
+
+    private HistoryArchive(Shard[] shards, Chains[] chains) {
+        this.shards = shards;
+        this.chains = chains;
+    }
+
+    /*
+    Method: open()
+    Description: Opens the archive in a directory, creating it if there is none. The blocks of an existing archive are
+                 checked, and a block that fails its checksum is cut off along with everything after it
+    Input:
+        directory - Where the shard files are kept. Created if it does not exist
+        shardCount - The number of shard files of a new archive
+    Output: The shard files are created or checked
+    Returns: The HistoryArchive object
+    Throws: IOException if a file cannot be read or written, IllegalArgumentException if shardCount is less than one or
+            the directory holds an archive with a different number of shards
+    */
+    public static HistoryArchive open(Path directory, int shardCount) throws IOException {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is required: " + shardCount);
+        }
+        Files.createDirectories(directory);
+        Path first = shardPath(directory, 0);
+        if (Files.exists(first) && Files.size(first) >= FILE_HEADER_SIZE) {
+            int existing = readFileHeader(first);
+            if (existing != shardCount) {
+                throw new IllegalArgumentException("The archive in " + directory + " has " + existing +
+                        " shards, not " + shardCount);
+            }
+        }
+        Shard[] shards = new Shard[shardCount];
+        Chains[] chains = new Chains[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new Shard(FileChannel.open(shardPath(directory, i), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE));
+                chains[i] = new Chains();
+                recover(shards[i], shardPath(directory, i), shardCount, chains[i]);
+            }
+        } catch (IOException e) {
+            for (Shard shard : shards) {
+                if (shard != null) {
+                    shard.channel.close();
+                }
+            }
+            throw e;
+        }
+        return new HistoryArchive(shards, chains);
+    }
+
+    /*
+    Method: attach()
+    Description: Links every account that has blocks in the archive to them. Called once, after the archive is opened
+                 and before the journal rebuilds the accounts' histories
+    Input:
+        accounts - The accounts. Blocks of accounts that are not in the store are left where they are
+    Output: The histories are linked to their newest blocks
+    Returns: Void
+    */
+    public void attach(AccountStore accounts) {
+        if (chains == null) {
+            return;
+        }
+        for (int s = 0; s < shards.length; s++) {
+            Chains found = chains[s];
+            for (int i = 0; i < found.keys.length; i++) {
+                if (found.keys[i] == 0) {
+                    continue;
+                }
+                long accountID = found.keys[i] - 1;
+                Account account = accounts.find(accountID);
+                ByteBuffer header = account == null ? null : header(shards[s], accountID, found.blocks[i]);
+                if (header != null) {
+                    account.getTransactionHistory().attachArchive(found.blocks[i], header.getLong(16),
+                            header.getLong(24) + header.getInt(48) - 1);
+                }
+            }
+        }
+        chains = null;
+    }
+
+    /*
+    Method: archive()
+    Description: Moves the oldest transactions of a full history into the archive, as one block linked to the
+                 account's previous one. The newest transaction is always kept, so later times can still be checked
+                 against it. Transactions the archive already holds, which the journal's replay reaches again after a
+                 restart, are removed without being written twice, and any older than the account's archive, made
+                 before it was started, are removed as they would be without one. If the block cannot be written, the
+                 account's archived transactions are forgotten rather than left with a gap after them, and its oldest
+                 transaction will be overwritten as it would be without an archive. Must be called while holding the
+                 account's lock
+    Input:
+        accountID - The account the history belongs to
+        history - The account's history
+    Output: The block is appended and the transactions are removed from the history
+    Returns: True if room was made in the history
+    */
+    public boolean archive(long accountID, TransactionHistory history) {
+        if (history.isEmpty()) {
+            return false;
+        }
+        int count = Math.max(1, Math.min(BLOCK_TRANSACTIONS, history.size() - 1));
+        int oldest = history.size() - 1;
+        long firstSequence = history.getSequence(oldest);
+        long previous = history.getLinkedBlock();
+        long chainFrom = firstSequence;
+        if (previous >= 0) {
+            if (firstSequence < history.getArchivedFrom()) {
+                history.archived((int) Math.min(count, history.getArchivedFrom() - firstSequence), previous);
+                return true;
+            }
+            if (firstSequence <= history.getArchivedTo()) {
+                history.archived((int) Math.min(count, history.getArchivedTo() - firstSequence + 1), previous);
+                return true;
+            }
+            if (firstSequence == history.getArchivedTo() + 1) {
+                chainFrom = history.getArchivedFrom();
+            } else {
+                // The archive stops short of the history, so a new chain of blocks is started
+                history.dropArchive();
+                previous = -1;
+            }
+        }
+        Shard shard = shardOf(accountID);
+        long block;
+        synchronized (shard) {
+            ByteBuffer buffer = shard.buffer;
+            if (buffer.capacity() < HEADER_SIZE + count * MAX_ENTRY_BYTES) {
+                buffer = shard.buffer = ByteBuffer.allocate(HEADER_SIZE + count * MAX_ENTRY_BYTES);
+            }
+            buffer.clear();
+            buffer.position(HEADER_SIZE);
+            long previousTime = history.getTimestamp(oldest);
+            long previousAmount = 0;
+            long previousBalance = 0;
+            for (int i = oldest; i > oldest - count; i--) {
+                long time = history.getTimestamp(i);
+                long amount = history.getAmount(i);
+                long balance = history.getBalance(i);
+                writeVarLong(buffer, time - previousTime);
+                writeVarLong(buffer, zigzag(amount - previousAmount));
+                writeVarLong(buffer, zigzag(balance - previousBalance - amount));
+                previousTime = time;
+                previousAmount = amount;
+                previousBalance = balance;
+            }
+            int payloadLength = buffer.position() - HEADER_SIZE;
+            buffer.putLong(0, accountID);
+            buffer.putLong(8, previous);
+            buffer.putLong(16, chainFrom);
+            buffer.putLong(24, firstSequence);
+            buffer.putLong(32, history.getTimestamp(oldest));
+            buffer.putLong(40, previousTime);
+            buffer.putInt(48, count);
+            buffer.putInt(52, payloadLength);
+            shard.checksum.reset();
+            shard.checksum.update(buffer.array(), 0, CHECKSUMMED_HEADER);
+            shard.checksum.update(buffer.array(), HEADER_SIZE, payloadLength);
+            buffer.putInt(CHECKSUMMED_HEADER, (int) shard.checksum.getValue());
+            buffer.flip();
+            block = shard.end;
+            try {
+                while (buffer.hasRemaining()) {
+                    shard.channel.write(buffer, block + buffer.position());
+                }
+            } catch (IOException e) {
+                history.dropArchive();
+                return false;
+            }
+            shard.end = block + buffer.limit();
+        }
+        history.archived(count, block);
+        return true;
+    }
+
+    /*
+    Method: find()
+    Description: Finds the newest archived transaction made at or before a time, reading the headers back from the
+                 newest block and decoding only the block that holds it
+    Input:
+        accountID - The account
+        newestBlock - TransactionHistory.getArchivedBlock() for the account
+        epochSecond - The time, in seconds since 1970-01-01T00:00:00Z
+        entry - Receives the transaction's time, amount, and balance, in that order
+    Output: The entry is filled in if a transaction was found
+    Returns: The transaction's sequence number, or -1 if every archived transaction was made after the time
+    */
+    public long find(long accountID, long newestBlock, long epochSecond, long[] entry) {
+        Shard shard = shardOf(accountID);
+        for (long block = newestBlock; block >= 0; ) {
+            ByteBuffer header = header(shard, accountID, block);
+            if (header == null) {
+                return -1;
+            }
+            if (header.getLong(32) <= epochSecond) {
+                long[] decoded = decode(shard, header, block);
+                if (decoded == null) {
+                    return -1;
+                }
+                int i = header.getInt(48) - 1;
+                while (decoded[i * 3] > epochSecond) {
+                    i--;
+                }
+                System.arraycopy(decoded, i * 3, entry, 0, 3);
+                return header.getLong(24) + i;
+            }
+            block = header.getLong(8);
+        }
+        return -1;
+    }
+
+    /*
+    Method: forEach()
+    Description: Visits archived transactions in reverse chronological order, starting at a sequence number
+    Input:
+        accountID - The account
+        newestBlock - TransactionHistory.getArchivedBlock() for the account
+        newestSequence - The sequence number of the first transaction to visit
+        limit - The most transactions to visit
+        visitor - Receives each transaction
+    Output: None
+    Returns: The number of transactions visited, which is less than limit once the oldest archived one is reached
+    */
+    public int forEach(long accountID, long newestBlock, long newestSequence, int limit,
+                       TransactionHistory.Visitor visitor) {
+        Shard shard = shardOf(accountID);
+        int visited = 0;
+        long next = newestSequence;
+        for (long block = newestBlock; block >= 0 && visited < limit; ) {
+            ByteBuffer header = header(shard, accountID, block);
+            if (header == null) {
+                break;
+            }
+            long first = header.getLong(24);
+            int count = header.getInt(48);
+            if (first <= next) {
+                long[] decoded = decode(shard, header, block);
+                if (decoded == null) {
+                    break;
+                }
+                for (int i = (int) Math.min(next - first, count - 1); i >= 0 && visited < limit; i--) {
+                    visitor.visit(decoded[i * 3], decoded[i * 3 + 1], decoded[i * 3 + 2]);
+                    visited++;
+                    next = first + i - 1;
+                }
+            }
+            block = header.getLong(8);
+        }
+        return visited;
+    }
+
+    /*
+    Method: close()
+    Description: Forces the shard files to disk and closes them. The archive cannot be used afterwards
+    Input: None
+    Output: The files are closed
+    Returns: Void
+    Throws: IOException if a file cannot be written or closed
+    */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                try {
+                    shard.channel.force(false);
+                    shard.channel.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Shard shardOf(long accountID) {
+        return shards[(AccountDirectory.mix(accountID) & Integer.MAX_VALUE) % shards.length];
+    }
+
+    private static Path shardPath(Path directory, int shard) {
+        return directory.resolve(String.format("%s%03d%s", FILE_PREFIX, shard, FILE_SUFFIX));
+    }
+
+    // Reads the shard count from a file's header
+    private static int readFileHeader(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            readFully(channel, header, 0);
+        }
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a history archive: " + path);
+        }
+        return header.getInt(8);
+    }
+
+    /*
+    Method: recover()
+    Description: Checks the blocks of a shard file in order, noting the newest block of each account. The first block
+                 whose header or checksum is wrong is where a crash stopped a write, so the file is cut off there. A new
+                 file is given its header
+    */
+    private static void recover(Shard shard, Path path, int shardCount, Chains chains) throws IOException {
+        FileChannel channel = shard.channel;
+        long size = channel.size();
+        if (size < FILE_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, shardCount);
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+            shard.end = FILE_HEADER_SIZE;
+            return;
+        }
+        if (readFileHeader(path) != shardCount) {
+            throw new IOException("Shard " + path + " does not belong to an archive of " + shardCount + " shards");
+        }
+        CRC32 checksum = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(HEADER_SIZE + BLOCK_TRANSACTIONS * MAX_ENTRY_BYTES);
+        long position = FILE_HEADER_SIZE;
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            int count = header.getInt(48);
+            int payloadLength = header.getInt(52);
+            long previous = header.getLong(8);
+            if (count < 1 || payloadLength < count || payloadLength > count * MAX_ENTRY_BYTES ||
+                    position + HEADER_SIZE + payloadLength > size || previous >= position ||
+                    (previous < FILE_HEADER_SIZE && previous != -1)) {
+                break;
+            }
+            if (payload.capacity() < payloadLength) {
+                payload = ByteBuffer.allocate(payloadLength);
+            }
+            payload.clear().limit(payloadLength);
+            readFully(channel, payload, position + HEADER_SIZE);
+            checksum.reset();
+            checksum.update(header.array(), 0, CHECKSUMMED_HEADER);
+            checksum.update(payload.array(), 0, payloadLength);
+            if (header.getInt(CHECKSUMMED_HEADER) != (int) checksum.getValue()) {
+                break;
+            }
+            chains.put(header.getLong(0), position);
+            position += HEADER_SIZE + payloadLength;
+        }
+        if (position < size) {
+            System.err.println("Truncating torn history archive block in " + path + " at byte " + position);
+            channel.truncate(position);
+            channel.force(false);
+        }
+        shard.end = position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new IOException("Unexpected end of history archive");
+            }
+        }
+    }
+
+    // A view of a block's header, or null if it cannot be read or belongs to another account
+    private static ByteBuffer header(Shard shard, long accountID, long block) {
+        ByteBuffer header = region(shard, block, HEADER_SIZE);
+        if (header == null || header.getLong(0) != accountID) {
+            return null;
+        }
+        return header;
+    }
+
+    // Decodes a block into time, amount, and balance triples, oldest first, or returns null if its checksum is wrong
+    private static long[] decode(Shard shard, ByteBuffer header, long block) {
+        int count = header.getInt(48);
+        int payloadLength = header.getInt(52);
+        ByteBuffer payload = region(shard, block + HEADER_SIZE, payloadLength);
+        if (payload == null) {
+            return null;
+        }
+        CRC32 checksum = new CRC32();
+        ByteBuffer checked = header.duplicate();
+        checked.limit(CHECKSUMMED_HEADER).position(0);
+        checksum.update(checked);
+        checksum.update(payload.duplicate());
+        if ((int) checksum.getValue() != header.getInt(CHECKSUMMED_HEADER)) {
+            return null;
+        }
+        long[] decoded = new long[count * 3];
+        long time = header.getLong(32);
+        long amount = 0;
+        long balance = 0;
+        for (int i = 0; i < count; i++) {
+            time += readVarLong(payload);
+            amount += unzigzag(readVarLong(payload));
+            balance += amount + unzigzag(readVarLong(payload));
+            decoded[i * 3] = time;
+            decoded[i * 3 + 1] = amount;
+            decoded[i * 3 + 2] = balance;
+        }
+        return decoded;
+    }
+
+    // A view of part of a shard file, or null if it is past the end. A part inside a window the file has filled is read
+    // through that window's mapping; a part crossing into another window, or in the window still being written, is
+    // read from the file
+    private static ByteBuffer region(Shard shard, long position, int length) {
+        if (position < FILE_HEADER_SIZE || position + length > shard.end) {
+            return null;
+        }
+        long window = position / WINDOW_BYTES;
+        long windowEnd = (window + 1) * WINDOW_BYTES;
+        if (position + length <= windowEnd && windowEnd <= shard.end) {
+            MappedByteBuffer mapped = window(shard, (int) window);
+            if (mapped != null) {
+                ByteBuffer view = mapped.duplicate();
+                int start = (int) (position - window * WINDOW_BYTES);
+                view.limit(start + length).position(start);
+                return view.slice();
+            }
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        try {
+            readFully(shard.channel, copy, position);
+        } catch (IOException e) {
+            return null;
+        }
+        copy.flip();
+        return copy;
+    }
+
+    // The mapping of a full window, mapped the first time it is needed, or null if it cannot be mapped
+    private static MappedByteBuffer window(Shard shard, int window) {
+        MappedByteBuffer[] windows = shard.windows;
+        if (window < windows.length && windows[window] != null) {
+            return windows[window];
+        }
+        synchronized (shard) {
+            windows = shard.windows;
+            if (window >= windows.length) {
+                MappedByteBuffer[] longer = new MappedByteBuffer[Math.max(window + 1, windows.length * 2)];
+                System.arraycopy(windows, 0, longer, 0, windows.length);
+                windows = longer;
+            } else if (windows[window] != null) {
+                return windows[window];
+            } else {
+                windows = windows.clone();
+            }
+            try {
+                windows[window] = shard.channel.map(FileChannel.MapMode.READ_ONLY, (long) window * WINDOW_BYTES,
+                        WINDOW_BYTES);
+            } catch (IOException e) {
+                return null;
+            }
+            shard.windows = windows;
+            return windows[window];
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
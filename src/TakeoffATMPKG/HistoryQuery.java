@@ -0,0 +1,151 @@
+package TakeoffATMPKG;
+
+/*
+Class: HistoryQuery
+Description: Selects part of an account's transaction history, newest first: the most recent transactions, those made
+             between two times, or those that follow a cursor. A cursor is the sequence number of the last transaction
+             a previous query showed, so paging through a history with it neither repeats nor skips a transaction when
+             new ones are added in between. Sequence numbers survive a restart when the machine keeps a journal.
+
+             A query is resolved to a range of sequence numbers while the account's lock is held. Times are found by
+             binary search, or by the block headers of the HistoryArchive once they are older than the history kept
+             in memory, so no part of the history outside the result is read. Machine.history() then renders the range
+             one page at a time, taking the lock again for each page.
+*/
+
+public final class HistoryQuery {
+    private static final HistoryQuery ALL = new HistoryQuery(Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE,
+            Integer.MAX_VALUE);
+
+    // Inclusive bounds on the time of each transaction, in seconds since 1970-01-01T00:00:00Z
+    private final long fromEpochSecond;
+    private final long toEpochSecond;
+    // Only transactions with a sequence number below this one are selected
+    private final long beforeSequence;
+    // The most transactions selected
+    private final int limit;
+
+    private HistoryQuery(long fromEpochSecond, long toEpochSecond, long beforeSequence, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The number of transactions must not be negative: " + limit);
+        }
+        this.fromEpochSecond = fromEpochSecond;
+        this.toEpochSecond = toEpochSecond;
+        this.beforeSequence = beforeSequence;
+        this.limit = limit;
+    }
+
+    /*
+    Method: all()
+    Description: Selects the whole history
+    Input: None
+    Output: None
+    Returns: The HistoryQuery object
+    */
+    public static HistoryQuery all() {
+        return ALL;
+    }
+
+    /*
+    Method: last()
+    Description: Selects the most recent transactions
+    Input:
+        count - The number of transactions
+    Output: None
+    Returns: The HistoryQuery object
+    */
+    public static HistoryQuery last(int count) {
+        return new HistoryQuery(Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, count);
+    }
+
+    /*
+    Method: between()
+    Description: Selects the transactions made between two times, inclusive
+    Input:
+        fromEpochSecond - The earliest time, in seconds since 1970-01-01T00:00:00Z
+        toEpochSecond - The latest time
+    Output: None
+    Returns: The HistoryQuery object
+    */
+    public static HistoryQuery between(long fromEpochSecond, long toEpochSecond) {
+        return new HistoryQuery(fromEpochSecond, toEpochSecond, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /*
+    Method: after()
+    Description: Selects the transactions shown after a cursor, which are the ones made before it
+    Input:
+        cursor - The sequence number of the last transaction already shown
+        count - The most transactions to select
+    Output: None
+    Returns: The HistoryQuery object
+    */
+    public static HistoryQuery after(long cursor, int count) {
+        return new HistoryQuery(Long.MIN_VALUE, Long.MAX_VALUE, cursor, count);
+    }
+
+    /*
+    Method: limit()
+    Description: Selects at most a number of the transactions this query selects
+    Input:
+        count - The most transactions to select
+    Output: None
+    Returns: A new HistoryQuery object
+    */
+    public HistoryQuery limit(int count) {
+        return new HistoryQuery(fromEpochSecond, toEpochSecond, beforeSequence, Math.min(limit, count));
+    }
+
+    /*
+    Method: resolve()
+    Description: Finds the transactions the query selects, in the account's history and in the HistoryArchive if some
+                 of its transactions have been moved there. Must be called while holding the account's lock
+    Input:
+        account - The account
+        archive - The machine's HistoryArchive, or null if it has none
+        range - Receives the sequence numbers of the newest and oldest transaction selected, in that order
+    Output: The range is filled in if anything was selected
+    Returns: True if the history holds selected transactions older than the oldest one in the range, which a later
+             query after that transaction would return
+    */
+    boolean resolve(Account account, HistoryArchive archive, long[] range) {
+        TransactionHistory history = account.getTransactionHistory();
+        int size = history.size();
+        long next = history.getNextSequence();
+        long block = archive == null ? -1 : history.getArchivedBlock();
+        long[] entry = block < 0 ? null : new long[3];
+
+        // Positions in the history are converted to sequence numbers; times older than all of it are found in the
+        // archive, whose headers narrow the search to one block
+        int start = history.countNewerThan(toEpochSecond);
+        long newest;
+        if (start < size) {
+            newest = next - 1 - start;
+        } else {
+            newest = block < 0 ? -1 : archive.find(account.getAccountID(), block, toEpochSecond, entry);
+        }
+        if (beforeSequence != Long.MAX_VALUE) {
+            newest = Math.min(newest, beforeSequence - 1);
+        }
+        int end = fromEpochSecond == Long.MIN_VALUE ? size : history.countNewerThan(fromEpochSecond - 1);
+        long oldest;
+        if (end < size || block < 0) {
+            oldest = next - end;
+        } else if (fromEpochSecond == Long.MIN_VALUE) {
+            oldest = history.getArchivedFrom();
+        } else {
+            long before = archive.find(account.getAccountID(), block, fromEpochSecond - 1, entry);
+            oldest = before < 0 ? history.getArchivedFrom() : before + 1;
+        }
+
+        long limited = Math.max(oldest, newest - limit + 1);
+        if (newest < 0 || newest < limited) {
+            range[0] = -1;
+            range[1] = -1;
+            return false;
+        }
+        range[0] = newest;
+        range[1] = limited;
+        return limited > oldest;
+    }
+}
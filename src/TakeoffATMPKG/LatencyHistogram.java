@@ -0,0 +1,162 @@
+package TakeoffATMPKG;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Class: LatencyHistogram
+Description: Counts how long an operation took, in nanoseconds, using the same log-linear buckets as HdrHistogram. Every
+             power of two is split into SUB_BUCKETS (32) equal buckets, each 1.6% to 3% as wide as the values in it,
+             so any recorded value is known to within about 3% while a fixed array of counts covers everything from
+             one nanosecond to centuries. Recording one value is a bucket calculation and one atomic increment, so any
+             number of threads can record at once without a lock and without allocating.
+*/
+
+public final class LatencyHistogram {
+    // Each power of two is divided into 2^(SUB_BUCKET_BITS - 1) buckets, and values below 2^SUB_BUCKET_BITS are exact
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int LINEAR_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for the largest positive long, whose highest set bit is bit 62
+    static final int BUCKET_COUNT = (65 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /*
+    Method: record()
+    Description: Adds one value to the histogram. Negative values, which can only come from a clock that went
+                 backwards, are counted as zero
+    Input:
+        nanoseconds - The value to record
+    Output: The count of the value's bucket is incremented
+    Returns: None
+    */
+    public void record(long nanoseconds) {
+        if (nanoseconds < 0) {
+            nanoseconds = 0;
+        }
+        counts.getAndIncrement(bucketOf(nanoseconds));
+    }
+
+    /*
+    Method: recordSince()
+    Description: Records the time elapsed since an earlier reading of System.nanoTime()
+    Input:
+        startNanos - The earlier reading
+    Output: The count of the elapsed time's bucket is incremented
+    Returns: None
+    */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /*
+    Method: getCount()
+    Description: Adds up the number of values recorded so far. Values recorded during the call may or may not be
+                 included
+    Input: None
+    Output: None
+    Returns: The number of values as a long
+    */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /*
+    Method: getTotal()
+    Description: Estimates the sum of every value recorded so far by counting each value as the middle of its bucket.
+                 Keeping an exact sum would cost a second atomic update on every record()
+    Input: None
+    Output: None
+    Returns: The sum in nanoseconds as a long
+    */
+    public long getTotal() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        copyCounts(snapshot);
+        return totalOf(snapshot);
+    }
+
+    /*
+    Method: copyCounts()
+    Description: Copies the count of every bucket, so a report can be built from one consistent set of counts while
+                 other threads keep recording
+    Input:
+        into - An array of at least BUCKET_COUNT elements
+    Output: Each element of into holds the count of the matching bucket
+    Returns: The total number of values copied as a long
+    */
+    long copyCounts(long[] into) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            into[i] = counts.get(i);
+            count += into[i];
+        }
+        return count;
+    }
+
+    /*
+    Method: getValueAtPercentile()
+    Description: Finds the value that the given percentage of recorded values are no larger than
+    Input:
+        percentile - A percentage from 0 to 100, such as 99.9
+    Output: None
+    Returns: The highest value of the bucket holding that percentile in nanoseconds as a long, or 0 if nothing has
+             been recorded
+    */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = copyCounts(snapshot);
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return highestValueIn(i);
+            }
+        }
+        return highestValueIn(BUCKET_COUNT - 1);
+    }
+
+    // Estimates the sum of the values behind a set of bucket counts, taking each value as the middle of its bucket
+    static long totalOf(long[] counts) {
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] != 0) {
+                long lowest = lowestValueIn(i);
+                sum += counts[i] * (lowest + (highestValueIn(i) - lowest) / 2);
+            }
+        }
+        return sum;
+    }
+
+    // Values below LINEAR_BUCKETS have a bucket each. Above that, the top SUB_BUCKET_BITS bits of the value select the
+    // bucket within its power of two
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long lowestValueIn(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValueIn(bucket + 1) - 1;
+    }
+}
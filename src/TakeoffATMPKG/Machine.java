@@ -1,14 +1,19 @@
 package TakeoffATMPKG;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.text.DecimalFormat;
-import java.util.Iterator;
-import java.time.LocalDateTime;
-import java.util.Locale;
-import java.text.NumberFormat;
 import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 
@@ -32,143 +37,309 @@ Description: Contains main method, which includes methods used to interact with
 public class Machine {
     // The total number of sample accounts provided in the sample data
     final static int NUMBER_OF_ACCOUNTS = 4;
-    // Total cash value stored with the machine. ATMs do not dispense coins, so data type must be an integer
+    // Total cash value stored with each terminal, in cents like every other amount of money (see Money)
     // Initial value set to $10,000, per the specification
-    static int totalCash = 10000;
+    final static long STARTING_CASH = Money.ofDollars(10000);
+    // This ATM only dispenses $20 bills
+    final static long TWENTY_DOLLAR_BILL = Money.ofDollars(20);
+    // Charged when a withdrawal leaves the account with less than zero dollars
+    final static long OVERDRAFT_FEE = Money.ofDollars(5);
+    // Returned by applyWithdrawal() when no cash was dispensed. Journal sequence numbers, returned on success, are
+    // never negative
+    final static long WITHDRAWAL_OVERDRAWN = -1;
+    final static long WITHDRAWAL_UNABLE_TO_DISPENSE = -2;
+    final static long WITHDRAWAL_NO_CASH = -3;
+    // Returned by applyWithdrawal() and applyDeposit() when the change was made but the journal could not record it
+    final static long NOT_RECORDED = -4;
+    // Returned by applyDeposit() when the deposit would take the balance past the largest a long can hold
+    final static long DEPOSIT_TOO_LARGE = -5;
+    final static String DEPOSIT_REFUSED = "That deposit would take the balance past what an account can hold.\n\n";
+    // Given instead of cash when RiskCheck refuses a withdrawal
+    final static String WITHDRAWAL_DECLINED = "Withdrawal declined. Please try again later.\n\n";
+    // Returned by the commands that need an authorized session when there is none
+    final static String AUTHORIZATION_REQUIRED = "Authorization required.\n\n";
+    // Returned instead of making a withdrawal or deposit once the transaction journal has failed, so no change is made
+    // that would not survive a restart
+    final static String TRANSACTIONS_UNAVAILABLE = "Unable to process transactions at this time.\n\n";
+    // Returned when the journal failed while a withdrawal or deposit was being made. The change stands until the
+    // machine is restarted, so the customer is told it may not have been recorded rather than that it failed
+    final static String TRANSACTION_NOT_RECORDED = "Your transaction could not be recorded. Please contact your bank."
+            + "\n\n";
+    // Returned by balanceAt() for a time older than the account's retained history
+    final static long BALANCE_UNKNOWN = Long.MIN_VALUE;
+    // Transactions are recorded in UTC epoch seconds and displayed in the machine's local time
+    final static ZoneId ZONE = ZoneId.systemDefault();
+    // Format of the date and time of each transaction in the history, for example "2020-02-04 13:04:22". Shared by
+    // every thread, with the current second rendered once per second by its clock thread
+    static final TimestampFormat timestamps = new TimestampFormat(ZONE);
+    // Messages longer than this are not kept in a thread's message buffer, so one long history does not pin its memory
+    final static int MAX_RETAINED_MESSAGE = 16384;
+    // Each thread builds its replies in its own buffer, reused from one message to the next
+    private static final ThreadLocal<StringBuilder> messageBuffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+    // Number of history entries formatted, with the account locked, before they are written to the terminal
+    final static int HISTORY_PAGE_SIZE = 64;
+    // Identifies the terminal driven by the keyboard in main()
+    final static long CONSOLE_TERMINAL_ID = 1;
     // Session time, two minutes per the specification
     final static int SESSION_TIME = 2;
     // The TimerTask object (below) measures time in milliseconds and the session time is in minutes
     final static int MILLISECONDS_PER_MINUTE = 60000;
-    // Formats currency to United States Dollar, so ####.#### will become $#,###.##
-    // Applies to all transaction messages sent to the user
-    static NumberFormat usd = NumberFormat.getCurrencyInstance(Locale.US);
-    // Applies to all transactions sent to the transaction history
-    // Formats currency from ####.#### to ####.##
-    static DecimalFormat decimalFormat = new DecimalFormat("#0.00");
-
-
-    private static Account[] customers = new Account[NUMBER_OF_ACCOUNTS];
-
-    /*
-       When a user has gained the necessary authorization, the index position of that account within the array is
-       stored to improve time performance for other interactions, such as WITHDRAW, DEPOSIT, etc. Variable is
-       assigned a negative value when account access expires via timeout or logout.
-    */
-    static int indexOfAccountAccessed = -1;
+    // How long a session lasts without being used. Two minutes unless the program is started with
+    // -Datm.sessionSeconds=<seconds>, which lets a simulated customer who walks away time out within a short run
+    final static long SESSION_MILLISECONDS = Long.getLong("atm.sessionSeconds",
+            SESSION_TIME * MILLISECONDS_PER_MINUTE / 1000) * 1000;
+    // One timing wheel, turned by a single daemon thread, expires every session instead of one Timer thread per session
+    static final SessionExpiryService sessionExpiry = new SessionExpiryService();
+
+
+    // Every customer account, indexed by account ID so authorization does not have to search each account in turn.
+    // Accounts are loaded before any terminal starts, after which the store is only read. Kept on the heap unless the
+    // program is started with -Datm.accountStore=offheap, or -Datm.accountStore=sharded to split them over shards
+    static AccountStore customers = new AccountDirectory(NUMBER_OF_ACCOUNTS);
+    // The number of shards in a sharded account store, set with -Datm.localShards=<shards>
+    final static int LOCAL_SHARDS = Integer.getInteger("atm.localShards", 4);
+    // The salted hash of every customer's PIN, with their failed attempt counts. Loaded alongside the customers
+    static CredentialStore credentials = new CredentialStore(NUMBER_OF_ACCOUNTS);
+    // Screens every authorization and withdrawal before it reaches the account. Refuses nothing unless the velocity
+    // limits described in VelocityCheck are set
+    static RiskCheck riskCheck = VelocityCheck.fromProperties();
+    // Guards the balance and transaction history of each account, so sessions on different accounts do not contend
+    static final StripedLock accountLocks = new StripedLock();
+    // Replies to recent withdrawals and deposits that carried a request ID. Kept by account rather than by terminal, so
+    // a terminal that reconnects to retry is still given the original reply
+    static final RequestCache[] requestCaches = new RequestCache[RequestCache.STRIPES];
+    static {
+        for (int i = 0; i < requestCaches.length; i++) {
+            requestCaches[i] = new RequestCache();
+        }
+    }
+    // Durable record of every balance change, or null when the machine runs without one. Enabled by starting the
+    // program with -Datm.journalDir=<directory>
+    static TransactionJournal journal = null;
+    // Where transactions too old to keep in memory are moved, or null to let them be overwritten. Enabled by starting
+    // the program with -Datm.historyArchiveDir=<directory>, optionally with -Datm.historyArchiveShards=<files>
+    static HistoryArchive historyArchive = null;
+    // Binary account snapshot loaded at startup and written back at the END command, or null to use the sample accounts.
+    // Set by starting the program with -Datm.accounts=<file>
+    static Path accountSnapshot = null;
+    // Publishes latency histograms and session counts in the Prometheus format, or null when nothing is exported.
+    // Enabled by starting the program with -Datm.metricsFile=<file> and/or -Datm.metricsPort=<port>
+    static MetricsExporter metricsExporter = null;
+    // Seconds between rewrites of the metrics file
+    final static long METRICS_FILE_INTERVAL = Long.getLong("atm.metricsInterval", 15);
+    // Serves terminals connecting over TCP, or null when the console is the only terminal. Enabled by starting the
+    // program with -Datm.serverPort=<port>, optionally with -Datm.serverHost=<address> (loopback unless given),
+    // -Datm.serverMode=nio|threads (nio unless given), and -Datm.serverWorkers=<threads> for nio
+    static TerminalServer terminalServer = null;
+    // Where statements and the reconciliation report are written at the END command, or null to skip them. Set by
+    // starting the program with -Datm.statementDir=<directory>
+    static Path statementDirectory = null;
+    // Each END writes its statements to a new directory under statementDirectory, named after the closing time
+    static final DateTimeFormatter STATEMENT_DIRECTORY_NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+            .withZone(ZONE);
+    // When the machine started taking transactions, which is the start of the period the statements cover
+    static long openedAt = 0;
 
     public static void main(String[] args) {
-        final int ACCOUNT_ID_LENGTH = 10;
-        final int PIN_LENGTH = 4;
-        final int MAX_CASH_IN_ATM = totalCash;
         Scanner keyboard = null;
         String input = null;
         keyboard = new Scanner(System.in);
+        // Parses each line typed at the console without throwing exceptions on bad input
+        CommandDecoder decoder = new CommandDecoder();
+
+        // This program drives a single terminal from the keyboard. Every other interaction goes through its session
+        Terminal console;
+        try {
+            console = newTerminal(CONSOLE_TERMINAL_ID, CONSOLE_TERMINAL_ID, System.out);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unable to load the cassettes: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        Metrics.register(console);
+        final long MAX_CASH_IN_ATM = console.getMaxCash();
+        Session session;
 
-        //Fills static array declared above
-        customers[0] = new Account(2859459814L, "7386", 10.24);
-        customers[1] = new Account(1434597300L, "4557", 90000.55);
-        customers[2] = new Account(7089382418L, "0075", 0.00);
-        customers[3] = new Account(2001377812L, "5950", 60.00);
-
-        while (true) {
-            //Sample data didn't show accounts with leading zeros, so I assume that AccountID can be stored as a long
-            int commaIndex;
-            int inputLength;
-            long inputAccountNumber = 0L;
-            String inputPIN;
-
+        // Fills static account store declared above, from the binary snapshot if there is one
+        String accountStore = System.getProperty("atm.accountStore");
+        if (accountStore != null) {
+            try {
+                customers = newAccountStore(accountStore, NUMBER_OF_ACCOUNTS);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unable to create the account store: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        String snapshotFile = System.getProperty("atm.accounts");
+        if (snapshotFile != null) {
+            accountSnapshot = Paths.get(snapshotFile);
+        }
+        if (accountSnapshot != null && Files.exists(accountSnapshot)) {
+            try {
+                AccountSnapshot.load(accountSnapshot, customers, credentials);
+            } catch (IOException e) {
+                System.out.println("Unable to load the account snapshot: " + e.getMessage());
+                System.exit(1);
+            }
+        } else {
+            customers.putAll(new Account[] {
+                    new Account(2859459814L, 1024),
+                    new Account(1434597300L, 9000055),
+                    new Account(7089382418L, 0),
+                    new Account(2001377812L, 6000)
+            });
+            credentials.setPin(2859459814L, "7386");
+            credentials.setPin(1434597300L, "4557");
+            credentials.setPin(7089382418L, "0075");
+            credentials.setPin(2001377812L, "5950");
+        }
 
+        // When accounts are split over several machines, listed with -Datm.shards=<name>=<host>:<port>,..., a machine
+        // started with -Datm.shardName=<name> keeps only the accounts that shard owns. Without a shard name the machine
+        // owns no accounts and routes its terminals to the shards, always with a thread per terminal whatever
+        // -Datm.serverMode says
+        String shards = System.getProperty("atm.shards");
+        String shardName = System.getProperty("atm.shardName");
+        if (shards != null) {
+            try {
+                keepShard(ShardRouter.ring(shards), shardName);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unable to read the shards: " + e.getMessage());
+                System.exit(1);
+            }
+            if (shardName == null && Integer.getInteger("atm.serverPort") == null) {
+                System.out.println("Routing to shards requires -Datm.serverPort");
+                System.exit(1);
+            }
+        }
 
+        // Open the history archive, if asked to, and link each account to the blocks it already holds before the
+        // journal rebuilds the histories that continue them
+        String archiveDirectory = System.getProperty("atm.historyArchiveDir");
+        if (archiveDirectory != null) {
+            try {
+                historyArchive = HistoryArchive.open(Paths.get(archiveDirectory), HistoryArchive.DEFAULT_SHARDS);
+                historyArchive.attach(customers);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Unable to open the history archive: " + e.getMessage());
+                System.exit(1);
+            }
+        }
 
-            System.out.println("Please enter your account's identification number, a comma, and then your PIN\n" +
-                    "Example: 1234567890,1234\nOr type END to end this program");
+        // Replay the journal, if one is configured, so balances and histories survive a restart
+        String journalDirectory = System.getProperty("atm.journalDir");
+        if (journalDirectory != null) {
+            try {
+                journal = TransactionJournal.open(Paths.get(journalDirectory), customers);
+            } catch (IOException e) {
+                System.out.println("Unable to open the transaction journal: " + e.getMessage());
+                System.exit(1);
+            }
+        }
 
-            // Validate user input.
-            input = keyboard.nextLine();
-            input = input.trim();
-            // Instead of calling the length() method repeatedly throughout validation, store the length value as an int
-            inputLength = input.length();
+        String statementDir = System.getProperty("atm.statementDir");
+        if (statementDir != null) {
+            statementDirectory = Paths.get(statementDir);
+        }
+        openedAt = currentEpochSecond();
 
+        // Start exporting metrics, if asked to
+        String metricsFile = System.getProperty("atm.metricsFile");
+        Integer metricsPort = Integer.getInteger("atm.metricsPort");
+        if (metricsFile != null || metricsPort != null) {
+            metricsExporter = new MetricsExporter();
             try {
-                // If the user enters in an empty string, inform them and repeat the loop
-                if (inputLength < 1) {
-                    System.out.println("Input error: " + input);
-                    System.out.println("Authorization required.\n\n");
-                    continue;
+                if (metricsFile != null) {
+                    metricsExporter.startFile(Paths.get(metricsFile), METRICS_FILE_INTERVAL);
                 }
-
-                // Check for the END command. If entered, print a message and terminate the program
-                if (input.equalsIgnoreCase("end")){
-                    end();
+                if (metricsPort != null) {
+                    metricsExporter.startServer(metricsPort);
                 }
+            } catch (IOException e) {
+                System.out.println("Unable to export metrics: " + e.getMessage());
+                System.exit(1);
+            }
+        }
 
-                // If there is no comma, or of there is nothing after the comma, inform the user and repeat the loop
-                commaIndex = input.indexOf(",");
-                if (commaIndex == -1 || commaIndex == inputLength - 1) {
-                    System.out.println("Incorrect input: " + input);
-                    System.out.println("Authorization required.\n\n");
-                    continue;
+        // In server mode terminals connect over the network, and the console only waits for the END command
+        Integer serverPort = Integer.getInteger("atm.serverPort");
+        if (serverPort != null) {
+            String serverHost = System.getProperty("atm.serverHost", InetAddress.getLoopbackAddress().getHostAddress());
+            String serverMode = System.getProperty("atm.serverMode", TerminalServer.NIO);
+            int serverWorkers = Integer.getInteger("atm.serverWorkers", Runtime.getRuntime().availableProcessors());
+            try {
+                if (shards != null && shardName == null) {
+                    terminalServer = new ShardRouter(new InetSocketAddress(serverHost, serverPort), shards);
+                    serverMode = "routing to shards, " + TerminalServer.THREADS;
+                } else {
+                    terminalServer = TerminalServer.start(serverMode, new InetSocketAddress(serverHost, serverPort),
+                            serverWorkers);
                 }
-
-                /*
-                   If the account number is not in the correct format, throw an exception and restart the while loop
-                   Verify that the portion of the input representing the Account ID is the correct length, which is 10
-                   digits. Since the String is an zero-based array, the comma will be in the 11th position, which is
-                   index 10.
-                 */
-                if (commaIndex != ACCOUNT_ID_LENGTH) {
-                    throw new Exception("This Account ID is not the correct length, it should be 10 digits");
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Unable to start the terminal server: " + e.getMessage());
+                System.exit(1);
+            }
+            System.out.println("Serving terminals on " + serverHost + ":" + terminalServer.getPort() + " (" +
+                    serverMode + ")\nType END to end this program");
+            while (keyboard.hasNextLine()) {
+                if (decoder.decodeLogin(keyboard.nextLine()) == CommandDecoder.END) {
+                    end();
                 }
+            }
+            // Without a console, such as when started in the background, serve until the process is stopped
+            try {
+                terminalServer.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            end();
+        }
 
-                /*
-                   Verify that the Account ID is a number. If the input value is not a number, it will throw a
-                   NumberFormatException, which is caught below
-                */
-                inputAccountNumber = Long.parseLong(input.substring(0, commaIndex));
-
-                // Assign the inputPIN string to the portion of the input from after the comma to the end of the input
-                inputPIN = input.substring(commaIndex + 1, inputLength);
+        while (true) {
+            //Sample data didn't show accounts with leading zeros, so I assume that AccountID can be stored as a long
+            int status;
 
-                // Delete all non-numeric characters
-                inputPIN = inputPIN.replaceAll("[^0-9]", "");
+            System.out.println("Please enter your account's identification number, a comma, and then your PIN\n" +
+                    "Example: 1234567890,1234\nOr type END to end this program");
 
-                // Check to see if what remains is the correct length for a PIN, as defined above
-                if (inputPIN.length() != PIN_LENGTH){
-                    throw new Exception("This PIN is not the correct length, it should be 4 digits");
-                }
-            }
+            // Validate user input. The decoder checks, in order, for an empty line, the END command, a missing comma or
+            // PIN, an Account ID that is not 10 characters long or not a number, and a PIN that is not 4 digits long
+            input = keyboard.nextLine();
+            status = decoder.decodeLogin(input);
 
-            // Handle exception if the input is NOT a number. This also takes care of commands, such as deposit,
-            // withdraw, etc. for users who have not accessed any account yet
-            catch (NumberFormatException e) {
-                System.out.println("Invalid input: " + input + ".");
-                System.out.println("Authorization required.\n\n");
-                continue;
+            // Check for the END command. If entered, print a message and terminate the program
+            if (status == CommandDecoder.END) {
+                end();
             }
 
-            // Handle a generic exception, such as when the length of the input does not match that of the account ID
-            catch (Exception e){
-                System.out.println(e.getMessage() + "\n\n");
-                System.out.println("Authorization required.\n\n");
+            // If the input is not an Account ID and PIN, inform the user and repeat the loop. This also takes care of
+            // commands, such as deposit, withdraw, etc. for users who have not accessed any account yet
+            if (status != CommandDecoder.OK) {
+                System.out.println(CommandDecoder.loginMessage(status, input));
                 continue;
             }
 
             // Send information provided by the user to the authorize method. Print the message that is returned
-            System.out.println(authorize(inputAccountNumber, inputPIN));
+            System.out.println(authorize(console, decoder.getAccountID(), decoder.getPin()));
 
             /* If the user is unauthorized, start the loop over again to prompt them for their Account ID and PIN. The
-               value of indexOfAccountAccessed is set to the array index of an account only if the user is authorized
-               to access that account. An array index can never be negative, so if indexOfAccountAccessed is negative,
-               the user must not have access to an account.
+               terminal is given a session only if the user is authorized to access that account, so if the terminal
+               has no session, the user must not have access to an account.
             */
-            if (indexOfAccountAccessed == -1){
+            session = console.getSession();
+            if (session == null){
                 continue;
             }
 
             // This is the internal while loop. The user will only be able to access commands such as withdraw, deposit,
             // etc. while in this loop. The commands will become inaccessible to the user and they will break this loop
             // if their session time expires, they elect to log out, or they terminate the program
-            while(indexOfAccountAccessed != -1){
+            while(session.isActive()){
                 // The digit entered by the user to indicate their next action
                 int selectionValue;
 
@@ -182,24 +353,13 @@ public class Machine {
 
                 // Validate entry by first determining if they entered anything, and then verifying that what they
                 // entered is single digit
-                try {
-                    if (input.length() == 0){
-                        throw new Exception("Please enter one digit only. Example: 4\n\n");
-                    }
-                    input = keyboard.nextLine();
-                    selectionValue = Integer.parseInt(input);
-                    if (selectionValue < 1 || selectionValue > 6){
-                        throw new Exception("Please select a value between one and six by entering just that digit\n\n");
-                    }
-                }
-                catch (NumberFormatException e){
-                    System.out.println("That doesn't appear to be a number. Please enter one digit only\n\n");
-                    continue;
-                }
-                catch (Exception e){
-                    System.out.println(e.getMessage());
+                input = keyboard.nextLine();
+                status = decoder.decodeMenuSelection(input);
+                if (status != CommandDecoder.OK) {
+                    System.out.println(CommandDecoder.menuMessage(status));
                     continue;
                 }
+                selectionValue = (int) decoder.getValue();
 
                 // Take the digit they entered and act on the user's choice. Each case corresponds to menu above
                 switch (selectionValue){
@@ -208,26 +368,16 @@ public class Machine {
                         int numberOfTwenties;
                         System.out.println("Please enter the number of $20 bills you would like to withdraw. " +
                                 "For example, '4' will give you $80\n");
-                        try{
-                            numberOfTwenties = Integer.parseInt(keyboard.nextLine());
-
-                            if (numberOfTwenties < 0){
-                                throw new Exception("You cannot withdraw a negative amount. Consider depositing\n\n");
-                            }
-                        }
-                        catch (NumberFormatException e){
-                            System.out.println("That doesn't appear to be a valid number\n\n");
-                            break;
-                        }
-
-                        catch (Exception e){
-                            System.out.println(e.getMessage());
+                        status = decoder.decodeBillCount(keyboard.nextLine());
+                        if (status != CommandDecoder.OK) {
+                            System.out.println(CommandDecoder.billCountMessage(status));
                             break;
                         }
+                        numberOfTwenties = (int) decoder.getValue();
 
                         // Withdrawal amount must be less than or equal to the total possible amount stored in the ATM
-                        if (numberOfTwenties <= (MAX_CASH_IN_ATM / 20)){
-                            System.out.println(withdraw(numberOfTwenties));
+                        if (numberOfTwenties <= (MAX_CASH_IN_ATM / TWENTY_DOLLAR_BILL)){
+                            System.out.println(withdraw(session, numberOfTwenties));
                         } else {
                             System.out.println("That is more money than the ATM can hold\n\n");
                         }
@@ -235,43 +385,32 @@ public class Machine {
 
                     // Deposit Money
                     case 2:
-                        double depositValue;
+                        long depositValue;
                         System.out.println("Please enter the amount you would like to deposit\n\n");
-                        try {
-                            depositValue = Double.parseDouble(keyboard.nextLine());
-
-                            if (depositValue < 0){
-                                throw new Exception("You cannot deposit a negative amount. Consider withdrawing\n\n");
-                            }
-
-                            // Ensures number is two decimal places. Must be cast from float to double
-                            depositValue = (double) Math.round(depositValue * 100) / 100;
-                        }
-                        catch (NumberFormatException e){
-                            System.out.println("That doesn't appear to be a valid number\n\n");
-                            break;
-                        }
-                        catch (Exception e){
-                            System.out.println(e.getMessage());
+                        // Converted straight to cents, rounded to two decimal places
+                        status = decoder.decodeAmount(keyboard.nextLine());
+                        if (status != CommandDecoder.OK) {
+                            System.out.println(CommandDecoder.amountMessage(status));
                             break;
                         }
+                        depositValue = decoder.getValue();
 
-                        System.out.println(deposit(depositValue));
+                        System.out.println(deposit(session, depositValue));
                         break;
 
                     // View Account Balance
                     case 3:
-                        System.out.println(balance());
+                        System.out.println(balance(session));
                         break;
 
                     // View Transaction History
                     case 4:
-                        history();
+                        history(session);
                         break;
 
                     // Log Out
                     case 5:
-                        logout();
+                        logout(session);
                         break;
 
                     // Terminate Program
@@ -296,39 +435,130 @@ public class Machine {
 
 
 
+    /*
+    Method: newAccountStore()
+    Description: Creates an empty account store of the requested kind
+    Input:
+        kind - AccountStore.HEAP, AccountStore.OFF_HEAP or AccountStore.SHARDED
+        expectedAccounts - The number of accounts the store should hold without growing
+    Output: None
+    Returns: The AccountStore object
+    Throws: IllegalArgumentException if the kind is not known
+    */
+    static AccountStore newAccountStore(String kind, int expectedAccounts){
+        if (AccountStore.HEAP.equals(kind)) {
+            return new AccountDirectory(expectedAccounts);
+        }
+        if (AccountStore.OFF_HEAP.equals(kind)) {
+            return new OffHeapAccountStore(expectedAccounts);
+        }
+        if (AccountStore.SHARDED.equals(kind)) {
+            return new ShardedAccountStore(LOCAL_SHARDS, expectedAccounts);
+        }
+        throw new IllegalArgumentException("Unknown account store, expected " + AccountStore.HEAP + ", " +
+                AccountStore.OFF_HEAP + " or " + AccountStore.SHARDED + ": " + kind);
+    }
+
+    /*
+    Method: keepShard()
+    Description: Removes the accounts a shard does not own from the customers store, once they have been loaded. The
+                 shard's snapshot, written at END, then holds only its own accounts
+    Input:
+        ring - Every shard, in the order given with -Datm.shards
+        shardName - The shard this machine is, or null if it only routes terminals and owns no accounts
+    Output: Accounts are removed from the customers store
+    Returns: Void
+    Throws: IllegalArgumentException if no shard on the ring has the name
+    */
+    static void keepShard(ShardRing ring, String shardName) {
+        if (shardName == null) {
+            customers.clear();
+            return;
+        }
+        int shard = ring.indexOf(shardName);
+        if (shard < 0) {
+            throw new IllegalArgumentException("No shard is named " + shardName);
+        }
+        for (Account account : customers.toArray()) {
+            if (ring.shardOf(account.getAccountID()) != shard) {
+                customers.remove(account.getAccountID());
+            }
+        }
+    }
+
+    /*
+    Method: newTerminal()
+    Description: Creates a terminal filled with cash. It holds $10,000 in $20 bills, per the specification, unless
+                 other cassettes are given as, for example, -Datm.cassettes=100x50,20x250 (see CashCassettes.parse())
+    Input:
+        terminalID - A unique value that identifies the terminal
+        origin - Where the terminal connects from (see Terminal.getOrigin())
+        out - Where messages for the customer are written
+    Output: None
+    Returns: The Terminal object
+    Throws: IllegalArgumentException if the atm.cassettes property cannot be parsed
+    */
+    static Terminal newTerminal(long terminalID, long origin, PrintStream out){
+        String cassettes = System.getProperty("atm.cassettes");
+        if (cassettes == null) {
+            return new Terminal(terminalID, CashCassettes.ofNotes(TWENTY_DOLLAR_BILL, STARTING_CASH), out, origin);
+        }
+        return new Terminal(terminalID, CashCassettes.parse(cassettes), out, origin);
+    }
+
     /*
     Method: authorize()
     Description: Received user inputted information, which has been formatted into an Account ID and PIN. Searches the
                  customer account data structure to verify that there is an account with that Account ID and that said
-                 account has the same PIN that the user entered.
+                 account has the same PIN that the user entered. If so, a new session is given to the terminal.
     Input:
+        terminal - The terminal the user is using
         inputAccountID - The account ID number that the user entered
         inputPIN - The PIN that was entered by the user
-    Output: Starts the accountAccessibleTimer countdown timer
+    Output: Any earlier session on the terminal is ended, and the new session's countdown timer is started
     Returns: A String containing a message, which is defined in the the specification document.
     */
-    public static String authorize(long inputAccountID, String inputPIN){
+    public static String authorize(Terminal terminal, long inputAccountID, CharSequence inputPIN){
+        long start = System.nanoTime();
         // Output value if the account authorization is successful
         String authorized = (inputAccountID + " successfully authorized.\n\n");
         // Output value if the account authorization is unsuccessful
         String unauthorized = ("Authorization failed.\n\n");
 
-        // Linear search of account objects stored in customers array
-        for(int i = 0; i < customers.length; i++) {
-            // Check to see if the element with an Account ID that matches the input Account ID is present
-            if (customers[i].getAccountID() == inputAccountID) {
-
-                // Check to see if the account with the matching Account ID has a PIN that matches the input PIN
-                if (customers[i].getPin().equals(inputPIN)) {
-                    // The Account ID and its corresponding PIN match the input Account ID and input PIN
-                    indexOfAccountAccessed = i;
-                    // Two minute session timer started
-                    accountAccessTimer();
-                    return authorized;
-                }
+        // After too many recent failures from the origin or on the account the PIN is not checked, and the same is said
+        if (!riskCheck.allowAuthorize(terminal.getOrigin(), inputAccountID, start)) {
+            Metrics.AUTHORIZE_VELOCITY_LIMITED.recordSince(start);
+            return unauthorized;
+        }
+
+        // Check the input PIN against the stored hash for the Account ID. An account that has failed too many times is
+        // locked out, and told the same as any other failure
+        int verdict = credentials.verify(inputAccountID, inputPIN);
+
+        // Hash lookup of the account object stored in the customers directory
+        Account account = verdict == CredentialStore.VERIFIED ? customers.find(inputAccountID) : null;
+
+        if (account != null) {
+            // The Account ID and its corresponding PIN match the input Account ID and input PIN
+            Session session = new Session(account, terminal);
+            Session previous = terminal.attach(session);
+            if (previous != null && previous.end()) {
+                sessionExpiry.cancel(previous.expiry);
+                Metrics.SESSIONS_REPLACED.increment();
             }
+            // Two minute session timer started
+            accountAccessTimer(session);
+            Metrics.SESSIONS_STARTED.increment();
+            Metrics.AUTHORIZE_SUCCEEDED.recordSince(start);
+            return authorized;
         }
         // No Account ID matches the input Account ID and/or no PIN matches the input PIN
+        riskCheck.authorizeFailed(terminal.getOrigin(), inputAccountID, start);
+        if (verdict == CredentialStore.LOCKED_OUT) {
+            Metrics.AUTHORIZE_LOCKED_OUT.recordSince(start);
+        } else {
+            Metrics.AUTHORIZE_FAILED.recordSince(start);
+        }
         return unauthorized;
     }
 
@@ -338,70 +568,202 @@ public class Machine {
                  both the user's account balance and the ATM's total cash will be updated. The user will receive a
                  message telling them what happened.
     Input:
+        session - The session of the user making the withdrawal
         numberOfTwenties - The number of $20 bills that the user would like to withdraw
     Output: Both the user's account balance, transaction history, and the ATM's total cash may be changed
     Returns: String - Message to user
     */
-    public static String withdraw(int numberOfTwenties){
-        double balance = customers[indexOfAccountAccessed].getAccountBalance();
+    public static String withdraw(Session session, int numberOfTwenties){
+        long start = System.nanoTime();
+        if (!session.isActive()) {
+            Metrics.WITHDRAW_UNAUTHORIZED.recordSince(start);
+            return AUTHORIZATION_REQUIRED;
+        }
+        Account account = session.getAccount();
+        Terminal terminal = session.getTerminal();
 
-        // If the account is already overdrawn
-        if (balance <= 0) {
-            return "Your account is overdrawn! You may not make withdrawals at this time.\n\n";
+        // Once the journal has failed nothing more is changed, since it could not be recorded
+        if (!journalWritable()) {
+            Metrics.WITHDRAW_UNAVAILABLE.recordSince(start);
+            return TRANSACTIONS_UNAVAILABLE;
         }
 
         // The withdrawal value is the actual amount of money being removed from the account, while the value is the
         // argument representing the number of $20 bills
-        double withdrawalValue = numberOfTwenties * 20;
+        long withdrawalValue = numberOfTwenties * TWENTY_DOLLAR_BILL;
+        long result;
+        long balance;
+
+        // Too many withdrawals, or too much cash, from this account recently
+        if (!riskCheck.allowWithdrawal(account.getAccountID(), terminal.getTerminalID(), withdrawalValue, start)) {
+            Metrics.WITHDRAW_VELOCITY_LIMITED.recordSince(start);
+            return WITHDRAWAL_DECLINED;
+        }
 
-        // The machine has enough money. Allow the user to withdraw the money and update their account balance
-        if(totalCash > withdrawalValue){
-            // Update the value of balance variable
-            balance -= withdrawalValue;
+        // The balance check, the debit, and the overdraft fee are one atomic step on the balance. The lock keeps
+        // other sessions on this account from recording their transactions in between
+        ReentrantLock lock = accountLocks.forAccount(account.getAccountID());
+        lock.lock();
+        try {
+            result = applyWithdrawal(account, terminal, withdrawalValue, currentEpochSecond());
+            balance = account.getAccountBalance();
+        } finally {
+            lock.unlock();
+        }
 
-            // Update the value of the account balance
-            customers[indexOfAccountAccessed].setAccountBalance(balance);
+        if (result == WITHDRAWAL_OVERDRAWN) {
+            Metrics.WITHDRAW_OVERDRAWN.recordSince(start);
+        } else if (result == WITHDRAWAL_UNABLE_TO_DISPENSE) {
+            Metrics.WITHDRAW_UNABLE_TO_DISPENSE.recordSince(start);
+        } else if (result == WITHDRAWAL_NO_CASH) {
+            Metrics.WITHDRAW_NO_CASH.recordSince(start);
+        }
+        if (result < 0 && result != NOT_RECORDED) {
+            riskCheck.withdrawalFailed(account.getAccountID(), terminal.getTerminalID(), withdrawalValue, start);
+            return withdrawalMessage(result, withdrawalValue, balance);
+        }
 
-            // Create a formatted timestamp
-            String timePattern = "yyyy-MM-dd HH:mm:ss";
-            DateTimeFormatter timeColonFormatter = DateTimeFormatter.ofPattern(timePattern);
-            LocalDateTime localDate = LocalDateTime.now();
-            String timeStamp = (timeColonFormatter.format(localDate));
+        // The user is only told about the withdrawal once it will survive a restart. If the journal fails first, the
+        // cash has still been dispensed, so the reply must not invite the customer to try again
+        if (result == NOT_RECORDED || !awaitJournal(result)) {
+            Metrics.WITHDRAW_NOT_RECORDED.recordSince(start);
+            return TRANSACTION_NOT_RECORDED;
+        }
 
-            // Update the amount of money stored in the ATM
-            totalCash -= withdrawalValue;
+        // New two minute session timer started
+        renewAccessTimer(session);
 
-            // Log the transaction. Format the withdrawal value so it is negative
-            customers[indexOfAccountAccessed].updateTransactionHistory(timeStamp,
-                    decimalFormat.format(withdrawalValue - (2 * withdrawalValue)), decimalFormat.format(balance));
+        String message = withdrawalMessage(result, withdrawalValue, balance);
+        if (balance >= 0) {
+            Metrics.WITHDRAW_DISPENSED.recordSince(start);
+        } else {
+            Metrics.WITHDRAW_OVERDRAFT_FEE.recordSince(start);
+        }
+        return message;
+    }
 
-            // New two minute session timer started
-            renewAccessTimer();
+    /*
+    Method: withdraw()
+    Description: A withdrawal the terminal may send more than once, for example after losing the reply. If a terminal
+                 from the same origin has already made a withdrawal with the same request ID for the same account,
+                 within the RequestCache window and whether or not it has reconnected since, the original reply is
+                 returned and nothing is withdrawn
+    Input:
+        session - The session of the user making the withdrawal
+        numberOfTwenties - The number of $20 bills that the user would like to withdraw
+        requestID - The ID the terminal gave the request, or RequestCache.NO_REQUEST_ID
+    Output: Both the user's account balance, transaction history, and the ATM's total cash may be changed
+    Returns: String - Message to user
+    */
+    public static String withdraw(Session session, int numberOfTwenties, long requestID){
+        if (requestID == RequestCache.NO_REQUEST_ID || !session.isActive()) {
+            return withdraw(session, numberOfTwenties);
         }
-        // If the machine has cash, but not enough to dispense. This ATM can only dispense $20 bills, so it must have
-        // at least one $20 available for withdrawal
-        else if (totalCash >= 20){
-            return "Unable to dispense full amount requested at this time.\n\n";
+        long start = System.nanoTime();
+        long accountID = session.getAccount().getAccountID();
+        long origin = session.getTerminal().getOrigin();
+        RequestCache requests = requestsFor(accountID);
+        String original = requests.begin(requestID, accountID, origin, RequestCache.WITHDRAWAL, start);
+        if (original != null) {
+            Metrics.WITHDRAW_REPEATED.recordSince(start);
+            return original;
+        }
+        String reply = null;
+        try {
+            reply = withdraw(session, numberOfTwenties);
+        } finally {
+            complete(requests, requestID, accountID, origin, RequestCache.WITHDRAWAL, reply);
+        }
+        return reply;
+    }
+
+    /*
+    Method: applyWithdrawal()
+    Description: The part of a withdrawal that changes the account: the overdrawn check, dispensing the cash, the debit,
+                 and the overdraft fee. Shared by withdraw() and BatchProcessor, so a withdrawal has the same outcome
+                 however it arrives. The balance itself is changed atomically, but the call must still be made while
+                 holding the account's lock, which keeps the history and journal records in the same order as the
+                 balance changes
+    Input:
+        account - The account to withdraw from
+        terminal - The terminal dispensing the cash
+        withdrawalValue - The amount to withdraw, in cents
+        epochSecond - The time recorded with the transaction
+    Output: The account balance, transaction history, journal, and the terminal's cash may be changed
+    Returns: The journal sequence number to wait for (0 if there is no journal) if the cash was dispensed, or
+             NOT_RECORDED if it was dispensed but the journal has failed. Otherwise WITHDRAWAL_OVERDRAWN,
+             WITHDRAWAL_UNABLE_TO_DISPENSE, or WITHDRAWAL_NO_CASH
+    */
+    static long applyWithdrawal(Account account, Terminal terminal, long withdrawalValue, long epochSecond){
+        // The overdrawn check, the debit, and the overdraft fee are one compare-and-set on the balance. The balance
+        // returned is the one after the withdrawal, before any fee
+        long balance = account.debit(withdrawalValue, OVERDRAFT_FEE);
+
+        // If the account is already overdrawn
+        if (balance == Account.OVERDRAWN) {
+            return WITHDRAWAL_OVERDRAWN;
+        }
+
+        // The machine has enough money. The user receives it, and the debit stands
+        if (terminal.dispense(withdrawalValue)) {
+            // Log the transaction. The withdrawal value is recorded as negative. It is formatted, along with the
+            // timestamp, only when the user views their history
+            recordHistory(account, epochSecond, -withdrawalValue, balance);
+            long journalSequence = journal(TransactionJournal.WITHDRAWAL, account, epochSecond, -withdrawalValue,
+                    balance);
+
+            // If the account has less than zero dollars after the withdrawal, a five dollar fee was charged
+            if (balance < 0 && journalSequence != NOT_RECORDED) {
+                journalSequence = journal(TransactionJournal.OVERDRAFT_FEE, account, epochSecond, -OVERDRAFT_FEE,
+                        balance - OVERDRAFT_FEE);
+            }
+            return journalSequence;
+        }
+
+        // Nothing was dispensed, so the withdrawal and any fee are credited back
+        account.credit(balance < 0 ? withdrawalValue + OVERDRAFT_FEE : withdrawalValue);
+        // If the machine has notes, but not enough of them, or not ones that add up to the amount
+        if (terminal.getCash() > 0){
+            return WITHDRAWAL_UNABLE_TO_DISPENSE;
         }
         // If there is no money in the machine
         else {
-            return "Unable to process your withdrawal at this time.\n\n";
+            return WITHDRAWAL_NO_CASH;
         }
+    }
 
+    /*
+    Method: withdrawalMessage()
+    Description: The message for the outcome of a withdrawal
+    Input:
+        result - The value returned by applyWithdrawal()
+        withdrawalValue - The amount requested, in cents
+        balance - The account balance after the withdrawal, in cents
+    Output: None
+    Returns: String - Message to user
+    */
+    static String withdrawalMessage(long result, long withdrawalValue, long balance){
+        if (result == WITHDRAWAL_OVERDRAWN) {
+            return "Your account is overdrawn! You may not make withdrawals at this time.\n\n";
+        }
+        if (result == WITHDRAWAL_UNABLE_TO_DISPENSE) {
+            return "Unable to dispense full amount requested at this time.\n\n";
+        }
+        if (result == WITHDRAWAL_NO_CASH) {
+            return "Unable to process your withdrawal at this time.\n\n";
+        }
+        StringBuilder message = messageBuffer().append("Amount dispensed: ");
+        Money.appendUsd(message, withdrawalValue).append("\n\n");
         // If the account the user is accessing NOT overdrawn. The balance has been updated to reflect the withdrawal
         if (balance >= 0){
-            return "Amount dispensed: " + usd.format(withdrawalValue) + "\n\n" +
-                    "Current balance: " + usd.format(balance) + "\n\n";
+            message.append("Current balance: ");
         }
-        // If the account the user is accessing has less zero dollars after the withdrawal
+        // If the account the user is accessing has less zero dollars after the withdrawal. appendUsd() writes the
+        // minus sign in front of the dollar sign
         else {
-            // Five dollar fee
-            balance -= 5;
-            customers[indexOfAccountAccessed].setAccountBalance(balance);
-            return "Amount dispensed: " + usd.format(withdrawalValue) + "\n\n" +
-                    "You have been charged an overdraft fee of $5. Current balance: -" +
-                    usd.format(Math.abs(balance)) + "\n\n";
+            message.append("You have been charged an overdraft fee of $5. Current balance: ");
         }
+        return Money.appendUsd(message, balance).append("\n\n").toString();
     }
 
     /*
@@ -413,157 +775,612 @@ public class Machine {
                  *If the deposit is a check, it cannot be dispensed to other customers. If the bills are old or damaged
                  they must be taken out of circulation.
     Input:
-        value - The amount of money that they want to add to their account. This is a double because they might be
-                depositing a check that has a partial dollar amount
+        session - The session of the user making the deposit
+        value - The amount of money, in cents, that they want to add to their account. They might be depositing a
+                check that has a partial dollar amount
+    Output: The user's account balance and transaction history may be changed
+    Returns: String - Message to user
+    */
+    public static String deposit(Session session, long value){
+        long start = System.nanoTime();
+        if (!session.isActive()) {
+            Metrics.DEPOSIT_UNAUTHORIZED.recordSince(start);
+            return AUTHORIZATION_REQUIRED;
+        }
+        Account account = session.getAccount();
+        long balance;
+        long journalSequence;
+
+        // Once the journal has failed nothing more is changed, since it could not be recorded
+        if (!journalWritable()) {
+            Metrics.DEPOSIT_UNAVAILABLE.recordSince(start);
+            return TRANSACTIONS_UNAVAILABLE;
+        }
+
+        ReentrantLock lock = accountLocks.forAccount(account.getAccountID());
+        lock.lock();
+        try {
+            journalSequence = applyDeposit(account, value, currentEpochSecond());
+            balance = account.getAccountBalance();
+        } finally {
+            lock.unlock();
+        }
+
+        if (journalSequence == DEPOSIT_TOO_LARGE) {
+            Metrics.DEPOSIT_TOO_LARGE.recordSince(start);
+            return DEPOSIT_REFUSED;
+        }
+        // The user is only told about the deposit once it will survive a restart
+        if (journalSequence == NOT_RECORDED || !awaitJournal(journalSequence)) {
+            Metrics.DEPOSIT_NOT_RECORDED.recordSince(start);
+            return TRANSACTION_NOT_RECORDED;
+        }
+
+        // New two minute session timer started
+        renewAccessTimer(session);
+
+        String message = balanceMessage(balance);
+        Metrics.DEPOSIT_ACCEPTED.recordSince(start);
+        return message;
+    }
+
+    /*
+    Method: deposit()
+    Description: A deposit the terminal may send more than once. If a terminal from the same origin has already made a
+                 deposit with the same request ID for the same account, within the RequestCache window and whether or
+                 not it has reconnected since, the original reply is returned and nothing is deposited
+    Input:
+        session - The session of the user making the deposit
+        value - The amount of money, in cents, that they want to add to their account
+        requestID - The ID the terminal gave the request, or RequestCache.NO_REQUEST_ID
     Output: The user's account balance and transaction history may be changed
     Returns: String - Message to user
     */
-    public static String deposit(double value){
-        double balance = customers[indexOfAccountAccessed].getAccountBalance();
-        // Update the value of balance variable
-        balance += value;
+    public static String deposit(Session session, long value, long requestID){
+        if (requestID == RequestCache.NO_REQUEST_ID || !session.isActive()) {
+            return deposit(session, value);
+        }
+        long start = System.nanoTime();
+        long accountID = session.getAccount().getAccountID();
+        long origin = session.getTerminal().getOrigin();
+        RequestCache requests = requestsFor(accountID);
+        String original = requests.begin(requestID, accountID, origin, RequestCache.DEPOSIT, start);
+        if (original != null) {
+            Metrics.DEPOSIT_REPEATED.recordSince(start);
+            return original;
+        }
+        String reply = null;
+        try {
+            reply = deposit(session, value);
+        } finally {
+            complete(requests, requestID, accountID, origin, RequestCache.DEPOSIT, reply);
+        }
+        return reply;
+    }
+
+    // The RequestCache that holds an account's requests
+    private static RequestCache requestsFor(long accountID) {
+        return requestCaches[AccountDirectory.mix(accountID) & (RequestCache.STRIPES - 1)];
+    }
 
-        // Update the value of the account balance
-        customers[indexOfAccountAccessed].setAccountBalance(balance);
+    // Keeps the reply to a request so a retry is given it again. A session that expired before the request was carried
+    // out, or a journal that had already failed, is not an answer to it, since nothing was changed, so the request is
+    // forgotten and a retry carries it out. TRANSACTION_NOT_RECORDED is kept, since the change was made
+    private static void complete(RequestCache requests, long requestID, long accountID, long origin, int kind,
+                                 String reply) {
+        boolean unanswered = reply == AUTHORIZATION_REQUIRED || reply == TRANSACTIONS_UNAVAILABLE;
+        requests.complete(requestID, accountID, origin, kind, unanswered ? null : reply);
+    }
 
-        // Create a formatted timestamp
-        String timePattern = "yyyy-MM-dd HH:mm:ss";
-        DateTimeFormatter timeColonFormatter = DateTimeFormatter.ofPattern(timePattern);
-        LocalDateTime localDate = LocalDateTime.now();
-        String timeStamp = (timeColonFormatter.format(localDate));
+    /*
+    Method: applyDeposit()
+    Description: The part of a deposit that changes the account. Shared by deposit() and BatchProcessor. Must be called
+                 while holding the account's lock
+    Input:
+        account - The account to deposit into
+        value - The amount to deposit, in cents
+        epochSecond - The time recorded with the transaction
+    Output: The account balance, transaction history, and journal are changed, unless the deposit is refused
+    Returns: The journal sequence number to wait for, 0 if there is no journal, NOT_RECORDED if the journal has
+             failed, or DEPOSIT_TOO_LARGE if nothing was deposited because the balance would overflow
+    */
+    static long applyDeposit(Account account, long value, long epochSecond){
+        // Update the value of the account balance atomically
+        long balance;
+        try {
+            balance = account.credit(value);
+        } catch (ArithmeticException e) {
+            return DEPOSIT_TOO_LARGE;
+        }
 
         // Log the transaction
-        customers[indexOfAccountAccessed].updateTransactionHistory(timeStamp, decimalFormat.format(value),
-                decimalFormat.format(balance));
+        recordHistory(account, epochSecond, value, balance);
+        return journal(TransactionJournal.DEPOSIT, account, epochSecond, value, balance);
+    }
 
-        // New two minute session timer started
-        renewAccessTimer();
+    /*
+    Method: recordHistory()
+    Description: Adds a transaction to an account's history. If the history is full and there is a history archive,
+                 its oldest transactions are moved to the archive first, so none are lost. Must be called while holding
+                 the account's lock
+    Input:
+        account - The account
+        epochSecond - The time of the transaction
+        amount - The signed amount, in cents
+        balance - The balance after the transaction, in cents
+    Output: The transaction history, and possibly the history archive, are changed
+    Returns: Void
+    */
+    static void recordHistory(Account account, long epochSecond, long amount, long balance){
+        TransactionHistory history = account.getTransactionHistory();
+        if (historyArchive != null && history.size() == history.getRetention()) {
+            historyArchive.archive(account.getAccountID(), history);
+        }
+        account.updateTransactionHistory(epochSecond, amount, balance);
+    }
 
-        if (balance >= 0) {
-            return "Current balance: " + usd.format(balance) + "\n\n";
+    /*
+    Method: balanceMessage()
+    Description: The message showing a balance, used after a deposit and when the user views their balance
+    Input:
+        balance - The account balance, in cents
+    Output: None
+    Returns: String - Message to user
+    */
+    static String balanceMessage(long balance){
+        // A negative balance is written as -$#,###.##
+        StringBuilder message = messageBuffer().append("Current balance: ");
+        return Money.appendUsd(message, balance).append("\n\n").toString();
+    }
+
+    /*
+    Method: messageBuffer()
+    Description: Retrieves the calling thread's message buffer, emptied and ready to build a reply
+    Input: None
+    Output: None
+    Returns: The StringBuilder to build the reply in
+    */
+    static StringBuilder messageBuffer(){
+        StringBuilder buffer = messageBuffers.get();
+        if (buffer.capacity() > MAX_RETAINED_MESSAGE) {
+            buffer = new StringBuilder(256);
+            messageBuffers.set(buffer);
         }
-        return "Current balance: -" + usd.format(Math.abs(balance)) + "\n\n";
+        buffer.setLength(0);
+        return buffer;
     }
 
     /*
     Method: balance()
     Description: Returns a message (defined in the specification)
-    Input: None
+    Input:
+        session - The session of the user checking their balance
     Output: None
     Returns: A message (defined in the specification) containing the user's account balance
     */
-    public static String balance(){
+    public static String balance(Session session){
+        long start = System.nanoTime();
+        if (!session.isActive()) {
+            Metrics.BALANCE_UNAUTHORIZED.recordSince(start);
+            return AUTHORIZATION_REQUIRED;
+        }
         // New two minute session timer started
-        renewAccessTimer();
+        renewAccessTimer(session);
 
-        double balance = customers[indexOfAccountAccessed].getAccountBalance();
+        long balance = session.getAccount().getAccountBalance();
 
-        if (balance >= 0){
-            return "Current balance: " + usd.format(balance) + "\n\n";
+        String message = balanceMessage(balance);
+        Metrics.BALANCE_SHOWN.recordSince(start);
+        return message;
+    }
+
+    /*
+    Method: balanceAt()
+    Description: Returns a message with the balance the account had at a past time. The balance is worked out from the
+                 transaction history, which records the balance after each transaction, so it reaches back as far as
+                 the history is retained, including any part moved to the history archive. The journal is not replayed
+                 to answer: its checkpoints only hold the latest state, and the segments folded into them are deleted,
+                 so it cannot reach further back than the history does
+    Input:
+        session - The session of the user checking their balance
+        epochSecond - The time, in seconds since 1970-01-01T00:00:00Z
+    Output: None
+    Returns: A message containing the time and the balance then, or "No history found" if the time is older than the
+             retained and archived history
+    */
+    public static String balanceAt(Session session, long epochSecond){
+        long start = System.nanoTime();
+        if (!session.isActive()) {
+            Metrics.BALANCE_UNAUTHORIZED.recordSince(start);
+            return AUTHORIZATION_REQUIRED;
+        }
+        // New two minute session timer started
+        renewAccessTimer(session);
+
+        Account account = session.getAccount();
+        long balance;
+        ReentrantLock lock = accountLocks.forAccount(account.getAccountID());
+        lock.lock();
+        try {
+            balance = balanceAt(account, epochSecond);
+        } finally {
+            lock.unlock();
+        }
+
+        if (balance == BALANCE_UNKNOWN) {
+            Metrics.BALANCE_NO_HISTORY.recordSince(start);
+            return "No history found\n\n";
+        }
+        Metrics.BALANCE_SHOWN.recordSince(start);
+        StringBuilder message = timestamps.append(messageBuffer().append("Balance at "), epochSecond).append(": ");
+        return Money.appendUsd(message, balance).append("\n\n").toString();
+    }
+
+    /*
+    Method: balanceAt()
+    Description: The balance an account had at a time: the balance after the newest transaction made by then, or the
+                 balance before the oldest one if none has been overwritten. Transactions older than the history kept
+                 in memory are looked up in the history archive, if they were moved there. The history does not show
+                 overdraft fees, but a fee was charged at the same time as every withdrawal that left the balance below
+                 zero, so it is taken off as well. Must be called while holding the account's lock
+    Input:
+        account - The account
+        epochSecond - The time, in seconds since 1970-01-01T00:00:00Z
+    Output: None
+    Returns: The balance in cents, or BALANCE_UNKNOWN if the time is older than the retained history
+    */
+    static long balanceAt(Account account, long epochSecond){
+        TransactionHistory history = account.getTransactionHistory();
+        int size = history.size();
+        long block = historyArchive == null ? -1 : history.getArchivedBlock();
+        if (size == 0 && block < 0) {
+            return account.getAccountBalance();
+        }
+        int newest = history.countNewerThan(epochSecond);
+        if (newest < size) {
+            return balanceAfter(history.getAmount(newest), history.getBalance(newest));
+        }
+        final long[] entry = new long[3];
+        if (block >= 0) {
+            if (historyArchive.find(account.getAccountID(), block, epochSecond, entry) >= 0) {
+                return balanceAfter(entry[1], entry[2]);
+            }
+            // Older than every transaction archived. Unless some were overwritten first, the oldest is the first ever
+            if (history.getArchivedFrom() > 0 || historyArchive.forEach(account.getAccountID(), block, 0, 1,
+                    new TransactionHistory.Visitor() {
+                        @Override
+                        public void visit(long epochSecond, long amount, long balance) {
+                            entry[1] = amount;
+                            entry[2] = balance;
+                        }
+                    }) == 0) {
+                return BALANCE_UNKNOWN;
+            }
+            return entry[2] - entry[1];
+        }
+        // Older than every transaction retained. Unless some have been overwritten, the oldest is the first ever made
+        if (history.getSequence(size - 1) > 0) {
+            return BALANCE_UNKNOWN;
         }
-        return "Current balance: -" + usd.format(Math.abs(balance)) + "\n\n";
+        return history.getBalance(size - 1) - history.getAmount(size - 1);
+    }
+
+    // The balance after a transaction in the history, less the overdraft fee charged with it, if there was one
+    private static long balanceAfter(long amount, long balance){
+        return amount < 0 && balance < 0 ? balance - OVERDRAFT_FEE : balance;
     }
 
     /*
     Method: history()
     Description: Outputs a message containing the of the transaction history in the
                  correct format (defined in the specification;
-    Input: None
+    Input:
+        session - The session of the user viewing their history
     Output: A message containing the user's transaction history <date> <time> <amount> <balance after transaction> for
-            example "2020-02-04 13:04:22 -20.00 140.67" in reverse chronological order, if a history exists.
+            example "2020-02-04 13:04:22 -20.00 140.67" in reverse chronological order, if a history exists. The message
+            is written to the session's terminal.
     Returns: None
     */
-    public static void history(){
-        if (customers[indexOfAccountAccessed].getTransactionHistory().isEmpty()){
-            System.out.println("No history found\n\n");
-        } else {
-            for (Iterator i = customers[indexOfAccountAccessed].getTransactionHistory().iterator(); i.hasNext();) {
-                System.out.println(i.next());
+    public static void history(Session session){
+        history(session, HistoryQuery.all());
+    }
+
+    /*
+    Method: history()
+    Description: Outputs the part of the transaction history a query selects, in the same format as the whole history.
+                 The query is resolved while holding the account's lock, and the entries are then formatted a page at
+                 a time into the thread's message buffer. The lock is only held while a page is formatted, and each
+                 page is written to the terminal before the next is formatted, so a long history neither blocks the
+                 account nor is built up in memory all at once
+    Input:
+        session - The session of the user viewing their history
+        query - The transactions to show
+    Output: The selected transactions, or "No history found", are written to the session's terminal
+    Returns: A cursor for HistoryQuery.after() if the query's limit left older matching transactions unshown, otherwise
+             -1
+    */
+    public static long history(Session session, HistoryQuery query){
+        long start = System.nanoTime();
+        PrintStream out = session.getTerminal().getOut();
+        if (!session.isActive()) {
+            out.println("Authorization required.\n\n");
+            Metrics.HISTORY_UNAUTHORIZED.recordSince(start);
+            return -1;
+        }
+        Account account = session.getAccount();
+        TransactionHistory history = account.getTransactionHistory();
+
+        final StringBuilder rendered = messageBuffer();
+        TransactionHistory.Visitor renderer = new TransactionHistory.Visitor() {
+            @Override
+            public void visit(long epochSecond, long amount, long balance) {
+                timestamps.append(rendered, epochSecond).append(' ');
+                Money.appendPlain(rendered, amount).append(' ');
+                Money.appendPlain(rendered, balance).append('\n');
+            }
+        };
+        // The sequence numbers of the newest and oldest transaction selected
+        long[] range = new long[2];
+        boolean more;
+        ReentrantLock lock = accountLocks.forAccount(account.getAccountID());
+        lock.lock();
+        try {
+            more = query.resolve(account, historyArchive, range);
+        } finally {
+            lock.unlock();
+        }
+
+        // Pages are found by sequence number, which transactions made between pages do not change. A transaction
+        // overwritten between pages, which takes more than the retention limit of them, ends the history early.
+        // Archived blocks are never changed once written, so pages from the archive are read without the lock
+        boolean shown = false;
+        for (long next = range[0]; range[0] >= 0 && next >= range[1]; ) {
+            int visited = 0;
+            int limit = (int) Math.min(HISTORY_PAGE_SIZE, next - range[1] + 1);
+            long block = -1;
+            lock.lock();
+            try {
+                int position = history.positionOf(next);
+                if (position < history.size()) {
+                    visited = history.forEach(position, limit, renderer);
+                } else if (historyArchive != null && next >= history.getArchivedFrom()) {
+                    block = history.getArchivedBlock();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (block >= 0) {
+                visited = historyArchive.forEach(account.getAccountID(), block, next, limit, renderer);
+            }
+            if (visited == 0) {
+                break;
+            }
+            next -= visited;
+            shown = true;
+            if (next >= range[1]) {
+                out.print(rendered);
+                rendered.setLength(0);
             }
-            System.out.print("\n\n");
         }
+
+        if (!shown){
+            out.println("No history found\n\n");
+            Metrics.HISTORY_EMPTY.recordSince(start);
+            return -1;
+        }
+        rendered.append("\n\n");
+        out.print(rendered);
+        Metrics.HISTORY_SHOWN.recordSince(start);
+        return more ? range[1] : -1;
+    }
+
+    /*
+    Method: currentEpochSecond()
+    Description: The time recorded with each transaction. Only whole seconds are kept, matching the history format
+    Input: None
+    Output: None
+    Returns: The current time in seconds since 1970-01-01T00:00:00Z as a long
+    */
+    static long currentEpochSecond(){
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /*
+    Method: journal()
+    Description: Appends a balance change to the transaction journal, if one is configured. Must be called while holding
+                 the account's lock, so the journal records changes to each account in the order they were made
+    Input:
+        type - The TransactionJournal record type
+        account - The account that changed
+        epochSecond - The time of the change
+        amount - The signed amount of the change, in cents
+        balance - The balance after the change, in cents
+    Output: The record is queued for the journal's next group commit
+    Returns: The record's sequence number, 0 if there is no journal, or NOT_RECORDED if the journal has failed
+    */
+    static long journal(int type, Account account, long epochSecond, long amount, long balance){
+        if (journal == null) {
+            return 0;
+        }
+        long sequence = journal.append(type, account.getAccountID(), epochSecond, amount, balance);
+        return sequence == TransactionJournal.NOT_WRITTEN ? NOT_RECORDED : sequence;
+    }
+
+    /*
+    Method: awaitJournal()
+    Description: Waits until a journal record has been forced to disk. Called after releasing the account's lock, so
+                 other sessions on the account are not held up by the disk
+    Input:
+        sequence - The sequence number returned by journal()
+    Output: None
+    Returns: True once the record is durable, or if there is no journal. False if the journal failed first
+    */
+    static boolean awaitJournal(long sequence){
+        return journal == null || journal.awaitDurable(sequence);
+    }
+
+    /*
+    Method: journalWritable()
+    Description: Checks whether a balance change made now can be journaled. Withdrawals and deposits check this before
+                 changing anything, so once the journal fails they are refused instead of made and lost
+    Input: None
+    Output: None
+    Returns: True if there is no journal or it has not failed or been closed
+    */
+    static boolean journalWritable(){
+        return journal == null || journal.isWritable();
     }
 
     /*
     Method: logout()
     Description: The user loses access to their account
-    Input: None
-    Output: The reference variable for the session timer stored in the account object is set to null, making it elible
-            for garbage collection.
+    Input:
+        session - The session of the user logging out
+    Output: The pending session expiry is cancelled and the session is removed from its terminal.
             A message (defined in the specification) is displayed for the user to see
-            The indexOfAccountAccessed is reset to its initial negative value.
     Returns: None
     */
-    public static void logout(){
-        if (indexOfAccountAccessed == -1){
-            System.out.println("No account is currently authorized.");
+    public static void logout(Session session){
+        PrintStream out = session.getTerminal().getOut();
+        if (!session.end()){
+            out.println("No account is currently authorized.");
+            return;
         }
-        customers[indexOfAccountAccessed].sessionTimer = null;
-        System.out.println("Account " + customers[indexOfAccountAccessed].getAccountID() +" logged out.\n\n");
-        indexOfAccountAccessed = -1;
+        sessionExpiry.cancel(session.expiry);
+        session.getTerminal().detach(session);
+        Metrics.SESSIONS_LOGGED_OUT.increment();
+        out.println("Account " + session.getAccount().getAccountID() +" logged out.\n\n");
     }
 
     /*
     Method: end()
     Description: The user terminates the program.
     Input: None
-    Output: A message indicating that the program is shutting down and a system exit code.
+    Output: A message indicating that the program is shutting down and a system exit code. Network terminals, if any,
+            are disconnected, statements, if asked for, are written, the metrics file, if any, is written one last
+            time, the transaction journal, if any, is closed after its last records are written, the history archive,
+            if any, is closed, and the account snapshot, if any, is rewritten with the current balances.
     Returns: None
     */
     public static void end(){
+        if (terminalServer != null) {
+            try {
+                terminalServer.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close the terminal server: " + e.getMessage());
+            }
+        }
+        if (statementDirectory != null) {
+            try {
+                writeStatements();
+            } catch (IOException e) {
+                System.out.println("Unable to write the statements: " + e.getMessage());
+            }
+        }
+        if (metricsExporter != null) {
+            try {
+                metricsExporter.close();
+            } catch (IOException e) {
+                System.out.println("Unable to write the metrics file: " + e.getMessage());
+            }
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close the transaction journal: " + e.getMessage());
+            }
+        }
+        if (historyArchive != null) {
+            try {
+                historyArchive.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close the history archive: " + e.getMessage());
+            }
+        }
+        if (accountSnapshot != null) {
+            try {
+                AccountSnapshot.write(accountSnapshot, customers, credentials);
+            } catch (IOException e) {
+                System.out.println("Unable to write the account snapshot: " + e.getMessage());
+            }
+        }
         System.out.println("\nThank you for using our service. Goodbye");
         System.exit(0);
     }
 
     /*
-    Method: accountAccessTimer()
-    Description: The timer object stored within the account object, which is currently accessed, is set to 120,000
-                 milliseconds (two minutes) and the countdown is started. At the end of two minutes, the value of
-                 indexOfAccountAccessed is set to a negative number, which prevents the user from accessing their account
+    Method: writeStatements()
+    Description: Reconciles every account over the time the machine was open, writing a statement for each account with
+                 transactions and a report of the totals to reconciliation.txt. The cash the terminals handed out must
+                 equal the withdrawals recorded, unless some account's history has filled up and may be missing some
     Input: None
-    Output: A message indicating that the session time has expired and the indexOfAccountAccessed is set to -1
+    Output: A new directory of statements under statementDirectory. A message is printed if the accounts or the cash do
+            not add up
     Returns: None
+    Throws: IOException if a statement or the report could not be written
     */
-    public static void accountAccessTimer(){
-        customers[indexOfAccountAccessed].sessionTimer = new Timer();
-
-        TimerTask endAccess = new TimerTask() {
-            @Override
-            public void run() {
-                System.out.println("Your session time has expired\n\n");
-                indexOfAccountAccessed = -1;
-            }
-        };
-
-        // Session time is defined above as 2 (minutes) and there are 60,000 milliseconds in a minute. This method takes
-        // its delay argument in units of milliseconds.
-        customers[indexOfAccountAccessed].sessionTimer.schedule(endAccess, (SESSION_TIME * MILLISECONDS_PER_MINUTE));
+    static void writeStatements() throws IOException {
+        long closedAt = currentEpochSecond();
+        Path directory = statementDirectory.resolve(STATEMENT_DIRECTORY_NAME.format(Instant.ofEpochSecond(closedAt)));
+        Reconciliation totals = Reconciliation.run(ForkJoinPool.commonPool(), customers, openedAt, closedAt,
+                directory);
+        long dispensed = Metrics.CASH_DISPENSED.sum();
+
+        StringBuilder report = totals.appendSummary(new StringBuilder());
+        Money.appendUsd(report.append("Cash dispensed: "), dispensed).append('\n');
+        boolean differences = totals.getUnbalancedAccounts() > 0;
+        if (totals.getIncompleteAccounts() > 0) {
+            report.append("Cash check: not possible while some histories are incomplete\n");
+        } else if (dispensed == totals.getWithdrawalCents()) {
+            report.append("Cash check: matches the withdrawals recorded\n");
+        } else {
+            report.append("Cash check: does not match the withdrawals recorded\n");
+            differences = true;
+        }
+        Path reportFile = directory.resolve("reconciliation.txt");
+        Files.write(reportFile, report.toString().getBytes(StandardCharsets.US_ASCII));
+        if (differences) {
+            System.out.println("The reconciliation found differences, see " + reportFile);
+        }
     }
 
     /*
-    Method: renewAccessTimer()
-    Description: A new timer object is created and the reference variable for the old timer object is set to refer to
-                 the new timer object. Since there is nothing referencing the old timer object, it is eligible for
-                 garbage collection. The new timer object gives the user two minutes of access. A new timer object
-                 must be created because the countdown timer of the old object cannot be updated or reset.
-    Input: None
-    Output: A message indicating that the program is shutting down and a system exit code.
+    Method: accountAccessTimer()
+    Description: An expiry is scheduled on the shared session expiry wheel for 120,000 milliseconds (two minutes) and
+                 its handle is stored within the session. At the end of two minutes the session is ended, which
+                 prevents the user from accessing their account
+    Input:
+        session - The session that has just been authorized
+    Output: A message indicating that the session time has expired is written to the session's terminal
     Returns: None
     */
-    public static void renewAccessTimer(){
-        Timer newSession = new Timer();
-        TimerTask endAccess = new TimerTask() {
+    public static void accountAccessTimer(final Session session){
+        // Session time is defined above as 2 (minutes) and there are 60,000 milliseconds in a minute. This method takes
+        // its delay argument in units of milliseconds. -Datm.sessionSeconds shortens it for simulation.
+        session.expiry = sessionExpiry.schedule(SESSION_MILLISECONDS, new Runnable() {
             @Override
             public void run() {
-                if (indexOfAccountAccessed >= 0) {
-                    System.out.println("Your session time has expired\n\n");
-                    indexOfAccountAccessed = -1;
+                // Logout may have ended the session at the same moment, in which case there is nothing to do
+                if (session.end()) {
+                    session.getTerminal().detach(session);
+                    Metrics.SESSIONS_EXPIRED.increment();
+                    session.getTerminal().getOut().println("Your session time has expired\n\n");
                 }
             }
-        };
+        });
+    }
 
-        newSession.schedule(endAccess, (SESSION_TIME * MILLISECONDS_PER_MINUTE));
-        customers[indexOfAccountAccessed].sessionTimer = newSession;
-        newSession = null;
+    /*
+    Method: renewAccessTimer()
+    Description: The pending expiry stored in the session is moved two minutes into the future. The wheel moves the
+                 existing timeout to a new bucket, so no new timer object or thread is created.
+    Input:
+        session - The session that has just been used
+    Output: The user has two more minutes of access
+    Returns: None
+    */
+    public static void renewAccessTimer(Session session){
+        sessionExpiry.renew(session.expiry, SESSION_MILLISECONDS);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,257 @@
+package TakeoffATMPKG;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Class: Metrics
+Description: How long each ATM operation takes, broken down by how it turned out, along with session counts and the cash
+             left in each terminal. Operations record into a LatencyHistogram and sessions into LongAdder counters, so
+             recording never takes a lock. Gauges such as the cash level are read only when a report is built, so they
+             cost nothing on the transaction path. MetricsExporter publishes the report.
+*/
+
+public final class Metrics {
+    // Upper bounds, in nanoseconds, of the buckets in the Prometheus report, from one microsecond to ten seconds. The
+    // histograms themselves are far finer than this
+    private static final long[] REPORTED_BOUNDS = {
+            1000L, 2500L, 5000L, 10000L, 25000L, 50000L, 100000L, 250000L, 500000L,
+            1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L, 100000000L, 250000000L, 500000000L,
+            1000000000L, 2500000000L, 5000000000L, 10000000000L
+    };
+    private static final String[] REPORTED_LABELS = {
+            "1e-06", "2.5e-06", "5e-06", "1e-05", "2.5e-05", "5e-05", "0.0001", "0.00025", "0.0005",
+            "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5",
+            "1", "2.5", "5", "10"
+    };
+    private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+    // Every operation histogram, in the order they are reported. Must be created before the histograms below
+    private static final List<Operation> operations = new ArrayList<Operation>();
+
+    // One histogram per operation and outcome
+    public static final LatencyHistogram AUTHORIZE_SUCCEEDED = operation("authorize", "authorized");
+    public static final LatencyHistogram AUTHORIZE_FAILED = operation("authorize", "failed");
+    // Refused without checking the PIN, after too many failed attempts
+    public static final LatencyHistogram AUTHORIZE_LOCKED_OUT = operation("authorize", "locked_out");
+    // Refused without checking the PIN, after too many recent failures from the terminal's origin or on the account
+    // (see VelocityCheck)
+    public static final LatencyHistogram AUTHORIZE_VELOCITY_LIMITED = operation("authorize", "velocity_limited");
+    public static final LatencyHistogram WITHDRAW_DISPENSED = operation("withdraw", "dispensed");
+    public static final LatencyHistogram WITHDRAW_OVERDRAFT_FEE = operation("withdraw", "overdraft_fee");
+    public static final LatencyHistogram WITHDRAW_OVERDRAWN = operation("withdraw", "overdrawn");
+    // "Unable to dispense full amount requested at this time."
+    public static final LatencyHistogram WITHDRAW_UNABLE_TO_DISPENSE = operation("withdraw", "unable_to_dispense");
+    // "Unable to process your withdrawal at this time."
+    public static final LatencyHistogram WITHDRAW_NO_CASH = operation("withdraw", "no_cash");
+    public static final LatencyHistogram WITHDRAW_UNAUTHORIZED = operation("withdraw", "unauthorized");
+    // "Withdrawal declined. Please try again later."
+    public static final LatencyHistogram WITHDRAW_VELOCITY_LIMITED = operation("withdraw", "velocity_limited");
+    // A retried request answered from the RequestCache, without changing the account
+    public static final LatencyHistogram WITHDRAW_REPEATED = operation("withdraw", "repeated");
+    // Refused because the transaction journal has failed, and made but not journaled because it failed meanwhile
+    public static final LatencyHistogram WITHDRAW_UNAVAILABLE = operation("withdraw", "unavailable");
+    public static final LatencyHistogram WITHDRAW_NOT_RECORDED = operation("withdraw", "not_recorded");
+    public static final LatencyHistogram DEPOSIT_ACCEPTED = operation("deposit", "deposited");
+    public static final LatencyHistogram DEPOSIT_UNAUTHORIZED = operation("deposit", "unauthorized");
+    public static final LatencyHistogram DEPOSIT_REPEATED = operation("deposit", "repeated");
+    public static final LatencyHistogram DEPOSIT_UNAVAILABLE = operation("deposit", "unavailable");
+    public static final LatencyHistogram DEPOSIT_NOT_RECORDED = operation("deposit", "not_recorded");
+    // Refused because the balance would overflow
+    public static final LatencyHistogram DEPOSIT_TOO_LARGE = operation("deposit", "too_large");
+    public static final LatencyHistogram BALANCE_SHOWN = operation("balance", "shown");
+    public static final LatencyHistogram BALANCE_UNAUTHORIZED = operation("balance", "unauthorized");
+    // "No history found": BALANCE AT a time older than the retained and archived history
+    public static final LatencyHistogram BALANCE_NO_HISTORY = operation("balance", "no_history");
+    public static final LatencyHistogram HISTORY_SHOWN = operation("history", "shown");
+    public static final LatencyHistogram HISTORY_EMPTY = operation("history", "empty");
+    public static final LatencyHistogram HISTORY_UNAUTHORIZED = operation("history", "unauthorized");
+    // A whole TransactionBatch, from partitioning to the journal wait
+    public static final LatencyHistogram BATCH_APPLIED = operation("batch", "applied");
+
+    // Sessions given to a terminal by authorize()
+    public static final LongAdder SESSIONS_STARTED = new LongAdder();
+    // Sessions ended by their expiry
+    public static final LongAdder SESSIONS_EXPIRED = new LongAdder();
+    // Sessions ended by logout()
+    public static final LongAdder SESSIONS_LOGGED_OUT = new LongAdder();
+    // Sessions ended because another customer was authorized on the same terminal
+    public static final LongAdder SESSIONS_REPLACED = new LongAdder();
+    // PIN checks answered by the CredentialStore's cache of verified logins, and those that had to hash the PIN
+    public static final LongAdder CREDENTIAL_CACHE_HITS = new LongAdder();
+    public static final LongAdder CREDENTIAL_CACHE_MISSES = new LongAdder();
+    // Cash handed out by every terminal, in cents, which Reconciliation compares with the withdrawals recorded
+    public static final LongAdder CASH_DISPENSED = new LongAdder();
+
+    // Terminals whose cash level is reported, by terminal ID. Network terminals come and go with their connections, so
+    // adding and removing one must stay cheap with thousands of them
+    private static final ConcurrentSkipListMap<Long, Terminal> terminals = new ConcurrentSkipListMap<Long, Terminal>();
+
+    private Metrics() {
+    }
+
+    /*
+    Method: register()
+    Description: Adds a terminal's cash level to the report
+    Input:
+        terminal - The terminal to report on
+    Output: The terminal is included in every later report
+    Returns: None
+    */
+    public static void register(Terminal terminal) {
+        terminals.put(terminal.getTerminalID(), terminal);
+    }
+
+    /*
+    Method: unregister()
+    Description: Removes a terminal from the report, such as when its network connection closes
+    Input:
+        terminal - The terminal to stop reporting on
+    Output: The terminal is left out of every later report
+    Returns: None
+    */
+    public static void unregister(Terminal terminal) {
+        terminals.remove(terminal.getTerminalID(), terminal);
+    }
+
+    /*
+    Method: writePrometheus()
+    Description: Writes every metric in the Prometheus text exposition format. Durations are reported in seconds, and
+                 amounts of money in cents like everywhere else in the machine
+    Input:
+        out - The builder to write to
+    Output: The report is appended to out
+    Returns: The same StringBuilder, so calls can be chained
+    */
+    public static StringBuilder writePrometheus(StringBuilder out) {
+        out.append("# HELP atm_operation_duration_seconds Time taken by each ATM operation, by outcome\n");
+        out.append("# TYPE atm_operation_duration_seconds histogram\n");
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        for (Operation operation : operations) {
+            long count = operation.histogram.copyCounts(counts);
+            int bucket = 0;
+            long cumulative = 0;
+            for (int i = 0; i < REPORTED_BOUNDS.length; i++) {
+                while (bucket < LatencyHistogram.BUCKET_COUNT
+                        && LatencyHistogram.highestValueIn(bucket) <= REPORTED_BOUNDS[i]) {
+                    cumulative += counts[bucket];
+                    bucket++;
+                }
+                operation.appendLabels(out.append("atm_operation_duration_seconds_bucket"))
+                        .append(",le=\"").append(REPORTED_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            operation.appendLabels(out.append("atm_operation_duration_seconds_bucket"))
+                    .append(",le=\"+Inf\"} ").append(count).append('\n');
+            operation.appendLabels(out.append("atm_operation_duration_seconds_sum"))
+                    .append("} ").append(LatencyHistogram.totalOf(counts) / NANOSECONDS_PER_SECOND).append('\n');
+            operation.appendLabels(out.append("atm_operation_duration_seconds_count"))
+                    .append("} ").append(count).append('\n');
+        }
+
+        long started = SESSIONS_STARTED.sum();
+        long expired = SESSIONS_EXPIRED.sum();
+        long loggedOut = SESSIONS_LOGGED_OUT.sum();
+        long replaced = SESSIONS_REPLACED.sum();
+        out.append("# HELP atm_sessions_started_total Sessions given to a terminal after a successful authorization\n");
+        out.append("# TYPE atm_sessions_started_total counter\n");
+        out.append("atm_sessions_started_total ").append(started).append('\n');
+        out.append("# HELP atm_sessions_ended_total Sessions that have ended, by reason\n");
+        out.append("# TYPE atm_sessions_ended_total counter\n");
+        out.append("atm_sessions_ended_total{reason=\"expired\"} ").append(expired).append('\n');
+        out.append("atm_sessions_ended_total{reason=\"logged_out\"} ").append(loggedOut).append('\n');
+        out.append("atm_sessions_ended_total{reason=\"replaced\"} ").append(replaced).append('\n');
+        out.append("# HELP atm_sessions_active Sessions that have started and not yet ended\n");
+        out.append("# TYPE atm_sessions_active gauge\n");
+        out.append("atm_sessions_active ").append(Math.max(0, started - expired - loggedOut - replaced)).append('\n');
+        out.append("# HELP atm_credential_cache_lookups_total PIN checks looked up in the cache of verified logins\n");
+        out.append("# TYPE atm_credential_cache_lookups_total counter\n");
+        out.append("atm_credential_cache_lookups_total{result=\"hit\"} ").append(CREDENTIAL_CACHE_HITS.sum())
+                .append('\n');
+        out.append("atm_credential_cache_lookups_total{result=\"miss\"} ").append(CREDENTIAL_CACHE_MISSES.sum())
+                .append('\n');
+
+        out.append("# HELP atm_cash_dispensed_cents_total Cash handed out by every terminal\n");
+        out.append("# TYPE atm_cash_dispensed_cents_total counter\n");
+        out.append("atm_cash_dispensed_cents_total ").append(CASH_DISPENSED.sum()).append('\n');
+
+        out.append("# HELP atm_terminal_cash_cents Cash currently held by each terminal\n");
+        out.append("# TYPE atm_terminal_cash_cents gauge\n");
+        for (Terminal terminal : terminals.values()) {
+            out.append("atm_terminal_cash_cents{terminal=\"").append(terminal.getTerminalID()).append("\"} ")
+                    .append(terminal.getCash()).append('\n');
+        }
+        out.append("# HELP atm_terminal_cash_capacity_cents Cash held by each terminal when it is full\n");
+        out.append("# TYPE atm_terminal_cash_capacity_cents gauge\n");
+        for (Terminal terminal : terminals.values()) {
+            out.append("atm_terminal_cash_capacity_cents{terminal=\"").append(terminal.getTerminalID()).append("\"} ")
+                    .append(terminal.getMaxCash()).append('\n');
+        }
+        out.append("# HELP atm_cassette_notes Notes currently held in each cassette\n");
+        out.append("# TYPE atm_cassette_notes gauge\n");
+        for (Terminal terminal : terminals.values()) {
+            CashCassettes cassettes = terminal.getCassettes();
+            for (int i = 0; i < cassettes.getCassetteCount(); i++) {
+                out.append("atm_cassette_notes{terminal=\"").append(terminal.getTerminalID())
+                        .append("\",denomination_cents=\"").append(cassettes.getDenomination(i)).append("\"} ")
+                        .append(cassettes.getNotes(i)).append('\n');
+            }
+        }
+        out.append("# HELP atm_cassette_empty_forecast_seconds Time until each cassette is empty at its recent " +
+                "dispense rate\n");
+        out.append("# TYPE atm_cassette_empty_forecast_seconds gauge\n");
+        for (Terminal terminal : terminals.values()) {
+            CashCassettes cassettes = terminal.getCassettes();
+            for (int i = 0; i < cassettes.getCassetteCount(); i++) {
+                out.append("atm_cassette_empty_forecast_seconds{terminal=\"").append(terminal.getTerminalID())
+                        .append("\",denomination_cents=\"").append(cassettes.getDenomination(i)).append("\"} ");
+                long forecast = cassettes.forecastSecondsUntilEmpty(i);
+                if (forecast == Long.MAX_VALUE) {
+                    out.append("+Inf");
+                } else {
+                    out.append(forecast);
+                }
+                out.append('\n');
+            }
+        }
+        return out;
+    }
+
+    /*
+    Method: scrape()
+    Description: Builds the Prometheus report. See writePrometheus()
+    Input: None
+    Output: None
+    Returns: The report as a String
+    */
+    public static String scrape() {
+        return writePrometheus(new StringBuilder(16384)).toString();
+    }
+
+    private static LatencyHistogram operation(String name, String outcome) {
+        Operation operation = new Operation(name, outcome);
+        operations.add(operation);
+        return operation.histogram;
+    }
+
+    /*
+    Class: Operation
+    Description: A histogram together with the labels it is reported under
+    */
+    private static final class Operation {
+        private final String name;
+        private final String outcome;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        Operation(String name, String outcome) {
+            this.name = name;
+            this.outcome = outcome;
+        }
+
+        // Writes the opening brace and labels, leaving the closing brace to the caller
+        StringBuilder appendLabels(StringBuilder out) {
+            return out.append("{operation=\"").append(name).append("\",outcome=\"").append(outcome).append('"');
+        }
+    }
+}
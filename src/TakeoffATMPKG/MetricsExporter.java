@@ -0,0 +1,145 @@
+package TakeoffATMPKG;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: MetricsExporter
+Description: Publishes the Metrics report in the Prometheus text format, either by rewriting a file at a fixed interval
+             for a node exporter's textfile collector to pick up, or by answering GET /metrics on a local port for
+             Prometheus to scrape directly. Both run on their own threads, away from the terminals.
+*/
+
+public final class MetricsExporter {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private ScheduledExecutorService fileWriter;
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private Path file;
+
+    /*
+    Method: writeFile()
+    Description: Writes the current report to a file. The report is written under a temporary name and then renamed,
+                 so a reader never sees half a report
+    Input:
+        path - The file to create or replace
+    Output: The file holds the current report
+    Returns: None
+    */
+    public static void writeFile(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, Metrics.scrape().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+    Method: startFile()
+    Description: Rewrites the report file every interval until close() is called
+    Input:
+        path - The file to write
+        intervalSeconds - The time between writes
+    Output: A "metrics-writer" daemon thread is started
+    Returns: None
+    */
+    public synchronized void startFile(final Path path, long intervalSeconds) {
+        file = path;
+        fileWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "metrics-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        fileWriter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeFile(path);
+                } catch (IOException e) {
+                    // The next interval tries again. A failed write must not stop the machine or the schedule
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /*
+    Method: startServer()
+    Description: Answers GET /metrics with the current report. Only the loopback address is bound, so the report is not
+                 visible off the machine unless it is forwarded deliberately
+    Input:
+        port - The port to listen on, or 0 for any free port
+    Output: The server's dispatcher thread and a "metrics-server" daemon thread are started
+    Returns: The port the server is listening on as an int
+    */
+    public synchronized int startServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!"GET".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        serverThreads = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "metrics-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /*
+    Method: close()
+    Description: Stops the server and the file writer, writing the file one last time so it holds the final counts
+    Input: None
+    Output: Any exporter threads are stopped
+    Returns: None
+    */
+    public synchronized void close() throws IOException {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+            serverThreads.shutdownNow();
+            serverThreads = null;
+        }
+        if (fileWriter != null) {
+            fileWriter.shutdownNow();
+            fileWriter = null;
+            writeFile(file);
+        }
+    }
+}
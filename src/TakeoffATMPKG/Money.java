@@ -0,0 +1,206 @@
+package TakeoffATMPKG;
+
+/*
+Class: Money
+Description: Helpers for amounts of money stored as a long number of cents. Whole cents are exact, so balances never
+             drift the way a double does after many deposits and withdrawals. The formatting methods write digits
+             straight into a StringBuilder, so no locale formatter, BigDecimal, or boxed number is involved.
+*/
+
+public final class Money {
+    public static final long CENTS_PER_DOLLAR = 100;
+    // Returned by parse() without throwing when the text is not an amount of money. No valid amount can equal it
+    public static final long INVALID = Long.MIN_VALUE;
+
+    // Largest amount, in dollars, that parse() accepts, which is also the most one deposit can be for. Ten million
+    // dollars is more than any single deposit at an ATM, and a balance would need billions of them to overflow
+    public static final long MAX_PARSED_DOLLARS = 10000000;
+
+    private Money() {
+    }
+
+    /*
+    Method: ofDollars()
+    Description: Converts a whole number of dollars into cents
+    Input:
+        dollars - The number of dollars
+    Output: None
+    Returns: The amount in cents as a long
+    */
+    public static long ofDollars(long dollars) {
+        return dollars * CENTS_PER_DOLLAR;
+    }
+
+    /*
+    Method: parse()
+    Description: Converts text such as "12", "12.5", or "-0.75" into cents. Digits past the second decimal place are
+                 rounded half up, which matches the rounding the deposit path has always applied.
+    Input:
+        text - The amount entered by the user. Leading and trailing whitespace is ignored
+    Output: None
+    Returns: The amount in cents as a long
+    Throws: NumberFormatException if the text is not a plain decimal number
+    */
+    public static long parse(CharSequence text) {
+        long cents = parse(text, 0, text.length());
+        if (cents == INVALID) {
+            throw new NumberFormatException("Not an amount of money: " + text);
+        }
+        return cents;
+    }
+
+    /*
+    Method: parse()
+    Description: Converts part of a character sequence into cents without throwing, for input paths where invalid
+                 text is an ordinary event rather than an error. See parse(CharSequence) for the accepted format.
+    Input:
+        text - The characters to read
+        start - The index of the first character of the amount
+        end - The index after the last character of the amount
+    Output: None
+    Returns: The amount in cents as a long, or INVALID if the text is not an amount of money or is more than
+             MAX_PARSED_DOLLARS
+    */
+    public static long parse(CharSequence text, int start, int end) {
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        boolean negative = false;
+        if (start < end && (text.charAt(start) == '-' || text.charAt(start) == '+')) {
+            negative = text.charAt(start) == '-';
+            start++;
+        }
+
+        long dollars = 0;
+        long cents = 0;
+        int fractionDigits = 0;
+        boolean roundUp = false;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (!seenPoint) {
+                    dollars = dollars * 10 + (c - '0');
+                    if (dollars > MAX_PARSED_DOLLARS) {
+                        return INVALID;
+                    }
+                } else if (fractionDigits < 2) {
+                    cents = cents * 10 + (c - '0');
+                    fractionDigits++;
+                } else if (fractionDigits == 2) {
+                    roundUp = c >= '5';
+                    fractionDigits++;
+                }
+            } else {
+                return INVALID;
+            }
+        }
+        if (!seenDigit) {
+            return INVALID;
+        }
+        if (fractionDigits == 1) {
+            cents *= 10;
+        }
+        long total = dollars * CENTS_PER_DOLLAR + cents + (roundUp ? 1 : 0);
+        if (total > ofDollars(MAX_PARSED_DOLLARS)) {
+            return INVALID;
+        }
+        return negative ? -total : total;
+    }
+
+    /*
+    Method: appendPlain()
+    Description: Writes an amount as ####.##, with a leading minus sign when it is negative. This is the format used in
+                 the transaction history, for example "-20.00" or "140.67"
+    Input:
+        out - The builder to write to
+        cents - The amount in cents
+    Output: The formatted amount is appended to out
+    Returns: The same StringBuilder, so calls can be chained
+    */
+    public static StringBuilder appendPlain(StringBuilder out, long cents) {
+        if (cents < 0) {
+            out.append('-');
+        }
+        long dollars = Math.abs(cents / CENTS_PER_DOLLAR);
+        int remainder = (int) Math.abs(cents % CENTS_PER_DOLLAR);
+        appendDigits(out, dollars, false);
+        out.append('.');
+        out.append((char) ('0' + remainder / 10));
+        out.append((char) ('0' + remainder % 10));
+        return out;
+    }
+
+    /*
+    Method: appendUsd()
+    Description: Writes an amount as United States Dollars, so ####.## will become $#,###.##. A negative amount is
+                 written as -$#,###.##
+    Input:
+        out - The builder to write to
+        cents - The amount in cents
+    Output: The formatted amount is appended to out
+    Returns: The same StringBuilder, so calls can be chained
+    */
+    public static StringBuilder appendUsd(StringBuilder out, long cents) {
+        if (cents < 0) {
+            out.append('-');
+        }
+        long dollars = Math.abs(cents / CENTS_PER_DOLLAR);
+        int remainder = (int) Math.abs(cents % CENTS_PER_DOLLAR);
+        out.append('$');
+        appendDigits(out, dollars, true);
+        out.append('.');
+        out.append((char) ('0' + remainder / 10));
+        out.append((char) ('0' + remainder % 10));
+        return out;
+    }
+
+    /*
+    Method: formatPlain()
+    Description: Formats an amount as ####.##. See appendPlain()
+    Input:
+        cents - The amount in cents
+    Output: None
+    Returns: The formatted amount as a String
+    */
+    public static String formatPlain(long cents) {
+        return appendPlain(new StringBuilder(24), cents).toString();
+    }
+
+    /*
+    Method: formatUsd()
+    Description: Formats an amount as $#,###.##. See appendUsd()
+    Input:
+        cents - The amount in cents
+    Output: None
+    Returns: The formatted amount as a String
+    */
+    public static String formatUsd(long cents) {
+        return appendUsd(new StringBuilder(32), cents).toString();
+    }
+
+    // Writes a non-negative whole number most significant digit first, optionally with a comma every three digits
+    private static void appendDigits(StringBuilder out, long value, boolean grouping) {
+        long divisor = 1;
+        int digits = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+            digits++;
+        }
+        while (divisor > 0) {
+            out.append((char) ('0' + (value / divisor) % 10));
+            digits--;
+            if (grouping && digits > 0 && digits % 3 == 0) {
+                out.append(',');
+            }
+            divisor /= 10;
+        }
+    }
+}
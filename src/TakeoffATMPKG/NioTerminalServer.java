@@ -0,0 +1,372 @@
+package TakeoffATMPKG;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Class: NioTerminalServer
+Description: The "nio" TerminalServer. A single "terminal-selector" thread accepts connections and does all of their
+             socket reads and writes without blocking. When a connection has a complete line, it stops reading that
+             connection and hands it to a "terminal-worker" thread, which runs every complete command in its input,
+             since a command may wait for an account lock or the journal. Replies are written into the connection's
+             output buffer, and the selector sends them as the socket accepts them. Once the worker is done the
+             connection goes back to the selector, so each terminal's commands run one at a time and in order.
+
+             Which thread may touch a connection's input is decided by its busy flag: the selector while it is clear,
+             the worker while it is set. Changes the selector must act on, such as a reply to send or a finished
+             worker, are queued for it and the selector is woken, so only the selector thread changes selection keys.
+*/
+
+final class NioTerminalServer extends TerminalServer {
+    // Input is read into a buffer holding a few full-length lines, so pipelined commands are read together
+    private static final int INPUT_BUFFER_SIZE = 4 * TerminalProtocol.MAX_LINE_LENGTH;
+    // A terminal that stops reading its replies is disconnected once this many bytes are waiting for it
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private final Selector selector;
+    private final ServerSocketChannel listener;
+    private final ExecutorService workers;
+    private final Thread loop;
+    // Connections with a change for the selector to act on
+    private final ConcurrentLinkedQueue<Connection> changed = new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean closed;
+
+    NioTerminalServer(InetSocketAddress address, int workerCount) throws IOException {
+        selector = Selector.open();
+        listener = ServerSocketChannel.open();
+        listener.socket().setReuseAddress(true);
+        listener.bind(address, BACKLOG);
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+
+        final AtomicInteger created = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "terminal-worker-" + created.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                select();
+            }
+        }, "terminal-selector");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    private void select() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection connection;
+                while ((connection = changed.poll()) != null) {
+                    connection.update();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    connection = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        connection.write();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // The server is closing
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).disconnect();
+                }
+            }
+            workers.shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socket;
+        while ((socket = listener.accept()) != null) {
+            socket.configureBlocking(false);
+            socket.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(socket);
+            connection.key = socket.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    @Override
+    public void await() throws InterruptedException {
+        loop.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        listener.close();
+    }
+
+    /*
+    Class: Connection
+    Description: One terminal's socket, its input waiting to be run, and its output waiting to be sent
+    */
+    private final class Connection extends OutputStream implements Runnable {
+        private final SocketChannel socket;
+        private final TerminalProtocol protocol;
+        private SelectionKey key;
+        // In write mode while the selector reads into it, and in read mode while a worker runs its lines
+        private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        // Set while a worker owns the input
+        private boolean busy;
+        // Set once the terminal has quit, sent a line that is too long, or stopped reading its replies
+        private boolean quit;
+        private boolean disconnected;
+
+        // Output written by the protocol. Bytes before flushed are complete replies that may be sent, and bytes before
+        // sent have been. Guarded by the connection's lock
+        private byte[] output = new byte[256];
+        private int length;
+        private int flushed;
+        private int sent;
+
+        Connection(SocketChannel socket) {
+            this.socket = socket;
+            this.protocol = connect(new PrintStream(this), socket.socket().getInetAddress());
+        }
+
+        // Reads what the socket has and, if a whole line has arrived, gives the input to a worker
+        void read() {
+            int count;
+            try {
+                count = socket.read(input);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                disconnect();
+                return;
+            }
+            if (hasLine(input)) {
+                synchronized (this) {
+                    busy = true;
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                input.flip();
+                workers.execute(this);
+            } else if (!input.hasRemaining()) {
+                // No line break in a full buffer
+                disconnect();
+            }
+        }
+
+        // Runs on a worker thread: every complete line is handled, and what is left is kept for the next read
+        @Override
+        public void run() {
+            boolean open = true;
+            try {
+                int end;
+                while (open && (end = lineEnd(input)) >= 0) {
+                    if (end - input.position() > TerminalProtocol.MAX_LINE_LENGTH) {
+                        open = false;
+                        break;
+                    }
+                    int next = end + 1;
+                    ByteBuffer line = input.duplicate();
+                    line.limit(end);
+                    open = protocol.handle(line);
+                    input.position(next);
+                }
+            } catch (RuntimeException e) {
+                open = false;
+            }
+            input.compact();
+            boolean disconnectNow;
+            synchronized (this) {
+                busy = false;
+                quit |= !open;
+                disconnectNow = disconnected;
+            }
+            if (disconnectNow) {
+                // The selector disconnected the connection while the worker had it, and left the logout to the worker
+                protocol.close();
+                return;
+            }
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        // Runs on the selector thread when the socket can take more of the output
+        void write() {
+            synchronized (this) {
+                send();
+            }
+            update();
+        }
+
+        // Sends as much of the flushed output as the socket will take without blocking. Called with the lock held
+        private void send() {
+            try {
+                sent += socket.write(ByteBuffer.wrap(output, sent, flushed - sent));
+            } catch (IOException e) {
+                quit = true;
+                flushed = sent;
+            }
+            if (sent == length) {
+                length = 0;
+                flushed = 0;
+                sent = 0;
+            }
+        }
+
+        // Runs on the selector thread: closes a connection that is finished, otherwise reads while no worker has the
+        // input and writes while there is output to send
+        void update() {
+            if (disconnected) {
+                return;
+            }
+            boolean reading;
+            boolean writing;
+            boolean finished;
+            synchronized (this) {
+                writing = flushed > sent;
+                reading = !busy && !quit;
+                finished = quit && !busy && !writing;
+            }
+            if (finished) {
+                disconnect();
+                return;
+            }
+            key.interestOps((reading ? SelectionKey.OP_READ : 0) | (writing ? SelectionKey.OP_WRITE : 0));
+        }
+
+        // Runs on the selector thread. If a worker has the input, the worker logs out the session when it finishes
+        void disconnect() {
+            boolean working;
+            synchronized (this) {
+                if (disconnected) {
+                    return;
+                }
+                disconnected = true;
+                working = busy;
+            }
+            key.cancel();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            if (!working) {
+                protocol.close();
+            }
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            ensureCapacity(1);
+            output[length++] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int count) {
+            ensureCapacity(count);
+            System.arraycopy(bytes, offset, output, length, count);
+            length += count;
+        }
+
+        // Called by the protocol at the end of each reply. Output written without a flush, such as a session expiry
+        // notice, goes out with the next reply. The reply is sent right away from the worker thread, and left to the
+        // selector only if the socket cannot take all of it
+        @Override
+        public void flush() {
+            synchronized (this) {
+                if (disconnected) {
+                    length = 0;
+                    flushed = 0;
+                    sent = 0;
+                    return;
+                }
+                flushed = length;
+                if (flushed > sent) {
+                    send();
+                }
+                if (length - sent > MAX_PENDING_OUTPUT) {
+                    quit = true;
+                }
+                if (flushed == sent && !quit) {
+                    return;
+                }
+            }
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        private void ensureCapacity(int count) {
+            if (length + count > output.length) {
+                // Space already sent is reclaimed first
+                if (sent > 0) {
+                    System.arraycopy(output, sent, output, 0, length - sent);
+                    length -= sent;
+                    flushed -= sent;
+                    sent = 0;
+                }
+                if (length + count > output.length) {
+                    output = Arrays.copyOf(output, Math.max(output.length * 2, length + count));
+                }
+            }
+        }
+    }
+
+    // Whether the bytes read into the buffer so far hold a line break
+    private static boolean hasLine(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The index of the first line break between the buffer's position and limit, or -1 if there is none
+    private static int lineEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
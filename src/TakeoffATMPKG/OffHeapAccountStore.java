@@ -0,0 +1,419 @@
+package TakeoffATMPKG;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Class: OffHeapAccountStore
+Description: The "offheap" AccountStore. Each account is a 16 byte record, its account ID followed by its balance in
+             cents, in an open addressing table held in direct ByteBuffers outside the Java heap. The table is split
+             into buffers of a fixed number of records, so it can grow past the 2GB limit of a single buffer. Tens of
+             millions of accounts then cost the garbage collector a few hundred buffer objects instead of tens of
+             millions of Account and TransactionHistory objects. Direct memory is limited by -XX:MaxDirectMemorySize,
+             which is the maximum heap size unless it is given.
+
+             find() returns a small Account object that reads and writes the record, and is garbage almost as soon as
+             the command using it is done. A transaction history is only created, on the heap, once an account has a
+             transaction, so accounts that are never used cost nothing beyond their record. PIN hashes are kept in the
+             CredentialStore and sessions on their terminal, neither of which is part of the account.
+*/
+
+public final class OffHeapAccountStore implements AccountStore {
+    // Bytes per record: account ID (8) balance in cents (8)
+    static final int RECORD_SIZE = 16;
+    // Records per direct buffer, 1MB of them
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_RECORDS - 1;
+    // Histories are looked up in small blocks, created when the first account in the block has a transaction
+    private static final int HISTORY_SHIFT = 10;
+    private static final int HISTORY_BLOCK = 1 << HISTORY_SHIFT;
+    private static final int HISTORY_MASK = HISTORY_BLOCK - 1;
+    private static final int MINIMUM_CAPACITY = 16;
+    // Account IDs are stored flipped by this value, so a record of zeros is an empty slot. The one account ID that
+    // would be stored as zero cannot be added
+    private static final long EMPTY_ID = Long.MIN_VALUE;
+
+    private ByteBuffer[] chunks;
+    private AtomicReferenceArray<AtomicReferenceArray<TransactionHistory>> histories;
+    // Number of accounts currently stored
+    private int size;
+    // Table length minus one, used in place of the modulus operator
+    private int mask;
+
+    /*
+    Method: OffHeapAccountStore()
+    Description: A constructor that creates an empty store large enough to hold the expected number of accounts
+                 without having to grow
+    Input:
+        expectedAccounts - The number of accounts that will be loaded into the store
+    Output: Creates an object of type OffHeapAccountStore and allocates its direct memory
+    Returns: No return type (N/A for a constructor)
+    */
+    public OffHeapAccountStore(int expectedAccounts) {
+        allocate(tableSizeFor(expectedAccounts));
+    }
+
+    @Override
+    public Account find(long accountID) {
+        int slot = slotOf(accountID);
+        return slot < 0 ? null : new OffHeapAccount(accountID, slot);
+    }
+
+    @Override
+    public boolean contains(long accountID) {
+        return slotOf(accountID) >= 0;
+    }
+
+    /*
+    Method: put()
+    Description: Copies an account's balance and history into the store. If an account with the same account ID is
+                 already present it is replaced
+    Input:
+        account - The account to insert
+    Output: The store may grow if it becomes more than half full
+    Returns: An Account object holding the replaced balance and history, or null if the account ID was not already
+             present
+    */
+    @Override
+    public Account put(Account account) {
+        if (account == null) {
+            throw new IllegalArgumentException("An account is required");
+        }
+        TransactionHistory history = account.getTransactionHistory();
+        return insert(account.getAccountID(), account.getAccountBalance(), history.isEmpty() ? null : history);
+    }
+
+    @Override
+    public void putAll(Account[] newAccounts) {
+        ensureCapacity(size + newAccounts.length);
+        for (Account account : newAccounts) {
+            if (account != null) {
+                put(account);
+            }
+        }
+    }
+
+    @Override
+    public void putAll(long[] accountIDs, long[] balances, int count) {
+        ensureCapacity(size + count);
+        for (int i = 0; i < count; i++) {
+            insert(accountIDs[i], balances[i], null);
+        }
+    }
+
+    /*
+    Method: remove()
+    Description: Removes the account with the matching account ID. The records that follow it in the same probe
+                 sequence are shifted back, as in AccountDirectory
+    Input:
+        accountID - The account ID of the account to remove
+    Output: The account is no longer in the store
+    Returns: An Account object holding the removed balance and history, or null if there was no account with that ID
+    */
+    @Override
+    public Account remove(long accountID) {
+        int slot = slotOf(accountID);
+        if (slot < 0) {
+            return null;
+        }
+        Account removed = detach(slot);
+        shiftBack(slot);
+        size--;
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // The array is sized from size but grows or shrinks to what the scan finds, so an account added meanwhile cannot
+    // overrun it
+    @Override
+    public Account[] toArray() {
+        Account[] copy = new Account[size];
+        int next = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            long key = key(slot);
+            if (key != 0) {
+                if (next == copy.length) {
+                    copy = Arrays.copyOf(copy, next * 2 + 1);
+                }
+                copy[next++] = new OffHeapAccount(key ^ EMPTY_ID, slot);
+            }
+        }
+        return next == copy.length ? copy : Arrays.copyOf(copy, next);
+    }
+
+    @Override
+    public int slots() {
+        return mask + 1;
+    }
+
+    // Only an account that is visited gets an Account object, and only while it is visited. Histories are passed as
+    // they are, so visiting never creates one
+    @Override
+    public void forEach(int from, int to, Visitor visitor) {
+        int end = Math.min(to, mask + 1);
+        for (int slot = Math.max(from, 0); slot < end; slot++) {
+            long key = key(slot);
+            if (key != 0) {
+                visitor.visit(new OffHeapAccount(key ^ EMPTY_ID, slot), existingHistory(slot));
+            }
+        }
+    }
+
+    /*
+    Method: clear()
+    Description: Removes every account from the store without shrinking the table
+    Input: None
+    Output: The store is empty
+    Returns: Void
+    */
+    @Override
+    public void clear() {
+        for (ByteBuffer chunk : chunks) {
+            for (int offset = 0; offset < chunk.capacity(); offset += 8) {
+                chunk.putLong(offset, 0);
+            }
+        }
+        histories = new AtomicReferenceArray<AtomicReferenceArray<TransactionHistory>>(histories.length());
+        size = 0;
+    }
+
+    private Account insert(long accountID, long balance, TransactionHistory history) {
+        if (accountID == EMPTY_ID) {
+            throw new IllegalArgumentException("Account ID " + accountID + " cannot be stored");
+        }
+        ensureCapacity(size + 1);
+        long key = accountID ^ EMPTY_ID;
+        int slot = AccountDirectory.mix(accountID) & mask;
+        long stored;
+        while ((stored = key(slot)) != 0) {
+            if (stored == key) {
+                Account previous = detach(slot);
+                write(slot, key, balance, history);
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        write(slot, key, balance, history);
+        size++;
+        return null;
+    }
+
+    // The slot holding the account, or -1 if it is not stored
+    private int slotOf(long accountID) {
+        long key = accountID ^ EMPTY_ID;
+        int slot = AccountDirectory.mix(accountID) & mask;
+        long stored;
+        while ((stored = key(slot)) != 0) {
+            if (stored == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private long key(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT].getLong((slot & CHUNK_MASK) * RECORD_SIZE);
+    }
+
+    private long balance(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT].getLong((slot & CHUNK_MASK) * RECORD_SIZE + 8);
+    }
+
+    private void setBalance(int slot, long balance) {
+        chunks[slot >>> CHUNK_SHIFT].putLong((slot & CHUNK_MASK) * RECORD_SIZE + 8, balance);
+    }
+
+    private void write(int slot, long key, long balance, TransactionHistory history) {
+        ByteBuffer chunk = chunks[slot >>> CHUNK_SHIFT];
+        int offset = (slot & CHUNK_MASK) * RECORD_SIZE;
+        chunk.putLong(offset, key);
+        chunk.putLong(offset + 8, balance);
+        setHistory(slot, history);
+    }
+
+    // A heap Account with the slot's balance and history, for put() and remove() to return
+    private Account detach(int slot) {
+        return new Account(key(slot) ^ EMPTY_ID, balance(slot), existingHistory(slot));
+    }
+
+    // The slot's history, created the first time it is needed. Safe to call from any thread
+    private TransactionHistory history(int slot) {
+        AtomicReferenceArray<TransactionHistory> entries = block(slot);
+        TransactionHistory history = entries.get(slot & HISTORY_MASK);
+        if (history == null) {
+            history = new TransactionHistory();
+            if (!entries.compareAndSet(slot & HISTORY_MASK, null, history)) {
+                history = entries.get(slot & HISTORY_MASK);
+            }
+        }
+        return history;
+    }
+
+    // The block of histories holding the slot's, created if it does not exist yet
+    private AtomicReferenceArray<TransactionHistory> block(int slot) {
+        int block = slot >>> HISTORY_SHIFT;
+        AtomicReferenceArray<AtomicReferenceArray<TransactionHistory>> histories = this.histories;
+        AtomicReferenceArray<TransactionHistory> entries = histories.get(block);
+        if (entries == null) {
+            entries = new AtomicReferenceArray<TransactionHistory>(HISTORY_BLOCK);
+            if (!histories.compareAndSet(block, null, entries)) {
+                entries = histories.get(block);
+            }
+        }
+        return entries;
+    }
+
+    // The slot's history, or null if it has never had one
+    private TransactionHistory existingHistory(int slot) {
+        AtomicReferenceArray<TransactionHistory> entries = histories.get(slot >>> HISTORY_SHIFT);
+        return entries == null ? null : entries.get(slot & HISTORY_MASK);
+    }
+
+    private void setHistory(int slot, TransactionHistory history) {
+        if (history == null) {
+            AtomicReferenceArray<TransactionHistory> entries = histories.get(slot >>> HISTORY_SHIFT);
+            if (entries != null) {
+                entries.set(slot & HISTORY_MASK, null);
+            }
+            return;
+        }
+        block(slot).set(slot & HISTORY_MASK, history);
+    }
+
+    // Backward shift deletion, as in AccountDirectory.shiftBack(), moving each record's history with it
+    private void shiftBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long key = key(slot);
+            if (key == 0) {
+                break;
+            }
+            int home = AccountDirectory.mix(key ^ EMPTY_ID) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                write(gap, key, balance(slot), existingHistory(slot));
+                gap = slot;
+            }
+        }
+        write(gap, 0, 0, null);
+    }
+
+    private void ensureCapacity(int accounts) {
+        int required = tableSizeFor(accounts);
+        if (required > mask + 1) {
+            resize(required);
+        }
+    }
+
+    // Allocates a new table and reinserts every record. Only done while accounts are being loaded
+    private void resize(int newCapacity) {
+        ByteBuffer[] oldChunks = chunks;
+        AtomicReferenceArray<AtomicReferenceArray<TransactionHistory>> oldHistories = histories;
+        int oldCapacity = mask + 1;
+        allocate(newCapacity);
+        for (int old = 0; old < oldCapacity; old++) {
+            int offset = (old & CHUNK_MASK) * RECORD_SIZE;
+            long key = oldChunks[old >>> CHUNK_SHIFT].getLong(offset);
+            if (key == 0) {
+                continue;
+            }
+            int slot = AccountDirectory.mix(key ^ EMPTY_ID) & mask;
+            while (key(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            AtomicReferenceArray<TransactionHistory> entries = oldHistories.get(old >>> HISTORY_SHIFT);
+            write(slot, key, oldChunks[old >>> CHUNK_SHIFT].getLong(offset + 8),
+                    entries == null ? null : entries.get(old & HISTORY_MASK));
+        }
+    }
+
+    private void allocate(int capacity) {
+        chunks = new ByteBuffer[(capacity + CHUNK_RECORDS - 1) >>> CHUNK_SHIFT];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(Math.min(capacity, CHUNK_RECORDS) * RECORD_SIZE)
+                    .order(ByteOrder.nativeOrder());
+        }
+        histories = new AtomicReferenceArray<AtomicReferenceArray<TransactionHistory>>(
+                (capacity + HISTORY_BLOCK - 1) >>> HISTORY_SHIFT);
+        mask = capacity - 1;
+    }
+
+    // The smallest power of two table that holds the accounts while at most half full
+    private static int tableSizeFor(int expectedAccounts) {
+        long needed = (long) Math.max(expectedAccounts, 1) * 2;
+        if (needed > (1 << 30)) {
+            throw new IllegalArgumentException("Too many accounts for one store: " + expectedAccounts);
+        }
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /*
+    Class: OffHeapAccount
+    Description: An account whose balance is read from and written to its record. It remembers the record's slot, and
+                 finds the record again if the store has moved it since
+    */
+    private final class OffHeapAccount extends Account {
+        private int slot;
+
+        OffHeapAccount(long accountID, int slot) {
+            super(accountID);
+            this.slot = slot;
+        }
+
+        private int slot() {
+            if (key(slot) != (getAccountID() ^ EMPTY_ID)) {
+                slot = slotOf(getAccountID());
+                if (slot < 0) {
+                    throw new IllegalStateException("Account " + getAccountID() + " has been removed");
+                }
+            }
+            return slot;
+        }
+
+        @Override
+        public long getAccountBalance() {
+            return balance(slot());
+        }
+
+        @Override
+        public void setAccountBalance(long accountBalance) {
+            setBalance(slot(), accountBalance);
+        }
+
+        // A direct buffer has no compare-and-set before Java 9, so the account's lock makes the comparison and the
+        // write one step. Every change to a balance is made holding that lock already, so taking it again is cheap
+        @Override
+        public boolean compareAndSetAccountBalance(long expected, long newBalance) {
+            ReentrantLock lock = Machine.accountLocks.forAccount(getAccountID());
+            lock.lock();
+            try {
+                int slot = slot();
+                if (balance(slot) != expected) {
+                    return false;
+                }
+                setBalance(slot, newBalance);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public TransactionHistory getTransactionHistory() {
+            return history(slot());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package TakeoffATMPKG;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/*
+Class: PinHash
+Description: Converts a PIN into the fixed-size hash that is stored in the CredentialStore in place of the PIN itself.
+             A PIN has only ten thousand possible values, so a fast hash of it can be reversed by trying them all. PINs
+             are therefore stretched with PBKDF2-HMAC-SHA256 and a random salt of their own, which makes each guess
+             cost as much as a login and means two accounts with the same PIN do not have the same hash.
+
+             The unsalted SHA-256 hash of the account ID and PIN, which version 1 account snapshots hold, can still be
+             computed so those snapshots keep working.
+*/
+
+public final class PinHash {
+    // Both hashes produce 32 bytes
+    public static final int LENGTH = 32;
+    public static final int SALT_LENGTH = 16;
+    // PBKDF2 iterations used for new PINs, about 60 milliseconds on one core. Set with -Datm.pinIterations=<count>
+    public static final int DEFAULT_ITERATIONS = Integer.getInteger("atm.pinIterations", 100000);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // MessageDigest and SecretKeyFactory objects are not thread-safe, so each thread keeps its own
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+            }
+        }
+    };
+    private static final ThreadLocal<SecretKeyFactory> KDF = new ThreadLocal<SecretKeyFactory>() {
+        @Override
+        protected SecretKeyFactory initialValue() {
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("PBKDF2WithHmacSHA256 is required by every Java 8 platform", e);
+            }
+        }
+    };
+
+    private PinHash() {
+    }
+
+    /*
+    Method: derive()
+    Description: Stretches a PIN into its stored hash with PBKDF2-HMAC-SHA256
+    Input:
+        pin - The PIN, as entered by the user
+        salt - The account's salt, SALT_LENGTH bytes
+        iterations - The number of PBKDF2 iterations, which must be positive
+    Output: None
+    Returns: The hash as a byte array of length LENGTH
+    */
+    public static byte[] derive(CharSequence pin, byte[] salt, int iterations) {
+        char[] characters = new char[pin.length()];
+        for (int i = 0; i < characters.length; i++) {
+            characters[i] = pin.charAt(i);
+        }
+        PBEKeySpec spec = new PBEKeySpec(characters, salt, iterations, LENGTH * 8);
+        try {
+            return KDF.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalArgumentException("Unable to derive a PIN hash", e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(characters, '\0');
+        }
+    }
+
+    /*
+    Method: newSalt()
+    Description: Creates a random salt for a new PIN
+    Input: None
+    Output: None
+    Returns: The salt as a byte array of length SALT_LENGTH
+    */
+    public static byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    /*
+    Method: hash()
+    Description: Hashes a PIN for an account the way version 1 account snapshots stored it, with a single SHA-256 of the
+                 account ID and PIN
+    Input:
+        accountID - The account the PIN belongs to
+        pin - The PIN, as entered by the user
+    Output: None
+    Returns: The hash as a byte array of length LENGTH
+    */
+    public static byte[] hash(long accountID, CharSequence pin) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (accountID >>> shift));
+        }
+        // A PIN is almost always ASCII digits, whose UTF-8 encoding is one byte per character, so it is hashed without
+        // first being copied into a String or byte array
+        int length = pin.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = pin.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            for (int i = 0; i < length; i++) {
+                digest.update((byte) pin.charAt(i));
+            }
+        } else {
+            digest.update(pin.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return digest.digest();
+    }
+}
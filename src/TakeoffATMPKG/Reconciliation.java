@@ -0,0 +1,392 @@
+package TakeoffATMPKG;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Class: Reconciliation
+Description: Totals of every account's transactions over a period, worked out from the transaction histories: the
+             number and value of deposits, withdrawals, and overdraft fees, and the balances at the start and end of the
+             period. Each account is also checked on its own, since its balance at the end of the period must equal its
+             balance at the start plus its deposits, less its withdrawals and fees. Optionally, a statement for every
+             account with transactions in the period is written as well.
+
+             The AccountStore's slots are divided on a ForkJoinPool into runs of SLOTS_PER_TASK, which are visited in
+             place with AccountStore.forEach() and reconciled in parallel, and their totals added together, so the work
+             scales with the pool's threads without the accounts being copied out first. Each account is read under its
+             lock, one account at a time, so terminals can keep running. Each run writes its statements to a file of
+             its own, named after its first slot, through a buffered writer.
+
+             Only the transactions kept in memory are read, which are limited to each history's retention, so an
+             account whose history has filled up and whose oldest transaction is within the period may be missing some
+             of them, whether they were overwritten or moved to the HistoryArchive. Such an account is counted as
+             incomplete and left out of the totals.
+*/
+
+public final class Reconciliation {
+    // Slots of the AccountStore reconciled by one task without splitting it further, and written to one statement
+    // file. The stores keep their tables at most half full, so this is at most about 4096 accounts
+    public static final int SLOTS_PER_TASK = 8192;
+    private static final String STATEMENT_PREFIX = "statements-";
+    private static final String STATEMENT_SUFFIX = ".txt";
+    // Statement text is handed to the writer once this much has built up
+    private static final int STATEMENT_FLUSH_CHARS = 1 << 16;
+
+    private final long fromEpochSecond;
+    private final long toEpochSecond;
+    private long accounts;
+    private long activeAccounts;
+    private long incompleteAccounts;
+    private long unbalancedAccounts;
+    private long deposits;
+    private long depositCents;
+    private long withdrawals;
+    private long withdrawalCents;
+    private long overdraftFees;
+    private long overdraftFeeCents;
+    private long openingCents;
+    private long closingCents;
+
+    private Reconciliation(long fromEpochSecond, long toEpochSecond) {
+        this.fromEpochSecond = fromEpochSecond;
+        this.toEpochSecond = toEpochSecond;
+    }
+
+    /*
+    Method: run()
+    Description: Reconciles the accounts over a period
+    Input:
+        pool - The pool whose threads do the work
+        accounts - The accounts to reconcile, such as Machine.customers
+        fromEpochSecond - The start of the period, inclusive, in seconds since 1970-01-01T00:00:00Z
+        toEpochSecond - The end of the period, inclusive
+        statementDirectory - Where statements are written, or null to only total the accounts
+    Output: Statement files are written to the directory, if one is given
+    Returns: The totals as a Reconciliation object
+    Throws: IOException if a statement file could not be written
+    */
+    public static Reconciliation run(ForkJoinPool pool, AccountStore accounts, long fromEpochSecond,
+                                     long toEpochSecond, Path statementDirectory) throws IOException {
+        if (statementDirectory != null) {
+            Files.createDirectories(statementDirectory);
+        }
+        try {
+            return pool.invoke(new Task(accounts, 0, accounts.slots(), fromEpochSecond, toEpochSecond,
+                    statementDirectory));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Reconciles a range of slots, splitting it in half until it is short enough to do directly
+    private static final class Task extends RecursiveTask<Reconciliation> {
+        private static final long serialVersionUID = 1L;
+
+        private final AccountStore accounts;
+        private final int start;
+        private final int end;
+        private final long fromEpochSecond;
+        private final long toEpochSecond;
+        private final Path statementDirectory;
+
+        Task(AccountStore accounts, int start, int end, long fromEpochSecond, long toEpochSecond,
+             Path statementDirectory) {
+            this.accounts = accounts;
+            this.start = start;
+            this.end = end;
+            this.fromEpochSecond = fromEpochSecond;
+            this.toEpochSecond = toEpochSecond;
+            this.statementDirectory = statementDirectory;
+        }
+
+        @Override
+        protected Reconciliation compute() {
+            if (end - start <= SLOTS_PER_TASK) {
+                Reconciliation totals = new Reconciliation(fromEpochSecond, toEpochSecond);
+                try {
+                    totals.reconcile(accounts, start, end, statementDirectory);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return totals;
+            }
+            // Split on a multiple of SLOTS_PER_TASK, so statement files hold the same accounts however the work is
+            // divided
+            int middle = start + Math.max(1, (end - start) / SLOTS_PER_TASK / 2) * SLOTS_PER_TASK;
+            Task later = new Task(accounts, middle, end, fromEpochSecond, toEpochSecond, statementDirectory);
+            later.fork();
+            Reconciliation totals = new Task(accounts, start, middle, fromEpochSecond, toEpochSecond,
+                    statementDirectory).compute();
+            totals.add(later.join());
+            return totals;
+        }
+    }
+
+    /*
+    Method: reconcile()
+    Description: Adds the accounts in a run of slots to the totals and writes their statements
+    Input:
+        accounts - Every account
+        start - The first slot of the run
+        end - The slot after the last one in the run
+        statementDirectory - Where the run's statement file is written, or null
+    Output: The totals are updated and the statement file, if any account has transactions, is written
+    Returns: Void
+    */
+    private void reconcile(AccountStore accounts, final int start, int end, final Path statementDirectory)
+            throws IOException {
+        final StringBuilder statements = statementDirectory == null ? null : new StringBuilder();
+        final BufferedWriter[] writer = new BufferedWriter[1];
+        try {
+            accounts.forEach(start, end, new AccountStore.Visitor() {
+                @Override
+                public void visit(Account account, TransactionHistory history) {
+                    reconcile(account, history, statements);
+                    if (statements != null && statements.length() >= STATEMENT_FLUSH_CHARS) {
+                        try {
+                            if (writer[0] == null) {
+                                writer[0] = openStatements(statementDirectory, start);
+                            }
+                            writer[0].append(statements);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        statements.setLength(0);
+                    }
+                }
+            });
+            if (statements != null && statements.length() > 0) {
+                if (writer[0] == null) {
+                    writer[0] = openStatements(statementDirectory, start);
+                }
+                writer[0].append(statements);
+            }
+        } finally {
+            if (writer[0] != null) {
+                writer[0].close();
+            }
+        }
+    }
+
+    private static BufferedWriter openStatements(Path statementDirectory, int start) throws IOException {
+        return Files.newBufferedWriter(statementDirectory.resolve(String.format("%s%010d%s", STATEMENT_PREFIX, start,
+                STATEMENT_SUFFIX)), StandardCharsets.US_ASCII);
+    }
+
+    /*
+    Method: reconcile()
+    Description: Adds one account to the totals, reading its history under its lock, and renders its statement if it
+                 had transactions in the period
+    Input:
+        account - The account
+        history - The account's history, or null if it has never had a transaction
+        statements - Receives the statement, or null if statements are not being written
+    Output: The totals are updated
+    Returns: Void
+    */
+    private void reconcile(Account account, TransactionHistory history, StringBuilder statements) {
+        accounts++;
+        if (history == null) {
+            return;
+        }
+        ReentrantLock lock = Machine.accountLocks.forAccount(account.getAccountID());
+        lock.lock();
+        try {
+            // Positions count back from the newest transaction, so the period runs from newest to oldest
+            int newest = history.countNewerThan(toEpochSecond);
+            int oldest = history.countNewerThan(fromEpochSecond - 1);
+            if (newest >= oldest) {
+                return;
+            }
+            activeAccounts++;
+            // Earlier transactions in the period may have left memory, even if the archive knows the opening balance
+            if (oldest == history.size() && history.getSequence(oldest - 1) > 0) {
+                incompleteAccounts++;
+                return;
+            }
+            long opening = Machine.balanceAt(account, fromEpochSecond - 1);
+            if (opening == Machine.BALANCE_UNKNOWN) {
+                incompleteAccounts++;
+                return;
+            }
+            long closing = Machine.balanceAt(account, toEpochSecond);
+            long accountDeposits = 0;
+            long accountDepositCents = 0;
+            long accountWithdrawals = 0;
+            long accountWithdrawalCents = 0;
+            long accountFees = 0;
+            for (int i = newest; i < oldest; i++) {
+                long amount = history.getAmount(i);
+                if (amount >= 0) {
+                    accountDeposits++;
+                    accountDepositCents += amount;
+                } else {
+                    accountWithdrawals++;
+                    accountWithdrawalCents -= amount;
+                    // A withdrawal that left the balance below zero was followed by the overdraft fee
+                    if (history.getBalance(i) < 0) {
+                        accountFees++;
+                    }
+                }
+            }
+            long accountFeeCents = accountFees * Machine.OVERDRAFT_FEE;
+            deposits += accountDeposits;
+            depositCents += accountDepositCents;
+            withdrawals += accountWithdrawals;
+            withdrawalCents += accountWithdrawalCents;
+            overdraftFees += accountFees;
+            overdraftFeeCents += accountFeeCents;
+            openingCents += opening;
+            closingCents += closing;
+            if (closing != opening + accountDepositCents - accountWithdrawalCents - accountFeeCents) {
+                unbalancedAccounts++;
+            }
+
+            if (statements != null) {
+                statements.append("Account ").append(account.getAccountID()).append("\nPeriod: ");
+                Machine.timestamps.append(statements, fromEpochSecond).append(" to ");
+                Machine.timestamps.append(statements, toEpochSecond).append("\nOpening balance: ");
+                Money.appendUsd(statements, opening).append('\n');
+                for (int i = newest; i < oldest; i++) {
+                    Machine.timestamps.append(statements, history.getTimestamp(i)).append(' ');
+                    Money.appendPlain(statements, history.getAmount(i)).append(' ');
+                    Money.appendPlain(statements, history.getBalance(i)).append('\n');
+                }
+                appendTotal(statements.append("Deposits: "), accountDeposits, accountDepositCents);
+                appendTotal(statements.append("Withdrawals: "), accountWithdrawals, accountWithdrawalCents);
+                appendTotal(statements.append("Overdraft fees: "), accountFees, accountFeeCents);
+                Money.appendUsd(statements.append("Closing balance: "), closing).append("\n\n");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static StringBuilder appendTotal(StringBuilder out, long count, long cents) {
+        out.append(count).append(" totalling ");
+        return Money.appendUsd(out, cents).append('\n');
+    }
+
+    // Adds the totals of another run of accounts to these
+    private void add(Reconciliation other) {
+        accounts += other.accounts;
+        activeAccounts += other.activeAccounts;
+        incompleteAccounts += other.incompleteAccounts;
+        unbalancedAccounts += other.unbalancedAccounts;
+        deposits += other.deposits;
+        depositCents += other.depositCents;
+        withdrawals += other.withdrawals;
+        withdrawalCents += other.withdrawalCents;
+        overdraftFees += other.overdraftFees;
+        overdraftFeeCents += other.overdraftFeeCents;
+        openingCents += other.openingCents;
+        closingCents += other.closingCents;
+    }
+
+    /*
+    Method: getAccounts() / getActiveAccounts() / getIncompleteAccounts() / getUnbalancedAccounts()
+    Description: The number of accounts reconciled, those with transactions in the period, those left out because
+                 their history may be missing some of them, and those whose transactions do not add up to the change
+                 in their balance
+    Input: None
+    Output: None
+    Returns: The count as a long
+    */
+    public long getAccounts() {
+        return accounts;
+    }
+
+    public long getActiveAccounts() {
+        return activeAccounts;
+    }
+
+    public long getIncompleteAccounts() {
+        return incompleteAccounts;
+    }
+
+    public long getUnbalancedAccounts() {
+        return unbalancedAccounts;
+    }
+
+    /*
+    Method: getDeposits() / getWithdrawals() / getOverdraftFees()
+    Description: The number of each kind of transaction in the period
+    Input: None
+    Output: None
+    Returns: The count as a long
+    */
+    public long getDeposits() {
+        return deposits;
+    }
+
+    public long getWithdrawals() {
+        return withdrawals;
+    }
+
+    public long getOverdraftFees() {
+        return overdraftFees;
+    }
+
+    /*
+    Method: getDepositCents() / getWithdrawalCents() / getOverdraftFeeCents()
+    Description: The total value of each kind of transaction in the period, all positive
+    Input: None
+    Output: None
+    Returns: The total in cents as a long
+    */
+    public long getDepositCents() {
+        return depositCents;
+    }
+
+    public long getWithdrawalCents() {
+        return withdrawalCents;
+    }
+
+    public long getOverdraftFeeCents() {
+        return overdraftFeeCents;
+    }
+
+    /*
+    Method: getOpeningCents() / getClosingCents()
+    Description: The balances of the accounts with transactions in the period, added together, at its start and end
+    Input: None
+    Output: None
+    Returns: The total in cents as a long
+    */
+    public long getOpeningCents() {
+        return openingCents;
+    }
+
+    public long getClosingCents() {
+        return closingCents;
+    }
+
+    /*
+    Method: appendSummary()
+    Description: Writes the totals as lines of text
+    Input:
+        out - The builder to write to
+    Output: The summary is appended to out
+    Returns: The same StringBuilder, so calls can be chained
+    */
+    public StringBuilder appendSummary(StringBuilder out) {
+        out.append("Period: ");
+        Machine.timestamps.append(out, fromEpochSecond).append(" to ");
+        Machine.timestamps.append(out, toEpochSecond).append('\n');
+        out.append("Accounts: ").append(accounts).append(", ").append(activeAccounts).append(" with transactions, ")
+                .append(incompleteAccounts).append(" with incomplete history, ").append(unbalancedAccounts)
+                .append(" that do not add up\n");
+        Money.appendUsd(out.append("Opening balances: "), openingCents).append('\n');
+        appendTotal(out.append("Deposits: "), deposits, depositCents);
+        appendTotal(out.append("Withdrawals: "), withdrawals, withdrawalCents);
+        appendTotal(out.append("Overdraft fees: "), overdraftFees, overdraftFeeCents);
+        return Money.appendUsd(out.append("Closing balances: "), closingCents).append('\n');
+    }
+}
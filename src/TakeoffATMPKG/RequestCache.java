@@ -0,0 +1,243 @@
+package TakeoffATMPKG;
+
+/*
+Class: RequestCache
+Description: The replies recently given to withdrawals and deposits that carried a request ID, so a terminal that
+             retries after losing a reply is given the original reply instead of having the transaction applied twice.
+             Replies are kept by the terminal's origin (see Terminal.getOrigin()), account and request ID, not by
+             connection, so a retry made after the terminal has reconnected from the same address is still recognised.
+             Request IDs are chosen by the client, so they only need to be unique per origin: two terminals on a joint
+             account that both send request ID 1 are two requests. A reply is kept for -Datm.requestSeconds (ten
+             minutes unless given), and at most -Datm.requestsPerStripe replies (1024 unless given) are kept by each
+             cache, the oldest being dropped first.
+
+             A reply is only repeated for the same kind of transaction, so a request ID reused for something else is
+             taken as a new request. A request is entered as soon as it starts, so a retry that arrives while the
+             original is still being carried out, typically because the terminal gave up on the old connection, waits
+             for the original reply instead of applying the transaction a second time.
+
+             Requests are kept in a table with open addressing and linear probing over primitive arrays, like
+             AccountDirectory, so neither a lookup nor an insert creates an object. Arrival order is kept in a ring of
+             the same size, which is what makes dropping the oldest reply cheap. Machine keeps a fixed set of caches,
+             one per stripe of account IDs like StripedLock, so requests on different accounts rarely share a cache.
+*/
+
+public final class RequestCache {
+    // Passed by a command without a request ID
+    public static final long NO_REQUEST_ID = -1;
+    // What a cached reply was for
+    public static final int WITHDRAWAL = 1;
+    public static final int DEPOSIT = 2;
+
+    // Caches Machine divides accounts between, the replies kept by each, and how long each is kept for
+    static final int STRIPES = 64;
+    static final int MAX_REQUESTS = Integer.getInteger("atm.requestsPerStripe", 1024);
+    static final long WINDOW_NANOSECONDS = Long.getLong("atm.requestSeconds", 600) * 1000000000L;
+    // The reply of a request that is still being carried out
+    private static final String PENDING = new String("pending");
+
+    // Hash table of requests, twice the size of the ring so probes stay short. A slot is empty when its reply is null
+    private final long[] requestIDs;
+    private final long[] accountIDs;
+    private final long[] origins;
+    private final int[] kinds;
+    private final long[] times;
+    private final String[] replies;
+    private final int mask;
+    // The requests in the order they arrived, and when, oldest at head
+    private final long[] arrivals;
+    private final long[] arrivalAccounts;
+    private final long[] arrivalOrigins;
+    private final long[] arrivalTimes;
+    private int head;
+    private int size;
+    private final long window;
+
+    /*
+    Method: RequestCache()
+    Description: A constructor that creates an empty cache with the configured limits
+    Input: None
+    Output: Creates an object of type RequestCache
+    Returns: No return type (N/A for a constructor)
+    */
+    public RequestCache() {
+        this(MAX_REQUESTS, WINDOW_NANOSECONDS);
+    }
+
+    /*
+    Method: RequestCache()
+    Description: A constructor that creates an empty cache
+    Input:
+        maxRequests - The most replies kept at once
+        windowNanoseconds - How long a reply is kept for
+    Output: Creates an object of type RequestCache
+    Returns: No return type (N/A for a constructor)
+    Throws: IllegalArgumentException if maxRequests is less than one
+    */
+    public RequestCache(int maxRequests, long windowNanoseconds) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("At least one request must be kept: " + maxRequests);
+        }
+        int capacity = Integer.highestOneBit(maxRequests * 2 - 1) << 1;
+        requestIDs = new long[capacity];
+        accountIDs = new long[capacity];
+        origins = new long[capacity];
+        kinds = new int[capacity];
+        times = new long[capacity];
+        replies = new String[capacity];
+        mask = capacity - 1;
+        arrivals = new long[maxRequests];
+        arrivalAccounts = new long[maxRequests];
+        arrivalOrigins = new long[maxRequests];
+        arrivalTimes = new long[maxRequests];
+        window = windowNanoseconds;
+    }
+
+    /*
+    Method: begin()
+    Description: Looks up the reply given to an earlier request with the same ID, from the same origin, on the same
+                 account, waiting for it if that request is still being carried out. If there is none, the request is
+                 entered as pending, and the caller must carry it out and then call complete()
+    Input:
+        requestID - The request ID the terminal sent
+        accountID - The account the request is for
+        origin - Where the terminal connects from
+        kind - WITHDRAWAL or DEPOSIT
+        now - The current System.nanoTime()
+    Output: A new request is entered
+    Returns: The original reply, or null if the request is new, was for something else, or was made too long ago
+    */
+    public synchronized String begin(long requestID, long accountID, long origin, int kind, long now) {
+        int slot = slotOf(requestID, accountID, origin);
+        while (slot >= 0 && replies[slot] == PENDING && kinds[slot] == kind && now - times[slot] <= window) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            slot = slotOf(requestID, accountID, origin);
+        }
+        if (slot >= 0 && kinds[slot] == kind && now - times[slot] <= window) {
+            return replies[slot];
+        }
+        put(requestID, accountID, origin, kind, PENDING, now);
+        return null;
+    }
+
+    /*
+    Method: complete()
+    Description: Records the reply to a request begin() entered, and wakes any retry waiting for it
+    Input:
+        requestID - The request ID the terminal sent
+        accountID - The account the request was for
+        origin - Where the terminal connects from
+        kind - WITHDRAWAL or DEPOSIT
+        reply - The reply the terminal was given, or null if the request failed without one, which lets a retry carry
+                it out again
+    Output: The cache holds the reply, or no longer holds the request
+    Returns: Void
+    */
+    public synchronized void complete(long requestID, long accountID, long origin, int kind, String reply) {
+        int slot = slotOf(requestID, accountID, origin);
+        if (slot >= 0 && replies[slot] == PENDING && kinds[slot] == kind) {
+            if (reply == null) {
+                shiftBack(slot);
+            } else {
+                replies[slot] = reply;
+            }
+        }
+        notifyAll();
+    }
+
+    /*
+    Method: size()
+    Description: Retrieves the number of requests held, which may include some that are too old to be repeated
+    Input: None
+    Output: None
+    Returns: The number of requests as an int
+    */
+    public synchronized int size() {
+        return size;
+    }
+
+    // Enters a request, replacing any earlier one with the same request ID, account and origin. Requests older than
+    // the window are dropped first, then the oldest request if the cache is still full
+    private void put(long requestID, long accountID, long origin, int kind, String reply, long now) {
+        while (size > 0 && (size == arrivals.length || now - arrivalTimes[head] > window)) {
+            evict(arrivals[head], arrivalAccounts[head], arrivalOrigins[head], arrivalTimes[head]);
+            head = head + 1 == arrivals.length ? 0 : head + 1;
+            size--;
+        }
+
+        int slot = hash(requestID, accountID, origin) & mask;
+        while (replies[slot] != null && !holds(slot, requestID, accountID, origin)) {
+            slot = (slot + 1) & mask;
+        }
+        requestIDs[slot] = requestID;
+        accountIDs[slot] = accountID;
+        origins[slot] = origin;
+        kinds[slot] = kind;
+        times[slot] = now;
+        replies[slot] = reply;
+
+        int tail = head + size;
+        tail = tail >= arrivals.length ? tail - arrivals.length : tail;
+        arrivals[tail] = requestID;
+        arrivalAccounts[tail] = accountID;
+        arrivalOrigins[tail] = origin;
+        arrivalTimes[tail] = now;
+        size++;
+    }
+
+    // The slot holding a request, or -1 if it is not held
+    private int slotOf(long requestID, long accountID, long origin) {
+        int slot = hash(requestID, accountID, origin) & mask;
+        while (replies[slot] != null) {
+            if (holds(slot, requestID, accountID, origin)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean holds(int slot, long requestID, long accountID, long origin) {
+        return requestIDs[slot] == requestID && accountIDs[slot] == accountID && origins[slot] == origin;
+    }
+
+    // Removes a request, unless it has been replaced by a later request with the same ID
+    private void evict(long requestID, long accountID, long origin, long time) {
+        int slot = slotOf(requestID, accountID, origin);
+        if (slot >= 0 && times[slot] == time) {
+            shiftBack(slot);
+        }
+    }
+
+    // Backward shift deletion, as in AccountDirectory, so the table never needs tombstones
+    private void shiftBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            String reply = replies[slot];
+            if (reply == null) {
+                break;
+            }
+            int home = hash(requestIDs[slot], accountIDs[slot], origins[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                requestIDs[gap] = requestIDs[slot];
+                accountIDs[gap] = accountIDs[slot];
+                origins[gap] = origins[slot];
+                kinds[gap] = kinds[slot];
+                times[gap] = times[slot];
+                replies[gap] = reply;
+                gap = slot;
+            }
+        }
+        replies[gap] = null;
+    }
+
+    private static int hash(long requestID, long accountID, long origin) {
+        return AccountDirectory.mix((requestID * 0x9E3779B97F4A7C15L + accountID) * 0x9E3779B97F4A7C15L + origin);
+    }
+}
@@ -0,0 +1,84 @@
+package TakeoffATMPKG;
+
+/*
+Interface: RiskCheck
+Description: A stage every authorization and withdrawal passes through before it reaches the account, which may refuse
+             it. Machine uses VelocityCheck, set up from the -Datm.max... limits, and ALLOW_ALL when none are set. Each
+             call is made on the thread serving the terminal, inside the operation it screens, so an implementation
+             must be thread safe and quick.
+*/
+
+public interface RiskCheck {
+    // Refuses nothing
+    RiskCheck ALLOW_ALL = new RiskCheck() {
+        @Override
+        public boolean allowAuthorize(long origin, long accountID, long now) {
+            return true;
+        }
+
+        @Override
+        public void authorizeFailed(long origin, long accountID, long now) {
+        }
+
+        @Override
+        public boolean allowWithdrawal(long accountID, long terminalID, long amount, long now) {
+            return true;
+        }
+
+        @Override
+        public void withdrawalFailed(long accountID, long terminalID, long amount, long now) {
+        }
+    };
+
+    /*
+    Method: allowAuthorize()
+    Description: Decides whether a PIN may be tried, before it is checked
+    Input:
+        origin - Where the attempt comes from, as given by Terminal.getOrigin(). Unlike the terminal ID, it stays the
+                 same when a terminal reconnects
+        accountID - The account ID being tried
+        now - The current System.nanoTime()
+    Output: None
+    Returns: True if the PIN should be checked, false to fail the attempt without checking it
+    */
+    boolean allowAuthorize(long origin, long accountID, long now);
+
+    /*
+    Method: authorizeFailed()
+    Description: Records an authorization that failed, for any reason
+    Input:
+        origin - Where the attempt came from, as given to allowAuthorize()
+        accountID - The account ID that was tried
+        now - The current System.nanoTime()
+    Output: The failure is counted
+    Returns: Void
+    */
+    void authorizeFailed(long origin, long accountID, long now);
+
+    /*
+    Method: allowWithdrawal()
+    Description: Decides whether a withdrawal may go ahead, and if so counts it as made
+    Input:
+        accountID - The account to withdraw from
+        terminalID - The terminal the withdrawal is made at
+        amount - The amount requested, in cents
+        now - The current System.nanoTime()
+    Output: The withdrawal is counted
+    Returns: True if the withdrawal may go ahead
+    */
+    boolean allowWithdrawal(long accountID, long terminalID, long amount, long now);
+
+    /*
+    Method: withdrawalFailed()
+    Description: Takes back a withdrawal that was allowed but then not made, because the account was overdrawn or the
+                 terminal could not dispense it
+    Input:
+        accountID - The account, as given to allowWithdrawal()
+        terminalID - The terminal, as given to allowWithdrawal()
+        amount - The amount, as given to allowWithdrawal()
+        now - The time given to allowWithdrawal()
+    Output: The amount no longer counts against the account
+    Returns: Void
+    */
+    void withdrawalFailed(long accountID, long terminalID, long amount, long now);
+}
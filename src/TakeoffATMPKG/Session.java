@@ -0,0 +1,79 @@
+package TakeoffATMPKG;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Class: Session
+Description: The handle a terminal receives when a customer is authorized. Every account interaction, such as WITHDRAW,
+             DEPOSIT, etc., is performed through a session, so each terminal can serve its own customer at the same time
+             as every other terminal. A session ends when the customer logs out or when its expiry fires.
+*/
+
+public class Session {
+    // The account that was authorized
+    private final Account account;
+    // The terminal the customer is using
+    private final Terminal terminal;
+    // Cleared exactly once, by whichever of logout or the expiry thread ends the session first
+    private final AtomicBoolean active = new AtomicBoolean(true);
+    // The pending expiry on the shared session expiry wheel. Only Machine schedules, renews, or cancels it.
+    SessionExpiryService.Timeout expiry;
+
+    /*
+    Method: Session()
+    Description: A constructor that connects an authorized account to the terminal being used
+    Input:
+        account - The account that has been authorized
+        terminal - The terminal the customer is using
+    Output: Creates an object of type Session, which is active
+    Returns: No return type (N/A for a constructor)
+    */
+    Session(Account account, Terminal terminal) {
+        this.account = account;
+        this.terminal = terminal;
+    }
+
+    /*
+    Method: getAccount()
+    Description: Retrieves the private account property
+    Input: None
+    Output: None
+    Returns: The authorized account as an Account object
+    */
+    public Account getAccount() {
+        return account;
+    }
+
+    /*
+    Method: getTerminal()
+    Description: Retrieves the private terminal property
+    Input: None
+    Output: None
+    Returns: The terminal the session belongs to as a Terminal object
+    */
+    public Terminal getTerminal() {
+        return terminal;
+    }
+
+    /*
+    Method: isActive()
+    Description: Checks whether the customer still has access to the account
+    Input: None
+    Output: None
+    Returns: False once the session has been logged out or has expired
+    */
+    public boolean isActive() {
+        return active.get();
+    }
+
+    /*
+    Method: end()
+    Description: Marks the session as ended. Logout and the expiry thread may race, so only the first caller succeeds.
+    Input: None
+    Output: The session is no longer active
+    Returns: True if this call ended the session, or false if it had already ended
+    */
+    boolean end() {
+        return active.compareAndSet(true, false);
+    }
+}
@@ -0,0 +1,302 @@
+package TakeoffATMPKG;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: SessionExpiryService
+Description: Ends sessions that have been idle for too long. Every pending expiry is kept in a hashed timing wheel that
+             is advanced by one shared daemon thread, so the machine never starts more than one thread for timeouts no
+             matter how many sessions are open. Scheduling, renewing, and cancelling an expiry each take constant time
+             because every timeout is a node in a doubly linked list belonging to one bucket of the wheel.
+*/
+
+public class SessionExpiryService {
+    // Default length of one tick of the wheel. Session timeouts are measured in minutes, so 100ms is precise enough
+    public static final long DEFAULT_TICK_MILLISECONDS = 100;
+    // Default number of buckets. 4096 ticks of 100ms covers a little under seven minutes before a timeout wraps around
+    public static final int DEFAULT_WHEEL_SIZE = 4096;
+
+    /*
+    Class: Timeout
+    Description: The handle returned when an expiry is scheduled. It is also the list node stored in the wheel, so no
+                 other object is created when a timeout is scheduled or renewed.
+    */
+    public static final class Timeout {
+        private final Runnable task;
+        // The tick on which the task will run
+        private long deadlineTick;
+        // Links to the neighbouring timeouts in the same bucket
+        private Timeout previous;
+        private Timeout next;
+        // The bucket holding this timeout, or null once it has expired or been cancelled
+        private Bucket bucket;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    // Head of one linked list of timeouts. Using an object instead of a bare head reference lets a timeout remember the
+    // list it belongs to
+    private static final class Bucket {
+        private Timeout head;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = null;
+            timeout.next = head;
+            if (head != null) {
+                head.previous = timeout;
+            }
+            head = timeout;
+        }
+
+        private void unlink(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private final long tickNanoseconds;
+    private final Bucket[] wheel;
+    private final int mask;
+    // Guards the wheel. Every operation performed while holding it is constant time
+    private final Object lock = new Object();
+    // The time the wheel started turning, used to calculate which tick is current
+    private final long startTime;
+    // The last tick processed by the worker thread
+    private long currentTick;
+    // Number of timeouts that have been scheduled but have not expired or been cancelled
+    private int pending;
+    private Thread worker;
+    private volatile boolean shutdown;
+
+    /*
+    Method: SessionExpiryService()
+    Description: A constructor that creates a wheel with the default tick length and size
+    Input: None
+    Output: Creates an object of type SessionExpiryService. The worker thread is started when the first timeout is
+            scheduled.
+    Returns: No return type (N/A for a constructor)
+    */
+    public SessionExpiryService() {
+        this(DEFAULT_TICK_MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /*
+    Method: SessionExpiryService()
+    Description: A constructor that creates a wheel with a custom tick length and size
+    Input:
+        tickMilliseconds - The length of one tick of the wheel, which is the precision of each expiry
+        wheelSize - The number of buckets, rounded up to a power of two
+    Output: Creates an object of type SessionExpiryService
+    Returns: No return type (N/A for a constructor)
+    */
+    public SessionExpiryService(long tickMilliseconds, int wheelSize) {
+        if (tickMilliseconds < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("Tick length and wheel size must be positive");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickNanoseconds = TimeUnit.MILLISECONDS.toNanos(tickMilliseconds);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    /*
+    Method: schedule()
+    Description: Schedules a task to run once the delay has passed
+    Input:
+        delayMilliseconds - How long to wait before running the task
+        task - The code to run when the timeout expires. It runs on the worker thread, so it must be short
+    Output: The timeout is added to the wheel
+    Returns: A Timeout handle that can be renewed or cancelled
+    */
+    public Timeout schedule(long delayMilliseconds, Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("A task is required");
+        }
+        Timeout timeout = new Timeout(task);
+        synchronized (lock) {
+            if (shutdown) {
+                throw new IllegalStateException("The session expiry service has been shut down");
+            }
+            insert(timeout, delayMilliseconds);
+            pending++;
+            startWorker();
+        }
+        return timeout;
+    }
+
+    /*
+    Method: renew()
+    Description: Pushes the deadline of a pending timeout back so that it expires the given delay from now
+    Input:
+        timeout - The handle returned by schedule()
+        delayMilliseconds - The new delay, measured from the current time
+    Output: The timeout is moved to a different bucket
+    Returns: True if the timeout was renewed, or false if it had already expired or been cancelled
+    */
+    public boolean renew(Timeout timeout, long delayMilliseconds) {
+        if (timeout == null) {
+            return false;
+        }
+        synchronized (lock) {
+            if (timeout.bucket == null) {
+                return false;
+            }
+            timeout.bucket.unlink(timeout);
+            insert(timeout, delayMilliseconds);
+            return true;
+        }
+    }
+
+    /*
+    Method: cancel()
+    Description: Removes a pending timeout so that its task never runs
+    Input:
+        timeout - The handle returned by schedule()
+    Output: The timeout is removed from the wheel
+    Returns: True if the timeout was cancelled, or false if it had already expired or been cancelled
+    */
+    public boolean cancel(Timeout timeout) {
+        if (timeout == null) {
+            return false;
+        }
+        synchronized (lock) {
+            if (timeout.bucket == null) {
+                return false;
+            }
+            timeout.bucket.unlink(timeout);
+            pending--;
+            return true;
+        }
+    }
+
+    /*
+    Method: pending()
+    Description: Retrieves the number of timeouts that are waiting to expire
+    Input: None
+    Output: None
+    Returns: The number of pending timeouts as an int
+    */
+    public int pending() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    /*
+    Method: shutdown()
+    Description: Stops the worker thread. Pending timeouts are discarded without running.
+    Input: None
+    Output: The worker thread exits
+    Returns: Void
+    */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    // Must be called while holding the lock
+    private void insert(Timeout timeout, long delayMilliseconds) {
+        long delayTicks = (TimeUnit.MILLISECONDS.toNanos(Math.max(delayMilliseconds, 0)) + tickNanoseconds - 1)
+                / tickNanoseconds;
+        // A timeout can never land on a tick that the worker has already processed
+        long deadline = Math.max(tickAt(System.nanoTime()), currentTick) + Math.max(delayTicks, 1);
+        timeout.deadlineTick = deadline;
+        wheel[(int) (deadline & mask)].add(timeout);
+    }
+
+    private long tickAt(long nanoTime) {
+        return (nanoTime - startTime) / tickNanoseconds;
+    }
+
+    // Must be called while holding the lock
+    private void startWorker() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                turnWheel();
+            }
+        }, "session-expiry");
+        // The wheel must never keep the program alive after the END command
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /*
+    Method: turnWheel()
+    Description: The loop run by the worker thread. Each tick, every timeout in the current bucket whose deadline has
+                 arrived is unlinked, and its task is run after the lock has been released. Timeouts further than one
+                 full turn of the wheel away stay in the bucket until their deadline comes around.
+    Input: None
+    Output: Expired tasks are run
+    Returns: Void
+    */
+    private void turnWheel() {
+        while (!shutdown) {
+            long now = tickAt(System.nanoTime());
+            Timeout expired = null;
+            synchronized (lock) {
+                while (currentTick < now) {
+                    currentTick++;
+                    Bucket bucket = wheel[(int) (currentTick & mask)];
+                    Timeout timeout = bucket.head;
+                    while (timeout != null) {
+                        Timeout next = timeout.next;
+                        if (timeout.deadlineTick <= currentTick) {
+                            bucket.unlink(timeout);
+                            pending--;
+                            // Reuse the next reference to chain the expired timeouts together
+                            timeout.next = expired;
+                            expired = timeout;
+                        }
+                        timeout = next;
+                    }
+                }
+            }
+            while (expired != null) {
+                Timeout next = expired.next;
+                expired.next = null;
+                try {
+                    expired.task.run();
+                } catch (RuntimeException e) {
+                    // One failing task must not stop every other session from expiring
+                    System.err.println("Session expiry task failed: " + e);
+                }
+                expired = next;
+            }
+            long sleepNanoseconds = startTime + (now + 1) * tickNanoseconds - System.nanoTime();
+            if (sleepNanoseconds > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanoseconds);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
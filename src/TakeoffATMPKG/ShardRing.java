@@ -0,0 +1,151 @@
+package TakeoffATMPKG;
+
+import java.util.Arrays;
+
+/*
+Class: ShardRing
+Description: Decides which shard owns each account, by consistent hashing. Every shard is placed at VIRTUAL_NODES points
+             on a ring of 32-bit hash values, found by hashing its name, and an account belongs to the shard at the first
+             point at or after the hash of its account ID, wrapping around at the end. Spreading each shard over many
+             points keeps their shares of the accounts close to even.
+
+             Because a shard's points depend only on its name, adding a shard only takes accounts from the arcs just
+             before its new points: about 1/(N+1) of the accounts move, all of them to the new shard, and every other
+             account stays where it was. Shards are numbered in the order they were added, which withShard() keeps, so
+             a shard's number can index an array of shards across rings.
+
+             A ring never changes once built, so lookups need no locking.
+*/
+
+public final class ShardRing {
+    // Points on the ring for each shard
+    public static final int VIRTUAL_NODES = 160;
+
+    private final String[] names;
+    // Hash values of the points, in increasing order, and the shard at each one
+    private final int[] points;
+    private final int[] owners;
+
+    /*
+    Method: ShardRing()
+    Description: A constructor that places shards on the ring
+    Input:
+        shardNames - The name of each shard, which must be unique and not empty. A shard's number is its position
+    Output: Creates an object of type ShardRing
+    Returns: No return type (N/A for a constructor)
+    Throws: IllegalArgumentException if there are no shards, or a name is empty or repeated
+    */
+    public ShardRing(String... shardNames) {
+        if (shardNames.length == 0) {
+            throw new IllegalArgumentException("A ring needs at least one shard");
+        }
+        names = shardNames.clone();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null || names[i].isEmpty()) {
+                throw new IllegalArgumentException("Shard names must not be empty");
+            }
+            for (int j = 0; j < i; j++) {
+                if (names[j].equals(names[i])) {
+                    throw new IllegalArgumentException("Shard " + names[i] + " is named more than once");
+                }
+            }
+        }
+
+        // Each point is packed with its owner, so sorting the packed values sorts the points and breaks ties between
+        // colliding points the same way every time
+        long[] packed = new long[names.length * VIRTUAL_NODES];
+        for (int shard = 0; shard < names.length; shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                packed[shard * VIRTUAL_NODES + node] = ((long) point(names[shard], node) << 32) | shard;
+            }
+        }
+        Arrays.sort(packed);
+        points = new int[packed.length];
+        owners = new int[packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            points[i] = (int) (packed[i] >> 32);
+            owners[i] = (int) packed[i];
+        }
+    }
+
+    /*
+    Method: withShard()
+    Description: Creates a ring with one more shard, numbered after the existing ones
+    Input:
+        name - The name of the new shard
+    Output: None
+    Returns: The new ShardRing object. This ring is unchanged
+    */
+    public ShardRing withShard(String name) {
+        String[] more = Arrays.copyOf(names, names.length + 1);
+        more[names.length] = name;
+        return new ShardRing(more);
+    }
+
+    /*
+    Method: shardOf()
+    Description: Finds the shard that owns an account
+    Input:
+        accountID - The account ID
+    Output: None
+    Returns: The shard's number
+    */
+    public int shardOf(long accountID) {
+        int hash = AccountDirectory.mix(accountID);
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /*
+    Method: size()
+    Description: Retrieves the number of shards
+    Input: None
+    Output: None
+    Returns: The number of shards as an int
+    */
+    public int size() {
+        return names.length;
+    }
+
+    /*
+    Method: getName()
+    Description: Retrieves a shard's name
+    Input:
+        shard - The shard's number
+    Output: None
+    Returns: The name as a String
+    */
+    public String getName(int shard) {
+        return names[shard];
+    }
+
+    /*
+    Method: indexOf()
+    Description: Finds a shard's number from its name
+    Input:
+        name - The shard's name
+    Output: None
+    Returns: The shard's number, or -1 if no shard has that name
+    */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The hash of one of a shard's points: FNV-1a over the name, finished with the same mix as account IDs
+    private static int point(String name, int node) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x01000193;
+        }
+        return AccountDirectory.mix(((long) hash << 32) | node);
+    }
+}
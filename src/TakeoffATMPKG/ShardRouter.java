@@ -0,0 +1,354 @@
+package TakeoffATMPKG;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+Class: ShardRouter
+Description: A TerminalServer that owns no accounts. It accepts terminals like any other server and passes each command
+             to the shard that owns the account, a machine of its own started with -Datm.shardName, which keeps only
+             the accounts the ShardRing gives it. Shards are listed with -Datm.shards, in the same order everywhere:
+
+                 -Datm.shards=a=127.0.0.1:7101,b=127.0.0.1:7102,c=127.0.0.1:7103
+
+             Every terminal connection gets its own connection to each shard it uses, opened the first time it is
+             needed, so a terminal's session lives on the shard that owns its account. AUTHORIZE goes to the shard that
+             owns the account being authorized, and once it succeeds, a session the terminal had on a different shard
+             is logged out. WITHDRAW, DEPOSIT, BALANCE, HISTORY, LOGOUT and QUIT go to the shard holding the session,
+             or to the first shard when there is none, which gives the usual replies for a terminal with no session.
+             Replies are passed back unchanged up to the end of reply line, along with any notices ahead of them.
+
+             Each terminal's cash is held here, once, whichever shards it uses. Its connections to the shards start with
+             ROUTED (see TerminalProtocol), giving the terminal's origin, so requests and failures are counted against
+             the terminal rather than the router, and telling the shard not to keep cash of its own for it. A
+             WITHDRAW with a session takes the notes from the terminal's cash first, and hands them out only if the
+             shard's reply says they were dispensed, putting them back otherwise. When the notes cannot be taken the
+             router replies itself, so an empty terminal says so even to an overdrawn account, and the failure is not
+             counted by the shard's RiskCheck. A retry of a withdrawal that handed out notes, with the same request
+             ID, is given the original reply by the router.
+
+             Connections are accepted and read by ThreadedTerminalServer, so every terminal has a thread of its own
+             whatever -Datm.serverMode says. A routed command waits on the shard's reply, which a selector thread could
+             not do without blocking every other terminal.
+*/
+
+final class ShardRouter extends ThreadedTerminalServer {
+    private static final int CONNECT_TIMEOUT_MILLISECONDS = 5000;
+    private static final String UNREACHABLE = "Unable to reach the account's shard.\n\n";
+    // How a shard's reply starts a line when it has dispensed a withdrawal's cash, including when the withdrawal
+    // could not be recorded
+    private static final String DISPENSED = "Amount dispensed: ";
+    private static final String NOT_RECORDED = Machine.TRANSACTION_NOT_RECORDED.trim();
+
+    private final ShardRing ring;
+    private final InetSocketAddress[] shardAddresses;
+    // Replies to withdrawals that handed out notes, so a retry does not hand them out again
+    private final RequestCache requests = new RequestCache();
+
+    /*
+    Method: ShardRouter()
+    Description: A constructor that starts routing terminals to shards
+    Input:
+        address - The address and port to listen on. Port 0 picks a free port
+        shards - The shards, in the form accepted by -Datm.shards
+    Output: Creates an object of type ShardRouter and starts its acceptor thread
+    Returns: No return type (N/A for a constructor)
+    Throws: IOException if the socket cannot be opened, IllegalArgumentException if the shards cannot be read
+    */
+    ShardRouter(InetSocketAddress address, String shards) throws IOException {
+        // The shards are read before the socket is opened, so a mistake in them leaves nothing open
+        this(address, ring(shards), addresses(shards));
+    }
+
+    private ShardRouter(InetSocketAddress address, ShardRing ring, InetSocketAddress[] shardAddresses)
+            throws IOException {
+        super(address, "shard-router");
+        this.ring = ring;
+        this.shardAddresses = shardAddresses;
+        startAccepting();
+    }
+
+    /*
+    Method: ring()
+    Description: Reads the shard names, in order, from the value of -Datm.shards
+    Input:
+        shards - Comma separated <name>=<host>:<port> entries
+    Output: None
+    Returns: The ShardRing object
+    Throws: IllegalArgumentException if an entry has no name, or a name is repeated
+    */
+    static ShardRing ring(String shards) {
+        String[] entries = shards.split(",");
+        String[] names = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            int equals = entries[i].indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected <name>=<host>:<port>: " + entries[i].trim());
+            }
+            names[i] = entries[i].substring(0, equals).trim();
+        }
+        return new ShardRing(names);
+    }
+
+    // Reads the shard addresses, in order, from the value of -Datm.shards. They are resolved each time a shard is
+    // connected to, so a shard can move to a new address without the router being restarted
+    private static InetSocketAddress[] addresses(String shards) {
+        String[] entries = shards.split(",");
+        InetSocketAddress[] addresses = new InetSocketAddress[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String hostAndPort = entries[i].substring(entries[i].indexOf('=') + 1).trim();
+            int colon = hostAndPort.lastIndexOf(':');
+            try {
+                addresses[i] = InetSocketAddress.createUnresolved(hostAndPort.substring(0, colon),
+                        Integer.parseInt(hostAndPort.substring(colon + 1)));
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Expected <name>=<host>:<port>: " + entries[i].trim());
+            }
+        }
+        return addresses;
+    }
+
+    // Reads lines until the terminal quits or disconnects, passing each one to a shard
+    @Override
+    void serve(Socket socket, InputStream in, PrintStream out) throws IOException {
+        Route route = new Route(newTerminal(out, socket.getInetAddress()));
+        try {
+            byte[] line = new byte[TerminalProtocol.MAX_LINE_LENGTH];
+            boolean open = true;
+            while (open) {
+                int length = readLine(in, line);
+                if (length < 0) {
+                    return;
+                }
+                open = route.handle(new String(line, 0, length, StandardCharsets.ISO_8859_1));
+            }
+        } finally {
+            route.close();
+        }
+    }
+
+    // One terminal connected to the router: its cash, its connections to the shards it has used, and its session.
+    // Used only by the terminal's connection thread
+    private final class Route {
+        private final Terminal terminal;
+        private final PrintStream out;
+        private final Socket[] shards = new Socket[ring.size()];
+        private final BufferedReader[] replies = new BufferedReader[shards.length];
+        private final PrintStream[] commands = new PrintStream[shards.length];
+        private final CommandDecoder decoder = new CommandDecoder();
+        // The shard holding the terminal's session, or -1, and the session's account
+        private int current = -1;
+        private long currentAccountID = -1;
+
+        Route(Terminal terminal) {
+            this.terminal = terminal;
+            this.out = terminal.getOut();
+        }
+
+        // Passes one line to a shard and its reply back to the terminal. Returns false once the terminal has quit
+        boolean handle(String command) {
+            String name = command.trim();
+            int space = name.indexOf(' ');
+            name = space < 0 ? name : name.substring(0, space);
+            String argument = command.trim().substring(name.length()).trim();
+
+            int shard = current < 0 ? 0 : current;
+            long accountID = -1;
+            boolean open = true;
+            if (name.equalsIgnoreCase("AUTHORIZE")) {
+                if (decoder.decodeLogin(ByteBuffer.wrap(argument.getBytes(StandardCharsets.ISO_8859_1)))
+                        == CommandDecoder.OK) {
+                    accountID = decoder.getAccountID();
+                    shard = ring.shardOf(accountID);
+                }
+            } else if (name.equalsIgnoreCase("QUIT")) {
+                open = false;
+            } else if (name.equalsIgnoreCase("WITHDRAW") && current >= 0) {
+                withdraw(command, argument);
+                return true;
+            }
+
+            String reply = send(shard, command);
+            if (reply != null && accountID >= 0 && hasLine(reply, accountID + " successfully authorized.")) {
+                // The terminal's session has moved, so the one on the old shard is ended as the machine would
+                if (current >= 0 && current != shard) {
+                    try {
+                        commands[current].print("LOGOUT\n");
+                        commands[current].flush();
+                        relay(replies[current], null);
+                    } catch (IOException e) {
+                        disconnect(current);
+                    }
+                }
+                current = shard;
+                currentAccountID = accountID;
+            }
+            return open;
+        }
+
+        // A withdrawal for the terminal's session. One the router cannot read is passed on for the shard to refuse.
+        // Otherwise a retry with a request ID the router has already dispensed for is given the original reply here,
+        // since the shard would repeat its reply but the notes must not be handed out twice
+        private void withdraw(String command, String argument) {
+            String[] words = argument.split(" +");
+            long requestID = RequestCache.NO_REQUEST_ID;
+            if (words.length == 3 && words[1].equalsIgnoreCase("ID")) {
+                requestID = requestID(words[2]);
+            }
+            if ((words.length != 1 && requestID == RequestCache.NO_REQUEST_ID) ||
+                    decoder.decodeBillCount(words[0]) != CommandDecoder.OK ||
+                    decoder.getValue() > terminal.getMaxCash() / Machine.TWENTY_DOLLAR_BILL) {
+                send(current, command);
+                return;
+            }
+            long amount = decoder.getValue() * Machine.TWENTY_DOLLAR_BILL;
+            if (requestID == RequestCache.NO_REQUEST_ID) {
+                dispense(command, amount);
+                return;
+            }
+            long accountID = currentAccountID;
+            long origin = terminal.getOrigin();
+            String original = requests.begin(requestID, accountID, origin, RequestCache.WITHDRAWAL, System.nanoTime());
+            if (original != null) {
+                out.print(original);
+                out.println(TerminalProtocol.END_OF_REPLY);
+                out.flush();
+                return;
+            }
+            String reply = null;
+            try {
+                reply = dispense(command, amount);
+            } finally {
+                // Only a reply that handed out notes is kept. Any other is forgotten, so a retry goes to the shard
+                requests.complete(requestID, accountID, origin, RequestCache.WITHDRAWAL, reply);
+            }
+        }
+
+        // Takes the notes from the terminal's cash and passes the withdrawal on. The notes are handed out if the shard
+        // approves it, and put back otherwise, including when its reply is lost. Returns the reply if they were
+        // handed out, otherwise null
+        private String dispense(String command, long amount) {
+            long start = System.nanoTime();
+            CashCassettes cassettes = terminal.getCassettes();
+            long mix = cassettes.take(amount);
+            if (mix < 0) {
+                boolean empty = terminal.getCash() == 0;
+                (empty ? Metrics.WITHDRAW_NO_CASH : Metrics.WITHDRAW_UNABLE_TO_DISPENSE).recordSince(start);
+                out.println(Machine.withdrawalMessage(empty ? Machine.WITHDRAWAL_NO_CASH
+                        : Machine.WITHDRAWAL_UNABLE_TO_DISPENSE, amount, 0));
+                out.println(TerminalProtocol.END_OF_REPLY);
+                out.flush();
+                return null;
+            }
+            String reply = send(current, command);
+            if (reply != null && (hasLine(reply, DISPENSED) || hasLine(reply, NOT_RECORDED))) {
+                cassettes.keep(mix);
+                return reply;
+            }
+            cassettes.restore(mix);
+            return null;
+        }
+
+        // Sends a command to a shard, connecting to it first if needed, and copies the reply to the terminal. Returns
+        // the reply, or null if the shard could not be reached, which the terminal is told instead
+        private String send(int shard, String command) {
+            try {
+                if (shards[shard] == null) {
+                    connect(shard);
+                }
+                commands[shard].print(command);
+                commands[shard].print('\n');
+                commands[shard].flush();
+                return relay(replies[shard], out);
+            } catch (IOException e) {
+                disconnect(shard);
+                if (current == shard) {
+                    current = -1;
+                }
+                out.println(UNREACHABLE);
+                out.println(TerminalProtocol.END_OF_REPLY);
+                out.flush();
+                return null;
+            }
+        }
+
+        // Opens a connection to a shard for the terminal and tells the shard which terminal it is for
+        private void connect(int shard) throws IOException {
+            shards[shard] = new Socket();
+            InetSocketAddress address = shardAddresses[shard];
+            shards[shard].connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                    CONNECT_TIMEOUT_MILLISECONDS);
+            shards[shard].setTcpNoDelay(true);
+            replies[shard] = new BufferedReader(new InputStreamReader(shards[shard].getInputStream(),
+                    StandardCharsets.ISO_8859_1));
+            commands[shard] = new PrintStream(new BufferedOutputStream(shards[shard].getOutputStream(),
+                    OUTPUT_BUFFER_SIZE), false, "ISO-8859-1");
+            commands[shard].print("ROUTED " + terminal.getOrigin() + " " + terminal.getMaxCash() + "\n");
+            commands[shard].flush();
+            relay(replies[shard], null);
+        }
+
+        private void disconnect(int shard) {
+            if (shards[shard] != null) {
+                try {
+                    shards[shard].close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+                shards[shard] = null;
+            }
+        }
+
+        // Each shard logs out the session on its side when its connection closes
+        void close() {
+            for (int shard = 0; shard < shards.length; shard++) {
+                disconnect(shard);
+            }
+            Metrics.unregister(terminal);
+        }
+    }
+
+    // Reads a request ID, or returns RequestCache.NO_REQUEST_ID if it is not a whole number of 0 or more
+    private static long requestID(String word) {
+        try {
+            long requestID = Long.parseLong(word);
+            return requestID < 0 || word.charAt(0) == '+' ? RequestCache.NO_REQUEST_ID : requestID;
+        } catch (NumberFormatException e) {
+            return RequestCache.NO_REQUEST_ID;
+        }
+    }
+
+    // Copies a shard's reply to the terminal, or discards it if out is null. Returns the reply without its end of reply
+    // line
+    private static String relay(BufferedReader reply, PrintStream out) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        String line;
+        while ((line = reply.readLine()) != null) {
+            if (out != null) {
+                out.print(line);
+                out.print('\n');
+            }
+            if (line.equals(TerminalProtocol.END_OF_REPLY)) {
+                if (out != null) {
+                    out.flush();
+                }
+                return lines.toString();
+            }
+            lines.append(line).append('\n');
+        }
+        throw new IOException("The shard closed the connection");
+    }
+
+    // Whether one of the reply's lines starts with the text
+    private static boolean hasLine(String reply, String start) {
+        return reply.startsWith(start) || reply.contains("\n" + start);
+    }
+}
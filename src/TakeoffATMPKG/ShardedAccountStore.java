@@ -0,0 +1,334 @@
+package TakeoffATMPKG;
+
+/*
+Class: ShardedAccountStore
+Description: The "sharded" AccountStore, which splits the accounts over several shards in one process, each an
+             AccountDirectory of its own. A ShardRing decides which shard owns each account, so every lookup goes
+             straight to one shard.
+
+             Another shard can be added while terminals are being served. addShard() creates it empty, and each call to
+             rebalanceStep() then moves the accounts the new shard takes from one of the old shards, so the work is
+             spread out rather than done all at once. Accounts move by reference, so a session keeps the same Account
+             object and nothing about the account changes but where it is found.
+
+             Lookups take no lock. The shards and the rings are published together in a Placement that is never changed
+             once visible: a step builds a copy of the old shard without the accounts that leave it and a copy of the
+             new shard with them, then publishes a new Placement holding both. A lookup that started on the previous
+             Placement still finds every account where that Placement says it is. Like the other stores, put(),
+             remove() and clear() are only meant for loading, before lookups start.
+*/
+
+public final class ShardedAccountStore implements AccountStore {
+    /*
+    Class: Placement
+    Description: Where every account is. While a shard is being added, next is the ring that includes it and the first
+                 migrated old shards have already given up their accounts, so accounts from those shards are found
+                 with next and the rest with ring. Otherwise next is null.
+    */
+    private static final class Placement {
+        final ShardRing ring;
+        final ShardRing next;
+        final AccountDirectory[] shards;
+        final int migrated;
+
+        Placement(ShardRing ring, ShardRing next, AccountDirectory[] shards, int migrated) {
+            this.ring = ring;
+            this.next = next;
+            this.shards = shards;
+            this.migrated = migrated;
+        }
+
+        int owner(long accountID) {
+            int shard = ring.shardOf(accountID);
+            return next != null && shard < migrated ? next.shardOf(accountID) : shard;
+        }
+    }
+
+    private volatile Placement placement;
+
+    /*
+    Method: ShardedAccountStore()
+    Description: A constructor that creates empty shards named shard-1, shard-2 and so on
+    Input:
+        shardCount - The number of shards
+        expectedAccounts - The number of accounts the store should hold without growing
+    Output: Creates an object of type ShardedAccountStore
+    Returns: No return type (N/A for a constructor)
+    Throws: IllegalArgumentException if the shard count is less than one
+    */
+    public ShardedAccountStore(int shardCount, int expectedAccounts) {
+        this(new ShardRing(names(shardCount)), expectedAccounts);
+    }
+
+    /*
+    Method: ShardedAccountStore()
+    Description: A constructor that creates an empty shard for every shard on a ring
+    Input:
+        ring - The shards and the accounts each one owns
+        expectedAccounts - The number of accounts the store should hold without growing
+    Output: Creates an object of type ShardedAccountStore
+    Returns: No return type (N/A for a constructor)
+    */
+    public ShardedAccountStore(ShardRing ring, int expectedAccounts) {
+        AccountDirectory[] shards = new AccountDirectory[ring.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new AccountDirectory(expectedAccounts / shards.length);
+        }
+        placement = new Placement(ring, null, shards, 0);
+    }
+
+    @Override
+    public Account find(long accountID) {
+        Placement current = placement;
+        return current.shards[current.owner(accountID)].find(accountID);
+    }
+
+    @Override
+    public boolean contains(long accountID) {
+        return find(accountID) != null;
+    }
+
+    @Override
+    public synchronized Account put(Account account) {
+        if (account == null) {
+            throw new IllegalArgumentException("An account is required");
+        }
+        return placement.shards[placement.owner(account.getAccountID())].put(account);
+    }
+
+    @Override
+    public synchronized void putAll(Account[] newAccounts) {
+        Placement current = placement;
+        int[] counts = new int[current.shards.length];
+        for (Account account : newAccounts) {
+            if (account != null) {
+                counts[current.owner(account.getAccountID())]++;
+            }
+        }
+        Account[][] split = new Account[counts.length][];
+        for (int shard = 0; shard < counts.length; shard++) {
+            split[shard] = new Account[counts[shard]];
+            counts[shard] = 0;
+        }
+        for (Account account : newAccounts) {
+            if (account != null) {
+                int shard = current.owner(account.getAccountID());
+                split[shard][counts[shard]++] = account;
+            }
+        }
+        for (int shard = 0; shard < split.length; shard++) {
+            current.shards[shard].putAll(split[shard]);
+        }
+    }
+
+    @Override
+    public synchronized void putAll(long[] accountIDs, long[] balances, int count) {
+        Placement current = placement;
+        int[] counts = new int[current.shards.length];
+        for (int i = 0; i < count; i++) {
+            counts[current.owner(accountIDs[i])]++;
+        }
+        long[][] splitIDs = new long[counts.length][];
+        long[][] splitBalances = new long[counts.length][];
+        for (int shard = 0; shard < counts.length; shard++) {
+            splitIDs[shard] = new long[counts[shard]];
+            splitBalances[shard] = new long[counts[shard]];
+            counts[shard] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int shard = current.owner(accountIDs[i]);
+            splitIDs[shard][counts[shard]] = accountIDs[i];
+            splitBalances[shard][counts[shard]++] = balances[i];
+        }
+        for (int shard = 0; shard < counts.length; shard++) {
+            current.shards[shard].putAll(splitIDs[shard], splitBalances[shard], counts[shard]);
+        }
+    }
+
+    @Override
+    public synchronized Account remove(long accountID) {
+        return placement.shards[placement.owner(accountID)].remove(accountID);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (AccountDirectory shard : placement.shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public int slots() {
+        int slots = 0;
+        for (AccountDirectory shard : placement.shards) {
+            slots += shard.slots();
+        }
+        return slots;
+    }
+
+    // The shards' slots follow one another in shard order
+    @Override
+    public void forEach(int from, int to, Visitor visitor) {
+        int base = 0;
+        for (AccountDirectory shard : placement.shards) {
+            int slots = shard.slots();
+            if (from < base + slots && to > base) {
+                shard.forEach(from - base, to - base, visitor);
+            }
+            base += slots;
+        }
+    }
+
+    @Override
+    public Account[] toArray() {
+        Placement current = placement;
+        Account[][] parts = new Account[current.shards.length][];
+        int size = 0;
+        for (int shard = 0; shard < parts.length; shard++) {
+            parts[shard] = current.shards[shard].toArray();
+            size += parts[shard].length;
+        }
+        Account[] all = new Account[size];
+        int next = 0;
+        for (Account[] part : parts) {
+            System.arraycopy(part, 0, all, next, part.length);
+            next += part.length;
+        }
+        return all;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (AccountDirectory shard : placement.shards) {
+            shard.clear();
+        }
+    }
+
+    /*
+    Method: addShard()
+    Description: Adds an empty shard and starts moving accounts to it. Until rebalanceStep() has been called for every
+                 old shard, accounts are found wherever they are at the time
+    Input:
+        name - The new shard's name, which must not already be in use
+    Output: The store has one more shard
+    Returns: The new shard's number
+    Throws: IllegalStateException if another shard is still being added, IllegalArgumentException if the name is empty
+            or already in use
+    */
+    public synchronized int addShard(String name) {
+        Placement current = placement;
+        if (current.next != null) {
+            throw new IllegalStateException("Shard " + current.next.getName(current.next.size() - 1) +
+                    " is still being added");
+        }
+        ShardRing next = current.ring.withShard(name);
+        AccountDirectory[] shards = new AccountDirectory[next.size()];
+        System.arraycopy(current.shards, 0, shards, 0, current.shards.length);
+        shards[current.shards.length] = new AccountDirectory();
+        placement = new Placement(current.ring, next, shards, 0);
+        return current.shards.length;
+    }
+
+    /*
+    Method: rebalanceStep()
+    Description: Moves the accounts the newest shard takes from the next old shard. Costs time in proportion to the
+                 number of accounts in those two shards
+    Input: None
+    Output: The accounts are found in the new shard from now on
+    Returns: True if more steps are needed, false once every account is where the ring puts it
+    */
+    public synchronized boolean rebalanceStep() {
+        Placement current = placement;
+        if (current.next == null) {
+            return false;
+        }
+        int source = current.migrated;
+        int target = current.shards.length - 1;
+        Account[] accounts = current.shards[source].toArray();
+        int moving = 0;
+        for (int i = 0; i < accounts.length; i++) {
+            if (current.next.shardOf(accounts[i].getAccountID()) != source) {
+                // The accounts that move are gathered at the front
+                Account account = accounts[i];
+                accounts[i] = accounts[moving];
+                accounts[moving++] = account;
+            }
+        }
+        Account[] moved = new Account[moving];
+        Account[] staying = new Account[accounts.length - moving];
+        System.arraycopy(accounts, 0, moved, 0, moving);
+        System.arraycopy(accounts, moving, staying, 0, staying.length);
+
+        AccountDirectory[] shards = current.shards.clone();
+        shards[source] = new AccountDirectory(staying.length);
+        shards[source].putAll(staying);
+        shards[target] = new AccountDirectory(current.shards[target].size() + moved.length);
+        shards[target].putAll(current.shards[target].toArray());
+        shards[target].putAll(moved);
+
+        if (source + 1 < current.ring.size()) {
+            placement = new Placement(current.ring, current.next, shards, source + 1);
+            return true;
+        }
+        placement = new Placement(current.next, null, shards, 0);
+        return false;
+    }
+
+    /*
+    Method: isRebalancing()
+    Description: Checks whether a shard is still being added
+    Input: None
+    Output: None
+    Returns: True if rebalanceStep() has more accounts to move
+    */
+    public boolean isRebalancing() {
+        return placement.next != null;
+    }
+
+    /*
+    Method: getRing()
+    Description: Retrieves the ring accounts are placed by. While a shard is being added, this is the ring from before
+    Input: None
+    Output: None
+    Returns: The ShardRing object
+    */
+    public ShardRing getRing() {
+        return placement.ring;
+    }
+
+    /*
+    Method: shardCount()
+    Description: Retrieves the number of shards, including one that is still being added
+    Input: None
+    Output: None
+    Returns: The number of shards as an int
+    */
+    public int shardCount() {
+        return placement.shards.length;
+    }
+
+    /*
+    Method: shardSize()
+    Description: Retrieves the number of accounts a shard holds at the moment
+    Input:
+        shard - The shard's number
+    Output: None
+    Returns: The number of accounts as an int
+    */
+    public int shardSize(int shard) {
+        return placement.shards[shard].size();
+    }
+
+    private static String[] names(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is required: " + shardCount);
+        }
+        String[] names = new String[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            names[i] = "shard-" + (i + 1);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,165 @@
+package TakeoffATMPKG;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Class: SlidingWindowCounter
+Description: Counts, or adds up amounts, per key over a sliding window of time, without locks. The window is split
+             into a fixed number of buckets, and a key's total is the sum of its buckets that are still inside the
+             window, so it covers between the whole window and the whole window less one bucket. Every add and every
+             total touches the same fixed number of words whatever the traffic, which keeps both constant time.
+
+             Keys live in a fixed table spread by AccountDirectory.mix(), searched over a few slots. A key claims an
+             empty slot, or one whose buckets have all left the window, so the table only needs to be as large as the
+             number of keys active within one window. A key that finds no slot is not counted, so a table that is too
+             small lets traffic through rather than refusing customers it cannot tell apart.
+
+             Each bucket is one long: the low 40 bits hold the count and the high 24 bits the number of the time
+             bucket it belongs to. A bucket from an earlier lap of the window is reset by the compare-and-set that adds
+             to it, so no thread ever has to clear old buckets.
+*/
+
+final class SlidingWindowCounter {
+    private static final int MAX_PROBES = 8;
+    private static final int STAMP_SHIFT = 40;
+    private static final long COUNT_MASK = (1L << STAMP_SHIFT) - 1;
+    private static final long STAMP_MASK = (1L << (64 - STAMP_SHIFT)) - 1;
+
+    // The key in each slot plus one, so that zero marks an empty slot
+    private final AtomicLongArray keys;
+    // bucketCount buckets for each slot, side by side
+    private final AtomicLongArray buckets;
+    private final int mask;
+    private final int bucketCount;
+    private final long bucketNanoseconds;
+
+    /*
+    Method: SlidingWindowCounter()
+    Description: A constructor that creates an empty counter
+    Input:
+        slots - The number of keys that can be counted at once. Rounded up to a power of two
+        bucketCount - The number of buckets the window is split into
+        windowNanoseconds - The length of the window
+    Output: Creates an object of type SlidingWindowCounter
+    Returns: No return type (N/A for a constructor)
+    */
+    SlidingWindowCounter(int slots, int bucketCount, long windowNanoseconds) {
+        int capacity = Integer.highestOneBit(Math.max(slots, MAX_PROBES) * 2 - 1);
+        keys = new AtomicLongArray(capacity);
+        buckets = new AtomicLongArray(capacity * bucketCount);
+        mask = capacity - 1;
+        this.bucketCount = bucketCount;
+        bucketNanoseconds = windowNanoseconds / bucketCount;
+    }
+
+    /*
+    Method: add()
+    Description: Adds an amount to a key's current bucket
+    Input:
+        key - The account ID or origin, which must not be negative, since a key of -1 would be stored as an empty
+              slot
+        amount - The amount to add, which must not be negative
+        now - The current System.nanoTime()
+    Output: The key's count is increased
+    Returns: The key's total over the window, including the amount, or just the amount if the table had no room
+    */
+    long add(long key, long amount, long now) {
+        long bucket = Math.floorDiv(now, bucketNanoseconds);
+        int slot = slotOf(key, bucket, true);
+        if (slot < 0) {
+            return amount;
+        }
+        long stamp = bucket & STAMP_MASK;
+        int index = slot * bucketCount + (int) Math.floorMod(bucket, (long) bucketCount);
+        long word;
+        long next;
+        do {
+            word = buckets.get(index);
+            next = word >>> STAMP_SHIFT == stamp ? word + amount : stamp << STAMP_SHIFT | amount;
+        } while (!buckets.compareAndSet(index, word, next));
+        return total(slot, stamp);
+    }
+
+    /*
+    Method: subtract()
+    Description: Takes back an amount added at the same time, such as a withdrawal that was refused after it was
+                 counted. Nothing happens if the bucket has since left the window
+    Input:
+        key - The key the amount was added to
+        amount - The amount that was added
+        now - The time that was passed to add()
+    Output: The key's count is reduced
+    Returns: Void
+    */
+    void subtract(long key, long amount, long now) {
+        long bucket = Math.floorDiv(now, bucketNanoseconds);
+        int slot = slotOf(key, bucket, false);
+        if (slot < 0) {
+            return;
+        }
+        long stamp = bucket & STAMP_MASK;
+        int index = slot * bucketCount + (int) Math.floorMod(bucket, (long) bucketCount);
+        long word;
+        do {
+            word = buckets.get(index);
+            if (word >>> STAMP_SHIFT != stamp || (word & COUNT_MASK) < amount) {
+                return;
+            }
+        } while (!buckets.compareAndSet(index, word, word - amount));
+    }
+
+    /*
+    Method: sum()
+    Description: Adds up a key's buckets that are inside the window
+    Input:
+        key - The account ID or origin, which must not be negative
+        now - The current System.nanoTime()
+    Output: None
+    Returns: The key's total over the window, or 0 if it has not been counted
+    */
+    long sum(long key, long now) {
+        long bucket = Math.floorDiv(now, bucketNanoseconds);
+        int slot = slotOf(key, bucket, false);
+        return slot < 0 ? 0 : total(slot, bucket & STAMP_MASK);
+    }
+
+    // Finds the key's slot, or when claim is true, claims a free one for it. Returns -1 if there is none
+    private int slotOf(long key, long bucket, boolean claim) {
+        int home = AccountDirectory.mix(key);
+        long stored = key + 1;
+        while (true) {
+            int free = -1;
+            long freeKey = 0;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                int slot = (home + probe) & mask;
+                long current = keys.get(slot);
+                if (current == stored) {
+                    return slot;
+                }
+                if (claim && free < 0 && (current == 0 || total(slot, bucket & STAMP_MASK) == 0)) {
+                    free = slot;
+                    freeKey = current;
+                }
+            }
+            if (free < 0) {
+                return -1;
+            }
+            if (keys.compareAndSet(free, freeKey, stored)) {
+                return free;
+            }
+            // Another key took the slot first, so look again
+        }
+    }
+
+    private long total(int slot, long stamp) {
+        long total = 0;
+        int first = slot * bucketCount;
+        for (int i = 0; i < bucketCount; i++) {
+            long word = buckets.get(first + i);
+            if (((stamp - (word >>> STAMP_SHIFT)) & STAMP_MASK) < bucketCount) {
+                total += word & COUNT_MASK;
+            }
+        }
+        return total;
+    }
+}
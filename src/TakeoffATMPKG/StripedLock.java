@@ -0,0 +1,62 @@
+package TakeoffATMPKG;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Class: StripedLock
+Description: A fixed set of locks shared by every account. An account is guarded by the lock its account ID hashes to,
+             so the balance and history of one account are always updated together, while sessions on different
+             accounts almost always use different locks and do not wait for each other. Striping keeps the number of
+             lock objects fixed no matter how many accounts are loaded.
+*/
+
+public class StripedLock {
+    // Default number of stripes. Far more than the number of cores, so two busy accounts rarely share a lock
+    public static final int DEFAULT_STRIPES = 4096;
+
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /*
+    Method: StripedLock()
+    Description: A constructor that creates the default number of stripes
+    Input: None
+    Output: Creates an object of type StripedLock
+    Returns: No return type (N/A for a constructor)
+    */
+    public StripedLock() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /*
+    Method: StripedLock()
+    Description: A constructor that creates a custom number of stripes
+    Input:
+        stripes - The number of locks, rounded up to a power of two
+    Output: Creates an object of type StripedLock
+    Returns: No return type (N/A for a constructor)
+    */
+    public StripedLock(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    /*
+    Method: forAccount()
+    Description: Finds the lock that guards an account
+    Input:
+        accountID - The account ID of the account to be locked
+    Output: None
+    Returns: The lock as a ReentrantLock. The caller locks and unlocks it
+    */
+    public ReentrantLock forAccount(long accountID) {
+        return locks[AccountDirectory.mix(accountID) & mask];
+    }
+}
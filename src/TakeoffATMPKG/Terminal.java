@@ -0,0 +1,206 @@
+package TakeoffATMPKG;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+Class: Terminal
+Description: One physical ATM. Each terminal holds its own cash, in cassettes of notes, and serves one customer
+             session at a time, while any number of terminals can share the same account directory. Messages that are
+             not a reply to a command, such as the session expiry notice and the transaction history, are written to
+             the terminal's output.
+
+             A terminal routed to a shard by a ShardRouter has its cash held by the router instead, which takes the
+             notes before passing a withdrawal on, so on the shard it has no cassettes and dispense() always succeeds.
+*/
+
+public class Terminal {
+    // A unique value that identifies the terminal
+    private final long terminalID;
+    // Where the terminal connects from, which stays the same when it reconnects as a new Terminal
+    private final long origin;
+    // The amount of cash, in cents, the terminal holds when it is full
+    private final long maxCash;
+    // The notes currently stored in the terminal, or null when a ShardRouter holds them. Updated with compare-and-set
+    // so that they can never be overdrawn
+    private final CashCassettes cassettes;
+    // Where unprompted messages and history are written
+    private final PrintStream out;
+    // The session currently using the terminal, or null when nobody is authorized
+    private final AtomicReference<Session> session = new AtomicReference<Session>();
+
+    /*
+    Method: Terminal()
+    Description: A constructor that creates a terminal filled with $20 bills, per the specification
+    Input:
+        newTerminalID - A unique value that identifies the terminal
+        startingCash - The amount of cash, in cents, loaded into the terminal, which is also the most it can hold
+        output - Where messages for the customer are written
+    Output: Creates an object of type Terminal
+    Returns: No return type (N/A for a constructor)
+    */
+    public Terminal(long newTerminalID, long startingCash, PrintStream output) {
+        this(newTerminalID, CashCassettes.ofNotes(Machine.TWENTY_DOLLAR_BILL, startingCash), output);
+    }
+
+    /*
+    Method: Terminal()
+    Description: A constructor that creates a terminal with loaded cassettes
+    Input:
+        newTerminalID - A unique value that identifies the terminal
+        loadedCassettes - The terminal's notes. Their value is also the most it can hold
+        output - Where messages for the customer are written
+    Output: Creates an object of type Terminal
+    Returns: No return type (N/A for a constructor)
+    */
+    public Terminal(long newTerminalID, CashCassettes loadedCassettes, PrintStream output) {
+        this(newTerminalID, loadedCassettes, output, newTerminalID);
+    }
+
+    /*
+    Method: Terminal()
+    Description: A constructor that creates a terminal with loaded cassettes, connected from a known origin
+    Input:
+        newTerminalID - A unique value that identifies the terminal
+        loadedCassettes - The terminal's notes. Their value is also the most it can hold
+        output - Where messages for the customer are written
+        newOrigin - Where the terminal connects from (see getOrigin())
+    Output: Creates an object of type Terminal
+    Returns: No return type (N/A for a constructor)
+    */
+    public Terminal(long newTerminalID, CashCassettes loadedCassettes, PrintStream output, long newOrigin) {
+        this(newTerminalID, loadedCassettes, loadedCassettes.getCapacity(), output, newOrigin);
+    }
+
+    /*
+    Method: Terminal()
+    Description: A constructor that creates a terminal routed to this machine by a ShardRouter, which holds its cash
+    Input:
+        newTerminalID - A unique value that identifies the terminal
+        routerMaxCash - The most cash the router's cassettes for the terminal hold
+        output - Where messages for the customer are written
+        newOrigin - Where the terminal connects to the router from (see getOrigin())
+    Output: Creates an object of type Terminal
+    Returns: No return type (N/A for a constructor)
+    */
+    Terminal(long newTerminalID, long routerMaxCash, PrintStream output, long newOrigin) {
+        this(newTerminalID, null, routerMaxCash, output, newOrigin);
+    }
+
+    private Terminal(long newTerminalID, CashCassettes loadedCassettes, long newMaxCash, PrintStream output,
+                     long newOrigin) {
+        this.terminalID = newTerminalID;
+        this.origin = newOrigin;
+        this.cassettes = loadedCassettes;
+        this.maxCash = newMaxCash;
+        this.out = output;
+    }
+
+    /*
+    Method: getTerminalID()
+    Description: Retrieves the private terminalID property
+    Input: None
+    Output: None
+    Returns: The terminal ID as a long
+    */
+    public long getTerminalID() {
+        return terminalID;
+    }
+
+    /*
+    Method: getOrigin()
+    Description: Retrieves where the terminal connects from. A terminal served over TCP is given a new Terminal, and a
+                 new terminal ID, each time it connects, but keeps the origin of its remote address, which is what
+                 RiskCheck counts failed authorizations against. A terminal routed through a ShardRouter keeps the
+                 origin of its address at the router. Other terminals are their own origin
+    Input: None
+    Output: None
+    Returns: The origin as a long
+    */
+    public long getOrigin() {
+        return origin;
+    }
+
+    /*
+    Method: getMaxCash()
+    Description: Retrieves the amount of cash the terminal holds when full
+    Input: None
+    Output: None
+    Returns: The maximum cash in cents as a long
+    */
+    public long getMaxCash() {
+        return maxCash;
+    }
+
+    /*
+    Method: getCash()
+    Description: Retrieves the amount of cash currently in the terminal
+    Input: None
+    Output: None
+    Returns: The cash in cents as a long, or 0 if a ShardRouter holds it
+    */
+    public long getCash() {
+        return cassettes == null ? 0 : cassettes.getCash();
+    }
+
+    /*
+    Method: getCassettes()
+    Description: Retrieves the terminal's cassettes, for their note counts and low-cash forecast
+    Input: None
+    Output: None
+    Returns: The CashCassettes object, or null if a ShardRouter holds the terminal's cash
+    */
+    public CashCassettes getCassettes() {
+        return cassettes;
+    }
+
+    /*
+    Method: getOut()
+    Description: Retrieves the output that messages for the customer are written to
+    Input: None
+    Output: None
+    Returns: The output as a PrintStream
+    */
+    public PrintStream getOut() {
+        return out;
+    }
+
+    /*
+    Method: getSession()
+    Description: Retrieves the session currently using this terminal
+    Input: None
+    Output: None
+    Returns: The Session object, or null if nobody is authorized
+    */
+    public Session getSession() {
+        return session.get();
+    }
+
+    /*
+    Method: dispense()
+    Description: Removes cash from the terminal. The terminal must hold more than the requested amount, per the
+                 specification, and some mix of its notes must add up to it. See CashCassettes.dispense(). When a
+                 ShardRouter holds the cash it has already taken the notes, so the cash is only counted
+    Input:
+        amount - The amount of cash to remove, in cents
+    Output: The cash in the terminal may be reduced, and is added to Metrics.CASH_DISPENSED
+    Returns: True if the cash was removed
+    */
+    public boolean dispense(long amount) {
+        if (cassettes != null && !cassettes.dispense(amount)) {
+            return false;
+        }
+        Metrics.CASH_DISPENSED.add(amount);
+        return true;
+    }
+
+    // Makes the session the current one, replacing whatever session was there before
+    Session attach(Session newSession) {
+        return session.getAndSet(newSession);
+    }
+
+    // Removes the session only if it is still the current one, so a late expiry cannot end a newer session
+    boolean detach(Session oldSession) {
+        return session.compareAndSet(oldSession, null);
+    }
+}
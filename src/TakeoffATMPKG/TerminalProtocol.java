@@ -0,0 +1,418 @@
+package TakeoffATMPKG;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/*
+Class: TerminalProtocol
+Description: The commands a networked terminal sends to the machine, one per line, and the replies it receives. Each
+             connection to a TerminalServer is one terminal with its own cash, and each command goes through the same
+             Machine method the console menu uses, so replies are the same messages the console prints:
+
+                 AUTHORIZE <account ID>,<PIN>
+                 WITHDRAW <number of $20 bills> [ID <request ID>]
+                 DEPOSIT <amount> [ID <request ID>]
+                 BALANCE [AT <yyyy-MM-dd>]
+                 HISTORY [LAST <count> | BETWEEN <yyyy-MM-dd> <yyyy-MM-dd> [<count>] | AFTER <cursor> [<count>]]
+                 LOGOUT
+                 QUIT
+
+             Command names are not case sensitive. HISTORY alone shows the whole history. LAST shows the most recent
+             transactions, BETWEEN those made on the two dates and the days between, in the machine's time zone, and
+             AFTER those that follow a cursor. When a count leaves older matching transactions out, the reply ends with
+             "More: <cursor>", and HISTORY AFTER that cursor continues where it stopped. BALANCE AT shows the balance
+             at the end of a day, as far back as the history is retained.
+
+             A terminal that may retry a WITHDRAW or DEPOSIT, for instance when a reply is lost, gives it a request
+             ID, a whole number it does not reuse for another request. IDs only need to be unique per client address,
+             since other terminals may pick the same ones. A retry with the same ID for the same account, made from the
+             same address within the RequestCache window on this connection or a new one, is given the original reply
+             and changes nothing.
+
+             Every reply ends with a line holding a single period, so a client reads until it sees that line. Messages
+             the terminal receives without asking, such as the session expiry notice, arrive ahead of the next reply.
+             QUIT logs out and closes the connection.
+
+             A shard machine, one started with -Datm.shardName, also accepts ROUTED <origin> <cash> as the first line
+             of a connection, sent by a ShardRouter for the terminal it connects on behalf of. The connection then
+             stands for a terminal at that origin, whose cash, up to the given number of cents when full, is held by
+             the router, and the reply is empty. Shard ports should only be reachable by routers.
+
+             A protocol object belongs to one connection and handles one line at a time, but may be called from a
+             different thread for each line.
+*/
+
+public final class TerminalProtocol {
+    // Written on a line of its own after every reply
+    public static final String END_OF_REPLY = ".";
+    // The longest line accepted from a terminal, in bytes. A longer line closes the connection
+    public static final int MAX_LINE_LENGTH = 1024;
+    private static final String COMMANDS = "Commands: AUTHORIZE <account ID>,<PIN> | " +
+            "WITHDRAW <number of $20 bills> [ID <request ID>] | DEPOSIT <amount> [ID <request ID>] | " +
+            "BALANCE [AT <yyyy-MM-dd>] | HISTORY [LAST <count> | BETWEEN <yyyy-MM-dd> <yyyy-MM-dd> [<count>] | " +
+            "AFTER <cursor> [<count>]] | LOGOUT | QUIT\n\n";
+    private static final String BALANCE_USAGE = "Usage: BALANCE [AT <yyyy-MM-dd>]\n\n";
+    private static final String REQUEST_ID_USAGE = "A request ID must be a whole number of 0 or more\n\n";
+    private static final String HISTORY_USAGE = "Usage: HISTORY [LAST <count> | BETWEEN <yyyy-MM-dd> <yyyy-MM-dd> " +
+            "[<count>] | AFTER <cursor> [<count>]]\n\n";
+
+    // Returned by balanceTime() for a BALANCE without a time, and for one it cannot read
+    private static final long CURRENT_TIME = Long.MAX_VALUE;
+    private static final long INVALID_TIME = Long.MIN_VALUE;
+    // Returned by requestID() for an ID it cannot read
+    private static final long INVALID_REQUEST_ID = -2;
+    // Returned by number() and date() for a word they cannot read
+    private static final long INVALID_NUMBER = -1;
+    private static final long INVALID_DATE = Long.MIN_VALUE;
+    // The most words read from a BALANCE or HISTORY argument. One more is counted, so a longer argument can be refused
+    private static final int MAX_WORDS = 4;
+
+    // Routed terminals are only accepted by a shard
+    private static final boolean SHARD = System.getProperty("atm.shardName") != null;
+
+    // Replaced once, by a terminal whose cash the router holds, if the connection is ROUTED
+    private Terminal terminal;
+    private final PrintStream out;
+    // Whether a line has been handled yet, since ROUTED must come first
+    private boolean started;
+    private final CommandDecoder decoder = new CommandDecoder();
+    // Where each word of an argument starts and ends, filled in by words()
+    private final int[] words = new int[2 * (MAX_WORDS + 1)];
+
+    /*
+    Method: TerminalProtocol()
+    Description: A constructor that serves one terminal
+    Input:
+        connectedTerminal - The terminal the connection stands for. Replies are written to its output
+    Output: Creates an object of type TerminalProtocol
+    Returns: No return type (N/A for a constructor)
+    */
+    public TerminalProtocol(Terminal connectedTerminal) {
+        this.terminal = connectedTerminal;
+        this.out = connectedTerminal.getOut();
+    }
+
+    /*
+    Method: handle()
+    Description: Carries out one command and writes its reply, followed by the end of reply line, to the terminal's
+                 output, which is then flushed
+    Input:
+        line - The bytes between the buffer's position and limit, without the line break. The buffer's position and
+               limit are changed
+    Output: The reply is written to the terminal's output
+    Returns: False if the command was QUIT and the connection should be closed, otherwise true
+    */
+    public boolean handle(ByteBuffer line) {
+        trim(line);
+        int start = line.position();
+        int space = start;
+        while (space < line.limit() && line.get(space) != ' ') {
+            space++;
+        }
+        // The command name is cut off and the buffer left holding its argument
+        line.position(Math.min(space + 1, line.limit()));
+
+        boolean open = true;
+        Session session = terminal.getSession();
+        if (is(line, start, space, "AUTHORIZE")) {
+            int status = decoder.decodeLogin(line);
+            if (status == CommandDecoder.OK) {
+                out.println(Machine.authorize(terminal, decoder.getAccountID(), decoder.getPin()));
+            } else {
+                out.println(CommandDecoder.loginMessage(status, text(line)));
+            }
+        } else if (is(line, start, space, "WITHDRAW")) {
+            long requestID = requestID(line);
+            int status = decoder.decodeBillCount(line);
+            if (session == null) {
+                out.println("Authorization required.\n\n");
+            } else if (requestID == INVALID_REQUEST_ID) {
+                out.print(REQUEST_ID_USAGE);
+            } else if (status != CommandDecoder.OK) {
+                out.println(CommandDecoder.billCountMessage(status));
+            } else if (decoder.getValue() <= terminal.getMaxCash() / Machine.TWENTY_DOLLAR_BILL) {
+                out.println(Machine.withdraw(session, (int) decoder.getValue(), requestID));
+            } else {
+                out.println("That is more money than the ATM can hold\n\n");
+            }
+        } else if (is(line, start, space, "DEPOSIT")) {
+            long requestID = requestID(line);
+            int status = decoder.decodeAmount(line);
+            if (session == null) {
+                out.println("Authorization required.\n\n");
+            } else if (requestID == INVALID_REQUEST_ID) {
+                out.print(REQUEST_ID_USAGE);
+            } else if (status != CommandDecoder.OK) {
+                out.println(CommandDecoder.amountMessage(status));
+            } else {
+                out.println(Machine.deposit(session, decoder.getValue(), requestID));
+            }
+        } else if (is(line, start, space, "BALANCE")) {
+            long at = balanceTime(line);
+            if (session == null) {
+                out.println("Authorization required.\n\n");
+            } else if (at == INVALID_TIME) {
+                out.print(BALANCE_USAGE);
+            } else {
+                out.println(at == CURRENT_TIME ? Machine.balance(session) : Machine.balanceAt(session, at));
+            }
+        } else if (is(line, start, space, "HISTORY")) {
+            HistoryQuery query = historyQuery(line);
+            if (session == null) {
+                out.println("Authorization required.\n\n");
+            } else if (query == null) {
+                out.print(HISTORY_USAGE);
+            } else {
+                long cursor = Machine.history(session, query);
+                if (cursor >= 0) {
+                    out.println("More: " + cursor);
+                }
+            }
+        } else if (is(line, start, space, "LOGOUT")) {
+            if (session == null) {
+                out.println("No account is currently authorized.");
+            } else {
+                Machine.logout(session);
+            }
+        } else if (is(line, start, space, "QUIT")) {
+            if (session != null) {
+                Machine.logout(session);
+            }
+            open = false;
+        } else if (SHARD && !started && is(line, start, space, "ROUTED") && route(line)) {
+            // Nothing to reply
+        } else {
+            out.print(COMMANDS);
+        }
+        out.println(END_OF_REPLY);
+        out.flush();
+        started = true;
+        return open;
+    }
+
+    // Reads the ROUTED argument and makes the connection stand for a terminal routed here by a ShardRouter. The router
+    // reports the terminal's cash, so the terminal created for the connection is no longer reported here. Returns
+    // false, changing nothing, if the argument cannot be read. An origin may be negative
+    private boolean route(ByteBuffer argument) {
+        if (words(argument, words) != 2) {
+            return false;
+        }
+        long routerMaxCash = number(argument, words[2], words[3], Long.MAX_VALUE);
+        long origin;
+        try {
+            ByteBuffer word = argument.duplicate();
+            word.limit(words[1]).position(words[0]);
+            origin = Long.parseLong(text(word));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (routerMaxCash == INVALID_NUMBER) {
+            return false;
+        }
+        Metrics.unregister(terminal);
+        terminal = new Terminal(terminal.getTerminalID(), routerMaxCash, out, origin);
+        return true;
+    }
+
+    /*
+    Method: close()
+    Description: Ends the terminal's session, if it has one, when its connection closes, so the session does not wait
+                 for its expiry, and stops reporting the terminal's cash
+    Input: None
+    Output: The session is logged out
+    Returns: None
+    */
+    public void close() {
+        Session session = terminal.getSession();
+        if (session != null) {
+            Machine.logout(session);
+        }
+        Metrics.unregister(terminal);
+    }
+
+    // Reads the BALANCE argument: the last second of the day given after AT, CURRENT_TIME without one, or INVALID_TIME
+    private long balanceTime(ByteBuffer argument) {
+        if (!argument.hasRemaining()) {
+            return CURRENT_TIME;
+        }
+        if (words(argument, words) != 2 || !is(argument, words[0], words[1], "AT")) {
+            return INVALID_TIME;
+        }
+        long day = date(argument, words[2], words[3]);
+        return day == INVALID_DATE ? INVALID_TIME : endOfDay(day);
+    }
+
+    // Reads a trailing "ID <request ID>" off the argument, which is cut back to what came before it. Returns
+    // RequestCache.NO_REQUEST_ID if the argument does not end with one, or INVALID_REQUEST_ID if the ID is not a number
+    private static long requestID(ByteBuffer argument) {
+        int first = argument.position();
+        int end = argument.limit();
+        int word = end;
+        while (word > first && argument.get(word - 1) != ' ') {
+            word--;
+        }
+        int before = word;
+        while (before > first && argument.get(before - 1) == ' ') {
+            before--;
+        }
+        int id = before - 2;
+        if (word == first || id < first || (id > first && argument.get(id - 1) != ' ') ||
+                !is(argument, id, before, "ID")) {
+            return RequestCache.NO_REQUEST_ID;
+        }
+        long requestID = 0;
+        for (int i = word; i < end; i++) {
+            int digit = argument.get(i) - '0';
+            if (digit < 0 || digit > 9 || requestID > (Long.MAX_VALUE - digit) / 10) {
+                return INVALID_REQUEST_ID;
+            }
+            requestID = requestID * 10 + digit;
+        }
+        argument.limit(id);
+        trim(argument);
+        return requestID;
+    }
+
+    // Reads the HISTORY argument, or returns null if it is not one of the accepted forms
+    private HistoryQuery historyQuery(ByteBuffer argument) {
+        if (!argument.hasRemaining()) {
+            return HistoryQuery.all();
+        }
+        int count = words(argument, words);
+        if (is(argument, words[0], words[1], "LAST") && count == 2) {
+            long last = count(argument, 1);
+            return last == INVALID_NUMBER ? null : HistoryQuery.last((int) last);
+        }
+        if (is(argument, words[0], words[1], "BETWEEN") && (count == 3 || count == 4)) {
+            long from = date(argument, words[2], words[3]);
+            long to = date(argument, words[4], words[5]);
+            long limit = count == 4 ? count(argument, 3) : Integer.MAX_VALUE;
+            if (from == INVALID_DATE || to == INVALID_DATE || limit == INVALID_NUMBER) {
+                return null;
+            }
+            return HistoryQuery.between(startOfDay(from), endOfDay(to)).limit((int) limit);
+        }
+        if (is(argument, words[0], words[1], "AFTER") && (count == 2 || count == 3)) {
+            long cursor = number(argument, words[2], words[3], Long.MAX_VALUE);
+            long limit = count == 3 ? count(argument, 2) : Integer.MAX_VALUE;
+            if (cursor == INVALID_NUMBER || limit == INVALID_NUMBER) {
+                return null;
+            }
+            return HistoryQuery.after(cursor, (int) limit);
+        }
+        return null;
+    }
+
+    // Finds where each word of the argument starts and ends, in pairs. Returns the number of words, up to one more
+    // than MAX_WORDS
+    private static int words(ByteBuffer argument, int[] bounds) {
+        int count = 0;
+        int i = argument.position();
+        int end = argument.limit();
+        while (i < end && count <= MAX_WORDS) {
+            while (i < end && argument.get(i) == ' ') {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            bounds[2 * count] = i;
+            while (i < end && argument.get(i) != ' ') {
+                i++;
+            }
+            bounds[2 * count + 1] = i;
+            count++;
+        }
+        return count;
+    }
+
+    // Reads a count of transactions from one of the words found by words()
+    private long count(ByteBuffer argument, int word) {
+        return number(argument, words[2 * word], words[2 * word + 1], Integer.MAX_VALUE);
+    }
+
+    // Reads a whole number of 0 up to max, or returns INVALID_NUMBER
+    private static long number(ByteBuffer argument, int start, int end, long max) {
+        if (start == end) {
+            return INVALID_NUMBER;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = argument.get(i) - '0';
+            if (digit < 0 || digit > 9 || value > (max - digit) / 10) {
+                return INVALID_NUMBER;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    // Reads a yyyy-MM-dd date as a day counted from 1970-01-01, or returns INVALID_DATE
+    private static long date(ByteBuffer argument, int start, int end) {
+        if (end - start != 10 || argument.get(start + 4) != '-' || argument.get(start + 7) != '-') {
+            return INVALID_DATE;
+        }
+        long year = number(argument, start, start + 4, 9999);
+        long month = number(argument, start + 5, start + 7, 12);
+        long day = number(argument, start + 8, end, 31);
+        if (year == INVALID_NUMBER || month == INVALID_NUMBER || day == INVALID_NUMBER) {
+            return INVALID_DATE;
+        }
+        try {
+            return LocalDate.of((int) year, (int) month, (int) day).toEpochDay();
+        } catch (DateTimeException e) {
+            return INVALID_DATE;
+        }
+    }
+
+    // The first and last second of a day in the machine's time zone
+    private static long startOfDay(long epochDay) {
+        return LocalDate.ofEpochDay(epochDay).atStartOfDay(Machine.ZONE).toEpochSecond();
+    }
+
+    private static long endOfDay(long epochDay) {
+        return startOfDay(epochDay + 1) - 1;
+    }
+
+    // Compares the command name with one of the commands, ignoring case
+    private static boolean is(ByteBuffer line, int start, int end, String command) {
+        if (end - start != command.length()) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); i++) {
+            int c = line.get(start + i);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            if (c != command.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Drops whitespace, such as a carriage return, around the line
+    private static void trim(ByteBuffer line) {
+        int start = line.position();
+        int end = line.limit();
+        while (start < end && line.get(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.get(end - 1) <= ' ') {
+            end--;
+        }
+        line.limit(end);
+        line.position(start);
+    }
+
+    // The argument as text, for the messages that repeat what the user typed
+    private static String text(ByteBuffer argument) {
+        char[] characters = new char[argument.remaining()];
+        for (int i = 0; i < characters.length; i++) {
+            characters[i] = (char) (argument.get(argument.position() + i) & 0xFF);
+        }
+        return new String(characters);
+    }
+}
@@ -0,0 +1,94 @@
+package TakeoffATMPKG;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Class: TerminalServer
+Description: Accepts terminal connections over TCP and serves each one with a TerminalProtocol. Two ways of running
+             connections are provided, chosen with -Datm.serverMode:
+
+                 nio     - One selector thread reads and writes every connection, and commands run on a small pool of
+                           worker threads, so thousands of mostly idle terminals need only a handful of threads
+                 threads - Every connection has its own thread, blocked reading its socket until the next command
+
+             Both hand complete lines to the same protocol, so they differ only in how they wait for them.
+*/
+
+public abstract class TerminalServer {
+    public static final String NIO = "nio";
+    public static final String THREADS = "threads";
+    // Connections that have not yet been accepted, queued by the operating system
+    static final int BACKLOG = 1024;
+
+    // Terminal IDs given to connections, following the console terminal's
+    private static final AtomicLong nextTerminalID = new AtomicLong(Machine.CONSOLE_TERMINAL_ID + 1);
+
+    /*
+    Method: start()
+    Description: Opens the listening socket and starts serving terminals
+    Input:
+        mode - NIO or THREADS
+        address - The address and port to listen on. Port 0 picks a free port
+        workers - The number of threads commands run on in NIO mode
+    Output: The server's threads are started
+    Returns: The TerminalServer object
+    Throws: IOException if the socket cannot be opened, IllegalArgumentException if the mode is not known
+    */
+    public static TerminalServer start(String mode, InetSocketAddress address, int workers) throws IOException {
+        if (NIO.equals(mode)) {
+            return new NioTerminalServer(address, workers);
+        }
+        if (THREADS.equals(mode)) {
+            return new ThreadedTerminalServer(address);
+        }
+        throw new IllegalArgumentException("Unknown server mode, expected " + NIO + " or " + THREADS + ": " + mode);
+    }
+
+    /*
+    Method: getPort()
+    Description: Retrieves the port the server is listening on
+    Input: None
+    Output: None
+    Returns: The port as an int
+    */
+    public abstract int getPort();
+
+    /*
+    Method: await()
+    Description: Waits until the server is closed
+    Input: None
+    Output: None
+    Returns: None
+    */
+    public abstract void await() throws InterruptedException;
+
+    /*
+    Method: close()
+    Description: Stops accepting connections and closes the open ones, logging out their sessions
+    Input: None
+    Output: The server's threads exit
+    Returns: None
+    */
+    public abstract void close() throws IOException;
+
+    // Creates the terminal and protocol for a new connection, writing to the connection's output
+    static TerminalProtocol connect(PrintStream out, InetAddress remote) {
+        return new TerminalProtocol(newTerminal(out, remote));
+    }
+
+    // Creates the terminal for a new connection and reports its cash. The terminal's origin is the address it connects
+    // from, an IPv4 address as its 32-bit value and an IPv6 address folded into 64 bits
+    static Terminal newTerminal(PrintStream out, InetAddress remote) {
+        long origin = 0;
+        for (byte b : remote.getAddress()) {
+            origin = (origin << 8 | (b & 0xFF)) ^ (origin >>> 56) * 0x9E3779B97F4A7C15L;
+        }
+        Terminal terminal = Machine.newTerminal(nextTerminalID.getAndIncrement(), origin, out);
+        Metrics.register(terminal);
+        return terminal;
+    }
+}
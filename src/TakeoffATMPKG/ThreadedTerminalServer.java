@@ -0,0 +1,186 @@
+package TakeoffATMPKG;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Class: ThreadedTerminalServer
+Description: The "threads" TerminalServer. An acceptor thread gives every connection a thread of its own, which reads a
+             line, runs the command, and writes the reply before reading the next. Connection threads are started with
+             a small stack, so a few thousand of them fit comfortably, but each one still costs a thread whether its
+             terminal is busy or idle.
+
+             ShardRouter extends it to run its connections the same way, replacing only what is done with each line.
+*/
+
+class ThreadedTerminalServer extends TerminalServer {
+    // Connection threads only decode a line and call into Machine, so they need far less than the default stack
+    private static final long CONNECTION_STACK_SIZE = 256 * 1024;
+    static final int OUTPUT_BUFFER_SIZE = 8192;
+
+    private final ServerSocket listener;
+    private final Thread acceptor;
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final String threadName;
+    private volatile boolean closed;
+
+    ThreadedTerminalServer(InetSocketAddress address) throws IOException {
+        this(address, "terminal");
+        startAccepting();
+    }
+
+    /*
+    Method: ThreadedTerminalServer()
+    Description: A constructor for a subclass, which opens the listening socket but leaves the subclass to start
+                 accepting once it is set up, so no connection is served by a half constructed server
+    Input:
+        address - The address and port to listen on. Port 0 picks a free port
+        threadName - What the acceptor and connection threads are named after
+    Output: Creates an object of type ThreadedTerminalServer
+    Returns: No return type (N/A for a constructor)
+    Throws: IOException if the socket cannot be opened
+    */
+    ThreadedTerminalServer(InetSocketAddress address, String threadName) throws IOException {
+        this.threadName = threadName;
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(address, BACKLOG);
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, threadName + "-acceptor");
+        acceptor.setDaemon(true);
+    }
+
+    // Starts the acceptor thread
+    final void startAccepting() {
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = listener.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                // Closing the listener ends the loop. Any other failure is for one connection only
+                continue;
+            }
+            connections.add(socket);
+            Thread connection = new Thread(null, new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, threadName + "-connection-" + connectionCount.incrementAndGet(), CONNECTION_STACK_SIZE);
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    // Serves a connection on its own thread, and closes it once the terminal quits or disconnects
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE));
+            serve(socket, in, out);
+        } catch (IOException e) {
+            // The terminal disconnected
+        } finally {
+            connections.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /*
+    Method: serve()
+    Description: Reads lines from a connection and runs them as commands until the terminal quits or disconnects. A
+                 subclass replaces this to do something else with each line
+    Input:
+        socket - The connection
+        in - Reads from the connection
+        out - Writes to the connection
+    Output: The terminal's replies are written to out
+    Returns: Void
+    Throws: IOException if the connection fails
+    */
+    void serve(Socket socket, InputStream in, PrintStream out) throws IOException {
+        TerminalProtocol protocol = connect(out, socket.getInetAddress());
+        try {
+            byte[] line = new byte[TerminalProtocol.MAX_LINE_LENGTH];
+            ByteBuffer view = ByteBuffer.wrap(line);
+            boolean open = true;
+            while (open) {
+                int length = readLine(in, line);
+                if (length < 0) {
+                    return;
+                }
+                view.limit(length).position(0);
+                open = protocol.handle(view);
+            }
+        } finally {
+            protocol.close();
+        }
+    }
+
+    /*
+    Method: readLine()
+    Description: Reads one line, without its newline, into a buffer of TerminalProtocol.MAX_LINE_LENGTH bytes
+    Input:
+        in - Reads from the connection
+        line - Receives the line
+    Output: The line is in the buffer
+    Returns: The length of the line as an int, or -1 if the connection ended or the line did not fit
+    Throws: IOException if the connection fails
+    */
+    static int readLine(InputStream in, byte[] line) throws IOException {
+        int length = 0;
+        int next;
+        while ((next = in.read()) != '\n') {
+            if (next < 0 || length == line.length) {
+                return -1;
+            }
+            line[length++] = (byte) next;
+        }
+        return length;
+    }
+
+    @Override
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    @Override
+    public void await() throws InterruptedException {
+        acceptor.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        listener.close();
+        // Each connection thread sees its socket close and logs out its session on the way out
+        for (Socket socket : connections) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package TakeoffATMPKG;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/*
+Class: TimestampFormat
+Description: Writes transaction times as "yyyy-MM-dd HH:mm:ss" in the machine's time zone, exactly as DateTimeFormatter
+             would, without creating a LocalDateTime or Instant for each one. A daemon "clock" thread renders the
+             current second once per second, along with the span of time around it in which the zone's offset from
+             UTC does not change. Any time in that span, which in practice is every recent transaction, is converted by
+             arithmetic alone, and the current day's date is copied from the rendered second. Times outside the span
+             are handed to DateTimeFormatter. The rendered second is an immutable object replaced as a whole, so any
+             number of threads can format at once without a lock.
+*/
+
+public final class TimestampFormat {
+    // The length of a formatted timestamp, such as "2020-02-04 13:04:22"
+    public static final int LENGTH = 19;
+    // The length of the date and the space that follows it, "2020-02-04 "
+    private static final int DATE_LENGTH = 11;
+    private static final int SECONDS_PER_DAY = 86400;
+    private static final long MILLISECONDS_PER_SECOND = 1000;
+    // Used for times the fast path cannot handle, and to render the current second
+    static final DateTimeFormatter PATTERN = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final ZoneId zone;
+    private volatile Second current;
+
+    /*
+    Method: TimestampFormat()
+    Description: A constructor that renders the current second and starts the clock thread that keeps it current
+    Input:
+        zone - The time zone timestamps are written in
+    Output: Creates an object of type TimestampFormat and starts a "clock" daemon thread
+    Returns: No return type (N/A for a constructor)
+    */
+    public TimestampFormat(ZoneId zone) {
+        this.zone = zone;
+        this.current = render(System.currentTimeMillis() / MILLISECONDS_PER_SECOND);
+        Thread clock = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, "clock");
+        clock.setDaemon(true);
+        clock.start();
+    }
+
+    /*
+    Method: append()
+    Description: Writes a timestamp
+    Input:
+        out - The builder to write to
+        epochSecond - The time, in seconds since 1970-01-01T00:00:00Z
+    Output: The formatted time is appended to out
+    Returns: The same StringBuilder, so calls can be chained
+    */
+    public StringBuilder append(StringBuilder out, long epochSecond) {
+        Second second = current;
+        if (epochSecond == second.epochSecond) {
+            return out.append(second.text);
+        }
+        if (epochSecond >= second.offsetFrom && epochSecond < second.offsetUntil) {
+            long local = epochSecond + second.offsetSeconds;
+            long day = Math.floorDiv(local, SECONDS_PER_DAY);
+            int secondOfDay = (int) Math.floorMod(local, SECONDS_PER_DAY);
+            // Characters are collected and appended at once, which is much cheaper than appending them one by one
+            char[] text = new char[LENGTH];
+            if (day == second.day) {
+                System.arraycopy(second.text, 0, text, 0, DATE_LENGTH);
+            } else if (!writeDate(text, day)) {
+                text = null;
+            }
+            if (text != null) {
+                writeTime(text, secondOfDay);
+                return out.append(text);
+            }
+        }
+        PATTERN.formatTo(LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), zone), out);
+        return out;
+    }
+
+    /*
+    Method: format()
+    Description: Formats a timestamp. See append()
+    Input:
+        epochSecond - The time, in seconds since 1970-01-01T00:00:00Z
+    Output: None
+    Returns: The formatted time as a String
+    */
+    public String format(long epochSecond) {
+        return append(new StringBuilder(LENGTH), epochSecond).toString();
+    }
+
+    // Renders each second as it begins. Sleeping until the next whole second, rather than for a fixed second, keeps the
+    // clock from drifting
+    private void tick() {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long epochSecond = now / MILLISECONDS_PER_SECOND;
+            if (epochSecond != current.epochSecond) {
+                current = render(epochSecond);
+            }
+            try {
+                Thread.sleep(MILLISECONDS_PER_SECOND - now % MILLISECONDS_PER_SECOND);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private Second render(long epochSecond) {
+        Instant instant = Instant.ofEpochSecond(epochSecond);
+        ZoneRules rules = zone.getRules();
+        ZoneOffset offset = rules.getOffset(instant);
+        long offsetFrom = Long.MIN_VALUE;
+        long offsetUntil = Long.MAX_VALUE;
+        if (!rules.isFixedOffset()) {
+            ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            if (previous != null) {
+                offsetFrom = previous.toEpochSecond();
+            }
+            if (next != null) {
+                offsetUntil = next.toEpochSecond();
+            }
+            // Only trust the span if the offset really is the same at both ends of it
+            if (offsetFrom > epochSecond || offsetUntil <= epochSecond
+                    || (previous != null && !previous.getOffsetAfter().equals(offset))
+                    || (next != null && !next.getOffsetBefore().equals(offset))) {
+                offsetFrom = epochSecond;
+                offsetUntil = epochSecond + 1;
+            }
+        }
+        String text = PATTERN.format(LocalDateTime.ofInstant(instant, zone));
+        int offsetSeconds = offset.getTotalSeconds();
+        long day = Math.floorDiv(epochSecond + offsetSeconds, SECONDS_PER_DAY);
+        return new Second(epochSecond, text.toCharArray(), day, offsetSeconds, offsetFrom, offsetUntil);
+    }
+
+    // Writes the date and the space after it for a number of days since 1970-01-01, using the days-to-civil conversion
+    // from Howard Hinnant's date algorithms. Years DateTimeFormatter would write differently, outside 1 to 9999, are
+    // left to it
+    private static boolean writeDate(char[] text, long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 1 || year > 9999) {
+            return false;
+        }
+        writeTwoDigits(text, 0, (int) year / 100);
+        writeTwoDigits(text, 2, (int) year % 100);
+        text[4] = '-';
+        writeTwoDigits(text, 5, month);
+        text[7] = '-';
+        writeTwoDigits(text, 8, dayOfMonth);
+        text[10] = ' ';
+        return true;
+    }
+
+    // Writes HH:mm:ss after the date
+    private static void writeTime(char[] text, int secondOfDay) {
+        writeTwoDigits(text, 11, secondOfDay / 3600);
+        text[13] = ':';
+        writeTwoDigits(text, 14, secondOfDay / 60 % 60);
+        text[16] = ':';
+        writeTwoDigits(text, 17, secondOfDay % 60);
+    }
+
+    private static void writeTwoDigits(char[] text, int position, int value) {
+        text[position] = (char) ('0' + value / 10);
+        text[position + 1] = (char) ('0' + value % 10);
+    }
+
+    /*
+    Class: Second
+    Description: One rendered second, and the span of time around it in which the zone's offset is the same
+    */
+    private static final class Second {
+        private final long epochSecond;
+        private final char[] text;
+        // The local day, counted from 1970-01-01, that text begins with
+        private final long day;
+        private final int offsetSeconds;
+        // The offset applies from offsetFrom, inclusive, until offsetUntil, exclusive
+        private final long offsetFrom;
+        private final long offsetUntil;
+
+        Second(long epochSecond, char[] text, long day, int offsetSeconds, long offsetFrom, long offsetUntil) {
+            this.epochSecond = epochSecond;
+            this.text = text;
+            this.day = day;
+            this.offsetSeconds = offsetSeconds;
+            this.offsetFrom = offsetFrom;
+            this.offsetUntil = offsetUntil;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package TakeoffATMPKG;
+
+import java.util.Arrays;
+
+/*
+Class: TransactionBatch
+Description: A list of withdrawals and deposits to apply together with BatchProcessor, such as an end-of-day settlement
+             file being replayed. Commands and their results are kept in parallel primitive arrays, one slot per
+             command, so a batch of millions of commands is a handful of arrays rather than millions of objects. Once
+             processed, each slot holds the command's outcome and the account balance it left behind, and
+             getMessage() gives the same text withdraw() and deposit() would have returned.
+*/
+
+public final class TransactionBatch {
+    // Command types
+    public static final int WITHDRAWAL = 1;
+    public static final int DEPOSIT = 2;
+
+    // Outcomes. PENDING until the batch has been processed
+    public static final int PENDING = 0;
+    public static final int DISPENSED = 1;
+    // Dispensed, and the five dollar overdraft fee was charged
+    public static final int OVERDRAFT_FEE = 2;
+    // Refused because the account was already overdrawn
+    public static final int OVERDRAWN = 3;
+    // Refused because the terminal holds some cash, but not enough
+    public static final int UNABLE_TO_DISPENSE = 4;
+    // Refused because the terminal is out of cash
+    public static final int NO_CASH = 5;
+    public static final int DEPOSITED = 6;
+    // No account has the command's account ID
+    public static final int UNKNOWN_ACCOUNT = 7;
+    // Applied, but the transaction journal failed before recording it
+    public static final int NOT_RECORDED = 8;
+    // Refused because the transaction journal had already failed
+    public static final int UNAVAILABLE = 9;
+    // A deposit refused because the balance would overflow
+    public static final int TOO_LARGE = 10;
+
+    private int size;
+    private int[] types;
+    private long[] accountIDs;
+    // Withdrawals are stored in cents, like deposits, rather than as a number of $20 bills
+    private long[] amounts;
+    private int[] outcomes;
+    private long[] balances;
+
+    /*
+    Method: TransactionBatch()
+    Description: A constructor that creates an empty batch
+    Input:
+        expectedSize - The number of commands the batch is expected to hold. It grows if more are added
+    Output: Creates an object of type TransactionBatch
+    Returns: No return type (N/A for a constructor)
+    */
+    public TransactionBatch(int expectedSize) {
+        int capacity = Math.max(1, expectedSize);
+        types = new int[capacity];
+        accountIDs = new long[capacity];
+        amounts = new long[capacity];
+        outcomes = new int[capacity];
+        balances = new long[capacity];
+    }
+
+    /*
+    Method: addWithdrawal()
+    Description: Adds a withdrawal to the end of the batch
+    Input:
+        accountID - The account to withdraw from
+        numberOfTwenties - The number of $20 bills to withdraw
+    Output: The batch holds one more command
+    Returns: The command's index in the batch as an int
+    */
+    public int addWithdrawal(long accountID, int numberOfTwenties) {
+        if (numberOfTwenties < 0) {
+            throw new IllegalArgumentException("Cannot withdraw a negative amount: " + numberOfTwenties);
+        }
+        return add(WITHDRAWAL, accountID, numberOfTwenties * Machine.TWENTY_DOLLAR_BILL);
+    }
+
+    /*
+    Method: addDeposit()
+    Description: Adds a deposit to the end of the batch
+    Input:
+        accountID - The account to deposit into
+        cents - The amount to deposit
+    Output: The batch holds one more command
+    Returns: The command's index in the batch as an int
+    */
+    public int addDeposit(long accountID, long cents) {
+        if (cents < 0) {
+            throw new IllegalArgumentException("Cannot deposit a negative amount: " + cents);
+        }
+        return add(DEPOSIT, accountID, cents);
+    }
+
+    private int add(int type, long accountID, long amount) {
+        if (size == types.length) {
+            int capacity = types.length * 2;
+            types = Arrays.copyOf(types, capacity);
+            accountIDs = Arrays.copyOf(accountIDs, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            outcomes = Arrays.copyOf(outcomes, capacity);
+            balances = Arrays.copyOf(balances, capacity);
+        }
+        types[size] = type;
+        accountIDs[size] = accountID;
+        amounts[size] = amount;
+        outcomes[size] = PENDING;
+        balances[size] = 0;
+        return size++;
+    }
+
+    /*
+    Method: size()
+    Description: Retrieves the number of commands in the batch
+    Input: None
+    Output: None
+    Returns: The number of commands as an int
+    */
+    public int size() {
+        return size;
+    }
+
+    /*
+    Method: getType() / getAccountID() / getAmount() / getOutcome() / getBalance()
+    Description: Retrieve one field of a command: its type, its account ID, its amount in cents, its outcome, and the
+                 account balance in cents immediately after it was applied
+    Input:
+        index - The command's index in the batch
+    Output: None
+    Returns: The field's value
+    */
+    public int getType(int index) {
+        return types[index];
+    }
+
+    public long getAccountID(int index) {
+        return accountIDs[index];
+    }
+
+    public long getAmount(int index) {
+        return amounts[index];
+    }
+
+    public int getOutcome(int index) {
+        return outcomes[index];
+    }
+
+    public long getBalance(int index) {
+        return balances[index];
+    }
+
+    /*
+    Method: getMessage()
+    Description: The message withdraw() or deposit() would have returned for a processed command
+    Input:
+        index - The command's index in the batch
+    Output: None
+    Returns: String - Message to user
+    */
+    public String getMessage(int index) {
+        switch (outcomes[index]) {
+            case DISPENSED:
+            case OVERDRAFT_FEE:
+                return Machine.withdrawalMessage(0, amounts[index], balances[index]);
+            case OVERDRAWN:
+                return Machine.withdrawalMessage(Machine.WITHDRAWAL_OVERDRAWN, amounts[index], balances[index]);
+            case UNABLE_TO_DISPENSE:
+                return Machine.withdrawalMessage(Machine.WITHDRAWAL_UNABLE_TO_DISPENSE, amounts[index],
+                        balances[index]);
+            case NO_CASH:
+                return Machine.withdrawalMessage(Machine.WITHDRAWAL_NO_CASH, amounts[index], balances[index]);
+            case DEPOSITED:
+                return Machine.balanceMessage(balances[index]);
+            case UNKNOWN_ACCOUNT:
+                return "Authorization failed.\n\n";
+            case NOT_RECORDED:
+                return Machine.TRANSACTION_NOT_RECORDED;
+            case UNAVAILABLE:
+                return Machine.TRANSACTIONS_UNAVAILABLE;
+            case TOO_LARGE:
+                return Machine.DEPOSIT_REFUSED;
+            default:
+                return "";
+        }
+    }
+
+    /*
+    Method: clear()
+    Description: Empties the batch so its arrays can be reused for the next one
+    Input: None
+    Output: The batch holds no commands
+    Returns: None
+    */
+    public void clear() {
+        size = 0;
+    }
+
+    // Records the result of one command. Called by the BatchProcessor worker that owns the command's account
+    void complete(int index, int outcome, long balance) {
+        outcomes[index] = outcome;
+        balances[index] = balance;
+    }
+}
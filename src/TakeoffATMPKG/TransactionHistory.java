@@ -0,0 +1,371 @@
+package TakeoffATMPKG;
+
+/*
+Class: TransactionHistory
+Description: The transaction history of one account, stored as three parallel columns of primitives: the time of the
+             transaction in epoch seconds, the amount in cents, and the balance after the transaction in cents. Nothing
+             is formatted until the history is displayed. The columns form a ring buffer that starts small, grows as
+             needed, and never holds more than the retention limit; once full, each new transaction overwrites the
+             oldest one, unless Machine has moved older transactions to a HistoryArchive first.
+
+             Every transaction is numbered in the order it was added, so a position in the history can be remembered
+             across new transactions (see HistoryQuery). The numbering is kept in the journal's checkpoints, so it
+             carries on from where it was after a restart. Times never decrease from one transaction to the next, which
+             lets a range of times be found by binary search.
+*/
+
+public class TransactionHistory {
+    // Number of transactions kept per account unless another limit is configured with -Datm.historyRetention=<n>
+    public static final int DEFAULT_RETENTION = Integer.getInteger("atm.historyRetention", 1024);
+    // Most accounts only have a handful of transactions, so the columns start small
+    private static final int INITIAL_CAPACITY = 4;
+
+    /*
+    Interface: Visitor
+    Description: Receives one transaction at a time from forEach(), without any object being created per transaction
+    */
+    public interface Visitor {
+        void visit(long epochSecond, long amount, long balance);
+    }
+
+    private final int retention;
+    private long[] timestamps;
+    private long[] amounts;
+    private long[] balances;
+    // Index the next transaction will be written to
+    private int head;
+    // Number of transactions currently stored
+    private int count;
+    // Number of transactions ever added, which is the sequence number the next one will have
+    private long added;
+    // Where the newest block of transactions moved to the HistoryArchive starts, or -1 if none have been
+    private long archivedBlock = -1;
+    // The sequence numbers of the oldest and newest transaction in the archive
+    private long archivedFrom = -1;
+    private long archivedTo = -1;
+
+    /*
+    Method: TransactionHistory()
+    Description: A constructor that creates an empty history with the default retention limit
+    Input: None
+    Output: Creates an object of type TransactionHistory
+    Returns: No return type (N/A for a constructor)
+    */
+    public TransactionHistory() {
+        this(DEFAULT_RETENTION);
+    }
+
+    /*
+    Method: TransactionHistory()
+    Description: A constructor that creates an empty history with a custom retention limit
+    Input:
+        retention - The most transactions that will be kept
+    Output: Creates an object of type TransactionHistory
+    Returns: No return type (N/A for a constructor)
+    */
+    public TransactionHistory(int retention) {
+        if (retention < 1) {
+            throw new IllegalArgumentException("Retention must be at least one transaction");
+        }
+        this.retention = retention;
+        int capacity = Math.min(INITIAL_CAPACITY, retention);
+        this.timestamps = new long[capacity];
+        this.amounts = new long[capacity];
+        this.balances = new long[capacity];
+    }
+
+    /*
+    Method: add()
+    Description: Records a transaction as the newest entry. If the history is at its retention limit, the oldest entry
+                 is overwritten.
+    Input:
+        epochSecond - The time of the transaction, in seconds since 1970-01-01T00:00:00Z. A time before the newest
+                      transaction's, which happens if the clock is set back, is recorded as the newest transaction's
+        amount - A positive (deposit) or negative (withdrawal) amount in cents
+        balance - The account balance after the transaction, in cents
+    Output: The transaction is stored
+    Returns: Void
+    */
+    public void add(long epochSecond, long amount, long balance) {
+        if (count == timestamps.length && count < retention) {
+            grow();
+        }
+        if (count > 0) {
+            epochSecond = Math.max(epochSecond, getTimestamp(0));
+        }
+        timestamps[head] = epochSecond;
+        amounts[head] = amount;
+        balances[head] = balance;
+        head = head + 1 == timestamps.length ? 0 : head + 1;
+        if (count < timestamps.length) {
+            count++;
+        }
+        added++;
+    }
+
+    /*
+    Method: size()
+    Description: Retrieves the number of transactions stored
+    Input: None
+    Output: None
+    Returns: The number of transactions as an int
+    */
+    public int size() {
+        return count;
+    }
+
+    /*
+    Method: isEmpty()
+    Description: Checks whether any transactions are stored
+    Input: None
+    Output: None
+    Returns: True if there are no transactions
+    */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /*
+    Method: getRetention()
+    Description: Retrieves the most transactions this history will keep
+    Input: None
+    Output: None
+    Returns: The retention limit as an int
+    */
+    public int getRetention() {
+        return retention;
+    }
+
+    /*
+    Method: getTimestamp() / getAmount() / getBalance()
+    Description: Retrieves one column of a single transaction. Transactions are numbered newest first, so 0 is the
+                 most recent transaction and size() - 1 is the oldest one still kept.
+    Input:
+        newest - The position of the transaction, counting back from the most recent
+    Output: None
+    Returns: The requested value as a long
+    */
+    public long getTimestamp(int newest) {
+        return timestamps[slot(newest)];
+    }
+
+    public long getAmount(int newest) {
+        return amounts[slot(newest)];
+    }
+
+    public long getBalance(int newest) {
+        return balances[slot(newest)];
+    }
+
+    /*
+    Method: getSequence()
+    Description: Retrieves the sequence number of a transaction. The first transaction added to the history is 0, and
+                 a transaction keeps its number as newer ones are added
+    Input:
+        newest - The position of the transaction, counting back from the most recent
+    Output: None
+    Returns: The sequence number as a long
+    */
+    public long getSequence(int newest) {
+        slot(newest);
+        return added - 1 - newest;
+    }
+
+    /*
+    Method: positionOf()
+    Description: Converts a sequence number into a position counting back from the most recent transaction
+    Input:
+        sequence - A sequence number, as returned by getSequence()
+    Output: None
+    Returns: The position as an int, which is size() or more if the transaction has been overwritten, and negative if
+             it has not been added yet
+    */
+    public int positionOf(long sequence) {
+        long position = added - 1 - sequence;
+        return (int) Math.max(Math.min(position, Integer.MAX_VALUE), -1);
+    }
+
+    /*
+    Method: getNextSequence()
+    Description: Retrieves the sequence number the next transaction will have, which is the number ever added
+    Input: None
+    Output: None
+    Returns: The sequence number as a long
+    */
+    public long getNextSequence() {
+        return added;
+    }
+
+    /*
+    Method: startAt()
+    Description: Numbers the transactions of an empty history from a later sequence number, so a history rebuilt from
+                 a checkpoint that only holds its most recent transactions keeps their original numbers
+    Input:
+        sequence - The sequence number the next transaction will have
+    Output: The numbering is moved forward. Nothing changes if the history is not empty or sequence is not later
+    Returns: Void
+    */
+    void startAt(long sequence) {
+        if (count == 0 && sequence > added) {
+            added = sequence;
+        }
+    }
+
+    /*
+    Method: getArchivedBlock() / getArchivedFrom() / getArchivedTo()
+    Description: Retrieves where the account's transactions in the HistoryArchive are: the start of the newest block,
+                 and the sequence numbers of the oldest and newest transaction. The archive is only used while it
+                 continues this history without a gap and holds nothing this history has not added, which a history
+                 rebuilt from an older journal, or one the archive outlived, would not satisfy
+    Input: None
+    Output: None
+    Returns: The block as a long, or -1 if the history has no usable archive, and the sequence numbers as longs
+    */
+    public long getArchivedBlock() {
+        if (archivedBlock < 0 || archivedTo + 1 < added - count || archivedTo >= added) {
+            return -1;
+        }
+        return archivedBlock;
+    }
+
+    // The newest block linked to the history, whether or not it is usable yet. While the journal is replayed the
+    // archive is ahead of the history, and the blocks the replay reaches are already there
+    long getLinkedBlock() {
+        return archivedBlock;
+    }
+
+    public long getArchivedFrom() {
+        return archivedFrom;
+    }
+
+    public long getArchivedTo() {
+        return archivedTo;
+    }
+
+    /*
+    Method: archived()
+    Description: Removes the oldest transactions once HistoryArchive holds them, or once it has found they are older
+                 than anything it can link to, making room for as many new ones without anything being overwritten
+    Input:
+        transactions - The number of oldest transactions to remove
+        block - The newest block of the archive
+    Output: The transactions are removed
+    Returns: Void
+    */
+    void archived(int transactions, long block) {
+        if (transactions < 1 || transactions > count) {
+            throw new IndexOutOfBoundsException("Archived " + transactions + " of " + count);
+        }
+        long oldest = added - count;
+        if (archivedBlock < 0) {
+            archivedFrom = oldest;
+        }
+        archivedBlock = block;
+        archivedTo = Math.max(archivedTo, oldest + transactions - 1);
+        count -= transactions;
+    }
+
+    /*
+    Method: attachArchive()
+    Description: Links the history to transactions HistoryArchive already holds for the account, found when the archive
+                 was opened
+    Input:
+        block - The newest block of the account
+        from - The sequence number of the oldest transaction in the archive
+        to - The sequence number of the newest
+    Output: The archive is linked
+    Returns: Void
+    */
+    void attachArchive(long block, long from, long to) {
+        archivedBlock = block;
+        archivedFrom = from;
+        archivedTo = to;
+    }
+
+    /*
+    Method: dropArchive()
+    Description: Forgets the archived transactions, so the history starts at the oldest one kept here again. Used when
+                 a block cannot be written, which would otherwise leave a gap between the archive and this history
+    Input: None
+    Output: The archived transactions are no longer reachable
+    Returns: Void
+    */
+    void dropArchive() {
+        archivedBlock = -1;
+        archivedFrom = -1;
+        archivedTo = -1;
+    }
+
+    /*
+    Method: countNewerThan()
+    Description: Counts the transactions made after a time, by binary search over the times, which never decrease
+    Input:
+        epochSecond - The time, in seconds since 1970-01-01T00:00:00Z
+    Output: None
+    Returns: The number of transactions whose time is after epochSecond, which is also the position of the newest
+             transaction made at or before it
+    */
+    public int countNewerThan(long epochSecond) {
+        // Positions count back from the newest transaction, so times are in decreasing order
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[slot(middle)] > epochSecond) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /*
+    Method: forEach()
+    Description: Visits one page of transactions in reverse chronological order
+    Input:
+        offset - The number of most recent transactions to skip
+        limit - The most transactions to visit
+        visitor - Receives each transaction
+    Output: None
+    Returns: The number of transactions visited, which is less than limit once the oldest transaction is reached
+    */
+    public int forEach(int offset, int limit, Visitor visitor) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative");
+        }
+        int end = (int) Math.min((long) offset + limit, count);
+        for (int i = offset; i < end; i++) {
+            int slot = slot(i);
+            visitor.visit(timestamps[slot], amounts[slot], balances[slot]);
+        }
+        return Math.max(end - offset, 0);
+    }
+
+    // Converts a newest-first position into an index in the columns
+    private int slot(int newest) {
+        if (newest < 0 || newest >= count) {
+            throw new IndexOutOfBoundsException("Transaction " + newest + " of " + count);
+        }
+        int slot = head - 1 - newest;
+        return slot < 0 ? slot + timestamps.length : slot;
+    }
+
+    // Doubles the columns, up to the retention limit. Only called when the buffer is full, so the oldest transaction is
+    // at head and the copy unwraps the ring so that it starts at index 0
+    private void grow() {
+        int capacity = (int) Math.min((long) timestamps.length << 1, retention);
+        timestamps = unwrap(timestamps, capacity);
+        amounts = unwrap(amounts, capacity);
+        balances = unwrap(balances, capacity);
+        head = count;
+    }
+
+    private long[] unwrap(long[] column, int capacity) {
+        long[] copy = new long[capacity];
+        int tail = column.length - head;
+        System.arraycopy(column, head, copy, 0, tail);
+        System.arraycopy(column, 0, copy, tail, head);
+        return copy;
+    }
+}
@@ -0,0 +1,810 @@
+package TakeoffATMPKG;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+Class: TransactionJournal
+Description: A durable, append-only record of every balance change. Each withdrawal, deposit, and overdraft fee is
+             written as a fixed-size binary record to a segment file before the customer is told it happened. Records
+             from many terminals are gathered into one buffer and written by a single thread, so one fsync covers every
+             transaction that arrived while the previous fsync was running (group commit).
+
+             When a segment is full a new one is started. Once enough full segments exist they are folded, together
+             with the previous checkpoint, into a new checkpoint holding each account's balance, retained history, and
+             the sequence number its next transaction will have, and the folded segments are deleted. Recovery
+             therefore reads one checkpoint plus a bounded number of segments, no matter how long the machine has been
+             running. A checkpoint is only the state at its last record, not a series of past states, so balances at
+             earlier times come from the transaction histories (see Machine.balanceAt) rather than from the journal.
+
+             The journal is the source of truth for balances: account balances and histories in memory are projections
+             of it, brought up to date as each record is appended and rebuilt from it at startup. Records for one
+             account must be applied in order, but different accounts are independent, so recovery divides the
+             records of each segment between threads by account ID, the same way BatchProcessor divides a batch.
+
+             Record layout, 48 bytes, big endian:
+                 sequence (8) accountID (8) epochSecond (8) amount (8) balance (8) type (4) CRC32 of the first 44 (4)
+*/
+
+public class TransactionJournal implements Closeable {
+    // Record types. The balance field of every record is the account balance after the change
+    public static final int DEPOSIT = 1;
+    public static final int WITHDRAWAL = 2;
+    public static final int OVERDRAFT_FEE = 3;
+    // Returned by append() once the journal has failed or been closed
+    public static final long NOT_WRITTEN = -1;
+
+    // Segments are rolled once they reach this size
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    // Number of full segments folded into each new checkpoint
+    public static final int DEFAULT_SEGMENTS_PER_CHECKPOINT = 4;
+    // Threads that replay segments during recovery, one per processor unless -Datm.journalReplayThreads=<n> is given
+    public static final int DEFAULT_REPLAY_THREADS = Integer.getInteger("atm.journalReplayThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    static final int RECORD_SIZE = 48;
+    private static final int CHECKSUMMED_BYTES = RECORD_SIZE - 4;
+    // Records that fit in one group commit buffer. Appenders wait for the writer when it is full
+    private static final int BUFFER_RECORDS = 8192;
+    // Records read from a segment at a time. Replaying in parallel reads more, so each thread has enough to do
+    private static final int REPLAY_RECORDS = 1024;
+    private static final int PARALLEL_REPLAY_RECORDS = 65536;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final String CHECKPOINT_SUFFIX = ".snapshot";
+    private static final int CHECKPOINT_MAGIC = 0x41544D43;
+    // Version 2 added each account's next transaction sequence number. Version 1 checkpoints are still read
+    private static final int CHECKPOINT_VERSION = 2;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final int segmentsPerCheckpoint;
+    private final int replayThreads;
+
+    // Guards every field below that is shared between appenders and the writer thread
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when the filling buffer receives its first record
+    private final Condition recordsWaiting = lock.newCondition();
+    // Signalled when the writer has swapped buffers, freeing room for more records
+    private final Condition spaceAvailable = lock.newCondition();
+    // Signalled after each fsync
+    private final Condition durable = lock.newCondition();
+    private final CRC32 recordChecksum = new CRC32();
+    private ByteBuffer filling = ByteBuffer.allocate(RECORD_SIZE * BUFFER_RECORDS);
+    private ByteBuffer draining = ByteBuffer.allocate(RECORD_SIZE * BUFFER_RECORDS);
+    private long nextSequence;
+    private long durableSequence;
+    // Also read without the lock by isWritable()
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    // Only used by the writer thread
+    private FileChannel segment;
+    private long segmentSize;
+    // Segments not yet folded into a checkpoint, oldest first. Shared with the compactor, which puts segments back if
+    // it cannot fold them, so it is only used while synchronized on it
+    private final List<Path> fullSegments = new ArrayList<Path>();
+
+    private Thread writer;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private TransactionJournal(Path directory, long segmentBytes, int segmentsPerCheckpoint, int replayThreads) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segmentsPerCheckpoint = segmentsPerCheckpoint;
+        this.replayThreads = replayThreads;
+    }
+
+    /*
+    Method: open()
+    Description: Opens the journal in a directory with the default segment size and checkpoint interval. See the
+                 overload below.
+    */
+    public static TransactionJournal open(Path directory, AccountStore accounts) throws IOException {
+        return open(directory, accounts, DEFAULT_SEGMENT_BYTES, DEFAULT_SEGMENTS_PER_CHECKPOINT);
+    }
+
+    /*
+    Method: open()
+    Description: Opens the journal in a directory, replaying it with the default number of threads. See the overload
+                 below.
+    */
+    public static TransactionJournal open(Path directory, AccountStore accounts, long segmentBytes,
+                                          int segmentsPerCheckpoint) throws IOException {
+        return open(directory, accounts, segmentBytes, segmentsPerCheckpoint, DEFAULT_REPLAY_THREADS);
+    }
+
+    /*
+    Method: open()
+    Description: Opens the journal in a directory, creating it if needed. The newest valid checkpoint and every later
+                 segment are replayed into the accounts, so their balances and transaction histories are exactly as
+                 they were when the last transaction was made durable. A record torn by a crash is cut off, along with
+                 anything after it. New records are written to a fresh segment.
+    Input:
+        directory - Where segments and checkpoints are stored
+        accounts - The accounts to rebuild. Records for accounts that are not in the directory are skipped
+        segmentBytes - The size at which a segment is rolled
+        segmentsPerCheckpoint - How many full segments are folded into each checkpoint
+        replayThreads - The number of threads that replay segments. 1 replays them on the calling thread
+    Output: The accounts are updated and the writer thread is started
+    Returns: The opened TransactionJournal
+    */
+    public static TransactionJournal open(Path directory, AccountStore accounts, long segmentBytes,
+                                          int segmentsPerCheckpoint, int replayThreads) throws IOException {
+        if (segmentBytes < RECORD_SIZE || segmentsPerCheckpoint < 1) {
+            throw new IllegalArgumentException("Segments must hold a record and checkpoints must fold a segment");
+        }
+        if (replayThreads < 1) {
+            throw new IllegalArgumentException("At least one replay thread is required: " + replayThreads);
+        }
+        Files.createDirectories(directory);
+        TransactionJournal journal = new TransactionJournal(directory, segmentBytes, segmentsPerCheckpoint,
+                replayThreads);
+        long lastSequence = journal.recover(accounts);
+        journal.nextSequence = lastSequence + 1;
+        journal.durableSequence = lastSequence;
+        journal.startSegment(journal.nextSequence);
+        journal.startWriter();
+        return journal;
+    }
+
+    /*
+    Method: append()
+    Description: Adds a record to the group commit buffer. The caller should append while holding the account's lock,
+                 so records for one account are numbered in the order the changes were made, and then wait for
+                 durability with awaitDurable() after releasing it.
+    Input:
+        type - DEPOSIT, WITHDRAWAL, or OVERDRAFT_FEE
+        accountID - The account that changed
+        epochSecond - The time of the change
+        amount - The signed amount of the change, in cents
+        balance - The balance after the change, in cents
+    Output: The record is queued for the writer thread
+    Returns: The sequence number of the record, or NOT_WRITTEN if the journal has failed or been closed, in which case
+             the change must not be reported to the customer as made
+    */
+    public long append(int type, long accountID, long epochSecond, long amount, long balance) {
+        lock.lock();
+        try {
+            while (filling.remaining() < RECORD_SIZE && failure == null && !closed) {
+                spaceAvailable.awaitUninterruptibly();
+            }
+            if (failure != null || closed) {
+                return NOT_WRITTEN;
+            }
+            long sequence = nextSequence++;
+            boolean wasEmpty = filling.position() == 0;
+            int start = filling.position();
+            filling.putLong(sequence).putLong(accountID).putLong(epochSecond).putLong(amount).putLong(balance)
+                    .putInt(type);
+            recordChecksum.reset();
+            recordChecksum.update(filling.array(), start, CHECKSUMMED_BYTES);
+            filling.putInt((int) recordChecksum.getValue());
+            if (wasEmpty) {
+                recordsWaiting.signal();
+            }
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Method: awaitDurable()
+    Description: Waits until a record, and every record before it, has been forced to disk
+    Input:
+        sequence - The sequence number returned by append()
+    Output: None
+    Returns: True once the record is durable, or false if the journal could not be written. The change must then not
+             be reported to the customer as made, since it would not survive a restart
+    */
+    public boolean awaitDurable(long sequence) {
+        lock.lock();
+        try {
+            while (durableSequence < sequence && failure == null) {
+                durable.awaitUninterruptibly();
+            }
+            return durableSequence >= sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Method: isWritable()
+    Description: Checks whether new records can still be appended. Once the journal fails it stays failed, so a caller
+                 can check this before changing anything and refuse the change instead
+    Input: None
+    Output: None
+    Returns: True if the journal has neither failed nor been closed
+    */
+    public boolean isWritable() {
+        return failure == null && !closed;
+    }
+
+    /*
+    Method: close()
+    Description: Writes every record already appended, forces it to disk, and stops the writer thread
+    Input: None
+    Output: The current segment is closed
+    Returns: Void
+    */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            recordsWaiting.signal();
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void startWriter() {
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*
+    Method: writeLoop()
+    Description: The loop run by the writer thread. It swaps the filling buffer for the empty one, so appenders can keep
+                 going, then writes and forces the batch and wakes everyone waiting for a record in it.
+    Input: None
+    Output: Records are written to the current segment
+    Returns: Void
+    */
+    private void writeLoop() {
+        while (true) {
+            long batchLast;
+            lock.lock();
+            try {
+                while (filling.position() == 0 && !closed) {
+                    recordsWaiting.awaitUninterruptibly();
+                }
+                if (filling.position() == 0) {
+                    break;
+                }
+                ByteBuffer full = filling;
+                filling = draining;
+                draining = full;
+                batchLast = nextSequence - 1;
+                spaceAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                draining.flip();
+                segmentSize += draining.remaining();
+                while (draining.hasRemaining()) {
+                    segment.write(draining);
+                }
+                draining.clear();
+                segment.force(false);
+                if (segmentSize >= segmentBytes) {
+                    rollSegment(batchLast + 1);
+                }
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    durable.signalAll();
+                    spaceAvailable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                System.err.println("Transaction journal failed: " + e);
+                return;
+            }
+
+            lock.lock();
+            try {
+                durableSequence = batchLast;
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    // Starts a new segment, named after the first sequence number it will hold
+    private void startSegment(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        segment = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentSize = 0;
+        synchronized (fullSegments) {
+            fullSegments.add(path);
+        }
+    }
+
+    // Closes the current segment and starts the next one. Once enough segments are full they are handed to the
+    // compactor. The newest path in fullSegments is always the segment being written
+    private void rollSegment(long nextFirstSequence) throws IOException {
+        segment.close();
+        startSegment(nextFirstSequence);
+        final List<Path> folded;
+        synchronized (fullSegments) {
+            if (fullSegments.size() <= segmentsPerCheckpoint) {
+                return;
+            }
+            folded = new ArrayList<Path>(fullSegments.subList(0, fullSegments.size() - 1));
+            fullSegments.subList(0, fullSegments.size() - 1).clear();
+        }
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(folded);
+                } catch (IOException e) {
+                    // Nothing was deleted, and the segments are put back so the next compaction folds them. A later
+                    // run of segments must never be folded without them, or the checkpoint would skip their records
+                    System.err.println("Transaction journal compaction failed: " + e);
+                    synchronized (fullSegments) {
+                        fullSegments.addAll(folded);
+                        Collections.sort(fullSegments);
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+    Method: compact()
+    Description: Folds the newest checkpoint and a run of full segments into a new checkpoint, then deletes the old
+                 checkpoint and the folded segments. The account state is rebuilt in a private directory, so this runs
+                 without touching the live accounts.
+    Input:
+        segments - Full segments, oldest first, that directly follow the newest checkpoint
+    Output: A new checkpoint file replaces the old one and the segments
+    Returns: Void
+    Throws: IOException if a file cannot be read or written, or if a segment does not start where the checkpoint or
+            the segment before it ends. Nothing is written or deleted in that case
+    */
+    private void compact(List<Path> segments) throws IOException {
+        AccountDirectory folded = new AccountDirectory();
+        Path previous = newestCheckpoint();
+        long lastSequence = previous == null ? 0 : readCheckpoint(previous, folded, true);
+        for (Path path : segments) {
+            // A segment is named after its first record, so a gap means records the checkpoint would claim to hold
+            if (firstSequenceOf(path) > lastSequence + 1) {
+                throw new IOException("Segment " + path + " does not follow record " + lastSequence);
+            }
+            lastSequence = Math.max(lastSequence, replaySegment(path, folded, lastSequence, true, false, null, 1));
+        }
+
+        Path target = checkpointPath(lastSequence);
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        writeCheckpoint(temporary, folded, lastSequence);
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+
+        if (previous != null && !previous.equals(target)) {
+            Files.deleteIfExists(previous);
+        }
+        for (Path path : segments) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /*
+    Method: recover()
+    Description: Rebuilds the accounts from the newest valid checkpoint and the segments that follow it
+    Input:
+        accounts - The accounts to rebuild
+    Output: Balances and histories are replaced with the journal's state. A torn record is truncated
+    Returns: The last sequence number found, or 0 for an empty journal
+    */
+    private long recover(AccountStore accounts) throws IOException {
+        long lastSequence = 0;
+        List<Path> checkpoints = list(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+        for (int i = checkpoints.size() - 1; i >= 0; i--) {
+            try {
+                lastSequence = readCheckpoint(checkpoints.get(i), accounts, false);
+                break;
+            } catch (IOException e) {
+                // A checkpoint interrupted by a crash is never renamed into place, so this should not happen, but
+                // an older checkpoint and its segments are still usable if it does
+                System.err.println("Skipping unreadable checkpoint " + checkpoints.get(i) + ": " + e);
+            }
+        }
+        ExecutorService replayers = replayThreads > 1 ? newReplayers(replayThreads) : null;
+        try {
+            for (Path path : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+                lastSequence = Math.max(lastSequence, replaySegment(path, accounts, lastSequence, false, true,
+                        replayers, replayThreads));
+                // Segments left by earlier runs are folded into the next checkpoint along with this run's. An empty
+                // one is removed so that its name can never collide with a new segment
+                if (Files.size(path) == 0) {
+                    Files.delete(path);
+                } else {
+                    synchronized (fullSegments) {
+                        fullSegments.add(path);
+                    }
+                }
+            }
+        } finally {
+            if (replayers != null) {
+                replayers.shutdown();
+            }
+        }
+        return lastSequence;
+    }
+
+    private static ExecutorService newReplayers(int threads) {
+        final AtomicInteger created = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "journal-replay-" + created.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+    Method: replaySegment()
+    Description: Applies every record of one segment that is newer than the given sequence number. Records are checked
+                 a block at a time on the calling thread, then the block is applied, divided between the replay threads
+                 by account ID when there are any. Sequence numbers only increase within a segment, so the records a
+                 checkpoint already holds are all at the start of it.
+    Input:
+        path - The segment to read
+        accounts - The accounts to apply records to
+        after - Records with this sequence number or lower have already been applied
+        createMissing - True when folding a checkpoint, where an account is created the first time it is seen. Only
+                        allowed without replay threads, since creating an account changes the store
+        truncateTorn - True during recovery, where a torn record and everything after it is cut from the file
+        replayers - The replay threads, or null to apply every record on the calling thread
+        partitions - The number of replay threads
+    Output: The accounts are updated
+    Returns: The highest sequence number applied, or after if none were
+    */
+    private static long replaySegment(Path path, AccountStore accounts, long after, boolean createMissing,
+                                      boolean truncateTorn, ExecutorService replayers, int partitions)
+            throws IOException {
+        long lastSequence = after;
+        CRC32 checksum = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * (replayers == null ? REPLAY_RECORDS
+                : PARALLEL_REPLAY_RECORDS));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                buffer.clear();
+                channel.read(buffer, position);
+                buffer.flip();
+                int whole = buffer.remaining() / RECORD_SIZE;
+                if (whole == 0) {
+                    // Fewer bytes than one record remain, so the last write was cut short
+                    return truncate(channel, path, position, truncateTorn, lastSequence);
+                }
+                // The first record not yet applied, and the end of the records whose checksums match
+                int first = whole;
+                int valid = 0;
+                for (; valid < whole; valid++) {
+                    int start = valid * RECORD_SIZE;
+                    checksum.reset();
+                    checksum.update(buffer.array(), start, CHECKSUMMED_BYTES);
+                    if (buffer.getInt(start + CHECKSUMMED_BYTES) != (int) checksum.getValue()) {
+                        break;
+                    }
+                    long sequence = buffer.getLong(start);
+                    if (sequence > lastSequence) {
+                        first = Math.min(first, valid);
+                        lastSequence = sequence;
+                    }
+                }
+                if (first < valid) {
+                    applyAll(buffer, first, valid, accounts, createMissing, replayers, partitions);
+                }
+                if (valid < whole) {
+                    return truncate(channel, path, position + (long) valid * RECORD_SIZE, truncateTorn,
+                            lastSequence);
+                }
+                position += (long) whole * RECORD_SIZE;
+            }
+        }
+        return lastSequence;
+    }
+
+    /*
+    Method: applyAll()
+    Description: Applies a block of records. With replay threads, each takes the records of the accounts assigned to
+                 it, in order, and the block is finished before the next one is read
+    */
+    private static void applyAll(final ByteBuffer records, final int from, final int to, final AccountStore accounts,
+                                 final boolean createMissing, ExecutorService replayers, final int partitions)
+            throws IOException {
+        if (replayers == null) {
+            applyPartition(records, from, to, accounts, createMissing, 0, 1);
+            return;
+        }
+        List<Future<?>> running = new ArrayList<Future<?>>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            final int partition = p;
+            running.add(replayers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    applyPartition(records, from, to, accounts, createMissing, partition, partitions);
+                }
+            }));
+        }
+        boolean interrupted = false;
+        for (Future<?> replayer : running) {
+            while (true) {
+                try {
+                    replayer.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // The block must be applied before the next is read, so keep waiting and restore the flag after
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IOException("Journal replay failed", e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Applies the records from one partition of the accounts. Only reads the buffer, so threads can share it
+    private static void applyPartition(ByteBuffer records, int from, int to, AccountStore accounts,
+                                       boolean createMissing, int partition, int partitions) {
+        for (int i = from; i < to; i++) {
+            int start = i * RECORD_SIZE;
+            long accountID = records.getLong(start + 8);
+            if (partitions > 1 && (AccountDirectory.mix(accountID) & Integer.MAX_VALUE) % partitions != partition) {
+                continue;
+            }
+            apply(accounts, createMissing, accountID, records.getLong(start + 16), records.getLong(start + 24),
+                    records.getLong(start + 32), records.getInt(start + 40));
+        }
+    }
+
+    private static long truncate(FileChannel channel, Path path, long position, boolean truncateTorn,
+                                 long lastSequence) throws IOException {
+        if (truncateTorn) {
+            System.err.println("Truncating torn journal record in " + path + " at byte " + position);
+            channel.truncate(position);
+            channel.force(false);
+        }
+        return lastSequence;
+    }
+
+    /*
+    Method: apply()
+    Description: Applies one record to its account. Withdrawals and deposits are also added to the transaction history;
+                 the overdraft fee only changes the balance, matching what Machine records. The live accounts record
+                 history through Machine, so what the replay pushes out of a full history reaches the HistoryArchive
+    */
+    private static void apply(AccountStore accounts, boolean createMissing, long accountID, long epochSecond,
+                              long amount, long balance, int type) {
+        Account account = accounts.find(accountID);
+        if (account == null) {
+            if (!createMissing) {
+                return;
+            }
+            account = new Account(accountID, balance);
+            accounts.put(account);
+        }
+        account.setAccountBalance(balance);
+        if (type == DEPOSIT || type == WITHDRAWAL) {
+            addHistory(account, createMissing, epochSecond, amount, balance);
+        }
+    }
+
+    /*
+    Method: writeCheckpoint()
+    Description: Writes the balance, next sequence number, and retained history of every account, followed by a CRC32
+                 of the whole file
+    */
+    private static void writeCheckpoint(Path path, AccountStore accounts, long lastSequence) throws IOException {
+        CRC32 checksum = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(
+                Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE), checksum), 1 << 16))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeLong(lastSequence);
+            out.writeInt(accounts.size());
+            for (Account account : accounts.toArray()) {
+                TransactionHistory history = account.getTransactionHistory();
+                out.writeLong(account.getAccountID());
+                out.writeLong(account.getAccountBalance());
+                out.writeLong(history.getNextSequence());
+                out.writeInt(history.size());
+                // Oldest first, so reading the checkpoint back adds them in their original order
+                for (int i = history.size() - 1; i >= 0; i--) {
+                    out.writeLong(history.getTimestamp(i));
+                    out.writeLong(history.getAmount(i));
+                    out.writeLong(history.getBalance(i));
+                }
+            }
+            out.flush();
+            long value = checksum.getValue();
+            out.writeLong(value);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /*
+    Method: readCheckpoint()
+    Description: Loads a checkpoint into the accounts after verifying its checksum
+    Input:
+        path - The checkpoint to read
+        accounts - The accounts to update
+        createMissing - True if accounts that are not in the directory should be created
+    Output: Balances and histories are replaced with the checkpoint's state
+    Returns: The last sequence number included in the checkpoint
+    */
+    private static long readCheckpoint(Path path, AccountStore accounts, boolean createMissing)
+            throws IOException {
+        // Verify the whole file before applying any of it, so a damaged checkpoint changes nothing
+        long size = Files.size(path);
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (size < 8 || channel.read(trailer, size - 8) != 8) {
+                throw new EOFException("Checkpoint is truncated");
+            }
+        }
+        if (trailer.getLong(0) != checksumBefore(path, size)) {
+            throw new IOException("Checkpoint checksum does not match");
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            int version = in.readInt() == CHECKPOINT_MAGIC ? in.readInt() : -1;
+            if (version < 1 || version > CHECKPOINT_VERSION) {
+                throw new IOException("Not a transaction journal checkpoint");
+            }
+            long lastSequence = in.readLong();
+            int count = in.readInt();
+            for (int a = 0; a < count; a++) {
+                long accountID = in.readLong();
+                long balance = in.readLong();
+                long nextSequence = version >= 2 ? in.readLong() : 0;
+                int entries = in.readInt();
+                Account account = accounts.find(accountID);
+                if (account == null && createMissing) {
+                    account = new Account(accountID, balance);
+                    accounts.put(account);
+                }
+                if (account != null) {
+                    account.setAccountBalance(balance);
+                    account.getTransactionHistory().startAt(nextSequence - entries);
+                }
+                for (int e = 0; e < entries; e++) {
+                    long epochSecond = in.readLong();
+                    long amount = in.readLong();
+                    long entryBalance = in.readLong();
+                    if (account != null) {
+                        addHistory(account, createMissing, epochSecond, amount, entryBalance);
+                    }
+                }
+            }
+            return lastSequence;
+        }
+    }
+
+    // Adds a transaction to an account's history. Compaction rebuilds accounts of its own, which never archive
+    private static void addHistory(Account account, boolean createMissing, long epochSecond, long amount,
+                                   long balance) {
+        if (createMissing) {
+            account.updateTransactionHistory(epochSecond, amount, balance);
+        } else {
+            Machine.recordHistory(account, epochSecond, amount, balance);
+        }
+    }
+
+    // The CRC32 of every byte of a checkpoint except its eight byte trailer
+    private static long checksumBefore(Path path, long size) throws IOException {
+        CRC32 checksum = new CRC32();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+            byte[] block = new byte[1 << 16];
+            long remaining = size - 8;
+            while (remaining > 0) {
+                int read = in.read(block, 0, (int) Math.min(block.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Checkpoint is truncated");
+                }
+                checksum.update(block, 0, read);
+                remaining -= read;
+            }
+        }
+        return checksum.getValue();
+    }
+
+    private Path newestCheckpoint() throws IOException {
+        List<Path> checkpoints = list(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+        return checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+    }
+
+    // The sequence number a segment's first record has, which is the number in its name
+    private static long firstSequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Path checkpointPath(long lastSequence) {
+        return directory.resolve(String.format("%s%020d%s", CHECKPOINT_PREFIX, lastSequence, CHECKPOINT_SUFFIX));
+    }
+
+    // Lists files with the given prefix and suffix. The zero padded sequence numbers make name order the same as
+    // sequence order
+    private List<Path> list(String prefix, String suffix) throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+}
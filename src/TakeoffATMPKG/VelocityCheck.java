@@ -0,0 +1,136 @@
+package TakeoffATMPKG;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: VelocityCheck
+Description: The RiskCheck that limits how fast money and attempts can go through the machine. Each rule is off unless
+             its limit is given:
+
+                 -Datm.maxWithdrawnPerHour=<dollars>            Cash withdrawn from one account in an hour
+                 -Datm.maxWithdrawalsPerMinute=<count>          Withdrawals tried on one account in a minute
+                 -Datm.maxFailedAuthorizationsPerMinute=<count> Failed authorizations from one origin in a minute, over
+                                                                any accounts, after which attempts from there fail
+                                                                without the PIN being checked
+                 -Datm.maxFailedAuthorizationsPerAccountPerMinute=<count>
+                                                                Failed authorizations of one account in a minute, from
+                                                                anywhere, after which attempts on it fail the same way
+
+             An origin is the address a terminal connects from (see Terminal.getOrigin()), so disconnecting and
+             reconnecting does not start a terminal's count again, and the per-account rule stops guesses spread over
+             many addresses. A ShardRouter passes each terminal's own origin on to the shard, so terminals behind a
+             router are counted separately too.
+
+             Every rule keeps a SlidingWindowCounter, sized with -Datm.velocitySlots for the accounts or origins active
+             within one window (65536 unless given), so each verdict reads and writes a fixed number of words without
+             taking a lock. Withdrawals that are refused still count as attempts, but only the cash that actually left
+             the account counts against the hourly amount.
+*/
+
+public final class VelocityCheck implements RiskCheck {
+    static final int SLOTS = Integer.getInteger("atm.velocitySlots", 1 << 16);
+    // Each window is split into this many buckets, so it slides in steps of a twelfth of its length
+    private static final int BUCKETS = 12;
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    private final long maxWithdrawnPerHour;
+    private final long maxWithdrawalsPerMinute;
+    private final long maxFailedAuthorizationsPerMinute;
+    private final long maxFailedAuthorizationsPerAccountPerMinute;
+    // Null when the rule is off
+    private final SlidingWindowCounter withdrawnPerHour;
+    private final SlidingWindowCounter withdrawalsPerMinute;
+    private final SlidingWindowCounter failedAuthorizationsPerMinute;
+    private final SlidingWindowCounter failedAuthorizationsPerAccountPerMinute;
+
+    /*
+    Method: VelocityCheck()
+    Description: A constructor that sets the limits. A limit of zero or less turns its rule off
+    Input:
+        maxWithdrawnPerHour - The most cash, in cents, withdrawn from an account in an hour
+        maxWithdrawalsPerMinute - The most withdrawals tried on an account in a minute
+        maxFailedAuthorizationsPerMinute - The most failed authorizations from an origin in a minute
+        maxFailedAuthorizationsPerAccountPerMinute - The most failed authorizations of an account in a minute
+        slots - The number of accounts or origins each rule can track at once
+    Output: Creates an object of type VelocityCheck
+    Returns: No return type (N/A for a constructor)
+    */
+    public VelocityCheck(long maxWithdrawnPerHour, long maxWithdrawalsPerMinute, long maxFailedAuthorizationsPerMinute,
+                         long maxFailedAuthorizationsPerAccountPerMinute, int slots) {
+        this.maxWithdrawnPerHour = maxWithdrawnPerHour;
+        this.maxWithdrawalsPerMinute = maxWithdrawalsPerMinute;
+        this.maxFailedAuthorizationsPerMinute = maxFailedAuthorizationsPerMinute;
+        this.maxFailedAuthorizationsPerAccountPerMinute = maxFailedAuthorizationsPerAccountPerMinute;
+        withdrawnPerHour = maxWithdrawnPerHour > 0 ? new SlidingWindowCounter(slots, BUCKETS, HOUR) : null;
+        withdrawalsPerMinute = maxWithdrawalsPerMinute > 0 ? new SlidingWindowCounter(slots, BUCKETS, MINUTE) : null;
+        failedAuthorizationsPerMinute = maxFailedAuthorizationsPerMinute > 0 ?
+                new SlidingWindowCounter(slots, BUCKETS, MINUTE) : null;
+        failedAuthorizationsPerAccountPerMinute = maxFailedAuthorizationsPerAccountPerMinute > 0 ?
+                new SlidingWindowCounter(slots, BUCKETS, MINUTE) : null;
+    }
+
+    /*
+    Method: fromProperties()
+    Description: Creates the check for the limits given on the command line
+    Input: None
+    Output: None
+    Returns: A VelocityCheck, or RiskCheck.ALLOW_ALL if no limit is given
+    */
+    public static RiskCheck fromProperties() {
+        long withdrawn = Money.ofDollars(Long.getLong("atm.maxWithdrawnPerHour", 0));
+        long withdrawals = Long.getLong("atm.maxWithdrawalsPerMinute", 0);
+        long failures = Long.getLong("atm.maxFailedAuthorizationsPerMinute", 0);
+        long accountFailures = Long.getLong("atm.maxFailedAuthorizationsPerAccountPerMinute", 0);
+        if (withdrawn <= 0 && withdrawals <= 0 && failures <= 0 && accountFailures <= 0) {
+            return ALLOW_ALL;
+        }
+        return new VelocityCheck(withdrawn, withdrawals, failures, accountFailures, SLOTS);
+    }
+
+    @Override
+    public boolean allowAuthorize(long origin, long accountID, long now) {
+        if (failedAuthorizationsPerMinute != null &&
+                failedAuthorizationsPerMinute.sum(originKey(origin), now) >= maxFailedAuthorizationsPerMinute) {
+            return false;
+        }
+        return failedAuthorizationsPerAccountPerMinute == null || failedAuthorizationsPerAccountPerMinute.sum(accountID,
+                now) < maxFailedAuthorizationsPerAccountPerMinute;
+    }
+
+    @Override
+    public void authorizeFailed(long origin, long accountID, long now) {
+        if (failedAuthorizationsPerMinute != null) {
+            failedAuthorizationsPerMinute.add(originKey(origin), 1, now);
+        }
+        if (failedAuthorizationsPerAccountPerMinute != null) {
+            failedAuthorizationsPerAccountPerMinute.add(accountID, 1, now);
+        }
+    }
+
+    @Override
+    public boolean allowWithdrawal(long accountID, long terminalID, long amount, long now) {
+        if (withdrawalsPerMinute != null && withdrawalsPerMinute.add(accountID, 1, now) > maxWithdrawalsPerMinute) {
+            return false;
+        }
+        // The amount is added first and taken back if it goes over, so two withdrawals at once cannot both fit
+        if (withdrawnPerHour != null && withdrawnPerHour.add(accountID, amount, now) > maxWithdrawnPerHour) {
+            withdrawnPerHour.subtract(accountID, amount, now);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void withdrawalFailed(long accountID, long terminalID, long amount, long now) {
+        if (withdrawnPerHour != null) {
+            withdrawnPerHour.subtract(accountID, amount, now);
+        }
+    }
+
+    // The counters only take keys of 0 or more, but an IPv6 origin folded into 64 bits can be negative. Clearing the
+    // sign bit leaves an IPv4 origin as it is, and has an IPv6 one share its count with at most one other origin
+    private static long originKey(long origin) {
+        return origin & Long.MAX_VALUE;
+    }
+}